@@ -0,0 +1,383 @@
+package com.videocompression.app.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.videocompression.app.service.Fixtures;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Drives a running instance with uploads to {@code /api/v1/compress} and
+ * {@code /api/v1/detect-resolutions} from a number of concurrent clients, each sending its next
+ * request as soon as the last one returns. Every concurrency level is a stage of its own, so one
+ * run shows where latency starts to climb. Requests pick a synthetic clip, preset and resolutions
+ * from weighted mixes.
+ *
+ * <p>Reports throughput, p50/p95/p99 latency and errors per endpoint and per mix entry, along
+ * with the server's CPU, load, heap and job gauges sampled from Actuator during the stage.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.videocompression.app.loadtest.LoadTest \
+ *     --url=http://localhost:8080 --concurrency=1,2,4 --duration=PT2M \
+ *     --clips=640x360@5:3,1280x720@10:1 --presets=LOW,MEDIUM:2 --resolutions=SD,SD+LOW
+ * </pre>
+ */
+public final class LoadTest {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("url", "http://localhost:8080");
+        // Clients per stage
+        DEFAULTS.put("concurrency", "1,2,4");
+        DEFAULTS.put("duration", "PT1M");
+        // Requests that start during the warmup of a stage are not counted
+        DEFAULTS.put("warmup", "PT10S");
+        // WIDTHxHEIGHT@SECONDS:weight
+        DEFAULTS.put("clips", "640x360@5:3,1280x720@10:1");
+        DEFAULTS.put("presets", "LOW,MEDIUM:2");
+        // Resolutions of one request joined with '+'
+        DEFAULTS.put("resolutions", "SD:2,LOW,SD+LOW");
+        DEFAULTS.put("output-format", "mp4");
+        // Share of requests that only detect resolutions
+        DEFAULTS.put("detect-share", "0.2");
+        DEFAULTS.put("timeout", "PT10M");
+        DEFAULTS.put("sample-interval", "PT1S");
+        DEFAULTS.put("seed", "1");
+        // Where to write the report as JSON as well
+        DEFAULTS.put("report", "");
+    }
+
+    private static final String COMPRESS = "compress";
+    private static final String DETECT = "detect-resolutions";
+
+    // A source clip and where it is on disk
+    static final class Clip {
+        final String name;
+        final Path path;
+        final long size;
+
+        Clip(String name, Path path, long size) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+        }
+
+        static Clip generate(String spec) {
+            // WIDTHxHEIGHT@SECONDS
+            String[] sizeAndLength = spec.split("@");
+            String[] dimensions = sizeAndLength[0].split("x");
+            try {
+                Path path = Fixtures.clip(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]),
+                    Integer.parseInt(sizeAndLength[1]));
+                return new Clip(spec + "s", path, Files.size(path));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to generate clip " + spec, e);
+            }
+        }
+    }
+
+    // One finished request
+    static final class Sample {
+        final String endpoint;
+        final String label;
+        final long nanos;
+        final long bytes;
+        // HTTP status, or null when no response came back
+        final Integer status;
+        final String error;
+
+        Sample(String endpoint, String label, long nanos, long bytes, Integer status, String error) {
+            this.endpoint = endpoint;
+            this.label = label;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.status = status;
+            this.error = error;
+        }
+
+        boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    private final Map<String, String> options;
+    private final HttpClient client;
+    private final String baseUrl;
+    private final Mix<Clip> clips;
+    private final Mix<String> presets;
+    private final Mix<String> resolutions;
+    private final double detectShare;
+    private final Duration timeout;
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.baseUrl = options.get("url").replaceAll("/+$", "");
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+        this.clips = Mix.parse(options.get("clips"), Clip::generate);
+        this.presets = Mix.parse(options.get("presets"), preset -> preset);
+        this.resolutions = Mix.parse(options.get("resolutions"), resolution -> resolution);
+        this.detectShare = Double.parseDouble(options.get("detect-share"));
+        this.timeout = Duration.parse(options.get("timeout"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            if (arg.equals("--help") || !arg.startsWith("--") || !arg.contains("=")) {
+                System.out.println("Options (--name=value) and their defaults:");
+                DEFAULTS.forEach((name, value) -> System.out.println("  --" + name + "=" + value));
+                System.exit(arg.equals("--help") ? 0 : 2);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            if (!DEFAULTS.containsKey(name)) {
+                System.err.println("Unknown option --" + name);
+                System.exit(2);
+            }
+            options.put(name, arg.substring(arg.indexOf('=') + 1));
+        }
+
+        LoadTest loadTest = new LoadTest(options);
+        List<Map<String, Object>> stages = new ArrayList<>();
+        for (String level : options.get("concurrency").split(",")) {
+            stages.add(loadTest.runStage(Integer.parseInt(level.trim())));
+        }
+
+        if (!options.get("report").isEmpty()) {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("options", options);
+            report.put("stages", stages);
+            Path path = Paths.get(options.get("report"));
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(path.toFile(), report);
+            System.out.println("Report written to " + path.toAbsolutePath());
+        }
+    }
+
+    private Map<String, Object> runStage(int concurrency) throws InterruptedException {
+        Duration warmup = Duration.parse(options.get("warmup"));
+        Duration duration = Duration.parse(options.get("duration"));
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long stageEnd = measureFrom + duration.toNanos();
+        long seed = Long.parseLong(options.get("seed"));
+
+        System.out.printf(Locale.ROOT, "%nStage: %d client(s), %ds warmup, %ds measured%n", concurrency,
+            warmup.getSeconds(), duration.getSeconds());
+
+        Double cacheRestoresBefore = ServerSampler.read(client, baseUrl, "vcp.stage", "stage:cache_restore");
+        List<Sample> samples = new ArrayList<>();
+        long[] lastCompletion = {measureFrom};
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        try (ServerSampler sampler = new ServerSampler(client, baseUrl,
+                Duration.parse(options.get("sample-interval")))) {
+            for (int i = 0; i < concurrency; i++) {
+                Random random = new Random(seed * 31 + i);
+                clients.submit(() -> {
+                    while (System.nanoTime() < stageEnd && !Thread.currentThread().isInterrupted()) {
+                        long sent = System.nanoTime();
+                        Sample sample = send(random);
+                        if (sent >= measureFrom) {
+                            synchronized (samples) {
+                                samples.add(sample);
+                                lastCompletion[0] = Math.max(lastCompletion[0], System.nanoTime());
+                            }
+                        }
+                    }
+                });
+            }
+            clients.shutdown();
+            // Requests still running at the end of the stage are waited for and counted
+            clients.awaitTermination(duration.plus(warmup).plus(timeout).toMillis(), TimeUnit.MILLISECONDS);
+            clients.shutdownNow();
+
+            double seconds = Math.max(1, lastCompletion[0] - measureFrom) / 1e9;
+            Map<String, Object> stage = new LinkedHashMap<>();
+            stage.put("concurrency", concurrency);
+            stage.put("seconds", seconds);
+            stage.put("endpoints", summarize(samples, sample -> sample.endpoint, seconds));
+            stage.put("mix", summarize(samples, sample -> sample.endpoint + " " + sample.label, seconds));
+            stage.put("errors", errors(samples));
+            stage.put("server", sampler.summary());
+
+            Double cacheRestoresAfter = ServerSampler.read(client, baseUrl, "vcp.stage", "stage:cache_restore");
+            if (cacheRestoresBefore != null && cacheRestoresAfter != null && cacheRestoresAfter > cacheRestoresBefore) {
+                stage.put("warning", "the transcode cache served " + Math.round(cacheRestoresAfter - cacheRestoresBefore)
+                    + " rendition(s); start the server with --vcp.cache.enabled=false to measure encodes");
+            }
+            print(stage);
+            return stage;
+        }
+    }
+
+    private Sample send(Random random) {
+        Clip clip = clips.pick(random);
+        boolean detect = random.nextDouble() < detectShare;
+        String endpoint = detect ? DETECT : COMPRESS;
+        String label;
+        Multipart body = new Multipart();
+        if (detect) {
+            label = clip.name;
+            body.file("video", clip.path);
+        } else {
+            String preset = presets.pick(random);
+            String ladder = resolutions.pick(random);
+            label = preset + " " + ladder + " " + clip.name;
+            body.file("files", clip.path)
+                .field("preset", preset)
+                .field("outputFormat", options.get("output-format"));
+            for (String resolution : ladder.split("\\+")) {
+                body.field("resolutions", resolution);
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/api/v1/" + endpoint))
+                .timeout(timeout)
+                .header("Content-Type", "multipart/form-data; boundary=" + body.boundary)
+                .POST(body.publisher())
+                .build(), HttpResponse.BodyHandlers.discarding());
+            int status = response.statusCode();
+            return new Sample(endpoint, label, System.nanoTime() - start, clip.size, status,
+                status / 100 == 2 ? null : "HTTP " + status);
+        } catch (HttpTimeoutException e) {
+            return new Sample(endpoint, label, System.nanoTime() - start, clip.size, null, "timeout");
+        } catch (IOException e) {
+            return new Sample(endpoint, label, System.nanoTime() - start, clip.size, null,
+                e.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Sample(endpoint, label, System.nanoTime() - start, clip.size, null, "interrupted");
+        }
+    }
+
+    private static Map<String, Map<String, Object>> summarize(List<Sample> samples,
+            Function<Sample, String> key, double seconds) {
+        Map<String, List<Sample>> groups = new TreeMap<>();
+        for (Sample sample : samples) {
+            groups.computeIfAbsent(key.apply(sample), k -> new ArrayList<>()).add(sample);
+        }
+
+        Map<String, Map<String, Object>> summaries = new LinkedHashMap<>();
+        groups.forEach((name, group) -> {
+            long[] latencies = group.stream().filter(Sample::succeeded).mapToLong(s -> s.nanos).sorted().toArray();
+            long errors = group.size() - latencies.length;
+            long bytes = group.stream().filter(Sample::succeeded).mapToLong(s -> s.bytes).sum();
+
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("requests", group.size());
+            summary.put("errors", errors);
+            summary.put("errorRate", (double) errors / group.size());
+            summary.put("throughput", latencies.length / seconds);
+            summary.put("uploadMBps", bytes / seconds / 1e6);
+            summary.put("p50Ms", percentile(latencies, 50));
+            summary.put("p95Ms", percentile(latencies, 95));
+            summary.put("p99Ms", percentile(latencies, 99));
+            summary.put("maxMs", latencies.length > 0 ? latencies[latencies.length - 1] / 1e6 : Double.NaN);
+            summaries.put(name, summary);
+        });
+        return summaries;
+    }
+
+    // Nearest rank, in milliseconds
+    static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static Map<String, Integer> errors(List<Sample> samples) {
+        Map<String, Integer> errors = new TreeMap<>();
+        for (Sample sample : samples) {
+            if (!sample.succeeded()) {
+                errors.merge(sample.endpoint + " " + sample.error, 1, Integer::sum);
+            }
+        }
+        return errors;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void print(Map<String, Object> stage) {
+        System.out.printf(Locale.ROOT, "%-48s %8s %7s %7s %8s %9s %9s %9s %9s%n", "", "requests", "errors",
+            "req/s", "MB/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (String section : List.of("endpoints", "mix")) {
+            ((Map<String, Map<String, Object>>) stage.get(section)).forEach((name, summary) ->
+                System.out.printf(Locale.ROOT, "%-48s %8d %7d %7.2f %8.2f %9.0f %9.0f %9.0f %9.0f%n",
+                    (section.equals("mix") ? "  " : "") + name, summary.get("requests"), summary.get("errors"),
+                    summary.get("throughput"), summary.get("uploadMBps"), summary.get("p50Ms"),
+                    summary.get("p95Ms"), summary.get("p99Ms"), summary.get("maxMs")));
+        }
+
+        Map<String, Integer> errors = (Map<String, Integer>) stage.get("errors");
+        if (!errors.isEmpty()) {
+            System.out.println("Errors: " + errors);
+        }
+        System.out.println("Server (mean / max):");
+        ((Map<String, Map<String, Double>>) stage.get("server")).forEach((metric, reading) ->
+            System.out.printf(Locale.ROOT, "  %-30s %14.3f %14.3f%n", metric, reading.get("mean"), reading.get("max")));
+        if (stage.containsKey("warning")) {
+            System.out.println("Warning: " + stage.get("warning"));
+        }
+    }
+
+    // A multipart/form-data body whose files are streamed from disk
+    static final class Multipart {
+        final String boundary = "----vcp-load-" + UUID.randomUUID();
+        private final List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+
+        Multipart field(String name, String value) {
+            parts.add(text("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                + value + "\r\n"));
+            return this;
+        }
+
+        Multipart file(String name, Path path) {
+            try {
+                parts.add(text("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name
+                    + "\"; filename=\"" + path.getFileName() + "\"\r\nContent-Type: video/mp4\r\n\r\n"));
+                parts.add(HttpRequest.BodyPublishers.ofFile(path));
+                parts.add(text("\r\n"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read " + path, e);
+            }
+            return this;
+        }
+
+        HttpRequest.BodyPublisher publisher() {
+            List<HttpRequest.BodyPublisher> body = new ArrayList<>(parts);
+            body.add(text("--" + boundary + "--\r\n"));
+            return HttpRequest.BodyPublishers.concat(body.toArray(new HttpRequest.BodyPublisher[0]));
+        }
+
+        private static HttpRequest.BodyPublisher text(String text) {
+            return HttpRequest.BodyPublishers.ofString(text, StandardCharsets.UTF_8);
+        }
+    }
+}
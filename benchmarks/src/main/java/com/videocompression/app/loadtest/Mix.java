@@ -0,0 +1,58 @@
+package com.videocompression.app.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * A weighted choice between values, parsed from {@code value:weight,value:weight}. A value
+ * without a weight counts once.
+ */
+final class Mix<T> {
+
+    private final List<T> values = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+    private int total;
+
+    static <T> Mix<T> parse(String spec, Function<String, T> parser) {
+        Mix<T> mix = new Mix<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            int weight = 1;
+            if (colon > 0) {
+                weight = Integer.parseInt(entry.substring(colon + 1));
+                entry = entry.substring(0, colon);
+            }
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight of '" + entry + "' must be positive");
+            }
+            mix.values.add(parser.apply(entry));
+            mix.weights.add(weight);
+            mix.total += weight;
+        }
+        if (mix.values.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix '" + spec + "'");
+        }
+        return mix;
+    }
+
+    T pick(Random random) {
+        int roll = random.nextInt(total);
+        for (int i = 0; i < values.size(); i++) {
+            roll -= weights.get(i);
+            if (roll < 0) {
+                return values.get(i);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    List<T> values() {
+        return values;
+    }
+}
@@ -0,0 +1,129 @@
+package com.videocompression.app.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the server's Actuator metrics while a stage runs and keeps the mean and peak of each:
+ * CPU (the machine's, which includes the ffmpeg processes, and the JVM's own), load average,
+ * heap, and the job queue and ffmpeg process gauges.
+ */
+final class ServerSampler implements AutoCloseable {
+
+    static final List<String> METRICS = List.of(
+        "system.cpu.usage",
+        "process.cpu.usage",
+        "system.load.average.1m",
+        "jvm.memory.used",
+        "vcp.jobs.queued",
+        "vcp.jobs.active",
+        "vcp.ffmpeg.processes.running",
+        "vcp.ffmpeg.processes.waiting"
+    );
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Mean and peak of one metric over the samples that could be read
+    static final class Reading {
+        double sum;
+        double max = Double.NEGATIVE_INFINITY;
+        int samples;
+
+        synchronized void add(double value) {
+            sum += value;
+            max = Math.max(max, value);
+            samples++;
+        }
+
+        synchronized Map<String, Double> summary() {
+            Map<String, Double> summary = new LinkedHashMap<>();
+            summary.put("mean", samples > 0 ? sum / samples : Double.NaN);
+            summary.put("max", samples > 0 ? max : Double.NaN);
+            return summary;
+        }
+    }
+
+    private final HttpClient client;
+    private final String baseUrl;
+    private final Map<String, Reading> readings = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    ServerSampler(HttpClient client, String baseUrl, Duration interval) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        for (String metric : METRICS) {
+            readings.put(metric, new Reading());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sample, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void sample() {
+        for (String metric : METRICS) {
+            Double value = read(client, baseUrl, metric, null);
+            if (value != null) {
+                readings.get(metric).add(value);
+            }
+        }
+    }
+
+    Map<String, Map<String, Double>> summary() {
+        Map<String, Map<String, Double>> summary = new LinkedHashMap<>();
+        readings.forEach((metric, reading) -> summary.put(metric, reading.summary()));
+        return summary;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Reads the first measurement of a metric, VALUE for gauges and COUNT for timers, or null
+     * when the server does not expose it.
+     */
+    static Double read(HttpClient client, String baseUrl, String metric, String tag) {
+        String uri = baseUrl + "/actuator/metrics/" + metric
+            + (tag != null ? "?tag=" + URLEncoder.encode(tag, StandardCharsets.UTF_8) : "");
+        try {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(uri))
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return null;
+            }
+            for (JsonNode measurement : MAPPER.readTree(response.body()).path("measurements")) {
+                String statistic = measurement.path("statistic").asText();
+                if ("VALUE".equals(statistic) || "COUNT".equals(statistic)) {
+                    return measurement.path("value").asDouble();
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
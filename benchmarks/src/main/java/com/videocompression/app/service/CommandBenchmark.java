@@ -0,0 +1,73 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the ffmpeg command for a resolution ladder: the split/scale filter graph and the
+ * whole argument list as {@link VideoProcessingService} assembles it for an encode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+
+    private static final CompressionConfig.Resolution[] LADDER = {
+        CompressionConfig.Resolution.FHD,
+        CompressionConfig.Resolution.HD,
+        CompressionConfig.Resolution.SD,
+        CompressionConfig.Resolution.LOW
+    };
+
+    @Param({"1", "2", "4"})
+    public int rungs;
+
+    @Param({"MEDIUM"})
+    public CompressionConfig.CompressionPreset preset;
+
+    private List<Rendition> renditions;
+
+    @Setup
+    public void setUp() {
+        renditions = new ArrayList<>();
+        for (int i = 0; i < rungs; i++) {
+            CompressionConfig config = CompressionConfig.builder()
+                .preset(preset)
+                .targetResolution(LADDER[i])
+                .build();
+            renditions.add(new Rendition(config, LADDER[i].getWidth(), LADDER[i].getHeight(),
+                "/tmp/source_" + LADDER[i].getLabel() + ".mp4", null));
+        }
+    }
+
+    @Benchmark
+    public String splitFilter() {
+        return Rendition.splitFilter("0:0", renditions);
+    }
+
+    @Benchmark
+    public List<String> ladderCommand() {
+        FFmpegBuilder builder = new FFmpegBuilder()
+            .setInput("/tmp/source.mp4")
+            .overrideOutputFiles(true);
+        return VideoProcessingService.addLadder(builder, "0:0", renditions, "1").build();
+    }
+}
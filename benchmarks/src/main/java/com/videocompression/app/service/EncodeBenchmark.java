@@ -0,0 +1,76 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One encode of a 10 s 1080p source through {@link VideoProcessingService}, for every preset and
+ * target resolution: probe, ffmpeg encode and result sizing, as a /compress request runs them.
+ * Divide the score by the source's 10 s for the realtime factor.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodeBenchmark {
+
+    private static final int SOURCE_SECONDS = 10;
+
+    @Param({"LOW", "MEDIUM", "HIGH"})
+    public CompressionConfig.CompressionPreset preset;
+
+    @Param({"HD", "SD", "LOW"})
+    public CompressionConfig.Resolution resolution;
+
+    @Param({"mp4"})
+    public String outputFormat;
+
+    private Pipelines pipelines;
+    private Path clip;
+    private long clipSize;
+    private CompressionConfig config;
+
+    @Setup
+    public void setUp() throws IOException {
+        clip = Fixtures.clip(1920, 1080, SOURCE_SECONDS);
+        clipSize = Files.size(clip);
+        // A fixture that already matches the target would only be remuxed
+        pipelines = new Pipelines(Map.of("vcp.processing.stream-copy.enabled", "false"));
+        config = CompressionConfig.builder()
+            .preset(preset)
+            .targetResolution(resolution)
+            .outputFormat(outputFormat)
+            .build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pipelines.close();
+    }
+
+    @Benchmark
+    public List<CompressionResult> encode() throws IOException {
+        return pipelines.service().processVideo(clip, "source.mp4", clipSize, config);
+    }
+}
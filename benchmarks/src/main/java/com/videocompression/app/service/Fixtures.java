@@ -0,0 +1,74 @@
+package com.videocompression.app.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Synthetic source clips for the benchmarks, generated with ffmpeg's lavfi test sources so nothing
+ * has to be downloaded. A moving test pattern with a counter and noise keeps the encoder honest,
+ * and a sine tone gives the clips an audio track. Clips are generated once and reused from
+ * {@code vcp.bench.fixtures} (default {@code target/fixtures}).
+ */
+public final class Fixtures {
+
+    static final String FFMPEG = System.getProperty("vcp.bench.ffmpeg", "ffmpeg");
+    static final String FFPROBE = System.getProperty("vcp.bench.ffprobe", "ffprobe");
+    private static final Path DIRECTORY = Paths.get(System.getProperty("vcp.bench.fixtures", "target/fixtures"));
+
+    private Fixtures() {
+    }
+
+    /**
+     * An H.264/AAC MP4 of the given size and length at 30 fps, at roughly the bitrate of a
+     * camera upload.
+     */
+    public static synchronized Path clip(int width, int height, int seconds) throws IOException {
+        Path clip = DIRECTORY.resolve("testsrc2_" + width + "x" + height + "_" + seconds + "s.mp4");
+        if (Files.exists(clip)) {
+            return clip;
+        }
+
+        Files.createDirectories(DIRECTORY);
+        Path partial = DIRECTORY.resolve(clip.getFileName() + ".part.mp4");
+        run(List.of(FFMPEG, "-hide_banner", "-loglevel", "error", "-y",
+            "-f", "lavfi", "-i", "testsrc2=size=" + width + "x" + height + ":rate=30:duration=" + seconds,
+            "-f", "lavfi", "-i", "sine=frequency=440:sample_rate=48000:duration=" + seconds,
+            "-vf", "noise=alls=12:allf=t",
+            "-c:v", "libx264", "-preset", "veryfast", "-crf", "18", "-pix_fmt", "yuv420p", "-g", "60",
+            "-c:a", "aac", "-b:a", "128k", "-ac", "2",
+            "-shortest", partial.toString()));
+        Files.move(partial, clip, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return clip;
+    }
+
+    static void run(List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .start();
+        String output = new String(process.getInputStream().readAllBytes());
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(command.get(0) + " failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + command.get(0), e);
+        }
+    }
+
+    static Path temporaryDirectory(String prefix) throws IOException {
+        Files.createDirectories(DIRECTORY);
+        return Files.createTempDirectory(DIRECTORY, prefix);
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory != null) {
+            TranscodeCache.deleteRecursively(directory);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.videocompression.app.service;
+
+import net.bramp.ffmpeg.FFmpeg;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizing a packaged HLS rendition from its media playlist, and writing a master playlist over it,
+ * for each packaging layout. The rendition is a 2 minute source remuxed into 2 s segments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HlsBenchmark {
+
+    @Param({"fmp4-single", "fmp4", "mpegts"})
+    public String layout;
+
+    private Path directory;
+    private Path rendition;
+    private HlsPackager packager;
+    private List<HlsPackager.Variant> variants;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path clip = Fixtures.clip(640, 360, 120);
+        directory = Fixtures.temporaryDirectory("hls");
+        rendition = directory.resolve("source_360p_hls");
+        Files.createDirectories(rendition);
+
+        FFprobe ffprobe = new FFprobe(Fixtures.FFPROBE);
+        packager = new HlsPackager(ffprobe, layout.startsWith("fmp4") ? "fmp4" : "mpegts",
+            layout.endsWith("-single"), Duration.ofSeconds(2));
+        FFmpegBuilder builder = new FFmpegBuilder()
+            .setInput(clip.toString())
+            .overrideOutputFiles(true);
+        packager.addOutput(builder, rendition)
+            .setVideoCodec("copy")
+            .setAudioCodec("copy")
+            .done();
+        new FFmpegExecutor(new FFmpeg(Fixtures.FFMPEG), ffprobe).createJob(builder).run();
+
+        variants = List.of(new HlsPackager.Variant(rendition, 640, 360, 30));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public long measure() throws IOException {
+        return packager.measure(rendition).size;
+    }
+
+    @Benchmark
+    public Path masterPlaylist() throws IOException {
+        Path master = directory.resolve("source_master.m3u8");
+        packager.writeMaster(master, variants);
+        return master;
+    }
+}
@@ -0,0 +1,109 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionResult;
+import com.videocompression.app.model.IngestedFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A 720p/480p/360p ladder of a 30 s 1080p source, produced three ways:
+ * <ul>
+ *   <li>{@code LADDER}: one ffmpeg run that decodes once and splits to every rendition</li>
+ *   <li>{@code SEPARATE}: one ffmpeg run per rendition, each decoding the source again</li>
+ *   <li>{@code SEGMENTED}: the single-decode ladder, cut into 10 s segments encoded in parallel</li>
+ * </ul>
+ * How many processes run at once follows the CPU budget; pass {@code -Dvcp.cpu.max-processes=N}
+ * through {@code -jvmArgsAppend} to pin it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LadderBenchmark {
+
+    public enum Strategy {
+        LADDER,
+        SEPARATE,
+        SEGMENTED
+    }
+
+    private static final int SOURCE_SECONDS = 30;
+    private static final CompressionConfig.Resolution[] RUNGS = {
+        CompressionConfig.Resolution.HD,
+        CompressionConfig.Resolution.SD,
+        CompressionConfig.Resolution.LOW
+    };
+
+    @Param({"LADDER", "SEPARATE", "SEGMENTED"})
+    public Strategy strategy;
+
+    @Param({"MEDIUM"})
+    public CompressionConfig.CompressionPreset preset;
+
+    private Pipelines pipelines;
+    private IngestedFile source;
+    private List<CompressionConfig> configs;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path clip = Fixtures.clip(1920, 1080, SOURCE_SECONDS);
+        source = IngestedFile.builder()
+            .path(clip)
+            .size(Files.size(clip))
+            .build();
+
+        pipelines = new Pipelines(strategy == Strategy.SEGMENTED
+            ? Map.of("vcp.processing.stream-copy.enabled", "false",
+                "vcp.processing.segmented.min-duration", "PT0S",
+                "vcp.processing.segmented.segment-duration", "PT10S")
+            : Map.of("vcp.processing.stream-copy.enabled", "false",
+                "vcp.processing.segmented.enabled", "false"));
+
+        configs = new ArrayList<>();
+        for (CompressionConfig.Resolution resolution : RUNGS) {
+            configs.add(CompressionConfig.builder()
+                .preset(preset)
+                .targetResolution(resolution)
+                .build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pipelines.close();
+    }
+
+    @Benchmark
+    public List<CompressionResult> ladder() throws IOException {
+        VideoProcessingService service = pipelines.service();
+        if (strategy != Strategy.SEPARATE) {
+            return service.processLadder(source, "source.mp4", configs);
+        }
+        List<CompressionResult> results = new ArrayList<>();
+        for (CompressionConfig config : configs) {
+            results.addAll(service.processLadder(source, "source.mp4", List.of(config)));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,53 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.VideoCompressionApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A running application without its web server, for benchmarks that go through
+ * {@link VideoProcessingService} exactly as a request would. Outputs and uploads go to a
+ * temporary directory, and the transcode cache is off so every invocation really encodes.
+ */
+final class Pipelines implements AutoCloseable {
+
+    private final Path directory;
+    private final ConfigurableApplicationContext context;
+
+    Pipelines(Map<String, Object> properties) throws IOException {
+        this.directory = Fixtures.temporaryDirectory("pipeline");
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("vcp.output.directory", directory.resolve("processed").toString());
+        defaults.put("vcp.upload.directory", directory.resolve("uploads").toString());
+        defaults.put("vcp.cache.enabled", "false");
+        defaults.put("logging.level.root", "WARN");
+        defaults.put("logging.level.com.videocompression", "WARN");
+        defaults.put("logging.level.net.bramp.ffmpeg", "WARN");
+        defaults.putAll(properties);
+
+        // As arguments, these override application.properties
+        String[] arguments = defaults.entrySet().stream()
+            .map(property -> "--" + property.getKey() + "=" + property.getValue())
+            .toArray(String[]::new);
+        this.context = new SpringApplicationBuilder(VideoCompressionApplication.class)
+            .web(WebApplicationType.NONE)
+            .logStartupInfo(false)
+            .run(arguments);
+    }
+
+    VideoProcessingService service() {
+        return context.getBean(VideoProcessingService.class);
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        Fixtures.delete(directory);
+    }
+}
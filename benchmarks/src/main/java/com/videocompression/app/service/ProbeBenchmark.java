@@ -0,0 +1,64 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.MediaInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.bramp.ffmpeg.FFprobe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a source costs before any encoding starts: hashing it on ingest, probing it with ffprobe,
+ * and a probe served from the probe cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProbeBenchmark {
+
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    private Path clip;
+    private FFprobe ffprobe;
+    private ProbeCache probeCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] dimensions = size.split("x");
+        clip = Fixtures.clip(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), 10);
+        ffprobe = new FFprobe(Fixtures.FFPROBE);
+        probeCache = new ProbeCache(ffprobe, 16, new PipelineMetrics(new SimpleMeterRegistry()));
+        probeCache.probe(clip, size);
+    }
+
+    @Benchmark
+    public MediaInfo ffprobe() throws IOException {
+        return ProbeCache.toMediaInfo(ffprobe.probe(clip.toString()), clip);
+    }
+
+    @Benchmark
+    public MediaInfo probeCacheHit() throws IOException {
+        return probeCache.probe(clip, size);
+    }
+
+    @Benchmark
+    public String contentHash() throws IOException {
+        return IngestStore.hash(clip);
+    }
+}
@@ -2,10 +2,24 @@ package com.videocompression.app;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SpringBootApplication
 public class VideoCompressionApplication {
     public static void main(String[] args) {
-        SpringApplication.run(VideoCompressionApplication.class, args);
+        SpringApplication application = new SpringApplication(VideoCompressionApplication.class);
+        AtomicBoolean stopping = new AtomicBoolean();
+        application.addListeners((ApplicationListener<ContextClosedEvent>) event -> stopping.set(true));
+        ConfigurableApplicationContext context = application.run(args);
+        // Without a web server (the batch profile) there is nothing left to do once the runners return,
+        // unless they returned because the application is being stopped
+        if (!(context instanceof WebServerApplicationContext) && !stopping.get()) {
+            System.exit(SpringApplication.exit(context));
+        }
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,612 @@
+package com.videocompression.app.batch;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.videocompression.app.controller.CompressionConfigs;
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionResult;
+import com.videocompression.app.model.IngestedFile;
+import com.videocompression.app.service.CpuScheduler;
+import com.videocompression.app.service.ExecutionThreads;
+import com.videocompression.app.service.VideoProcessingService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.ExitCodeGenerator;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Headless run mode for backfills. With the {@code batch} profile the application starts without
+ * its web tier and compresses the files listed in {@code vcp.batch.manifest}, the files that appear
+ * in {@code vcp.batch.watch}, or both. Sources are read where they are rather than copied into the
+ * upload directory, and several are processed at once; their encodes still share the CPU budget.
+ * Every source gets one line per output, or one carrying its error, in a CSV or JSONL results
+ * manifest. Sources already listed there as done, with the same size and modification time, are
+ * skipped, so an interrupted run picks up where it stopped.
+ */
+@Slf4j
+@Component
+@Profile("batch")
+public class BatchRunner implements ApplicationRunner, ExitCodeGenerator {
+
+    private static final String DEFAULT_RESULTS = "batch-results.jsonl";
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+    private static final List<String> CSV_COLUMNS = List.of("source", "sourceSize", "sourceModified", "error",
+        "fileName", "resolution", "originalSize", "compressedSize", "compressionRatio", "originalResolution",
+        "bitrate", "duration", "outputPath", "outputId", "masterPlaylistPath");
+
+    // File listing one source per line; relative paths are resolved against the file's directory
+    @Value("${vcp.batch.manifest:}")
+    private String manifest;
+
+    // Directory whose existing and future files are processed until the application is stopped
+    @Value("${vcp.batch.watch:}")
+    private String watch;
+
+    // .csv or .jsonl; batch-results.jsonl in the output directory when empty
+    @Value("${vcp.batch.results:}")
+    private String resultsFile;
+
+    // Sources processed at once; 0 = twice the encode processes the CPU budget allows
+    @Value("${vcp.batch.parallelism:0}")
+    private int parallelism;
+
+    // A watched file is taken once its size and modification time have not changed for this long
+    @Value("${vcp.batch.settle-time:PT10S}")
+    private Duration settleTime;
+
+    // Extensions of the watched files that are taken as sources
+    @Value("${vcp.batch.extensions:mp4,m4v,mov,mkv,webm,avi,ts,mts,m2ts,flv,wmv,mpg,mpeg,3gp}")
+    private Set<String> extensions;
+
+    // Compression settings, as for the upload endpoints
+    @Value("${vcp.batch.resolutions:ORIGINAL}")
+    private List<String> resolutions;
+
+    @Value("${vcp.batch.preset:MEDIUM}")
+    private CompressionConfig.CompressionPreset preset;
+
+    @Value("${vcp.batch.frame-rate:30}")
+    private int frameRate;
+
+    @Value("${vcp.batch.maintain-original-size:false}")
+    private boolean maintainOriginalSize;
+
+    @Value("${vcp.batch.preserve-audio-quality:true}")
+    private boolean preserveAudioQuality;
+
+    @Value("${vcp.batch.output-format:mp4}")
+    private String outputFormat;
+
+    @Value("${vcp.batch.rate-control:PRESET}")
+    private CompressionConfig.RateControl rateControl;
+
+    @Value("${vcp.batch.target-size:}")
+    private Long targetSize;
+
+    @Value("${vcp.batch.video-codec:}")
+    private CompressionConfig.VideoCodec videoCodec;
+
+    @Value("${vcp.batch.audio-codec:}")
+    private CompressionConfig.AudioCodec audioCodec;
+
+    @Value("${vcp.batch.previews:}")
+    private List<CompressionConfig.Preview> previews;
+
+    private final VideoProcessingService videoProcessingService;
+    private final CpuScheduler cpuScheduler;
+    private final ExecutionThreads executionThreads;
+    private final ObjectMapper objectMapper;
+
+    // Sources recorded as done, by absolute path
+    private final Map<String, Stamp> done = new ConcurrentHashMap<>();
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private List<CompressionConfig> configs;
+    private Path outputDir;
+    private boolean csv;
+    // Guarded by itself
+    private BufferedWriter results;
+    private ExecutorService executor;
+    private Semaphore slots;
+    private int threads;
+    private volatile WatchService watcher;
+
+    public BatchRunner(VideoProcessingService videoProcessingService, CpuScheduler cpuScheduler,
+            ExecutionThreads executionThreads, ObjectMapper objectMapper) {
+        this.videoProcessingService = videoProcessingService;
+        this.cpuScheduler = cpuScheduler;
+        this.executionThreads = executionThreads;
+        this.objectMapper = objectMapper;
+    }
+
+    // Size and modification time a source had when it was processed
+    static final class Stamp {
+        final long size;
+        final long modified;
+
+        Stamp(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Stamp of(BasicFileAttributes attributes) {
+            return new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Stamp && ((Stamp) o).size == size && ((Stamp) o).modified == modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+
+    // A watched file that is still being written, or not known not to be
+    private static final class Pending {
+        final String name;
+        Stamp stamp;
+        long since;
+
+        Pending(String name) {
+            this.name = name;
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (manifest.isBlank() && watch.isBlank()) {
+            throw new IllegalStateException("Batch mode needs vcp.batch.manifest or vcp.batch.watch");
+        }
+        configs = CompressionConfigs.build(resolutions, preset, frameRate, maintainOriginalSize,
+            preserveAudioQuality, outputFormat, rateControl, targetSize, videoCodec, audioCodec, previews);
+        videoProcessingService.checkSupported(configs);
+
+        outputDir = Paths.get(videoProcessingService.getOutputDirectory()).toAbsolutePath().normalize();
+        Path resultsPath = resultsFile.isBlank() ? outputDir.resolve(DEFAULT_RESULTS) : Paths.get(resultsFile);
+        csv = resultsPath.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+        openResults(resultsPath);
+
+        threads = parallelism > 0 ? parallelism : 2 * cpuScheduler.getMaxProcesses();
+        executor = Executors.newFixedThreadPool(threads, executionThreads.factory("vcp-batch"));
+        slots = new Semaphore(threads);
+        log.info("Batch run with {} source(s) at a time into {}, results in {} ({} already done)", threads,
+            outputDir, resultsPath, done.size());
+
+        try {
+            if (!manifest.isBlank()) {
+                runManifest(Paths.get(manifest).toAbsolutePath().normalize());
+            }
+            if (!watch.isBlank()) {
+                watch(Paths.get(watch).toAbsolutePath().normalize());
+            }
+            // Wait for the sources still being processed
+            slots.acquire(threads);
+        } finally {
+            executor.shutdownNow();
+            synchronized (results) {
+                results.close();
+            }
+        }
+        log.info("Batch run finished: {} processed, {} failed, {} skipped as done", processed.get(),
+            failed.get(), skipped.get());
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        WatchService current = watcher;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public int getExitCode() {
+        return failed.get() > 0 ? 1 : 0;
+    }
+
+    private void runManifest(Path manifestPath) throws IOException, InterruptedException {
+        Path base = manifestPath.getParent();
+        log.info("Processing the sources listed in {}", manifestPath);
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Path source = base.resolve(line).normalize();
+                submit(source, outputName(base, source));
+            }
+        }
+    }
+
+    /**
+     * Processes the files under the directory, then the ones written to it afterwards, until the
+     * application is stopped. New files are taken once they have stopped changing.
+     */
+    private void watch(Path root) throws IOException, InterruptedException {
+        Map<Path, Pending> pending = new HashMap<>();
+        try (WatchService watchService = root.getFileSystem().newWatchService()) {
+            watcher = watchService;
+            log.info("Watching {} for sources", root);
+            scan(root, root, pending);
+            while (true) {
+                WatchKey key = watchService.poll(Math.min(POLL_INTERVAL.toMillis(), settleTime.toMillis()),
+                    TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost; whatever is done is skipped on the way
+                            scan(root, root, pending);
+                            continue;
+                        }
+                        Path child = dir.resolve((Path) event.context());
+                        if (Files.isDirectory(child)) {
+                            scan(root, child, pending);
+                        } else if (isSource(child)) {
+                            pending.computeIfAbsent(child, path -> new Pending(outputName(root, path)));
+                        }
+                    }
+                    key.reset();
+                }
+                submitSettled(pending);
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.info("Stopped watching {}", root);
+        } finally {
+            watcher = null;
+        }
+    }
+
+    // Registers the directory tree with the watcher and queues its sources
+    private void scan(Path root, Path start, Map<Path, Pending> pending) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                // Outputs written below the watched directory must not come back as sources
+                if (dir.startsWith(outputDir) || dir.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (!attributes.isRegularFile() || !isSource(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                // Done files are skipped right away, so a restart does not watch them all settle
+                if (Stamp.of(attributes).equals(done.get(file.toString()))) {
+                    skipped.incrementAndGet();
+                } else {
+                    pending.computeIfAbsent(file, path -> new Pending(outputName(root, path)));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("Failed to read {}: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Submits the pending files that have not changed for the settle time
+    private void submitSettled(Map<Path, Pending> pending) throws InterruptedException {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Pending> entry = iterator.next();
+            Pending file = entry.getValue();
+            Stamp stamp;
+            try {
+                stamp = Stamp.of(Files.readAttributes(entry.getKey(), BasicFileAttributes.class));
+            } catch (IOException e) {
+                // Deleted or renamed before it settled
+                iterator.remove();
+                continue;
+            }
+            if (!stamp.equals(file.stamp)) {
+                file.stamp = stamp;
+                file.since = now;
+            } else if (now - file.since >= settleTime.toNanos()) {
+                iterator.remove();
+                submit(entry.getKey(), file.name);
+            }
+        }
+    }
+
+    private boolean isSource(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return !name.startsWith(".") && dot > 0
+            && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Outputs mirror the source's place under the manifest's or watched directory
+    private static String outputName(Path base, Path source) {
+        Path relative = source.startsWith(base) ? base.relativize(source) : source.getFileName();
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Queues a source unless it is done or already queued, waiting while as many sources as may run
+     * at once are in progress.
+     */
+    private void submit(Path source, String name) throws InterruptedException {
+        Stamp stamp;
+        try {
+            stamp = Stamp.of(Files.readAttributes(source, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            fail(source, null, "No such file");
+            return;
+        } catch (IOException e) {
+            fail(source, null, e.getMessage());
+            return;
+        }
+        if (stamp.equals(done.get(source.toString()))) {
+            skipped.incrementAndGet();
+            return;
+        }
+        if (!name.contains(".")) {
+            fail(source, stamp, "No file extension");
+            return;
+        }
+        if (!inFlight.add(source)) {
+            return;
+        }
+
+        slots.acquire();
+        executor.execute(() -> {
+            try {
+                process(source, name, stamp);
+            } finally {
+                inFlight.remove(source);
+                slots.release();
+            }
+        });
+    }
+
+    private void process(Path source, String name, Stamp stamp) {
+        try {
+            Files.createDirectories(outputDir.resolve(name).getParent());
+            IngestedFile file = IngestedFile.builder()
+                .path(source)
+                .size(stamp.size)
+                .build();
+            List<CompressionResult> outputs = videoProcessingService.processLadder(file, name, configs);
+            record(source, stamp, null, outputs);
+            done.put(source.toString(), stamp);
+            log.info("Processed {} ({} done)", source, processed.incrementAndGet());
+        } catch (Exception e) {
+            log.error("Failed to process {}: {}", source, e.getMessage(), e);
+            fail(source, stamp, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private void fail(Path source, Stamp stamp, String error) {
+        failed.incrementAndGet();
+        try {
+            record(source, stamp, error, List.of());
+        } catch (IOException e) {
+            log.error("Failed to record the failure of {}: {}", source, e.getMessage());
+        }
+    }
+
+    // Loads the sources a previous run finished and opens the results manifest for appending
+    void openResults(Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        boolean empty = !Files.exists(path) || Files.size(path) == 0;
+        if (!empty) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    loadRecord(line);
+                }
+            }
+        }
+
+        // A run that was killed mid-write leaves a partial last line, which must not run into the next
+        boolean partial = !empty && lastByte(path) != '\n';
+        results = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND);
+        if (partial) {
+            results.newLine();
+        }
+        if (csv && empty) {
+            results.write(String.join(",", CSV_COLUMNS));
+            results.newLine();
+        }
+        results.flush();
+    }
+
+    private static int lastByte(Path path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            file.seek(file.length() - 1);
+            return file.read();
+        }
+    }
+
+    void loadRecord(String line) {
+        String source;
+        String size;
+        String modified;
+        String error;
+        if (csv) {
+            List<String> values = parseCsv(line);
+            // Records of outputs have every column; shorter ones carry an error or were cut off, as
+            // an error record can be right after its error column
+            if (values.size() < CSV_COLUMNS.size() || values.get(0).equals(CSV_COLUMNS.get(0))) {
+                return;
+            }
+            source = values.get(0);
+            size = values.get(1);
+            modified = values.get(2);
+            error = values.get(3);
+        } else {
+            try {
+                JsonNode node = objectMapper.readTree(line);
+                if (node == null || !node.hasNonNull("source")) {
+                    return;
+                }
+                source = node.get("source").asText();
+                size = node.path("sourceSize").asText();
+                modified = node.path("sourceModified").asText();
+                error = node.path("error").asText("");
+            } catch (JsonProcessingException e) {
+                // Partial line of a run that was killed
+                return;
+            }
+        }
+        if (!error.isEmpty()) {
+            return;
+        }
+        try {
+            done.put(source, new Stamp(Long.parseLong(size), Long.parseLong(modified)));
+        } catch (NumberFormatException e) {
+            // Not a record
+        }
+    }
+
+    // One line per output, or a single line carrying the error; flushed so a killed run loses nothing
+    private void record(Path source, Stamp stamp, String error, List<CompressionResult> outputs) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (outputs.isEmpty()) {
+            lines.add(line(source, stamp, error, null));
+        }
+        for (CompressionResult output : outputs) {
+            lines.add(line(source, stamp, error, output));
+        }
+
+        synchronized (results) {
+            for (String line : lines) {
+                results.write(line);
+                results.newLine();
+            }
+            results.flush();
+        }
+    }
+
+    String line(Path source, Stamp stamp, String error, CompressionResult output)
+            throws JsonProcessingException {
+        if (!csv) {
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put("source", source.toString());
+            if (stamp != null) {
+                node.put("sourceSize", stamp.size);
+                node.put("sourceModified", stamp.modified);
+            }
+            if (error != null) {
+                node.put("error", error);
+            }
+            if (output != null) {
+                node.setAll((ObjectNode) objectMapper.valueToTree(output));
+            }
+            return objectMapper.writeValueAsString(node);
+        }
+
+        List<Object> values = new ArrayList<>(List.of(source, stamp != null ? stamp.size : "",
+            stamp != null ? stamp.modified : "", error != null ? error : ""));
+        if (output != null) {
+            values.addAll(List.of(nullToEmpty(output.getFileName()), nullToEmpty(output.getResolution()),
+                output.getOriginalSize(), output.getCompressedSize(), output.getCompressionRatio(),
+                nullToEmpty(output.getOriginalResolution()), output.getBitrate(), output.getDuration(),
+                nullToEmpty(output.getOutputPath()), nullToEmpty(output.getOutputId()),
+                nullToEmpty(output.getMasterPlaylistPath())));
+        }
+        return values.stream().map(value -> csvValue(value.toString())).collect(Collectors.joining(","));
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    static String csvValue(String value) {
+        // Records are one line each
+        String single = value.replace('\r', ' ').replace('\n', ' ');
+        if (single.contains(",") || single.contains("\"")) {
+            return "\"" + single.replace("\"", "\"\"") + "\"";
+        }
+        return single;
+    }
+
+    static List<String> parseCsv(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
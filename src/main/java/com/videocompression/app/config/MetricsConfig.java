@@ -0,0 +1,89 @@
+package com.videocompression.app.config;
+
+import com.videocompression.app.service.AdmissionControl;
+import com.videocompression.app.service.CpuScheduler;
+import com.videocompression.app.service.JobService;
+import com.videocompression.app.service.OutputLifecycle;
+import com.videocompression.app.service.TranscodeCache;
+import com.videocompression.app.service.VideoProcessingService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gauges over the state the services already keep: queued and running jobs and their estimated
+ * backlog, ffmpeg processes against the CPU budget, the probe and transcode caches, and the output
+ * directories. Stage timings are recorded as they happen by
+ * {@link com.videocompression.app.service.PipelineMetrics}.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder pipelineGauges(JobService jobService, CpuScheduler cpuScheduler,
+            TranscodeCache transcodeCache, VideoProcessingService videoProcessingService,
+            AdmissionControl admissionControl, OutputLifecycle outputLifecycle) {
+        return registry -> {
+            Gauge.builder("vcp.jobs.queued", jobService, JobService::getQueueDepth)
+                .description("Jobs waiting for a processing thread")
+                .register(registry);
+            Gauge.builder("vcp.jobs.active", jobService, JobService::getActiveCount)
+                .description("Jobs being processed")
+                .register(registry);
+            TimeGauge.builder("vcp.jobs.backlog", admissionControl, TimeUnit.MILLISECONDS,
+                    control -> control.getBacklog().toMillis())
+                .description("Estimated encode time of queued, running and announced jobs")
+                .register(registry);
+
+            Gauge.builder("vcp.ffmpeg.processes.running", cpuScheduler, CpuScheduler::getRunningProcesses)
+                .description("ffmpeg processes running on this node")
+                .register(registry);
+            Gauge.builder("vcp.ffmpeg.processes.waiting", cpuScheduler, CpuScheduler::getWaitingProcesses)
+                .description("ffmpeg processes waiting for CPU budget")
+                .register(registry);
+            Gauge.builder("vcp.ffmpeg.processes.cap", cpuScheduler, CpuScheduler::getProcessCap)
+                .description("ffmpeg processes the CPU budget currently allows")
+                .register(registry);
+
+            // The probe cache only exists once the processing service has found ffprobe
+            FunctionCounter.builder("vcp.probe.cache.requests", videoProcessingService,
+                    service -> service.getProbeCache() == null ? 0 : service.getProbeCache().getHits())
+                .tag("result", "hit")
+                .description("Probes served from the probe cache")
+                .register(registry);
+            FunctionCounter.builder("vcp.probe.cache.requests", videoProcessingService,
+                    service -> service.getProbeCache() == null ? 0 : service.getProbeCache().getMisses())
+                .tag("result", "miss")
+                .description("Probes that ran ffprobe")
+                .register(registry);
+
+            Gauge.builder("vcp.transcode.cache.size", transcodeCache, TranscodeCache::getTotalBytes)
+                .description("Bytes held by the transcode cache")
+                .baseUnit("bytes")
+                .register(registry);
+            Gauge.builder("vcp.transcode.cache.entries", transcodeCache, TranscodeCache::getEntryCount)
+                .description("Outputs held by the transcode cache")
+                .register(registry);
+
+            Gauge.builder("vcp.output.size", outputLifecycle, OutputLifecycle::getTotalBytes)
+                .description("Bytes held by tracked outputs")
+                .baseUnit("bytes")
+                .register(registry);
+            Gauge.builder("vcp.output.units", outputLifecycle, OutputLifecycle::getUnitCount)
+                .description("Tracked outputs, counting an HLS ladder once")
+                .register(registry);
+            FunctionCounter.builder("vcp.output.evictions", outputLifecycle, OutputLifecycle::getEvictedUnits)
+                .description("Outputs evicted by size budget or time to live")
+                .register(registry);
+            FunctionCounter.builder("vcp.output.evicted", outputLifecycle, OutputLifecycle::getEvictedBytes)
+                .description("Bytes freed by evicting outputs")
+                .baseUnit("bytes")
+                .register(registry);
+        };
+    }
+}
@@ -0,0 +1,24 @@
+package com.videocompression.app.config;
+
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Tomcat settings that have no Spring Boot property.
+ */
+@Configuration
+public class WebServerConfig {
+
+    /**
+     * Answers {@code Expect: 100-continue} only once the application starts reading the body
+     * rather than as soon as the headers arrive, so a client whose upload is turned away by
+     * admission control never sends it.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> continueOnRead() {
+        return factory -> factory.addConnectorCustomizers(
+            connector -> connector.setProperty("continueResponseTiming", "onRead"));
+    }
+}
@@ -0,0 +1,137 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.service.AdmissionControl;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Puts uploads through admission control before anything reads their body, so a request the node
+ * cannot take on is answered with 429 or 503 and {@code Retry-After} instead of being spooled to
+ * disk first. Form fields are still unread at this point; a ladder given in the query string
+ * ({@code ?resolutions=FHD,HD}) is costed as such, otherwise a single rendition is assumed.
+ */
+@Component
+// After the observation filter, so turned-away requests still show up in the HTTP metrics
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+    private static final String UPLOADS_PATH = "/api/v1/uploads";
+
+    private final AdmissionControl admissionControl;
+
+    public AdmissionFilter(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        AdmissionControl.Kind kind = admissionControl.isEnabled() ? kind(request) : null;
+        if (kind == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long size = request.getContentLengthLong();
+        if (kind == AdmissionControl.Kind.RESERVE) {
+            try {
+                size = Long.parseLong(request.getHeader(UPLOAD_LENGTH));
+            } catch (NumberFormatException e) {
+                // Missing or malformed; the controller answers that with 400
+                chain.doFilter(request, response);
+                return;
+            }
+        }
+
+        MultiValueMap<String, String> query = UriComponentsBuilder.newInstance()
+            .query(request.getQueryString())
+            .build()
+            .getQueryParams();
+
+        AdmissionControl.Ticket ticket;
+        try {
+            ticket = admissionControl.admit(kind, size, renditions(query.get("resolutions")),
+                targetSize(query.getFirst("targetSize")));
+        } catch (AdmissionControl.Rejection e) {
+            // Not sendError: the error page reads request parameters, which would read the upload
+            response.setStatus(e.getReason() == AdmissionControl.Reason.UPLOADS ? 429
+                : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter().getSeconds()));
+            // The rest of the upload is not wanted
+            response.setHeader(HttpHeaders.CONNECTION, "close");
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            response.getWriter().write(e.getMessage());
+            return;
+        }
+
+        // Synchronous compressions return here once their job is queued, which then carries the cost
+        try (ticket) {
+            chain.doFilter(request, response);
+        }
+    }
+
+    private static AdmissionControl.Kind kind(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String method = request.getMethod();
+        if ("POST".equals(method)) {
+            switch (path) {
+                case "/api/v1/compress", "/api/v1/jobs", "/upload" -> {
+                    return AdmissionControl.Kind.ENCODE;
+                }
+                case "/api/v1/detect-resolutions" -> {
+                    return AdmissionControl.Kind.PROBE;
+                }
+                case UPLOADS_PATH -> {
+                    return AdmissionControl.Kind.RESERVE;
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+        if ("PATCH".equals(method) && path.startsWith(UPLOADS_PATH + "/")) {
+            return AdmissionControl.Kind.CHUNK;
+        }
+        return null;
+    }
+
+    // Resolutions may be repeated or comma-separated; none means the original resolution only
+    private static int renditions(List<String> resolutions) {
+        int count = 0;
+        if (resolutions != null) {
+            for (String value : resolutions) {
+                for (String resolution : UriUtils.decode(value, StandardCharsets.UTF_8).split(",")) {
+                    if (!resolution.isBlank()) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return Math.max(1, count);
+    }
+
+    private static Long targetSize(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
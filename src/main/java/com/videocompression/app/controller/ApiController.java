@@ -1,7 +1,14 @@
 package com.videocompression.app.controller;
 
 import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionJob;
 import com.videocompression.app.model.CompressionResult;
+import com.videocompression.app.model.IngestedFile;
+import com.videocompression.app.model.MediaInfo;
+import com.videocompression.app.service.AdmissionControl;
+import com.videocompression.app.service.ExecutionThreads;
+import com.videocompression.app.service.IngestStore;
+import com.videocompression.app.service.JobService;
 import com.videocompression.app.service.VideoProcessingService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -10,27 +17,55 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/v1")
 @Tag(name = "Video Compression API", description = "API endpoints for video compression and management")
 public class ApiController {
 
+    // Most of the file a client may send as header ranges; more is a whole upload in pieces
+    private static final long MAX_HEADER_RANGES = 32L * 1024 * 1024;
+
     private final VideoProcessingService videoProcessingService;
+    private final JobService jobService;
+    private final IngestStore ingestStore;
+    private final AdmissionControl admissionControl;
+    // Writes job events out to their clients, so no job thread waits on a slow one
+    private final ExecutorService eventSender;
 
     @Autowired
-    public ApiController(VideoProcessingService videoProcessingService) {
+    public ApiController(VideoProcessingService videoProcessingService, JobService jobService,
+            IngestStore ingestStore, AdmissionControl admissionControl, ExecutionThreads executionThreads) {
         this.videoProcessingService = videoProcessingService;
+        this.jobService = jobService;
+        this.ingestStore = ingestStore;
+        this.admissionControl = admissionControl;
+        this.eventSender = Executors.newCachedThreadPool(executionThreads.factory("vcp-events"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        eventSender.shutdownNow();
     }
 
     @Operation(
@@ -40,10 +75,12 @@ public class ApiController {
     @ApiResponses({
         @ApiResponse(responseCode = "200", description = "Videos processed successfully"),
         @ApiResponse(responseCode = "400", description = "Invalid request parameters"),
-        @ApiResponse(responseCode = "500", description = "Internal server error during processing")
+        @ApiResponse(responseCode = "500", description = "Internal server error during processing"),
+        @ApiResponse(responseCode = "429", description = "Too many uploads in progress, retry after Retry-After"),
+        @ApiResponse(responseCode = "503", description = "Job queue, backlog or disk full, retry after Retry-After")
     })
     @PostMapping(value = "/compress", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<List<CompressionResult>> compressVideo(
+    public CompletableFuture<ResponseEntity<List<CompressionResult>>> compressVideo(
             @Parameter(description = "Video files to compress", required = true)
             @RequestParam("files") List<MultipartFile> files,
             
@@ -62,38 +99,191 @@ public class ApiController {
             @Parameter(description = "Whether to preserve original audio quality")
             @RequestParam(value = "preserveAudioQuality", defaultValue = "true") boolean preserveAudioQuality,
             
-            @Parameter(description = "Output video format (mp4, webm, mkv)")
-            @RequestParam(value = "outputFormat", defaultValue = "mp4") String outputFormat) {
+            @Parameter(description = "Output video format (mp4, webm, mkv, mov, m3u8, ts)")
+            @RequestParam(value = "outputFormat", defaultValue = "mp4") String outputFormat,
+
+            @Parameter(description = "Rate control (PRESET uses the preset's CRF, PER_TITLE picks it per video)")
+            @RequestParam(value = "rateControl", defaultValue = "PRESET") CompressionConfig.RateControl rateControl,
+
+            @Parameter(description = "Size budget for each output in bytes")
+            @RequestParam(value = "targetSize", required = false) Long targetSize,
+
+            @Parameter(description = "Video codec (H264, H265, AV1, VP9); defaults to VP9 for webm and H264 otherwise")
+            @RequestParam(value = "videoCodec", required = false) CompressionConfig.VideoCodec videoCodec,
+
+            @Parameter(description = "Audio codec (AAC, OPUS); defaults to OPUS for webm and AAC otherwise")
+            @RequestParam(value = "audioCodec", required = false) CompressionConfig.AudioCodec audioCodec,
+
+            @Parameter(description = "Previews to make of each source (POSTER, SPRITES, CLIP)")
+            @RequestParam(value = "previews", required = false) List<CompressionConfig.Preview> previews) {
         
+        // The encode runs on the job executor; the servlet thread is released while we wait for it
         try {
-            List<CompressionResult> results = processVideos(files, preset, resolutions, frameRate,
-                maintainOriginalSize, preserveAudioQuality, outputFormat);
-            return ResponseEntity.ok(results);
+            CompressionJob job = jobService.submit(files, CompressionConfigs.build(resolutions, preset, frameRate,
+                maintainOriginalSize, preserveAudioQuality, outputFormat, rateControl, targetSize, videoCodec,
+                audioCodec, previews));
+            return job.getCompletion()
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(e -> ResponseEntity.badRequest().build());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(queueFull());
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+    }
+
+    @Operation(
+        summary = "Submit a compression job",
+        description = "Upload one or more video files and queue them for compression. Returns immediately with the job id"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "202", description = "Job accepted"),
+        @ApiResponse(responseCode = "400", description = "Invalid request parameters"),
+        @ApiResponse(responseCode = "429", description = "Too many uploads in progress, retry after Retry-After"),
+        @ApiResponse(responseCode = "503", description = "Job queue, backlog or disk full, retry after Retry-After")
+    })
+    @PostMapping(value = "/jobs", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<CompressionJob> submitJob(
+            @Parameter(description = "Video files to compress", required = true)
+            @RequestParam("files") List<MultipartFile> files,
+
+            @Parameter(description = "Compression quality preset (LOW/MEDIUM/HIGH)")
+            @RequestParam(value = "preset", defaultValue = "MEDIUM") CompressionConfig.CompressionPreset preset,
+
+            @Parameter(description = "Target resolutions (e.g., ORIGINAL, FHD, HD)")
+            @RequestParam(value = "resolutions", required = false) List<String> resolutions,
+
+            @Parameter(description = "Target frame rate (fps)")
+            @RequestParam(value = "frameRate", defaultValue = "30") int frameRate,
+
+            @Parameter(description = "Whether to maintain the original file size")
+            @RequestParam(value = "maintainOriginalSize", defaultValue = "false") boolean maintainOriginalSize,
+
+            @Parameter(description = "Whether to preserve original audio quality")
+            @RequestParam(value = "preserveAudioQuality", defaultValue = "true") boolean preserveAudioQuality,
+
+            @Parameter(description = "Output video format (mp4, webm, mkv, mov, m3u8, ts)")
+            @RequestParam(value = "outputFormat", defaultValue = "mp4") String outputFormat,
+
+            @Parameter(description = "Rate control (PRESET uses the preset's CRF, PER_TITLE picks it per video)")
+            @RequestParam(value = "rateControl", defaultValue = "PRESET") CompressionConfig.RateControl rateControl,
+
+            @Parameter(description = "Size budget for each output in bytes")
+            @RequestParam(value = "targetSize", required = false) Long targetSize,
+
+            @Parameter(description = "Video codec (H264, H265, AV1, VP9); defaults to VP9 for webm and H264 otherwise")
+            @RequestParam(value = "videoCodec", required = false) CompressionConfig.VideoCodec videoCodec,
+
+            @Parameter(description = "Audio codec (AAC, OPUS); defaults to OPUS for webm and AAC otherwise")
+            @RequestParam(value = "audioCodec", required = false) CompressionConfig.AudioCodec audioCodec,
+
+            @Parameter(description = "Previews to make of each source (POSTER, SPRITES, CLIP)")
+            @RequestParam(value = "previews", required = false) List<CompressionConfig.Preview> previews) {
+
+        try {
+            CompressionJob job = jobService.submit(files, CompressionConfigs.build(resolutions, preset, frameRate,
+                maintainOriginalSize, preserveAudioQuality, outputFormat, rateControl, targetSize, videoCodec,
+                audioCodec, previews));
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job);
+        } catch (RejectedExecutionException e) {
+            return queueFull();
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
     }
 
+    @Operation(
+        summary = "Get job status",
+        description = "Retrieve the state of a compression job and the results produced so far"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Job found"),
+        @ApiResponse(responseCode = "404", description = "Unknown or expired job id")
+    })
+    @GetMapping("/jobs/{id}")
+    public ResponseEntity<CompressionJob> getJob(
+            @Parameter(description = "Job id returned on submission", required = true)
+            @PathVariable String id) {
+        return jobService.getJob(id)
+            .map(ResponseEntity::ok)
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    @Operation(
+        summary = "Stream job events",
+        description = "Server-Sent Events for a job: 'progress' events carry encoder position, fps, speed and ETA, "
+            + "'status' events carry the job whenever its state or results change. The stream ends when the job finishes"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Event stream opened"),
+        @ApiResponse(responseCode = "404", description = "Unknown or expired job id")
+    })
+    @GetMapping(value = "/jobs/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamJobEvents(
+            @Parameter(description = "Job id returned on submission", required = true)
+            @PathVariable String id) {
+        CompressionJob job = jobService.getJob(id).orElse(null);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(JobEventStream.open(job, eventSender));
+    }
+
     @Operation(
         summary = "Detect available resolutions",
-        description = "Analyze a video file and return available compression resolutions"
+        description = "Analyze a video file and return available compression resolutions. MP4/MOV, Matroska/WebM " +
+                     "and MPEG-TS are read from their container header without ffprobe, so a client may send only " +
+                     "the first and last bytes of a large file as `video` and `tail` together with its `size`"
     )
     @ApiResponses({
         @ApiResponse(responseCode = "200", description = "Available resolutions detected successfully"),
-        @ApiResponse(responseCode = "400", description = "Invalid video file or processing error")
+        @ApiResponse(responseCode = "400", description = "Invalid video file or processing error"),
+        @ApiResponse(responseCode = "422", description = "The header is not within the bytes sent; send the whole file")
     })
     @PostMapping("/detect-resolutions")
     public ResponseEntity<List<CompressionConfig.Resolution>> detectResolutions(
-            @Parameter(description = "Video file to analyze", required = true)
-            @RequestParam("video") MultipartFile file) {
+            @Parameter(description = "Video file to analyze, or its first bytes when `size` is given", required = true)
+            @RequestParam("video") MultipartFile file,
+            @Parameter(description = "Last bytes of the file, when `video` holds only its first bytes")
+            @RequestParam(value = "tail", required = false) MultipartFile tail,
+            @Parameter(description = "Size of the whole file, when `video` holds only its first bytes")
+            @RequestParam(value = "size", required = false) Long size) {
         try {
-            List<CompressionConfig.Resolution> resolutions = videoProcessingService.getAvailableResolutions(file);
-            return ResponseEntity.ok(resolutions);
+            if (size != null && size > file.getSize()) {
+                // Header ranges only: nothing is stored and there is nothing for ffprobe to read
+                if (file.getSize() + (tail != null ? tail.getSize() : 0) > MAX_HEADER_RANGES) {
+                    return ResponseEntity.badRequest().build();
+                }
+                Optional<MediaInfo> header = videoProcessingService.readHeader(file.getBytes(),
+                    tail != null ? tail.getBytes() : new byte[0], size);
+                return header.isPresent()
+                    ? ResponseEntity.ok(videoProcessingService.getAvailableResolutions(header.get()))
+                    : ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).build();
+            }
+
+            // Read from the ingest store: the container header when it can be read, else ffprobe,
+            // whose result is cached by content for a following compress of the same file
+            IngestedFile ingested = ingestStore.ingest(file);
+            try {
+                return ResponseEntity.ok(videoProcessingService.getAvailableResolutions(ingested));
+            } finally {
+                ingestStore.release(ingested);
+            }
         } catch (IOException e) {
             return ResponseEntity.badRequest().build();
         }
     }
 
+    @Operation(
+        summary = "List codecs",
+        description = "Return the output formats this server can write, each with the video and audio codecs its " +
+                     "ffmpeg can encode into them"
+    )
+    @GetMapping("/codecs")
+    public ResponseEntity<Map<String, Map<String, Set<?>>>> getCodecs() {
+        return ResponseEntity.ok(videoProcessingService.getCodecRegistry().getOutputFormats());
+    }
+
     @Operation(
         summary = "Get output directory",
         description = "Retrieve the current output directory for compressed videos"
@@ -123,50 +313,10 @@ public class ApiController {
         }
     }
 
-    private List<CompressionResult> processVideos(List<MultipartFile> files, CompressionConfig.CompressionPreset preset,
-            List<String> resolutions, int frameRate, boolean maintainOriginalSize, boolean preserveAudioQuality,
-            String outputFormat) throws IOException {
-        
-        if (resolutions == null || resolutions.isEmpty()) {
-            resolutions = List.of("ORIGINAL");
-        }
-
-        List<CompressionResult> allResults = new ArrayList<>();
-        
-        for (String resolution : resolutions) {
-            CompressionConfig.Resolution targetResolution;
-            Integer customWidth = null;
-            Integer customHeight = null;
-            boolean maintainAspectRatio = true;
-
-            if (resolution.startsWith("CUSTOM_")) {
-                String[] parts = resolution.substring(7).split("_");
-                String[] dimensions = parts[0].split("x");
-                customWidth = Integer.parseInt(dimensions[0]);
-                customHeight = Integer.parseInt(dimensions[1]);
-                maintainAspectRatio = parts.length > 1 && parts[1].equals("ASPECT");
-                targetResolution = CompressionConfig.Resolution.CUSTOM;
-            } else {
-                targetResolution = CompressionConfig.Resolution.valueOf(resolution);
-            }
-
-            CompressionConfig config = CompressionConfig.builder()
-                .preset(preset)
-                .targetResolution(targetResolution)
-                .customWidth(customWidth)
-                .customHeight(customHeight)
-                .maintainAspectRatio(maintainAspectRatio)
-                .frameRate(frameRate)
-                .maintainOriginalSize(maintainOriginalSize)
-                .preserveAudioQuality(preserveAudioQuality)
-                .outputFormat(outputFormat)
-                .build();
-
-            for (MultipartFile file : files) {
-                allResults.addAll(videoProcessingService.processVideo(file, config));
-            }
-        }
-
-        return allResults;
+    // The queue filled up between admission and submission
+    private <T> ResponseEntity<T> queueFull() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(admissionControl.getQueueRetryAfter().getSeconds()))
+            .build();
     }
-} 
\ No newline at end of file
+}
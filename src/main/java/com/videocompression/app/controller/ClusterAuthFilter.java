@@ -0,0 +1,60 @@
+package com.videocompression.app.controller;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Lets only nodes of the cluster call the cluster and worker endpoints: every call must carry the
+ * shared {@code vcp.cluster.token} as a bearer token. Without a token configured, the endpoints
+ * refuse every call and the node takes no part in a cluster.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 5)
+public class ClusterAuthFilter extends OncePerRequestFilter {
+
+    private static final String BEARER = "Bearer ";
+    private static final String CLUSTER_PATH = "/api/v1/cluster/";
+    private static final String WORKER_PATH = "/api/v1/worker/";
+
+    @Value("${vcp.cluster.token:}")
+    private String token;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        // Decoded and normalized, as the handler mappings see it; the raw URI could spell the
+        // same path another way
+        String path = request.getServletPath() + (request.getPathInfo() != null ? request.getPathInfo() : "");
+        return !path.startsWith(CLUSTER_PATH) && !path.startsWith(WORKER_PATH);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (token == null || token.isBlank()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Clustering is off: vcp.cluster.token is not set");
+            return;
+        }
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        // Compared in constant time, so response times do not give the token away
+        if (authorization == null || !authorization.startsWith(BEARER)
+                || !MessageDigest.isEqual(authorization.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+            response.setHeader(HttpHeaders.WWW_AUTHENTICATE, "Bearer");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+}
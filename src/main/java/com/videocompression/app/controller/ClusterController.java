@@ -0,0 +1,84 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.model.ClusterWorker;
+import com.videocompression.app.model.WorkerRegistration;
+import com.videocompression.app.service.EncodeCoordinator;
+import com.videocompression.app.service.IngestStore;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/v1/cluster")
+@Tag(name = "Cluster API", description = "Worker registration and source distribution on the coordinator")
+public class ClusterController {
+
+    private final EncodeCoordinator encodeCoordinator;
+    private final IngestStore ingestStore;
+
+    @Autowired
+    public ClusterController(EncodeCoordinator encodeCoordinator, IngestStore ingestStore) {
+        this.encodeCoordinator = encodeCoordinator;
+        this.ingestStore = ingestStore;
+    }
+
+    @Operation(
+        summary = "Register a worker or send a heartbeat",
+        description = "Workers call this on startup and then periodically; a worker that stops is dropped after the heartbeat timeout"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Worker registered"),
+        @ApiResponse(responseCode = "400", description = "Invalid registration")
+    })
+    @PutMapping("/workers/{id}")
+    public ResponseEntity<ClusterWorker> registerWorker(@PathVariable String id,
+            @RequestBody WorkerRegistration registration) {
+        try {
+            return ResponseEntity.ok(encodeCoordinator.register(id, registration));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @Operation(
+        summary = "Deregister a worker",
+        description = "Stop dispatching tasks to a worker; tasks already running on it finish"
+    )
+    @DeleteMapping("/workers/{id}")
+    public ResponseEntity<Void> deregisterWorker(@PathVariable String id) {
+        return encodeCoordinator.deregister(id)
+            ? ResponseEntity.noContent().build()
+            : ResponseEntity.notFound().build();
+    }
+
+    @Operation(
+        summary = "List workers",
+        description = "Return every live worker, including this node's own, with its slots in use"
+    )
+    @GetMapping("/workers")
+    public ResponseEntity<List<ClusterWorker>> getWorkers() {
+        return ResponseEntity.ok(encodeCoordinator.getWorkers());
+    }
+
+    @Operation(
+        summary = "Download a source",
+        description = "Return a stored source by content hash, for workers running tasks on it"
+    )
+    @GetMapping("/sources/{hash}")
+    public ResponseEntity<Resource> getSource(@PathVariable String hash) {
+        return ingestStore.find(hash)
+            .map(file -> ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .<Resource>body(new FileSystemResource(file.getPath())))
+            .orElse(ResponseEntity.notFound().build());
+    }
+}
@@ -0,0 +1,67 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.model.CompressionConfig;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns the compression form/query parameters shared by the upload endpoints, and the batch
+ * settings that mirror them, into one {@link CompressionConfig} per requested resolution.
+ */
+public final class CompressionConfigs {
+
+    private CompressionConfigs() {
+    }
+
+    public static List<CompressionConfig> build(List<String> resolutions, CompressionConfig.CompressionPreset preset,
+            int frameRate, boolean maintainOriginalSize, boolean preserveAudioQuality, String outputFormat,
+            CompressionConfig.RateControl rateControl, Long targetSize, CompressionConfig.VideoCodec videoCodec,
+            CompressionConfig.AudioCodec audioCodec, List<CompressionConfig.Preview> previews) {
+        
+        if (resolutions == null || resolutions.isEmpty()) {
+            resolutions = List.of("ORIGINAL");
+        }
+
+        List<CompressionConfig> configs = new ArrayList<>();
+        
+        for (String resolution : resolutions) {
+            CompressionConfig.Resolution targetResolution;
+            Integer customWidth = null;
+            Integer customHeight = null;
+            boolean maintainAspectRatio = true;
+
+            if (resolution.startsWith("CUSTOM_")) {
+                String[] parts = resolution.substring(7).split("_");
+                String[] dimensions = parts[0].split("x");
+                customWidth = Integer.parseInt(dimensions[0]);
+                customHeight = Integer.parseInt(dimensions[1]);
+                maintainAspectRatio = parts.length > 1 && parts[1].equals("ASPECT");
+                targetResolution = CompressionConfig.Resolution.CUSTOM;
+            } else {
+                targetResolution = CompressionConfig.Resolution.valueOf(resolution);
+            }
+
+            configs.add(CompressionConfig.builder()
+                .preset(preset)
+                .targetResolution(targetResolution)
+                .customWidth(customWidth)
+                .customHeight(customHeight)
+                .maintainAspectRatio(maintainAspectRatio)
+                .frameRate(frameRate)
+                .maintainOriginalSize(maintainOriginalSize)
+                .rateControl(rateControl)
+                .targetSize(targetSize)
+                .preserveAudioQuality(preserveAudioQuality)
+                .outputFormat(outputFormat)
+                .videoCodec(videoCodec)
+                .audioCodec(audioCodec)
+                .previews(previews == null || previews.isEmpty() ? Set.of() : EnumSet.copyOf(previews))
+                .build());
+        }
+
+        return configs;
+    }
+}
@@ -0,0 +1,131 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.model.CompressionJob;
+import com.videocompression.app.model.EncodeProgress;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Server-Sent Events for one subscriber of a job. The job's listeners run on the threads that
+ * report on it, the ffmpeg progress reader among them, so events only go into a small buffer
+ * there; a sender on the given executor writes them out, one at a time. A slow client then holds
+ * up its own sender only. Of the progress events waiting, only the latest is kept.
+ */
+final class JobEventStream implements Consumer<CompressionJob> {
+
+    // Status events waiting; older ones go first when a client falls this far behind, since each
+    // carries the whole job as it is when sent
+    private static final int MAX_PENDING_STATUSES = 16;
+
+    private final CompressionJob job;
+    private final Executor sender;
+    private final SseEmitter emitter = new SseEmitter(0L);
+
+    // All state below is guarded by this
+    private final Deque<SseEmitter.SseEventBuilder> statuses = new ArrayDeque<>();
+    private EncodeProgress progress;
+    private String lastState;
+    private boolean finished;
+    private boolean sending;
+    private boolean closed;
+
+    private JobEventStream(CompressionJob job, Executor sender) {
+        this.job = job;
+        this.sender = sender;
+    }
+
+    /**
+     * Subscribes to the job and returns the stream, which starts with a snapshot of the job and
+     * ends when the job finishes.
+     */
+    static SseEmitter open(CompressionJob job, Executor sender) {
+        JobEventStream stream = new JobEventStream(job, sender);
+        stream.emitter.onCompletion(stream::close);
+        stream.emitter.onTimeout(stream::close);
+        stream.emitter.onError(e -> stream.close());
+        job.addListener(stream);
+        // Initial snapshot; also ends the stream right away if the job finished before we subscribed
+        stream.accept(job);
+        return stream.emitter;
+    }
+
+    @Override
+    public void accept(CompressionJob current) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            String state = current.getStatus() + "/" + current.getResults().size();
+            if (!state.equals(lastState)) {
+                lastState = state;
+                if (statuses.size() == MAX_PENDING_STATUSES) {
+                    statuses.removeFirst();
+                }
+                statuses.addLast(SseEmitter.event().name("status").data(current));
+                // The status carries the progress too
+                progress = null;
+            } else if (current.getProgress() != null) {
+                progress = current.getProgress();
+            }
+            finished |= current.getStatus().isFinished();
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        try {
+            sender.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            close();
+            emitter.complete();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            SseEmitter.SseEventBuilder event;
+            synchronized (this) {
+                event = statuses.pollFirst();
+                if (event == null && progress != null) {
+                    event = SseEmitter.event().name("progress").data(progress);
+                    progress = null;
+                }
+                if (event == null) {
+                    sending = false;
+                    if (!finished || closed) {
+                        return;
+                    }
+                    // Everything sent and the job is done; later calls find the stream closed
+                    closed = true;
+                }
+            }
+            if (event == null) {
+                job.removeListener(this);
+                emitter.complete();
+                return;
+            }
+            try {
+                emitter.send(event);
+            } catch (IOException | IllegalStateException e) {
+                // Client went away
+                close();
+                return;
+            }
+        }
+    }
+
+    private void close() {
+        synchronized (this) {
+            closed = true;
+            statuses.clear();
+            progress = null;
+        }
+        job.removeListener(this);
+    }
+}
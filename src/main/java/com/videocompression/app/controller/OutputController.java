@@ -0,0 +1,77 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.service.VideoProcessingService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+@RestController
+@RequestMapping("/api/v1/outputs")
+@Tag(name = "Outputs API", description = "Download and stream processed videos")
+public class OutputController {
+
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+        "mp4", "video/mp4",
+        "mov", "video/quicktime",
+        "mkv", "video/x-matroska",
+        "webm", "video/webm",
+        "m3u8", "application/vnd.apple.mpegurl",
+        "m4s", "video/iso.segment",
+        "ts", "video/mp2t",
+        "jpg", "image/jpeg",
+        "vtt", "text/vtt"
+    );
+
+    private final VideoProcessingService videoProcessingService;
+
+    @Autowired
+    public OutputController(VideoProcessingService videoProcessingService) {
+        this.videoProcessingService = videoProcessingService;
+    }
+
+    @Operation(
+        summary = "Download a processed output",
+        description = "Return an output by the outputId of its result, or an HLS master playlist, media playlist or segment " +
+                     "by its path in the output directory. Supports byte ranges, ETags and conditional requests; " +
+                     "playlists reference their segments relative to this endpoint, so players can stream straight from it"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "The whole file"),
+        @ApiResponse(responseCode = "206", description = "The requested byte range"),
+        @ApiResponse(responseCode = "304", description = "Unchanged since the client's copy"),
+        @ApiResponse(responseCode = "404", description = "No such output"),
+        @ApiResponse(responseCode = "416", description = "Range lies past the end of the file")
+    })
+    @RequestMapping(value = "/{*id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getOutput(
+            @Parameter(description = "Output id, e.g. video_720p.mp4 or video_720p_hls/stream.m3u8")
+            @PathVariable String id,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // The catch-all pattern keeps the leading slash
+        Optional<Path> file = videoProcessingService.findOutput(id.startsWith("/") ? id.substring(1) : id);
+        if (file.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        FileResponses.send(request, response, file.get(), contentType(file.get()));
+    }
+
+    private static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+        return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+}
@@ -0,0 +1,197 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.UploadSession;
+import com.videocompression.app.service.AdmissionControl;
+import com.videocompression.app.service.UploadService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+@RestController
+@RequestMapping("/api/v1/uploads")
+@Tag(name = "Resumable Upload API", description = "Chunked, resumable uploads in the style of the tus protocol")
+public class UploadController {
+
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+    private static final String TUS_RESUMABLE = "Tus-Resumable";
+    private static final String JOB_ID = "Job-Id";
+    private static final String OFFSET_OCTET_STREAM = "application/offset+octet-stream";
+
+    private final UploadService uploadService;
+    private final AdmissionControl admissionControl;
+
+    @Autowired
+    public UploadController(UploadService uploadService, AdmissionControl admissionControl) {
+        this.uploadService = uploadService;
+        this.admissionControl = admissionControl;
+    }
+
+    @Operation(
+        summary = "Create a resumable upload",
+        description = "Reserve an upload of the given length. The compression settings are applied when the last chunk arrives"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "201", description = "Upload created, Location points at it"),
+        @ApiResponse(responseCode = "400", description = "Invalid request parameters"),
+        @ApiResponse(responseCode = "503", description = "Encode backlog or disk full, retry after Retry-After")
+    })
+    @PostMapping
+    public ResponseEntity<UploadSession> createUpload(
+            @Parameter(description = "Total size of the file in bytes", required = true)
+            @RequestHeader(UPLOAD_LENGTH) long length,
+
+            @Parameter(description = "Original file name, including extension", required = true)
+            @RequestParam("filename") String fileName,
+
+            @Parameter(description = "Compression quality preset (LOW/MEDIUM/HIGH)")
+            @RequestParam(value = "preset", defaultValue = "MEDIUM") CompressionConfig.CompressionPreset preset,
+
+            @Parameter(description = "Target resolutions (e.g., ORIGINAL, FHD, HD)")
+            @RequestParam(value = "resolutions", required = false) List<String> resolutions,
+
+            @Parameter(description = "Target frame rate (fps)")
+            @RequestParam(value = "frameRate", defaultValue = "30") int frameRate,
+
+            @Parameter(description = "Whether to maintain the original file size")
+            @RequestParam(value = "maintainOriginalSize", defaultValue = "false") boolean maintainOriginalSize,
+
+            @Parameter(description = "Whether to preserve original audio quality")
+            @RequestParam(value = "preserveAudioQuality", defaultValue = "true") boolean preserveAudioQuality,
+
+            @Parameter(description = "Output video format (mp4, webm, mkv)")
+            @RequestParam(value = "outputFormat", defaultValue = "mp4") String outputFormat,
+
+            @Parameter(description = "Rate control (PRESET uses the preset's CRF, PER_TITLE picks it per video)")
+            @RequestParam(value = "rateControl", defaultValue = "PRESET") CompressionConfig.RateControl rateControl,
+
+            @Parameter(description = "Size budget for each output in bytes")
+            @RequestParam(value = "targetSize", required = false) Long targetSize,
+
+            @Parameter(description = "Video codec (H264, H265, AV1, VP9); defaults to VP9 for webm and H264 otherwise")
+            @RequestParam(value = "videoCodec", required = false) CompressionConfig.VideoCodec videoCodec,
+
+            @Parameter(description = "Audio codec (AAC, OPUS); defaults to OPUS for webm and AAC otherwise")
+            @RequestParam(value = "audioCodec", required = false) CompressionConfig.AudioCodec audioCodec,
+
+            @Parameter(description = "Previews to make of each source (POSTER, SPRITES, CLIP)")
+            @RequestParam(value = "previews", required = false) List<CompressionConfig.Preview> previews) {
+
+        try {
+            UploadSession session = uploadService.create(fileName, length, CompressionConfigs.build(resolutions,
+                preset, frameRate, maintainOriginalSize, preserveAudioQuality, outputFormat, rateControl, targetSize,
+                videoCodec, audioCodec, previews));
+            URI location = ServletUriComponentsBuilder.fromCurrentRequestUri()
+                .path("/{id}")
+                .buildAndExpand(session.getId())
+                .toUri();
+            return ResponseEntity.created(location)
+                .header(TUS_RESUMABLE, "1.0.0")
+                .header(UPLOAD_OFFSET, "0")
+                .body(session);
+        } catch (IOException | IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @Operation(
+        summary = "Get upload offset",
+        description = "Return how many bytes of the upload have been received, to resume from there"
+    )
+    @RequestMapping(value = "/{id}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getOffset(@PathVariable String id) {
+        return uploadService.get(id)
+            .map(session -> ResponseEntity.ok()
+                .headers(uploadHeaders(session))
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .<Void>build())
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    @Operation(
+        summary = "Get upload status",
+        description = "Return the upload with its offset and, once complete, the id of the job processing it"
+    )
+    @GetMapping("/{id}")
+    public ResponseEntity<UploadSession> getUpload(@PathVariable String id) {
+        return uploadService.get(id)
+            .map(ResponseEntity::ok)
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    @Operation(
+        summary = "Upload a chunk",
+        description = "Append the request body at Upload-Offset. The chunk that completes the upload queues the compression job"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "204", description = "Chunk stored, Upload-Offset holds the new offset"),
+        @ApiResponse(responseCode = "404", description = "Unknown or expired upload"),
+        @ApiResponse(responseCode = "409", description = "Offset mismatch or concurrent chunk"),
+        @ApiResponse(responseCode = "429", description = "Too many uploads in progress, retry after Retry-After"),
+        @ApiResponse(responseCode = "503", description = "Upload complete but job queue is full, retry with an empty chunk")
+    })
+    @PatchMapping(value = "/{id}", consumes = OFFSET_OCTET_STREAM)
+    public ResponseEntity<Void> uploadChunk(
+            @PathVariable String id,
+            @RequestHeader(UPLOAD_OFFSET) long offset,
+            InputStream body) {
+        UploadSession session = uploadService.get(id).orElse(null);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        try {
+            uploadService.append(session, offset, body);
+            return ResponseEntity.noContent().headers(uploadHeaders(session)).build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).headers(uploadHeaders(session)).build();
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .headers(uploadHeaders(session))
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(admissionControl.getQueueRetryAfter().getSeconds()))
+                .build();
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @Operation(
+        summary = "Cancel an upload",
+        description = "Discard an upload and the data received so far"
+    )
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> cancelUpload(@PathVariable String id) {
+        try {
+            uploadService.cancel(id);
+            return ResponseEntity.noContent().build();
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    private HttpHeaders uploadHeaders(UploadSession session) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(TUS_RESUMABLE, "1.0.0");
+        headers.set(UPLOAD_OFFSET, String.valueOf(session.getOffset()));
+        headers.set(UPLOAD_LENGTH, String.valueOf(session.getLength()));
+        if (session.getJobId() != null) {
+            headers.set(JOB_ID, session.getJobId());
+        }
+        return headers;
+    }
+}
@@ -1,7 +1,8 @@
 package com.videocompression.app.controller;
 
 import com.videocompression.app.model.CompressionConfig;
-import com.videocompression.app.model.CompressionResult;
+import com.videocompression.app.model.CompressionJob;
+import com.videocompression.app.service.JobService;
 import com.videocompression.app.service.VideoProcessingService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
@@ -12,15 +13,18 @@ import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 @Controller
 public class VideoController {
 
     private final VideoProcessingService videoProcessingService;
+    private final JobService jobService;
 
     @Autowired
-    public VideoController(VideoProcessingService videoProcessingService) {
+    public VideoController(VideoProcessingService videoProcessingService, JobService jobService) {
         this.videoProcessingService = videoProcessingService;
+        this.jobService = jobService;
     }
 
     @GetMapping("/")
@@ -40,6 +44,11 @@ public class VideoController {
             @RequestParam(value = "maintainOriginalSize", defaultValue = "false") boolean maintainOriginalSize,
             @RequestParam(value = "preserveAudioQuality", defaultValue = "true") boolean preserveAudioQuality,
             @RequestParam(value = "outputFormat", defaultValue = "mp4") String outputFormat,
+            @RequestParam(value = "rateControl", defaultValue = "PRESET") CompressionConfig.RateControl rateControl,
+            @RequestParam(value = "targetSize", required = false) Long targetSize,
+            @RequestParam(value = "videoCodec", required = false) CompressionConfig.VideoCodec videoCodec,
+            @RequestParam(value = "audioCodec", required = false) CompressionConfig.AudioCodec audioCodec,
+            @RequestParam(value = "previews", required = false) List<CompressionConfig.Preview> previews,
             @RequestParam(value = "outputDirectory", required = false) String outputDirectory,
             RedirectAttributes redirectAttributes) {
         
@@ -58,46 +67,19 @@ public class VideoController {
                 videoProcessingService.setCustomOutputDirectory(outputDirectory);
             }
 
-            List<CompressionResult> allResults = new ArrayList<>();
-            
-            for (String resolution : resolutions) {
-                CompressionConfig.Resolution targetResolution;
-                Integer customWidth = null;
-                Integer customHeight = null;
-                boolean maintainAspectRatio = true;
+            List<CompressionConfig> configs = CompressionConfigs.build(resolutions, preset, frameRate,
+                maintainOriginalSize, preserveAudioQuality, outputFormat, rateControl, targetSize, videoCodec,
+                audioCodec, previews);
 
-                if (resolution.startsWith("CUSTOM_")) {
-                    String[] parts = resolution.substring(7).split("_");
-                    String[] dimensions = parts[0].split("x");
-                    customWidth = Integer.parseInt(dimensions[0]);
-                    customHeight = Integer.parseInt(dimensions[1]);
-                    maintainAspectRatio = parts.length > 1 && parts[1].equals("ASPECT");
-                    targetResolution = CompressionConfig.Resolution.CUSTOM;
-                } else {
-                    targetResolution = CompressionConfig.Resolution.valueOf(resolution);
-                }
-
-                CompressionConfig config = CompressionConfig.builder()
-                    .preset(preset)
-                    .targetResolution(targetResolution)
-                    .customWidth(customWidth)
-                    .customHeight(customHeight)
-                    .maintainAspectRatio(maintainAspectRatio)
-                    .frameRate(frameRate)
-                    .maintainOriginalSize(maintainOriginalSize)
-                    .preserveAudioQuality(preserveAudioQuality)
-                    .outputFormat(outputFormat)
-                    .build();
-
-                for (MultipartFile file : files) {
-                    allResults.addAll(videoProcessingService.processVideo(file, config));
-                }
-            }
-
-            redirectAttributes.addFlashAttribute("results", allResults);
+            CompressionJob job = jobService.submit(files, configs);
+            redirectAttributes.addFlashAttribute("jobId", job.getId());
             redirectAttributes.addFlashAttribute("success", 
-                String.format("Processed %d video(s) successfully! Generated %d version(s).", 
-                    files.size(), allResults.size()));
+                String.format("Queued %d video(s) for processing as job %s. %d version(s) will be generated.", 
+                    files.size(), job.getId(), files.size() * configs.size()));
+        } catch (RejectedExecutionException e) {
+            redirectAttributes.addFlashAttribute("error", "Server is busy, please try again later");
+        } catch (IllegalArgumentException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
         } catch (IOException e) {
             redirectAttributes.addFlashAttribute("error", "Error processing video: " + e.getMessage());
         }
@@ -0,0 +1,87 @@
+package com.videocompression.app.controller;
+
+import com.videocompression.app.model.EncodeTask;
+import com.videocompression.app.model.EncodeTaskResult;
+import com.videocompression.app.service.WorkerService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+@RestController
+@RequestMapping("/api/v1/worker")
+@Tag(name = "Worker API", description = "Encode tasks dispatched to this node by a coordinator")
+public class WorkerController {
+
+    private final WorkerService workerService;
+
+    @Autowired
+    public WorkerController(WorkerService workerService) {
+        this.workerService = workerService;
+    }
+
+    @Operation(
+        summary = "Run an encode task",
+        description = "Download the task's source if needed, encode it and answer once done with the size of each output"
+    )
+    @ApiResponses({
+        @ApiResponse(responseCode = "200", description = "Task finished, outputs ready for download"),
+        @ApiResponse(responseCode = "400", description = "Malformed task"),
+        @ApiResponse(responseCode = "404", description = "This node is not a worker"),
+        @ApiResponse(responseCode = "500", description = "Encode failed"),
+        @ApiResponse(responseCode = "503", description = "All slots busy")
+    })
+    @PostMapping("/tasks")
+    public CompletableFuture<ResponseEntity<EncodeTaskResult>> runTask(@RequestBody EncodeTask task) {
+        if (!workerService.isEnabled()) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        try {
+            return workerService.run(task)
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(e -> ResponseEntity.internalServerError().build());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+    }
+
+    @Operation(
+        summary = "Download a task output",
+        description = "Return one encoded output of a finished task"
+    )
+    @GetMapping("/tasks/{id}/outputs/{index}")
+    public ResponseEntity<Resource> getOutput(@PathVariable String id, @PathVariable int index) {
+        return workerService.getOutput(id, index)
+            .map(path -> ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .<Resource>body(new FileSystemResource(path)))
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    @Operation(
+        summary = "Discard a task",
+        description = "Delete the outputs of a task once the coordinator has them"
+    )
+    @DeleteMapping("/tasks/{id}")
+    public ResponseEntity<Void> discardTask(@PathVariable String id) {
+        try {
+            workerService.discard(id);
+            return ResponseEntity.noContent().build();
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
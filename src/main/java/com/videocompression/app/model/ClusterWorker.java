@@ -0,0 +1,21 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * A worker as seen by the coordinator.
+ */
+@Getter
+@Builder
+public class ClusterWorker {
+    private final String id;
+    // Null for the coordinator's own in-process worker
+    private final String url;
+    private final int slots;
+    private final int busy;
+    private final int failures;
+    private final Instant lastHeartbeat;
+}
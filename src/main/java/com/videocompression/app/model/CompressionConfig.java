@@ -1,29 +1,108 @@
 package com.videocompression.app.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Builder;
 import lombok.Data;
+import lombok.extern.jackson.Jacksonized;
+
+import java.util.Set;
 
 @Data
+@Jacksonized
 @Builder
 public class CompressionConfig {
     public enum CompressionPreset {
-        LOW(500_000, "slow", 28),      // Lower quality, smaller file
-        MEDIUM(2_000_000, "medium", 23), // Balanced
-        HIGH(5_000_000, "veryslow", 18);  // Higher quality, larger file
+        LOW(500_000, "slow", 28, 16.0),      // Lower quality, smaller file
+        MEDIUM(2_000_000, "medium", 23, 19.0), // Balanced
+        HIGH(5_000_000, "veryslow", 18, 22.5);  // Higher quality, larger file
 
         private final int bitrate;
         private final String speed;
         private final int crf;
+        // SSIM in dB a per-title encode has to reach
+        private final double ssimTarget;
 
-        CompressionPreset(int bitrate, String speed, int crf) {
+        CompressionPreset(int bitrate, String speed, int crf, double ssimTarget) {
             this.bitrate = bitrate;
             this.speed = speed;
             this.crf = crf;
+            this.ssimTarget = ssimTarget;
         }
 
         public int getBitrate() { return bitrate; }
         public String getSpeed() { return speed; }
         public int getCrf() { return crf; }
+        public double getSsimTarget() { return ssimTarget; }
+    }
+
+    public enum VideoCodec {
+        // Speed setting and CRF for LOW, MEDIUM and HIGH. H.264 follows the preset itself; the
+        // others are tuned to cost about as much CPU as x264 does at the same preset, and their
+        // CRF scales differ from x264's
+        H264("libx264", "h264", null, null),
+        H265("libx265", "hevc", new String[]{"faster", "fast", "slow"}, new int[]{31, 27, 22}),
+        AV1("libsvtav1", "av1", new String[]{"10", "8", "5"}, new int[]{42, 35, 28}),
+        VP9("libvpx-vp9", "vp9", new String[]{"5", "3", "2"}, new int[]{40, 33, 28});
+
+        private final String encoder;
+        private final String codecName;
+        private final String[] speeds;
+        private final int[] crfs;
+
+        VideoCodec(String encoder, String codecName, String[] speeds, int[] crfs) {
+            this.encoder = encoder;
+            this.codecName = codecName;
+            this.speeds = speeds;
+            this.crfs = crfs;
+        }
+
+        public String getEncoder() { return encoder; }
+        public String getCodecName() { return codecName; }
+
+        public String speed(CompressionPreset preset) {
+            return speeds != null ? speeds[preset.ordinal()] : preset.getSpeed();
+        }
+
+        public int crf(CompressionPreset preset) {
+            return crfs != null ? crfs[preset.ordinal()] : preset.getCrf();
+        }
+    }
+
+    public enum AudioCodec {
+        // Bitrates with and without preserveAudioQuality; Opus needs far fewer bits than AAC
+        AAC("aac", "aac", 192_000, 128_000),
+        OPUS("libopus", "opus", 128_000, 96_000);
+
+        private final String encoder;
+        private final String codecName;
+        private final long highBitRate;
+        private final long bitRate;
+
+        AudioCodec(String encoder, String codecName, long highBitRate, long bitRate) {
+            this.encoder = encoder;
+            this.codecName = codecName;
+            this.highBitRate = highBitRate;
+            this.bitRate = bitRate;
+        }
+
+        public String getEncoder() { return encoder; }
+        public String getCodecName() { return codecName; }
+
+        public long bitRate(boolean preserveQuality) {
+            return preserveQuality ? highBitRate : bitRate;
+        }
+    }
+
+    public enum RateControl {
+        PRESET,    // The preset's CRF for every title
+        PER_TITLE  // CRF picked per title and rendition by a sampled analysis pass
+    }
+
+    // Artifacts made from the source alongside the encode, shared by all renditions of a ladder
+    public enum Preview {
+        POSTER,   // A poster frame
+        SPRITES,  // Seek thumbnail sheets with a WebVTT index
+        CLIP      // A short animated preview
     }
 
     public enum Resolution {
@@ -70,8 +149,18 @@ public class CompressionConfig {
     @Builder.Default
     private boolean maintainOriginalSize = false;
     
+    @Builder.Default
+    private RateControl rateControl = RateControl.PRESET;
+
+    // Size budget for the output in bytes, null for none
+    private Long targetSize;
+
     @Builder.Default
     private String outputFormat = "mp4";
+
+    // Codecs, null for the output format's default
+    private VideoCodec videoCodec;
+    private AudioCodec audioCodec;
     
     @Builder.Default
     private boolean preserveAudioQuality = true;
@@ -79,12 +168,60 @@ public class CompressionConfig {
     @Builder.Default
     private String outputFileSuffix = "_compressed";
 
+    // Previews to make of the source; they do not change the encoded output
+    @Builder.Default
+    private Set<Preview> previews = Set.of();
+
     // Helper method to get actual resolution dimensions
+    @JsonIgnore
     public int getEffectiveWidth() {
         return targetResolution == Resolution.CUSTOM ? customWidth : targetResolution.getWidth();
     }
 
+    @JsonIgnore
     public int getEffectiveHeight() {
         return targetResolution == Resolution.CUSTOM ? customHeight : targetResolution.getHeight();
     }
+
+    /**
+     * The requested video codec, or the output format's usual one: VP9 for WebM, H.264 elsewhere.
+     */
+    @JsonIgnore
+    public VideoCodec getEffectiveVideoCodec() {
+        if (videoCodec != null) {
+            return videoCodec;
+        }
+        return "webm".equals(outputFormat) ? VideoCodec.VP9 : VideoCodec.H264;
+    }
+
+    /**
+     * The requested audio codec, or the output format's usual one: Opus for WebM, AAC elsewhere.
+     */
+    @JsonIgnore
+    public AudioCodec getEffectiveAudioCodec() {
+        if (audioCodec != null) {
+            return audioCodec;
+        }
+        return "webm".equals(outputFormat) ? AudioCodec.OPUS : AudioCodec.AAC;
+    }
+
+    /**
+     * Canonical description of every setting that affects the encoded output. Two configs with the
+     * same fingerprint produce the same bytes from the same source. Naming-only settings such as
+     * the output suffix are left out.
+     */
+    public String fingerprint() {
+        return "preset=" + preset
+            + ";resolution=" + targetResolution
+            + (targetResolution == Resolution.CUSTOM ? ";custom=" + customWidth + "x" + customHeight : "")
+            + ";aspect=" + maintainAspectRatio
+            + ";fps=" + frameRate
+            + ";originalSize=" + maintainOriginalSize
+            + ";rateControl=" + rateControl
+            + (targetSize != null ? ";targetSize=" + targetSize : "")
+            + ";format=" + outputFormat
+            + ";video=" + getEffectiveVideoCodec()
+            + ";audio=" + getEffectiveAudioCodec()
+            + ";audioHq=" + preserveAudioQuality;
+    }
 } 
\ No newline at end of file
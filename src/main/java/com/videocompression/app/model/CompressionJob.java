@@ -0,0 +1,102 @@
+package com.videocompression.app.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+@Getter
+public class CompressionJob {
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED;
+
+        public boolean isFinished() {
+            return this == COMPLETED || this == FAILED;
+        }
+    }
+
+    private final String id;
+    private final int fileCount;
+    private final int renditionCount;
+    private final Instant submittedAt = Instant.now();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant completedAt;
+    private volatile String error;
+    private volatile EncodeProgress progress;
+
+    // Results are appended as each rendition finishes so pollers see partial progress
+    private final List<CompressionResult> results = new CopyOnWriteArrayList<>();
+
+    @JsonIgnore
+    private final CompletableFuture<List<CompressionResult>> completion = new CompletableFuture<>();
+
+    // Notified on every progress update and state change
+    @JsonIgnore
+    private final List<Consumer<CompressionJob>> listeners = new CopyOnWriteArrayList<>();
+
+    public CompressionJob(String id, int fileCount, int renditionCount) {
+        this.id = id;
+        this.fileCount = fileCount;
+        this.renditionCount = renditionCount;
+    }
+
+    public List<CompressionResult> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    public void addListener(Consumer<CompressionJob> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<CompressionJob> listener) {
+        listeners.remove(listener);
+    }
+
+    public void markRunning() {
+        this.startedAt = Instant.now();
+        this.status = Status.RUNNING;
+        notifyListeners();
+    }
+
+    public void updateProgress(EncodeProgress progress) {
+        this.progress = progress;
+        notifyListeners();
+    }
+
+    public void addResults(List<CompressionResult> newResults) {
+        results.addAll(newResults);
+        notifyListeners();
+    }
+
+    public void markCompleted() {
+        this.completedAt = Instant.now();
+        this.status = Status.COMPLETED;
+        completion.complete(new ArrayList<>(results));
+        notifyListeners();
+    }
+
+    public void markFailed(Throwable cause) {
+        this.completedAt = Instant.now();
+        this.error = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+        this.status = Status.FAILED;
+        completion.completeExceptionally(cause);
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Consumer<CompressionJob> listener : listeners) {
+            listener.accept(this);
+        }
+    }
+}
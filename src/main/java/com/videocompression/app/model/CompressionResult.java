@@ -2,9 +2,11 @@ package com.videocompression.app.model;
 
 import lombok.Builder;
 import lombok.Getter;
+import lombok.extern.jackson.Jacksonized;
 
 @Getter
-@Builder
+@Jacksonized
+@Builder(toBuilder = true)
 public class CompressionResult {
     private final String fileName;
     private final String resolution;
@@ -15,4 +17,12 @@ public class CompressionResult {
     private final int bitrate;
     private final long duration;
     private final String outputPath;
+    // Download id under /api/v1/outputs/
+    private final String outputId;
+    // Master playlist across the HLS renditions of the same source, null for other formats
+    private final String masterPlaylistPath;
+    // Rate control the video was encoded with, null when it followed the preset or was copied
+    private final RatePlan ratePlan;
+    // Poster, seek sprites and preview clip of the source, null when none were asked for
+    private final MediaPreviews previews;
 } 
\ No newline at end of file
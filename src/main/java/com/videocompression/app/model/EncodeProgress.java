@@ -0,0 +1,26 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+@Getter
+@Builder(toBuilder = true)
+public class EncodeProgress {
+    private final String fileName;
+    private final int fileIndex;
+    private final int fileCount;
+
+    // Position in the source reached by the encoder, and the source length, in seconds
+    private final double outTime;
+    private final double duration;
+
+    private final long frame;
+    private final double fps;
+    // Media seconds encoded per wall-clock second; below 1.0 the encode is slower than realtime
+    private final double speed;
+
+    private final double percent;
+    private final double overallPercent;
+    // Estimated seconds left for the current file, or -1 while the speed is unknown
+    private final long eta;
+}
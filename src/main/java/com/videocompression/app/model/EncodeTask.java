@@ -0,0 +1,39 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.jackson.Jacksonized;
+
+import java.util.List;
+
+/**
+ * A unit of encoding work that can run on any worker: the video of one stretch of a source,
+ * encoded into one file per output. Whole files are a single task spanning the source.
+ */
+@Getter
+@Jacksonized
+@Builder
+public class EncodeTask {
+    private final String id;
+    private final String sourceHash;
+    // Where remote workers download the source from, null when the task can only run locally
+    private final String sourceUrl;
+    private final int videoStreamIndex;
+    // Seconds into the source
+    private final double start;
+    private final double end;
+    // Encode to the end of the source rather than stopping at end
+    private final boolean openEnded;
+    private final List<Output> outputs;
+
+    @Getter
+    @Jacksonized
+    @Builder
+    public static class Output {
+        private final CompressionConfig config;
+        private final int width;
+        private final int height;
+        // Null leaves rate control to the preset
+        private final RatePlan ratePlan;
+    }
+}
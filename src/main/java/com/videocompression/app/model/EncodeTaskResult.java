@@ -0,0 +1,16 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.jackson.Jacksonized;
+
+import java.util.List;
+
+@Getter
+@Jacksonized
+@Builder
+public class EncodeTaskResult {
+    private final String id;
+    // Size of each encoded output, in task output order
+    private final List<Long> outputSizes;
+}
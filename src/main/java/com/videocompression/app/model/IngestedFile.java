@@ -0,0 +1,14 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+@Getter
+@Builder
+public class IngestedFile {
+    private final String contentHash;
+    private final Path path;
+    private final long size;
+}
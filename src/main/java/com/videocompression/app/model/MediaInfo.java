@@ -0,0 +1,37 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * The subset of probe data the pipeline acts on, small enough to keep many of them cached.
+ */
+@Getter
+@Builder
+public class MediaInfo {
+    private final String formatName;
+    private final double duration;
+    private final long bitRate;
+
+    private final int videoStreamIndex;
+    private final String videoCodec;
+    private final int width;
+    private final int height;
+    private final double frameRate;
+    private final long videoBitRate;
+    private final String pixelFormat;
+
+    // Audio fields are null/zero when the source has no audio stream
+    private final String audioCodec;
+    private final long audioBitRate;
+    private final int audioChannels;
+    private final int audioSampleRate;
+
+    public boolean hasAudio() {
+        return audioCodec != null;
+    }
+
+    public String getResolution() {
+        return width + "x" + height;
+    }
+}
@@ -0,0 +1,24 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.jackson.Jacksonized;
+
+import java.util.List;
+
+/**
+ * Preview images and clip of one source, each addressed by its download id under
+ * /api/v1/outputs/. Artifacts that were not asked for are null.
+ */
+@Getter
+@Jacksonized
+@Builder
+public class MediaPreviews {
+    // Poster frame as JPEG
+    private final String posterId;
+    // Sheets of seek thumbnails as JPEG, in order, and the WebVTT index that maps time ranges to tiles
+    private final List<String> spriteSheetIds;
+    private final String spriteIndexId;
+    // Short silent MP4 stitched from samples across the source
+    private final String clipId;
+}
@@ -0,0 +1,22 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.jackson.Jacksonized;
+
+/**
+ * Rate control picked for one rendition of one source. With a CRF the encode runs at constant
+ * quality, capped at the max rate when one is set; without, it averages the bitrate.
+ */
+@Getter
+@Jacksonized
+@Builder
+public class RatePlan {
+    private final Integer crf;
+    // Target average with no CRF, otherwise the bitrate the analysis expects, 0 when unknown
+    private final long bitRate;
+    private final long maxRate;
+    private final long bufferSize;
+    // SSIM in dB the analysis measured at the chosen CRF, 0 when no analysis ran
+    private final double ssim;
+}
@@ -0,0 +1,59 @@
+package com.videocompression.app.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Getter
+public class UploadSession {
+    private final String id;
+    private final String fileName;
+    private final long length;
+    private final Instant createdAt = Instant.now();
+
+    @JsonIgnore
+    private final Path stagingPath;
+
+    @JsonIgnore
+    private final List<CompressionConfig> configs;
+
+    // Set while a PATCH is streaming into the file, so concurrent writers are turned away
+    @JsonIgnore
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    private volatile long offset;
+
+    // When a chunk last ended, or the upload was created; expiry counts from here
+    @JsonIgnore
+    private volatile Instant lastActivityAt = createdAt;
+
+    @Setter
+    private volatile String jobId;
+
+    // The upload's own reference into the ingest store, held from completion until a job takes over
+    @JsonIgnore
+    @Setter
+    private volatile IngestedFile ingestedFile;
+
+    public UploadSession(String id, String fileName, long length, Path stagingPath, List<CompressionConfig> configs) {
+        this.id = id;
+        this.fileName = fileName;
+        this.length = length;
+        this.stagingPath = stagingPath;
+        this.configs = configs;
+    }
+
+    public boolean isComplete() {
+        return offset >= length;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+        this.lastActivityAt = Instant.now();
+    }
+}
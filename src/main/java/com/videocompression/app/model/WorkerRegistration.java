@@ -0,0 +1,18 @@
+package com.videocompression.app.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.jackson.Jacksonized;
+
+/**
+ * Sent by a worker node to the coordinator on startup and then periodically as its heartbeat.
+ */
+@Getter
+@Jacksonized
+@Builder
+public class WorkerRegistration {
+    // Base URL the coordinator reaches the worker at
+    private final String url;
+    // Tasks the worker runs at once
+    private final int slots;
+}
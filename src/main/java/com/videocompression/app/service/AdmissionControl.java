@@ -0,0 +1,298 @@
+package com.videocompression.app.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides whether the node takes on a request before its upload is read. A request is costed from
+ * its upload size and the number of renditions it asks for: the disk its upload and outputs will
+ * take, and the encode time it adds to the backlog at the rate past encodes ran at. It is turned
+ * away, with a time after which to retry, when too many uploads are already streaming in, when the
+ * job queue is full, when the backlog would grow past its limit, or when a disk would drop below
+ * its reserve. Admitted requests hold their cost until they are done; after that the jobs they
+ * queued and the uploads they announced are counted instead.
+ */
+@Slf4j
+@Service
+public class AdmissionControl {
+
+    private static final Duration UPLOADS_RETRY_AFTER = Duration.ofSeconds(5);
+    private static final Duration DISK_RETRY_AFTER = Duration.ofMinutes(1);
+    private static final Duration MAX_RETRY_AFTER = Duration.ofHours(1);
+
+    @Value("${vcp.admission.enabled:true}")
+    private boolean enabled;
+
+    // Free space every disk keeps once admitted uploads and outputs are written
+    @Value("${vcp.admission.min-free-space:1GB}")
+    private DataSize minFreeSpace;
+
+    // Estimated encode time queued ahead beyond which new work is turned away
+    @Value("${vcp.admission.max-backlog:PT1H}")
+    private Duration maxBacklog;
+
+    @Value("${vcp.admission.max-concurrent-uploads:16}")
+    private int maxConcurrentUploads;
+
+    // Source bytes encoded per second and rendition, until encodes have been measured
+    @Value("${vcp.admission.initial-encode-rate:2MB}")
+    private DataSize initialEncodeRate;
+
+    // Output size of a rendition relative to its source, until encodes have been measured
+    @Value("${vcp.admission.initial-output-ratio:0.5}")
+    private double initialOutputRatio;
+
+    // Size assumed for uploads sent without a Content-Length
+    @Value("${spring.servlet.multipart.max-request-size:1GB}")
+    private DataSize maxRequestSize;
+
+    private final JobService jobService;
+    private final UploadService uploadService;
+    private final VideoProcessingService videoProcessingService;
+    private final CpuScheduler cpuScheduler;
+    private final PipelineMetrics metrics;
+
+    // Costs of the admitted requests still being received, guarded by this
+    private int uploads;
+    private int jobs;
+    private long uploadBytes;
+    private long outputBytes;
+    private long work;
+
+    public AdmissionControl(JobService jobService, UploadService uploadService,
+            VideoProcessingService videoProcessingService, CpuScheduler cpuScheduler, PipelineMetrics metrics) {
+        this.jobService = jobService;
+        this.uploadService = uploadService;
+        this.videoProcessingService = videoProcessingService;
+        this.cpuScheduler = cpuScheduler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * What a request does with the bytes it carries.
+     */
+    public enum Kind {
+        // Uploads files that are queued for encoding
+        ENCODE(true, true),
+        // Uploads a file that is only probed
+        PROBE(true, false),
+        // Announces a resumable upload to be encoded; the bytes follow in chunks
+        RESERVE(false, true),
+        // Carries a chunk of an announced upload, whose cost was counted when it was announced
+        CHUNK(true, false);
+
+        private final boolean body;
+        private final boolean encodes;
+
+        Kind(boolean body, boolean encodes) {
+            this.body = body;
+            this.encodes = encodes;
+        }
+    }
+
+    /**
+     * What a turned-away request would have exceeded.
+     */
+    public enum Reason {
+        UPLOADS, QUEUE, BACKLOG, DISK
+    }
+
+    /**
+     * Thrown when a request is turned away.
+     */
+    public static final class Rejection extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Reason reason;
+        private final Duration retryAfter;
+
+        private Rejection(Reason reason, Duration retryAfter, String message) {
+            super(message);
+            this.reason = reason;
+            this.retryAfter = retryAfter;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * The cost an admitted request holds. Close it once the request is done.
+     */
+    public final class Ticket implements AutoCloseable {
+        private final Kind kind;
+        private final long uploadBytes;
+        private final long outputBytes;
+        private final long work;
+        private boolean closed;
+
+        private Ticket(Kind kind, long uploadBytes, long outputBytes, long work) {
+            this.kind = kind;
+            this.uploadBytes = uploadBytes;
+            this.outputBytes = outputBytes;
+            this.work = work;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Admits a request or turns it away.
+     *
+     * @param size       bytes of the upload, or a negative number when unknown
+     * @param renditions renditions requested of every uploaded file
+     * @param targetSize size budget of each output in bytes, or null
+     * @throws Rejection if the node cannot take the request on now
+     */
+    public synchronized Ticket admit(Kind kind, long size, int renditions, Long targetSize) {
+        long bytes = size >= 0 ? size : maxRequestSize.toBytes();
+        long requestWork = kind.encodes ? bytes * Math.max(1, renditions) : 0;
+        long requestOutput = kind.encodes ? estimateOutput(bytes, Math.max(1, renditions), targetSize) : 0;
+        long requestUpload = kind == Kind.CHUNK ? 0 : bytes;
+
+        if (kind.body && uploads >= maxConcurrentUploads) {
+            throw reject(Reason.UPLOADS, UPLOADS_RETRY_AFTER,
+                uploads + " uploads are already in progress");
+        }
+
+        if (kind == Kind.ENCODE && jobService.getRemainingCapacity() - jobs <= 0) {
+            throw reject(Reason.QUEUE, getQueueRetryAfter(), "The job queue is full");
+        }
+
+        double backlog = 0;
+        if (kind.encodes) {
+            double pending = jobService.getPendingWork() + uploadService.getPendingWork() + work;
+            backlog = seconds(pending);
+            double excess = backlog + seconds(requestWork) - maxBacklog.getSeconds();
+            // An idle node takes any one request, however long it runs
+            if (pending > 0 && excess > 0) {
+                throw reject(Reason.BACKLOG, Duration.ofSeconds((long) Math.ceil(excess)),
+                    "About " + Math.round(backlog / 60) + " minutes of encoding are queued already");
+            }
+        }
+
+        if (requestUpload > 0 || requestOutput > 0) {
+            checkDisk(requestUpload, requestOutput, backlog);
+        }
+
+        Ticket ticket = new Ticket(kind, requestUpload, requestOutput, requestWork);
+        uploads += kind.body ? 1 : 0;
+        jobs += kind == Kind.ENCODE ? 1 : 0;
+        uploadBytes += ticket.uploadBytes;
+        outputBytes += ticket.outputBytes;
+        work += ticket.work;
+        return ticket;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.closed) {
+            return;
+        }
+        ticket.closed = true;
+        uploads -= ticket.kind.body ? 1 : 0;
+        jobs -= ticket.kind == Kind.ENCODE ? 1 : 0;
+        uploadBytes -= ticket.uploadBytes;
+        outputBytes -= ticket.outputBytes;
+        work -= ticket.work;
+    }
+
+    // Caller holds the lock. Uploads and outputs may share a disk, in which case both count against it
+    private void checkDisk(long requestUpload, long requestOutput, double backlog) {
+        Path uploadDir = Paths.get(videoProcessingService.getUploadDirectory());
+        Path outputDir = Paths.get(videoProcessingService.getOutputDirectory());
+        long pendingOutput = Math.round(jobService.getPendingWork() * outputRatio()) + outputBytes;
+
+        Map<FileStore, Long> needed = new HashMap<>();
+        try {
+            needed.merge(Files.getFileStore(uploadDir),
+                requestUpload + uploadBytes + uploadService.getPendingBytes(), Long::sum);
+            needed.merge(Files.getFileStore(outputDir), requestOutput + pendingOutput, Long::sum);
+
+            for (Map.Entry<FileStore, Long> entry : needed.entrySet()) {
+                long usable = entry.getKey().getUsableSpace();
+                if (usable - entry.getValue() < minFreeSpace.toBytes()) {
+                    Duration retryAfter = Duration.ofSeconds(Math.max(DISK_RETRY_AFTER.getSeconds(),
+                        (long) Math.ceil(backlog)));
+                    throw reject(Reason.DISK, retryAfter, "Not enough free space on " + entry.getKey() + ": "
+                        + usable / (1024 * 1024) + " MB free, " + entry.getValue() / (1024 * 1024)
+                        + " MB needed");
+                }
+            }
+        } catch (IOException e) {
+            // Better to admit than to turn everything away because a disk could not be read
+            log.warn("Failed to read free space of {} or {}: {}", uploadDir, outputDir, e.getMessage());
+        }
+    }
+
+    private Rejection reject(Reason reason, Duration retryAfter, String message) {
+        metrics.recordRejection(reason.name().toLowerCase());
+        log.debug("Turning away request ({}): {}", reason, message);
+        Duration bounded = retryAfter.compareTo(MAX_RETRY_AFTER) > 0 ? MAX_RETRY_AFTER
+            : retryAfter.isZero() || retryAfter.isNegative() ? Duration.ofSeconds(1) : retryAfter;
+        return new Rejection(reason, bounded, message);
+    }
+
+    private long estimateOutput(long bytes, int renditions, Long targetSize) {
+        long perRendition = Math.round(bytes * outputRatio());
+        if (targetSize != null && targetSize > 0) {
+            perRendition = Math.min(perRendition, targetSize);
+        }
+        return perRendition * renditions;
+    }
+
+    // Wall time to encode the given source bytes times renditions at the measured rate, spread over
+    // the encodes the CPU budget runs at once
+    private double seconds(double work) {
+        double secondsPerByte = metrics.getEncodeSecondsPerByte();
+        if (Double.isNaN(secondsPerByte)) {
+            secondsPerByte = 1.0 / Math.max(1, initialEncodeRate.toBytes());
+        }
+        return work * secondsPerByte / Math.max(1, cpuScheduler.getProcessCap());
+    }
+
+    private double outputRatio() {
+        double ratio = metrics.getOutputRatio();
+        return Double.isNaN(ratio) ? initialOutputRatio : ratio;
+    }
+
+    /**
+     * Estimated encode time of the jobs queued, running and announced.
+     */
+    public synchronized Duration getBacklog() {
+        return Duration.ofMillis(Math.round(
+            seconds(jobService.getPendingWork() + uploadService.getPendingWork() + work) * 1000));
+    }
+
+    /**
+     * Roughly how long until a job finishes and frees a place in the queue.
+     */
+    public Duration getQueueRetryAfter() {
+        int jobCount = Math.max(1, jobService.getQueueDepth() + jobService.getActiveCount());
+        Duration perJob = getBacklog().dividedBy(jobCount);
+        return perJob.getSeconds() < 1 ? Duration.ofSeconds(1)
+            : perJob.compareTo(MAX_RETRY_AFTER) > 0 ? MAX_RETRY_AFTER : perJob;
+    }
+}
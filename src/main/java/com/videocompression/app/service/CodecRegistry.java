@@ -0,0 +1,206 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the local ffmpeg build can encode and mux, asked once at startup with {@code -encoders}
+ * and {@code -muxers}, and which codecs each output format can carry. Requests are checked
+ * against it before anything is uploaded or encoded, so an unsupported combination fails with a
+ * clear message instead of an ffmpeg error halfway through a job.
+ */
+@Slf4j
+public class CodecRegistry {
+
+    // Output format (file extension) to the ffmpeg muxer that writes it
+    private static final Map<String, String> MUXERS = Map.of(
+        "mp4", "mp4",
+        "mov", "mov",
+        "mkv", "matroska",
+        "webm", "webm",
+        "m3u8", "hls",
+        "ts", "mpegts"
+    );
+
+    private static final Map<String, Set<CompressionConfig.VideoCodec>> VIDEO_CODECS = Map.of(
+        "mp4", EnumSet.allOf(CompressionConfig.VideoCodec.class),
+        "mov", EnumSet.of(CompressionConfig.VideoCodec.H264, CompressionConfig.VideoCodec.H265),
+        "mkv", EnumSet.allOf(CompressionConfig.VideoCodec.class),
+        "webm", EnumSet.of(CompressionConfig.VideoCodec.AV1, CompressionConfig.VideoCodec.VP9),
+        "m3u8", EnumSet.of(CompressionConfig.VideoCodec.H264, CompressionConfig.VideoCodec.H265),
+        "ts", EnumSet.of(CompressionConfig.VideoCodec.H264, CompressionConfig.VideoCodec.H265)
+    );
+
+    private static final Map<String, Set<CompressionConfig.AudioCodec>> AUDIO_CODECS = Map.of(
+        "mp4", EnumSet.allOf(CompressionConfig.AudioCodec.class),
+        "mov", EnumSet.of(CompressionConfig.AudioCodec.AAC),
+        "mkv", EnumSet.allOf(CompressionConfig.AudioCodec.class),
+        "webm", EnumSet.of(CompressionConfig.AudioCodec.OPUS),
+        "m3u8", EnumSet.of(CompressionConfig.AudioCodec.AAC),
+        "ts", EnumSet.of(CompressionConfig.AudioCodec.AAC)
+    );
+
+    // " V....D libx264   libx264 H.264 ..." and " DE matroska   Matroska"
+    private static final Pattern ENCODER = Pattern.compile("^\\s*[VASFXBD.]{6}\\s+(\\S+)");
+    private static final Pattern MUXER = Pattern.compile("^\\s*D?E\\s+(\\S+)");
+
+    private final Set<String> encoders;
+    private final Set<String> muxers;
+    // False when ffmpeg could not be asked; everything is then assumed to be there
+    private final boolean known;
+
+    public CodecRegistry(String ffmpegPath) {
+        Set<String> encoders = Set.of();
+        Set<String> muxers = Set.of();
+        boolean known = false;
+        try {
+            encoders = list(ffmpegPath, "-encoders", ENCODER);
+            muxers = list(ffmpegPath, "-muxers", MUXER);
+            known = true;
+        } catch (IOException e) {
+            log.warn("Failed to list ffmpeg's encoders and muxers, codec support is unchecked: {}", e.getMessage());
+        }
+        this.encoders = encoders;
+        this.muxers = muxers;
+        this.known = known;
+
+        if (known) {
+            log.info("Video encoders available: {}, audio encoders available: {}",
+                getVideoCodecs(), getAudioCodecs());
+        }
+    }
+
+    public boolean hasEncoder(String name) {
+        return !known || encoders.contains(name);
+    }
+
+    public boolean hasMuxer(String name) {
+        return !known || muxers.contains(name);
+    }
+
+    /**
+     * Video codecs this ffmpeg can encode.
+     */
+    public Set<CompressionConfig.VideoCodec> getVideoCodecs() {
+        Set<CompressionConfig.VideoCodec> codecs = EnumSet.noneOf(CompressionConfig.VideoCodec.class);
+        for (CompressionConfig.VideoCodec codec : CompressionConfig.VideoCodec.values()) {
+            if (hasEncoder(codec.getEncoder())) {
+                codecs.add(codec);
+            }
+        }
+        return codecs;
+    }
+
+    /**
+     * Audio codecs this ffmpeg can encode.
+     */
+    public Set<CompressionConfig.AudioCodec> getAudioCodecs() {
+        Set<CompressionConfig.AudioCodec> codecs = EnumSet.noneOf(CompressionConfig.AudioCodec.class);
+        for (CompressionConfig.AudioCodec codec : CompressionConfig.AudioCodec.values()) {
+            if (hasEncoder(codec.getEncoder())) {
+                codecs.add(codec);
+            }
+        }
+        return codecs;
+    }
+
+    /**
+     * The output formats this ffmpeg can write, each with the codecs it can encode into them.
+     */
+    public Map<String, Map<String, Set<?>>> getOutputFormats() {
+        Map<String, Map<String, Set<?>>> formats = new LinkedHashMap<>();
+        for (String format : new String[]{"mp4", "webm", "mkv", "mov", "m3u8", "ts"}) {
+            if (!hasMuxer(MUXERS.get(format))) {
+                continue;
+            }
+            Set<CompressionConfig.VideoCodec> video = EnumSet.copyOf(VIDEO_CODECS.get(format));
+            video.retainAll(getVideoCodecs());
+            Set<CompressionConfig.AudioCodec> audio = EnumSet.copyOf(AUDIO_CODECS.get(format));
+            audio.retainAll(getAudioCodecs());
+            Map<String, Set<?>> codecs = new LinkedHashMap<>();
+            codecs.put("video", video);
+            codecs.put("audio", audio);
+            formats.put(format, codecs);
+        }
+        return formats;
+    }
+
+    /**
+     * Checks that the config's output format can carry its codecs and that this ffmpeg has the
+     * encoders and muxer to write it. Formats without an entry here are passed through to ffmpeg
+     * as they are.
+     *
+     * @throws IllegalArgumentException naming what is not supported
+     */
+    public void check(CompressionConfig config) {
+        String format = config.getOutputFormat();
+        CompressionConfig.VideoCodec video = config.getEffectiveVideoCodec();
+        CompressionConfig.AudioCodec audio = config.getEffectiveAudioCodec();
+
+        if (MUXERS.containsKey(format)) {
+            if (!VIDEO_CODECS.get(format).contains(video)) {
+                throw new IllegalArgumentException(format + " output cannot carry " + video + " video, use one of "
+                    + VIDEO_CODECS.get(format));
+            }
+            if (!AUDIO_CODECS.get(format).contains(audio)) {
+                throw new IllegalArgumentException(format + " output cannot carry " + audio + " audio, use one of "
+                    + AUDIO_CODECS.get(format));
+            }
+            if (!hasMuxer(MUXERS.get(format))) {
+                throw new IllegalArgumentException("This ffmpeg cannot write " + format + " files");
+            }
+        }
+        if (!hasEncoder(video.getEncoder())) {
+            throw new IllegalArgumentException("This ffmpeg has no " + video.getEncoder() + " encoder for " + video);
+        }
+        if (!hasEncoder(audio.getEncoder())) {
+            throw new IllegalArgumentException("This ffmpeg has no " + audio.getEncoder() + " encoder for " + audio);
+        }
+    }
+
+    private static Set<String> list(String ffmpegPath, String option, Pattern entry) throws IOException {
+        Process process = new ProcessBuilder(ffmpegPath, "-hide_banner", option)
+            .redirectErrorStream(true)
+            .start();
+        Set<String> names = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            boolean listing = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A legend comes first, ended by a line of dashes
+                if (!listing) {
+                    listing = line.trim().startsWith("--");
+                    continue;
+                }
+                Matcher matcher = entry.matcher(line);
+                if (matcher.find()) {
+                    names.add(matcher.group(1));
+                }
+            }
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("ffmpeg " + option + " exited with " + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running ffmpeg " + option, e);
+        }
+        return Collections.unmodifiableSet(names);
+    }
+}
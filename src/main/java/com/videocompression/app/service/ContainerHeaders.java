@@ -0,0 +1,910 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.MediaInfo;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reads dimensions, duration and codecs straight from the container header of MP4/MOV,
+ * Matroska/WebM and MPEG-TS files, reading only the byte ranges that hold them: the {@code moov}
+ * box, the EBML segment info and tracks, or the first and last megabyte of a transport stream.
+ * That takes milliseconds and no ffprobe process, and works on the start and end of a file as well
+ * as on the whole of it. Anything it cannot read with certainty gives an empty result, and callers
+ * fall back to ffprobe.
+ *
+ * <p>Only what the header states is filled in: bit rates and pixel format stay zero or null, and so
+ * does the duration of a fragmented MP4 whose header leaves it out. The result is meant for
+ * resolution detection and display, not for the encode decisions that need a full probe.
+ */
+@Slf4j
+public final class ContainerHeaders {
+
+    static final String MP4_FORMAT = "mov,mp4,m4a,3gp,3g2,mj2";
+    static final String MATROSKA_FORMAT = "matroska,webm";
+    static final String MPEGTS_FORMAT = "mpegts";
+
+    // Largest moov box or Matroska header element read into memory
+    private static final int MAX_HEADER_SIZE = 64 * 1024 * 1024;
+    // Bytes of a transport stream scanned at either end
+    private static final int TS_SCAN_SIZE = 1024 * 1024;
+
+    private static final Set<String> MP4_TOP_LEVEL = Set.of("ftyp", "moov", "mdat", "free", "skip", "wide", "pnot");
+
+    // Sample entry four-character codes and Matroska codec IDs as ffprobe names the codecs
+    private static final Map<String, String> MP4_CODECS = Map.ofEntries(
+        Map.entry("avc1", "h264"), Map.entry("avc3", "h264"),
+        Map.entry("hvc1", "hevc"), Map.entry("hev1", "hevc"),
+        Map.entry("av01", "av1"), Map.entry("vp09", "vp9"), Map.entry("vp08", "vp8"),
+        Map.entry("mp4v", "mpeg4"), Map.entry("mp4a", "aac"),
+        Map.entry("ac-3", "ac3"), Map.entry("ec-3", "eac3"),
+        Map.entry("Opus", "opus"), Map.entry("fLaC", "flac"), Map.entry(".mp3", "mp3"));
+    private static final Map<String, String> MATROSKA_CODECS = Map.ofEntries(
+        Map.entry("V_MPEG4/ISO/AVC", "h264"), Map.entry("V_MPEGH/ISO/HEVC", "hevc"),
+        Map.entry("V_AV1", "av1"), Map.entry("V_VP9", "vp9"), Map.entry("V_VP8", "vp8"),
+        Map.entry("V_MPEG2", "mpeg2video"), Map.entry("V_MPEG4/ISO/ASP", "mpeg4"),
+        Map.entry("A_AAC", "aac"), Map.entry("A_OPUS", "opus"), Map.entry("A_VORBIS", "vorbis"),
+        Map.entry("A_AC3", "ac3"), Map.entry("A_EAC3", "eac3"), Map.entry("A_FLAC", "flac"),
+        Map.entry("A_MPEG/L3", "mp3"), Map.entry("A_MPEG/L2", "mp2"));
+    private static final Map<Integer, String> TS_VIDEO_CODECS = Map.of(
+        0x01, "mpeg1video", 0x02, "mpeg2video", 0x1B, "h264", 0x24, "hevc");
+    private static final Map<Integer, String> TS_AUDIO_CODECS = Map.of(
+        0x03, "mp2", 0x04, "mp2", 0x0F, "aac", 0x11, "aac_latm", 0x81, "ac3", 0x87, "eac3");
+
+    private ContainerHeaders() {
+    }
+
+    // Random access to the bytes of a file, or to the parts of it a client sent
+    private interface Source {
+        long size();
+
+        // Exactly length bytes at position; EOFException when they are not available
+        ByteBuffer read(long position, int length) throws IOException;
+    }
+
+    /**
+     * Reads the header of a file on disk.
+     */
+    public static Optional<MediaInfo> read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            return read(new Source() {
+                @Override
+                public long size() {
+                    return size;
+                }
+
+                @Override
+                public ByteBuffer read(long position, int length) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    return buffer.flip();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the header of a file of the given size from its first and last bytes only. The result
+     * is empty when the header lies outside them, as a {@code moov} box behind a large
+     * {@code mdat} near neither end does.
+     */
+    public static Optional<MediaInfo> read(byte[] head, byte[] tail, long size) throws IOException {
+        long tailStart = size - tail.length;
+        return read(new Source() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public ByteBuffer read(long position, int length) throws IOException {
+                if (position >= 0 && position + length <= head.length) {
+                    return ByteBuffer.wrap(head, (int) position, length).slice();
+                }
+                if (position >= tailStart && position + length <= size) {
+                    return ByteBuffer.wrap(tail, (int) (position - tailStart), length).slice();
+                }
+                throw new EOFException("Bytes " + position + "-" + (position + length) + " were not sent");
+            }
+        });
+    }
+
+    private static Optional<MediaInfo> read(Source source) throws IOException {
+        if (source.size() < 16) {
+            return Optional.empty();
+        }
+        try {
+            ByteBuffer start = source.read(0, 16);
+            if (start.getInt(0) == EBML) {
+                return readMatroska(source);
+            }
+            if (MP4_TOP_LEVEL.contains(fourcc(start.getInt(4)))) {
+                return readMp4(source);
+            }
+            int packetSize = transportPacketSize(source);
+            if (packetSize > 0) {
+                return readTransportStream(source, packetSize);
+            }
+            return Optional.empty();
+        } catch (EOFException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Truncated, malformed or outside the bytes we were given; ffprobe decides
+            log.debug("Container header not readable: {}", e.toString());
+            return Optional.empty();
+        }
+    }
+
+    // MP4 and QuickTime: the moov box and the boxes of its tracks
+
+    private static final int MOOV = box("moov");
+    private static final int MVHD = box("mvhd");
+    private static final int MVEX = box("mvex");
+    private static final int MEHD = box("mehd");
+    private static final int TRAK = box("trak");
+    private static final int TKHD = box("tkhd");
+    private static final int MDIA = box("mdia");
+    private static final int MDHD = box("mdhd");
+    private static final int HDLR = box("hdlr");
+    private static final int MINF = box("minf");
+    private static final int STBL = box("stbl");
+    private static final int STSD = box("stsd");
+    private static final int STTS = box("stts");
+    private static final int VIDE = box("vide");
+    private static final int SOUN = box("soun");
+
+    private static Optional<MediaInfo> readMp4(Source source) throws IOException {
+        // Walk the top-level boxes to the moov box, stepping over mdat without reading it
+        long size = source.size();
+        long position = 0;
+        while (position + 8 <= size) {
+            ByteBuffer header = source.read(position, (int) Math.min(16, size - position));
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize) {
+                throw new IllegalArgumentException("Bad box size " + boxSize + " at " + position);
+            }
+            if (header.getInt(4) == MOOV) {
+                if (boxSize > MAX_HEADER_SIZE) {
+                    return Optional.empty();
+                }
+                return parseMoov(source.read(position + headerSize, (int) (boxSize - headerSize)));
+            }
+            position += boxSize;
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<MediaInfo> parseMoov(ByteBuffer moov) {
+        MediaInfo.MediaInfoBuilder builder = MediaInfo.builder().formatName(MP4_FORMAT);
+
+        ByteBuffer mvhd = child(moov, MVHD);
+        double duration = mvhd != null ? duration(mvhd) : 0;
+        ByteBuffer mehd = child(child(moov, MVEX), MEHD);
+        if (duration == 0 && mvhd != null && mehd != null) {
+            // Fragmented file: the movie header leaves the duration to the extends header
+            long timescale = mvhd.getInt(mvhd.get(0) == 1 ? 20 : 12) & 0xFFFFFFFFL;
+            long fragmentDuration = mehd.get(0) == 1 ? mehd.getLong(4) : mehd.getInt(4) & 0xFFFFFFFFL;
+            duration = timescale > 0 ? (double) fragmentDuration / timescale : 0;
+        }
+        builder.duration(duration);
+
+        boolean video = false;
+        boolean audio = false;
+        List<ByteBuffer> traks = children(moov, TRAK);
+        for (int index = 0; index < traks.size(); index++) {
+            ByteBuffer mdia = child(traks.get(index), MDIA);
+            ByteBuffer hdlr = child(mdia, HDLR);
+            ByteBuffer stbl = child(child(mdia, MINF), STBL);
+            ByteBuffer stsd = child(stbl, STSD);
+            if (hdlr == null || stsd == null || stsd.getInt(4) == 0) {
+                continue;
+            }
+            // First sample entry: size, format, then the entry's fields
+            String format = fourcc(stsd.getInt(12));
+            int handler = hdlr.getInt(8);
+            if (handler == VIDE && !video) {
+                int width = stsd.getShort(40) & 0xFFFF;
+                int height = stsd.getShort(42) & 0xFFFF;
+                if (width == 0 || height == 0) {
+                    // Presentation size from the track header, 16.16 fixed point after the matrix
+                    ByteBuffer tkhd = child(traks.get(index), TKHD);
+                    int offset = tkhd != null && tkhd.get(0) == 1 ? 88 : 76;
+                    width = tkhd != null ? tkhd.getInt(offset) >>> 16 : 0;
+                    height = tkhd != null ? tkhd.getInt(offset + 4) >>> 16 : 0;
+                }
+                if (width == 0 || height == 0) {
+                    continue;
+                }
+                video = true;
+                builder.videoStreamIndex(index)
+                    .videoCodec(MP4_CODECS.get(format))
+                    .width(width)
+                    .height(height)
+                    .frameRate(frameRate(child(mdia, MDHD), child(stbl, STTS)));
+            } else if (handler == SOUN && !audio) {
+                audio = true;
+                builder.audioCodec(MP4_CODECS.getOrDefault(format, format));
+                // Version 2 QuickTime entries keep rate and channels elsewhere; leave them unknown
+                if ((stsd.getShort(24) & 0xFFFF) < 2) {
+                    builder.audioChannels(stsd.getShort(32) & 0xFFFF)
+                        .audioSampleRate(stsd.getInt(40) >>> 16);
+                }
+            }
+        }
+        return video ? Optional.of(builder.build()) : Optional.empty();
+    }
+
+    // Duration of an mvhd or mdhd box, which share their layout up to it
+    private static double duration(ByteBuffer header) {
+        boolean version1 = header.get(0) == 1;
+        long timescale = header.getInt(version1 ? 20 : 12) & 0xFFFFFFFFL;
+        long duration = version1 ? header.getLong(24) : header.getInt(16) & 0xFFFFFFFFL;
+        if (timescale == 0 || duration == (version1 ? -1L : 0xFFFFFFFFL)) {
+            return 0;
+        }
+        return (double) duration / timescale;
+    }
+
+    // Samples over the track's duration; fragmented files have no samples here and give 0
+    private static double frameRate(ByteBuffer mdhd, ByteBuffer stts) {
+        if (mdhd == null || stts == null) {
+            return 0;
+        }
+        double duration = duration(mdhd);
+        long samples = 0;
+        int entries = stts.getInt(4);
+        for (int i = 0; i < entries; i++) {
+            samples += stts.getInt(8 + i * 8) & 0xFFFFFFFFL;
+        }
+        return duration > 0 ? samples / duration : 0;
+    }
+
+    private static ByteBuffer child(ByteBuffer parent, int type) {
+        if (parent == null) {
+            return null;
+        }
+        List<ByteBuffer> found = children(parent, type);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    // Contents of the child boxes of the given type, in order
+    private static List<ByteBuffer> children(ByteBuffer parent, int type) {
+        List<ByteBuffer> found = new ArrayList<>();
+        int limit = parent.limit();
+        int position = 0;
+        while (position + 8 <= limit) {
+            long size = parent.getInt(position) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = parent.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = limit - position;
+            }
+            if (size < headerSize || size > limit - position) {
+                break;
+            }
+            if (parent.getInt(position + 4) == type) {
+                found.add(parent.slice(position + headerSize, (int) size - headerSize));
+            }
+            position += (int) size;
+        }
+        return found;
+    }
+
+    private static int box(String type) {
+        return ByteBuffer.wrap(type.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    private static String fourcc(int type) {
+        return new String(ByteBuffer.allocate(4).putInt(type).array(), StandardCharsets.US_ASCII);
+    }
+
+    // Matroska and WebM: the segment info and tracks elements
+
+    private static final int EBML = 0x1A45DFA3;
+    private static final long SEGMENT = 0x18538067L;
+    private static final long SEEK_HEAD = 0x114D9B74L;
+    private static final long SEEK = 0x4DBBL;
+    private static final long SEEK_ID = 0x53ABL;
+    private static final long SEEK_POSITION = 0x53ACL;
+    private static final long INFO = 0x1549A966L;
+    private static final long TIMESTAMP_SCALE = 0x2AD7B1L;
+    private static final long DURATION = 0x4489L;
+    private static final long TRACKS = 0x1654AE6BL;
+    private static final long TRACK_ENTRY = 0xAEL;
+    private static final long TRACK_TYPE = 0x83L;
+    private static final long CODEC_ID = 0x86L;
+    private static final long DEFAULT_DURATION = 0x23E383L;
+    private static final long VIDEO = 0xE0L;
+    private static final long PIXEL_WIDTH = 0xB0L;
+    private static final long PIXEL_HEIGHT = 0xBAL;
+    private static final long AUDIO = 0xE1L;
+    private static final long SAMPLING_FREQUENCY = 0xB5L;
+    private static final long CHANNELS = 0x9FL;
+    private static final long CLUSTER = 0x1F43B675L;
+
+    // An EBML element: its ID, where its data starts and how long it is, -1 for unknown
+    private static final class Element {
+        final long id;
+        final long position;
+        final long size;
+
+        Element(long id, long position, long size) {
+            this.id = id;
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    private static Optional<MediaInfo> readMatroska(Source source) throws IOException {
+        Element ebml = element(source, 0);
+        Element segment = element(source, ebml.position + ebml.size);
+        if (ebml.size < 0 || segment.id != SEGMENT) {
+            return Optional.empty();
+        }
+
+        // Info and tracks normally come first; when they follow the clusters the seek head says where
+        long segmentEnd = segment.size < 0 ? source.size() : Math.min(source.size(), segment.position + segment.size);
+        ByteBuffer info = null;
+        ByteBuffer tracks = null;
+        ByteBuffer seekHead = null;
+        long position = segment.position;
+        while (position < segmentEnd && (info == null || tracks == null)) {
+            Element element = element(source, position);
+            if (element.id == CLUSTER || element.size < 0) {
+                break;
+            }
+            if (element.id == INFO) {
+                info = data(source, element);
+            } else if (element.id == TRACKS) {
+                tracks = data(source, element);
+            } else if (element.id == SEEK_HEAD && seekHead == null) {
+                seekHead = data(source, element);
+            }
+            position = element.position + element.size;
+        }
+        if (seekHead != null) {
+            for (Element seek : children(seekHead, SEEK)) {
+                ByteBuffer entry = seekHead.slice((int) seek.position, (int) seek.size);
+                Element id = first(entry, SEEK_ID);
+                Element seekPosition = first(entry, SEEK_POSITION);
+                if (id == null || seekPosition == null) {
+                    continue;
+                }
+                long target = unsigned(entry, id);
+                if ((target == INFO && info == null) || (target == TRACKS && tracks == null)) {
+                    Element element = element(source, segment.position + unsigned(entry, seekPosition));
+                    if (element.id == INFO && info == null) {
+                        info = data(source, element);
+                    } else if (element.id == TRACKS && tracks == null) {
+                        tracks = data(source, element);
+                    }
+                }
+            }
+        }
+        if (tracks == null) {
+            return Optional.empty();
+        }
+
+        MediaInfo.MediaInfoBuilder builder = MediaInfo.builder().formatName(MATROSKA_FORMAT);
+        if (info != null) {
+            Element scale = first(info, TIMESTAMP_SCALE);
+            Element duration = first(info, DURATION);
+            long nanosPerTick = scale != null ? unsigned(info, scale) : 1_000_000L;
+            builder.duration(duration != null ? number(info, duration) * nanosPerTick / 1e9 : 0);
+        }
+
+        boolean video = false;
+        boolean audio = false;
+        List<Element> entries = children(tracks, TRACK_ENTRY);
+        for (int index = 0; index < entries.size(); index++) {
+            ByteBuffer entry = tracks.slice((int) entries.get(index).position, (int) entries.get(index).size);
+            Element type = first(entry, TRACK_TYPE);
+            Element codec = first(entry, CODEC_ID);
+            String codecId = codec != null ? string(entry, codec) : "";
+            long trackType = type != null ? unsigned(entry, type) : 0;
+            if (trackType == 1 && !video) {
+                Element settings = first(entry, VIDEO);
+                if (settings == null) {
+                    continue;
+                }
+                ByteBuffer videoSettings = entry.slice((int) settings.position, (int) settings.size);
+                Element width = first(videoSettings, PIXEL_WIDTH);
+                Element height = first(videoSettings, PIXEL_HEIGHT);
+                if (width == null || height == null) {
+                    continue;
+                }
+                video = true;
+                Element frameDuration = first(entry, DEFAULT_DURATION);
+                long nanosPerFrame = frameDuration != null ? unsigned(entry, frameDuration) : 0;
+                builder.videoStreamIndex(index)
+                    .videoCodec(MATROSKA_CODECS.get(codecId))
+                    .width((int) unsigned(videoSettings, width))
+                    .height((int) unsigned(videoSettings, height))
+                    .frameRate(nanosPerFrame > 0 ? 1e9 / nanosPerFrame : 0);
+            } else if (trackType == 2 && !audio) {
+                audio = true;
+                // A_AAC may carry a profile suffix such as A_AAC/MPEG4/LC
+                builder.audioCodec(MATROSKA_CODECS.getOrDefault(codecId.startsWith("A_AAC") ? "A_AAC" : codecId,
+                    codecId));
+                Element settings = first(entry, AUDIO);
+                if (settings != null) {
+                    ByteBuffer audioSettings = entry.slice((int) settings.position, (int) settings.size);
+                    Element rate = first(audioSettings, SAMPLING_FREQUENCY);
+                    Element channels = first(audioSettings, CHANNELS);
+                    builder.audioSampleRate(rate != null ? (int) number(audioSettings, rate) : 8000)
+                        .audioChannels(channels != null ? (int) unsigned(audioSettings, channels) : 1);
+                }
+            }
+        }
+        return video ? Optional.of(builder.build()) : Optional.empty();
+    }
+
+    private static Element element(Source source, long position) throws IOException {
+        ByteBuffer header = source.read(position, (int) Math.min(12, source.size() - position));
+        return element(header, 0, position);
+    }
+
+    // Parses the ID and size at index of buffer, which starts at base in the file
+    private static Element element(ByteBuffer buffer, int index, long base) {
+        int idLength = vintLength(buffer.get(index));
+        if (idLength > 4) {
+            throw new IllegalArgumentException("Bad element ID at " + (base + index));
+        }
+        long id = 0;
+        for (int i = 0; i < idLength; i++) {
+            id = (id << 8) | (buffer.get(index + i) & 0xFF);
+        }
+        int sizeIndex = index + idLength;
+        int sizeLength = vintLength(buffer.get(sizeIndex));
+        if (sizeLength > 8) {
+            throw new IllegalArgumentException("Bad element size at " + (base + sizeIndex));
+        }
+        long size = buffer.get(sizeIndex) & (0xFF >> sizeLength);
+        for (int i = 1; i < sizeLength; i++) {
+            size = (size << 8) | (buffer.get(sizeIndex + i) & 0xFF);
+        }
+        boolean unknown = size == (1L << (7 * sizeLength)) - 1;
+        return new Element(id, base + sizeIndex + sizeLength, unknown ? -1 : size);
+    }
+
+    // Length of a variable-size integer from the position of the first set bit of its first byte
+    private static int vintLength(byte first) {
+        return Integer.numberOfLeadingZeros(first & 0xFF) - 23;
+    }
+
+    private static ByteBuffer data(Source source, Element element) throws IOException {
+        if (element.size > MAX_HEADER_SIZE) {
+            throw new IllegalArgumentException("Element of " + element.size + " bytes");
+        }
+        return source.read(element.position, (int) element.size);
+    }
+
+    // Children of a master element held in buffer, with positions relative to it
+    private static List<Element> children(ByteBuffer buffer, long id) {
+        List<Element> found = new ArrayList<>();
+        int position = 0;
+        while (position < buffer.limit()) {
+            Element element = element(buffer, position, 0);
+            if (element.size < 0 || element.position + element.size > buffer.limit()) {
+                break;
+            }
+            if (element.id == id) {
+                found.add(element);
+            }
+            position = (int) (element.position + element.size);
+        }
+        return found;
+    }
+
+    private static Element first(ByteBuffer buffer, long id) {
+        List<Element> found = children(buffer, id);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private static long unsigned(ByteBuffer buffer, Element element) {
+        long value = 0;
+        for (int i = 0; i < element.size; i++) {
+            value = (value << 8) | (buffer.get((int) element.position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static double number(ByteBuffer buffer, Element element) {
+        return element.size == 4 ? buffer.getFloat((int) element.position) : buffer.getDouble((int) element.position);
+    }
+
+    private static String string(ByteBuffer buffer, Element element) {
+        byte[] bytes = new byte[(int) element.size];
+        buffer.get((int) element.position, bytes);
+        int length = bytes.length;
+        while (length > 0 && bytes[length - 1] == 0) {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    // MPEG transport stream: the program tables and the video stream's parameter set
+
+    private static final int SYNC_BYTE = 0x47;
+    private static final int TS_CHUNK_PACKETS = 256;
+
+    // 188-byte packets, or 192 with the 4-byte timestamp of M2TS in front; 0 when neither
+    private static int transportPacketSize(Source source) throws IOException {
+        for (int packetSize : new int[] {188, 192}) {
+            int offset = packetSize - 188;
+            if (source.size() < 3L * packetSize) {
+                continue;
+            }
+            ByteBuffer start = source.read(0, 3 * packetSize);
+            if ((start.get(offset) & 0xFF) == SYNC_BYTE && (start.get(offset + packetSize) & 0xFF) == SYNC_BYTE
+                    && (start.get(offset + 2 * packetSize) & 0xFF) == SYNC_BYTE) {
+                return packetSize;
+            }
+        }
+        return 0;
+    }
+
+    private static Optional<MediaInfo> readTransportStream(Source source, int packetSize) throws IOException {
+        int offset = packetSize - 188;
+        int pmtPid = -1;
+        int videoPid = -1;
+        int videoType = 0;
+        int videoIndex = 0;
+        String audioCodec = null;
+        long firstPts = -1;
+        ByteArrayOutputStream elementaryStream = new ByteArrayOutputStream();
+        // Read in chunks, so a stream identified early reads no further and client ranges suffice
+        long limit = Math.min(TS_SCAN_SIZE, source.size()) / packetSize * packetSize;
+        for (long chunk = 0; chunk < limit; chunk += TS_CHUNK_PACKETS * packetSize) {
+            int length = (int) Math.min(TS_CHUNK_PACKETS * packetSize, limit - chunk);
+            ByteBuffer head = source.read(chunk, length);
+            for (int packet = offset; packet + 188 <= length; packet += packetSize) {
+                if ((head.get(packet) & 0xFF) != SYNC_BYTE) {
+                    return Optional.empty();
+                }
+                int pid = ((head.get(packet + 1) & 0x1F) << 8) | (head.get(packet + 2) & 0xFF);
+                boolean unitStart = (head.get(packet + 1) & 0x40) != 0;
+                int payload = payloadStart(head, packet);
+                if (payload < 0) {
+                    continue;
+                }
+                if (pid == 0 && unitStart && pmtPid < 0) {
+                    int section = payload + 1 + (head.get(payload) & 0xFF);
+                    int end = section + 3 + (((head.get(section + 1) & 0x0F) << 8) | (head.get(section + 2) & 0xFF)) - 4;
+                    for (int program = section + 8; program + 4 <= Math.min(end, packet + 188); program += 4) {
+                        if (head.getShort(program) != 0) {
+                            pmtPid = head.getShort(program + 2) & 0x1FFF;
+                            break;
+                        }
+                    }
+                } else if (pid == pmtPid && unitStart && videoPid < 0) {
+                    int section = payload + 1 + (head.get(payload) & 0xFF);
+                    int end = section + 3 + (((head.get(section + 1) & 0x0F) << 8) | (head.get(section + 2) & 0xFF)) - 4;
+                    int stream = section + 12 + (head.getShort(section + 10) & 0x0FFF);
+                    for (int index = 0; stream + 5 <= Math.min(end, packet + 188); index++) {
+                        int type = head.get(stream) & 0xFF;
+                        int streamPid = head.getShort(stream + 1) & 0x1FFF;
+                        if (videoPid < 0 && TS_VIDEO_CODECS.containsKey(type)) {
+                            videoPid = streamPid;
+                            videoType = type;
+                            videoIndex = index;
+                        } else if (audioCodec == null && TS_AUDIO_CODECS.containsKey(type)) {
+                            audioCodec = TS_AUDIO_CODECS.get(type);
+                        }
+                        stream += 5 + (head.getShort(stream + 3) & 0x0FFF);
+                    }
+                    if (videoPid < 0) {
+                        return Optional.empty();
+                    }
+                } else if (pid == videoPid && (unitStart || firstPts >= 0)) {
+                    if (unitStart) {
+                        // A parameter set never spans PES packets, so each one is searched on its own
+                        firstPts = firstPts < 0 ? pts(head, payload) : firstPts;
+                        payload += 9 + (head.get(payload + 8) & 0xFF);
+                        if (payload > packet + 188) {
+                            throw new IllegalArgumentException("PES header runs past the packet at "
+                                + (chunk + packet));
+                        }
+                        elementaryStream.reset();
+                    }
+                    byte[] bytes = new byte[packet + 188 - payload];
+                    head.get(payload, bytes);
+                    elementaryStream.writeBytes(bytes);
+                    int[] dimensions = dimensions(videoType, elementaryStream.toByteArray());
+                    if (dimensions != null) {
+                        return Optional.of(MediaInfo.builder()
+                            .formatName(MPEGTS_FORMAT)
+                            .duration(tsDuration(source, packetSize, videoPid, firstPts))
+                            .videoStreamIndex(videoIndex)
+                            .videoCodec(TS_VIDEO_CODECS.get(videoType))
+                            .width(dimensions[0])
+                            .height(dimensions[1])
+                            .audioCodec(audioCodec)
+                            .build());
+                    }
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    // Start of the payload of the packet at index, -1 when it has none
+    private static int payloadStart(ByteBuffer buffer, int packet) {
+        int control = (buffer.get(packet + 3) >> 4) & 0x03;
+        if ((control & 0x01) == 0) {
+            return -1;
+        }
+        int payload = packet + 4 + ((control & 0x02) != 0 ? 1 + (buffer.get(packet + 4) & 0xFF) : 0);
+        return payload < packet + 188 ? payload : -1;
+    }
+
+    // Presentation timestamp of the PES header at index, -1 when it carries none
+    private static long pts(ByteBuffer buffer, int index) {
+        if (buffer.get(index) != 0 || buffer.get(index + 1) != 0 || buffer.get(index + 2) != 1
+                || (buffer.get(index + 7) & 0x80) == 0) {
+            return -1;
+        }
+        int at = index + 9;
+        return ((long) (buffer.get(at) & 0x0E) << 29)
+            | ((buffer.get(at + 1) & 0xFF) << 22)
+            | ((buffer.get(at + 2) & 0xFE) << 14)
+            | ((buffer.get(at + 3) & 0xFF) << 7)
+            | ((buffer.get(at + 4) & 0xFF) >> 1);
+    }
+
+    // From the first timestamp to the last one in the final megabyte; 0 when either is missing
+    private static double tsDuration(Source source, int packetSize, int videoPid, long firstPts) throws IOException {
+        if (firstPts < 0) {
+            return 0;
+        }
+        // Backwards from the end in chunks, until one holds a timestamp
+        long end = source.size() / packetSize * packetSize;
+        int offset = packetSize - 188;
+        long lastPts = -1;
+        for (long scanned = 0; lastPts < 0 && scanned < Math.min(TS_SCAN_SIZE, end); ) {
+            int length = (int) Math.min(TS_CHUNK_PACKETS * packetSize, end - scanned);
+            scanned += length;
+            ByteBuffer tail;
+            try {
+                tail = source.read(end - scanned, length);
+            } catch (EOFException e) {
+                return 0;
+            }
+            for (int packet = offset; packet + 188 <= length; packet += packetSize) {
+                int pid = ((tail.get(packet + 1) & 0x1F) << 8) | (tail.get(packet + 2) & 0xFF);
+                int payload = payloadStart(tail, packet);
+                if (pid == videoPid && (tail.get(packet + 1) & 0x40) != 0 && payload >= 0
+                        && payload + 14 <= packet + 188) {
+                    long pts = pts(tail, payload);
+                    lastPts = pts >= 0 ? pts : lastPts;
+                }
+            }
+        }
+        // Timestamps are 33 bits at 90 kHz and may wrap once within a file
+        return lastPts < 0 ? 0 : ((lastPts - firstPts) & ((1L << 33) - 1)) / 90000.0;
+    }
+
+    // Width and height from the sequence header or parameter set in stream, null until one is complete
+    private static int[] dimensions(int streamType, byte[] stream) {
+        for (int start = nextStartCode(stream, 0); start >= 0; ) {
+            int end = nextStartCode(stream, start);
+            if (end < 0) {
+                // May still be cut off; wait for more of the stream
+                return null;
+            }
+            int unitEnd = end - 3;
+            if (streamType == 0x1B && (stream[start] & 0x1F) == 7) {
+                return h264Dimensions(unescape(stream, start, unitEnd));
+            }
+            if (streamType == 0x24 && ((stream[start] >> 1) & 0x3F) == 33) {
+                return hevcDimensions(unescape(stream, start, unitEnd));
+            }
+            if ((streamType == 0x01 || streamType == 0x02) && (stream[start] & 0xFF) == 0xB3) {
+                return new int[] {
+                    ((stream[start + 1] & 0xFF) << 4) | ((stream[start + 2] & 0xFF) >> 4),
+                    ((stream[start + 2] & 0x0F) << 8) | (stream[start + 3] & 0xFF)};
+            }
+            start = end;
+        }
+        return null;
+    }
+
+    // Index just after the next 00 00 01 from index, -1 when there is none
+    private static int nextStartCode(byte[] stream, int index) {
+        for (int i = index; i + 2 < stream.length; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Drops the emulation prevention bytes of a NAL unit
+    private static byte[] unescape(byte[] stream, int start, int end) {
+        ByteArrayOutputStream unit = new ByteArrayOutputStream(end - start);
+        int zeros = 0;
+        for (int i = start; i < end; i++) {
+            if (zeros >= 2 && stream[i] == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = stream[i] == 0 ? zeros + 1 : 0;
+            unit.write(stream[i]);
+        }
+        return unit.toByteArray();
+    }
+
+    private static final Set<Integer> H264_HIGH_PROFILES = Set.of(100, 110, 122, 244, 44, 83, 86, 118, 128, 138, 139,
+        134, 135);
+
+    private static int[] h264Dimensions(byte[] sps) {
+        BitReader reader = new BitReader(sps);
+        reader.skip(8);
+        int profile = reader.bits(8);
+        reader.skip(16);
+        reader.exp();
+        int chromaFormat = 1;
+        if (H264_HIGH_PROFILES.contains(profile)) {
+            chromaFormat = reader.exp();
+            if (chromaFormat == 3) {
+                reader.skip(1);
+            }
+            reader.exp();
+            reader.exp();
+            reader.skip(1);
+            if (reader.bits(1) == 1) {
+                for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+                    if (reader.bits(1) == 1) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.exp();
+        int pictureOrderCountType = reader.exp();
+        if (pictureOrderCountType == 0) {
+            reader.exp();
+        } else if (pictureOrderCountType == 1) {
+            reader.skip(1);
+            reader.signedExp();
+            reader.signedExp();
+            int cycle = reader.exp();
+            for (int i = 0; i < cycle; i++) {
+                reader.signedExp();
+            }
+        }
+        reader.exp();
+        reader.skip(1);
+        int widthInMacroblocks = reader.exp() + 1;
+        int heightInMapUnits = reader.exp() + 1;
+        int frameMacroblocksOnly = reader.bits(1);
+        if (frameMacroblocksOnly == 0) {
+            reader.skip(1);
+        }
+        reader.skip(1);
+        int cropX = 0;
+        int cropY = 0;
+        if (reader.bits(1) == 1) {
+            cropX = reader.exp() + reader.exp();
+            cropY = reader.exp() + reader.exp();
+        }
+        int cropUnitX = chromaFormat == 1 || chromaFormat == 2 ? 2 : 1;
+        int cropUnitY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMacroblocksOnly);
+        return new int[] {
+            widthInMacroblocks * 16 - cropUnitX * cropX,
+            (2 - frameMacroblocksOnly) * heightInMapUnits * 16 - cropUnitY * cropY};
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int last = 8;
+        int next = 8;
+        for (int i = 0; i < size; i++) {
+            if (next != 0) {
+                next = (last + reader.signedExp() + 256) % 256;
+            }
+            last = next == 0 ? last : next;
+        }
+    }
+
+    private static int[] hevcDimensions(byte[] sps) {
+        BitReader reader = new BitReader(sps);
+        reader.skip(16 + 4);
+        int maxSubLayers = reader.bits(3);
+        reader.skip(1);
+        // General profile, tier and level, then the flags and levels of the sub-layers
+        reader.skip(96);
+        boolean[] profilePresent = new boolean[maxSubLayers];
+        boolean[] levelPresent = new boolean[maxSubLayers];
+        for (int i = 0; i < maxSubLayers; i++) {
+            profilePresent[i] = reader.bits(1) == 1;
+            levelPresent[i] = reader.bits(1) == 1;
+        }
+        if (maxSubLayers > 0) {
+            reader.skip(2 * (8 - maxSubLayers));
+        }
+        for (int i = 0; i < maxSubLayers; i++) {
+            reader.skip((profilePresent[i] ? 88 : 0) + (levelPresent[i] ? 8 : 0));
+        }
+        reader.exp();
+        int chromaFormat = reader.exp();
+        if (chromaFormat == 3) {
+            reader.skip(1);
+        }
+        int width = reader.exp();
+        int height = reader.exp();
+        if (reader.bits(1) == 1) {
+            int cropX = reader.exp() + reader.exp();
+            int cropY = reader.exp() + reader.exp();
+            width -= (chromaFormat == 1 || chromaFormat == 2 ? 2 : 1) * cropX;
+            height -= (chromaFormat == 1 ? 2 : 1) * cropY;
+        }
+        return new int[] {width, height};
+    }
+
+    // Reads the fixed-length and Exp-Golomb fields of a parameter set
+    private static final class BitReader {
+        private final byte[] data;
+        private long position;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        int bits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (int) (position >> 3);
+                if (index >= data.length) {
+                    throw new IllegalArgumentException("Parameter set ends early");
+                }
+                value = (value << 1) | ((data[index] >> (7 - (int) (position & 7))) & 1);
+                position++;
+            }
+            return value;
+        }
+
+        void skip(int count) {
+            position += count;
+        }
+
+        int exp() {
+            int zeros = 0;
+            while (bits(1) == 0) {
+                if (++zeros > 31) {
+                    throw new IllegalArgumentException("Bad Exp-Golomb code");
+                }
+            }
+            return (int) ((1L << zeros) - 1 + bits(zeros));
+        }
+
+        int signedExp() {
+            int value = exp();
+            return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.videocompression.app.service;
+
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the node's CPU budget for ffmpeg. Every encode process takes a {@link Lease} first, which
+ * caps how many run at once and tells the process how many threads it may use, so concurrent
+ * encodes split the cores between them instead of each starting one thread per core.
+ *
+ * <p>The process cap adapts while encodes run. It drops when the load average shows the machine
+ * is oversubscribed, or when encodes run markedly slower per thread than the same preset did with
+ * the machine to itself. It climbs back while work is waiting and encodes keep their speed.
+ *
+ * <p>Waiting is done on a {@link ReentrantLock} rather than a monitor, so that encodes queued on
+ * virtual threads release their carrier thread while they wait.
+ */
+@Slf4j
+@Service
+public class CpuScheduler {
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Speed reports from the first seconds of an encode are dominated by startup
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double BASELINE_WEIGHT = 0.2;
+    // Relative per-thread speed below which encodes are considered to be fighting over the CPU
+    private static final double CONTENDED = 0.7;
+    private static final double HEALTHY = 0.9;
+
+    // 0 uses every core the JVM sees
+    @Value("${vcp.cpu.cores:0}")
+    private int configuredCores;
+
+    // 0 allows one process per four cores, at least one
+    @Value("${vcp.cpu.max-processes:0}")
+    private int configuredMaxProcesses;
+
+    // Load average per core above which no further process is started
+    @Value("${vcp.cpu.max-load:1.25}")
+    private double maxLoadPerCore;
+
+    @Value("${vcp.cpu.adaptive:true}")
+    private boolean adaptive;
+
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private int cores;
+    private int maxProcesses;
+
+    // All state below is guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int processCap;
+    private int waiting;
+    private final List<Lease> running = new ArrayList<>();
+    // Encoded pixels per second per thread of an encode running alone, by workload and thread count
+    private final Map<String, Double> baselines = new HashMap<>();
+    private long lastAdjustNanos;
+
+    @PostConstruct
+    public void init() {
+        cores = configuredCores > 0 ? configuredCores : Runtime.getRuntime().availableProcessors();
+        maxProcesses = configuredMaxProcesses > 0 ? configuredMaxProcesses : Math.max(1, cores / 4);
+        processCap = maxProcesses;
+        log.info("CPU budget of {} core(s), up to {} encode process(es) at once", cores, maxProcesses);
+    }
+
+    /**
+     * Permission for one ffmpeg process to run with a given number of threads. Report progress
+     * while it runs and close it when the process exits.
+     */
+    public final class Lease implements AutoCloseable {
+        private final String workload;
+        private final double pixelRate;
+        private final int threads;
+        private final long startedNanos = System.nanoTime();
+        private double throughputPerThread;
+
+        private Lease(String workload, double pixelRate, int threads) {
+            this.workload = workload;
+            this.pixelRate = pixelRate;
+            this.threads = threads;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * Caps the decoder and filter threads of a command. Encoders are capped per output, see
+         * {@link #threadsPerOutput(int)}.
+         */
+        public FFmpegBuilder limit(FFmpegBuilder builder) {
+            return builder
+                .addExtraArgs("-threads", String.valueOf(threads))
+                .addExtraArgs("-filter_threads", String.valueOf(threads))
+                .addExtraArgs("-filter_complex_threads", String.valueOf(threads));
+        }
+
+        /**
+         * Threads for each encoder when the process writes the given number of outputs.
+         */
+        public int threadsPerOutput(int outputs) {
+            return Math.max(1, threads / Math.max(1, outputs));
+        }
+
+        /**
+         * Records the realtime speed ffmpeg reports for this process.
+         */
+        public void report(double speed) {
+            if (speed > 0 && System.nanoTime() - startedNanos >= WARMUP_NANOS) {
+                CpuScheduler.this.report(this, speed);
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Waits until another encode process may start and reserves its share of the cores.
+     *
+     * @param workload  what kind of encode this is, for comparing speeds like with like
+     * @param pixelRate output pixels per second of media, summed over every output
+     */
+    public Lease acquire(String workload, double pixelRate) {
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (running.size() >= processCap || (!running.isEmpty() && overloaded())) {
+                    // Signalled by releases; the timeout re-checks the load average
+                    changed.await(1, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for CPU", e);
+            } finally {
+                waiting--;
+            }
+
+            Lease lease = new Lease(workload, pixelRate, Math.max(1, cores / processCap));
+            running.add(lease);
+            return lease;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Lease lease) {
+        lock.lock();
+        try {
+            if (running.remove(lease)) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void report(Lease lease, double speed) {
+        lock.lock();
+        try {
+            lease.throughputPerThread = speed * lease.pixelRate / lease.threads;
+            if (running.size() == 1) {
+                baselines.merge(baselineKey(lease), lease.throughputPerThread,
+                    (previous, current) -> previous + BASELINE_WEIGHT * (current - previous));
+            }
+            adjust();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private void adjust() {
+        long now = System.nanoTime();
+        if (!adaptive || now - lastAdjustNanos < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        lastAdjustNanos = now;
+
+        if (overloaded()) {
+            if (processCap > 1) {
+                processCap--;
+                log.info("Load average {} over budget, allowing {} encode process(es)", getLoadAverage(), processCap);
+            }
+            return;
+        }
+
+        double efficiency = efficiency();
+        if (efficiency < CONTENDED && running.size() > 1 && processCap > 1) {
+            processCap--;
+            log.info("Encodes running at {}% of their solo speed, allowing {} encode process(es)",
+                Math.round(efficiency * 100), processCap);
+        } else if ((Double.isNaN(efficiency) || efficiency > HEALTHY) && waiting > 0 && processCap < maxProcesses) {
+            processCap++;
+            log.info("Encodes keep their speed, allowing {} encode process(es)", processCap);
+            changed.signalAll();
+        }
+    }
+
+    // Mean speed of the running encodes relative to their baselines, NaN while unknown
+    private double efficiency() {
+        double sum = 0;
+        int count = 0;
+        for (Lease lease : running) {
+            Double baseline = baselines.get(baselineKey(lease));
+            if (lease.throughputPerThread > 0 && baseline != null && baseline > 0) {
+                sum += lease.throughputPerThread / baseline;
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    private boolean overloaded() {
+        double load = os.getSystemLoadAverage();
+        // Not available on every platform
+        return load >= 0 && load > cores * maxLoadPerCore;
+    }
+
+    private static String baselineKey(Lease lease) {
+        return lease.workload + "@" + lease.threads;
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public int getMaxProcesses() {
+        return maxProcesses;
+    }
+
+    public int getProcessCap() {
+        lock.lock();
+        try {
+            return processCap;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunningProcesses() {
+        lock.lock();
+        try {
+            return running.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaitingProcesses() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getLoadAverage() {
+        return os.getSystemLoadAverage();
+    }
+}
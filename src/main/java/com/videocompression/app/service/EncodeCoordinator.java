@@ -0,0 +1,339 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.ClusterWorker;
+import com.videocompression.app.model.EncodeTask;
+import com.videocompression.app.model.WorkerRegistration;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.progress.ProgressListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Hands encode tasks to workers: the in-process worker and any worker nodes that registered over
+ * HTTP. Each worker has a number of slots; a task waits until some worker has a free one and goes
+ * to the worker with the most. Workers that miss heartbeats are dropped, and a task whose worker
+ * fails or disappears is retried on another worker.
+ *
+ * <p>Tasks wait for a slot on a {@link ReentrantLock} rather than a monitor, so that tasks queued
+ * on virtual threads release their carrier thread while they wait.
+ */
+@Slf4j
+@Service
+public class EncodeCoordinator {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    private final ObjectMapper objectMapper;
+    private final HttpClient httpClient;
+    private final ExecutorService dispatchers;
+
+    // Base URL remote workers reach this node at; remote dispatch is off while empty
+    @Value("${vcp.cluster.advertised-url:}")
+    private String advertisedUrl;
+
+    // Shared secret every call between nodes carries
+    @Value("${vcp.cluster.token:}")
+    private String token;
+
+    @Value("${vcp.cluster.heartbeat-timeout:PT30S}")
+    private Duration heartbeatTimeout;
+
+    @Value("${vcp.cluster.max-attempts:3}")
+    private int maxAttempts;
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, Slots> workers = new LinkedHashMap<>();
+
+    public EncodeCoordinator(ObjectMapper objectMapper, ExecutionThreads executionThreads) {
+        this.objectMapper = objectMapper;
+        this.httpClient = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+        this.dispatchers = Executors.newCachedThreadPool(executionThreads.factory("vcp-dispatch"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatchers.shutdownNow();
+    }
+
+    private static final class Slots {
+        // Read outside the lock by the dispatching thread
+        volatile EncodeWorker worker;
+        int capacity;
+        int busy;
+        int failures;
+
+        Slots(EncodeWorker worker, int capacity) {
+            this.worker = worker;
+            this.capacity = capacity;
+        }
+
+        int free() {
+            return capacity - busy;
+        }
+    }
+
+    void registerLocal(EncodeWorker worker, int slots) {
+        lock.lock();
+        try {
+            workers.put(worker.getId(), new Slots(worker, slots));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers a worker node, or records a heartbeat when it is already registered at the same
+     * URL and capacity.
+     */
+    public ClusterWorker register(String id, WorkerRegistration registration) {
+        lock.lock();
+        try {
+            if (LocalEncodeWorker.ID.equals(id)) {
+                throw new IllegalArgumentException("Worker id '" + id + "' is reserved");
+            }
+            if (registration.getUrl() == null || registration.getUrl().isBlank() || registration.getSlots() < 1) {
+                throw new IllegalArgumentException("Worker registration needs a URL and at least one slot");
+            }
+
+            Slots current = workers.get(id);
+            if (current != null && current.worker instanceof HttpEncodeWorker remote
+                    && remote.getBaseUrl().equals(stripSlash(registration.getUrl()))
+                    && current.capacity == registration.getSlots()) {
+                remote.heartbeat();
+                return status(current);
+            }
+
+            HttpEncodeWorker worker = new HttpEncodeWorker(id, registration.getUrl(), token, httpClient,
+                objectMapper, heartbeatTimeout);
+            Slots slots = current;
+            if (slots == null) {
+                slots = new Slots(worker, registration.getSlots());
+                workers.put(id, slots);
+            } else {
+                // Re-registered with new settings; tasks already running keep their slot in the entry
+                slots.worker = worker;
+                slots.capacity = registration.getSlots();
+            }
+            log.info("Worker {} registered at {} with {} slot(s)", id, registration.getUrl(), registration.getSlots());
+            changed.signalAll();
+            return status(slots);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean deregister(String id) {
+        lock.lock();
+        try {
+            if (LocalEncodeWorker.ID.equals(id) || workers.remove(id) == null) {
+                return false;
+            }
+            log.info("Worker {} deregistered", id);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<ClusterWorker> getWorkers() {
+        lock.lock();
+        try {
+            expireWorkers();
+            List<ClusterWorker> result = new ArrayList<>();
+            for (Slots slots : workers.values()) {
+                result.add(status(slots));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether remote workers can take tasks for a source with the given content hash.
+     */
+    public boolean hasRemoteWorkers(String contentHash) {
+        lock.lock();
+        try {
+            expireWorkers();
+            return sourceUrl(contentHash) != null
+                && workers.values().stream().anyMatch(slots -> !(slots.worker instanceof LocalEncodeWorker));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total number of tasks that can run at once across all live workers.
+     */
+    public int getCapacity() {
+        lock.lock();
+        try {
+            expireWorkers();
+            return workers.values().stream().mapToInt(slots -> slots.capacity).sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * URL remote workers download a source from, or null when remote dispatch is off for it.
+     */
+    public String sourceUrl(String contentHash) {
+        if (contentHash == null || advertisedUrl == null || advertisedUrl.isBlank()) {
+            return null;
+        }
+        return stripSlash(advertisedUrl) + "/api/v1/cluster/sources/" + contentHash;
+    }
+
+    /**
+     * Queues a task for the next free worker. The returned future yields one encoded file per
+     * task output in the output directory; cancelling it abandons the task. The files are handed
+     * to the given callback, if any, as soon as they are complete.
+     */
+    public Future<List<Path>> submit(EncodeTask task, Path source, Path outputDir, ProgressListener progressListener,
+            Consumer<List<Path>> finished) {
+        return dispatchers.submit(() -> {
+            List<Path> files = dispatch(task, source, outputDir, progressListener);
+            if (finished != null) {
+                finished.accept(files);
+            }
+            return files;
+        });
+    }
+
+    private List<Path> dispatch(EncodeTask task, Path source, Path outputDir, ProgressListener progressListener)
+            throws IOException {
+        Set<String> tried = new HashSet<>();
+        IOException lastFailure = null;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            Slots slots = acquire(task, tried);
+            EncodeWorker worker = slots.worker;
+            try {
+                return worker.run(task, source, outputDir, progressListener);
+            } catch (IOException e) {
+                lastFailure = e;
+                tried.add(worker.getId());
+                lock.lock();
+                try {
+                    slots.failures++;
+                } finally {
+                    lock.unlock();
+                }
+                log.warn("Task {} failed on worker {} (attempt {} of {}): {}",
+                    task.getId(), worker.getId(), attempt, maxAttempts,
+                    e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            } finally {
+                release(slots);
+            }
+        }
+        throw new IOException("Task " + task.getId() + " failed after " + maxAttempts + " attempt(s)", lastFailure);
+    }
+
+    // Blocks until a live worker has a free slot. While some eligible worker has not failed the
+    // task yet, only those are considered, even if that means waiting for one of them
+    private Slots acquire(EncodeTask task, Set<String> tried) {
+        lock.lock();
+        try {
+            while (true) {
+                expireWorkers();
+
+                boolean untriedExists = workers.values().stream()
+                    .anyMatch(slots -> eligible(slots, task) && !tried.contains(slots.worker.getId()));
+                Slots best = null;
+                for (Slots slots : workers.values()) {
+                    if (!eligible(slots, task) || slots.free() <= 0
+                            || (untriedExists && tried.contains(slots.worker.getId()))) {
+                        continue;
+                    }
+                    if (best == null || (double) slots.free() / slots.capacity > (double) best.free() / best.capacity) {
+                        best = slots;
+                    }
+                }
+
+                if (best != null) {
+                    best.busy++;
+                    return best;
+                }
+
+                try {
+                    // Signalled by release and registration; the timeout re-checks heartbeats
+                    changed.await(heartbeatTimeout.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for a free worker", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remote workers can only take tasks whose source they can download
+    private static boolean eligible(Slots slots, EncodeTask task) {
+        return slots.worker instanceof LocalEncodeWorker || task.getSourceUrl() != null;
+    }
+
+    private void release(Slots slots) {
+        lock.lock();
+        try {
+            slots.busy--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private void expireWorkers() {
+        workers.values().removeIf(slots -> {
+            if (slots.worker.isAlive()) {
+                return false;
+            }
+            log.warn("Worker {} missed its heartbeats, dropping it", slots.worker.getId());
+            return true;
+        });
+    }
+
+    private static ClusterWorker status(Slots slots) {
+        HttpEncodeWorker remote = slots.worker instanceof HttpEncodeWorker http ? http : null;
+        return ClusterWorker.builder()
+            .id(slots.worker.getId())
+            .url(remote != null ? remote.getBaseUrl() : null)
+            .slots(slots.capacity)
+            .busy(slots.busy)
+            .failures(slots.failures)
+            .lastHeartbeat(remote != null ? remote.getLastHeartbeat() : null)
+            .build();
+    }
+
+    private static String stripSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
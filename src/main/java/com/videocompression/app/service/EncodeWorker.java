@@ -0,0 +1,31 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.EncodeTask;
+import net.bramp.ffmpeg.progress.ProgressListener;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Something that runs {@link EncodeTask}s: this process, or another node reached over a transport.
+ */
+interface EncodeWorker {
+
+    String getId();
+
+    /**
+     * Whether the worker is still reachable. Tasks are not dispatched to workers that are not, and
+     * tasks running on them are abandoned and retried elsewhere.
+     */
+    boolean isAlive();
+
+    /**
+     * Runs a task and leaves one encoded file per task output in the output directory.
+     *
+     * @param source local copy of the source, used by workers that share this file system
+     * @throws IOException when the worker could not be reached or gave up; the task may be retried
+     *                     on another worker
+     */
+    List<Path> run(EncodeTask task, Path source, Path outputDir, ProgressListener progressListener) throws IOException;
+}
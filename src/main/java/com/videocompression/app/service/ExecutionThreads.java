@@ -0,0 +1,83 @@
+package com.videocompression.app.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the threads that run jobs, dispatch encode tasks and read ffmpeg's progress. With
+ * {@code spring.threads.virtual.enabled} on Java 21 or later these are virtual threads, as are
+ * Tomcat's request threads: a job blocked on an ffmpeg process, a remote worker or a free encode
+ * slot then costs a few hundred bytes of heap instead of a platform thread and its stack. On Java
+ * 17 the property has no effect and daemon platform threads are used. How many encodes run at
+ * once is up to {@link CpuScheduler} either way.
+ */
+@Slf4j
+@Service
+public class ExecutionThreads {
+
+    // Looked up reflectively so that the same build runs on Java 17
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (ReflectiveOperationException e) {
+            // Before Java 21
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private final boolean virtual;
+
+    public ExecutionThreads(Environment environment) {
+        this.virtual = OF_VIRTUAL != null && Threading.VIRTUAL.isActive(environment);
+        if (virtual) {
+            log.info("Running jobs, dispatch and ffmpeg I/O on virtual threads");
+        } else if (environment.getProperty("spring.threads.virtual.enabled", Boolean.class, false)) {
+            log.warn("Virtual threads need Java 21 or later, running on platform threads on Java {}",
+                Runtime.version().feature());
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * A factory for threads named after the prefix and numbered from 1: virtual threads when
+     * enabled, daemon platform threads otherwise.
+     */
+    public ThreadFactory factory(String prefix) {
+        if (virtual) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread factory", e);
+            }
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,137 @@
+package com.videocompression.app.service;
+
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.progress.Progress;
+import net.bramp.ffmpeg.progress.ProgressListener;
+import org.apache.commons.lang3.math.Fraction;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Receives ffmpeg's {@code -progress} key/value stream on a loopback socket and hands one
+ * {@link Progress} per block to a listener. Replaces the parser bundled with the ffmpeg wrapper,
+ * which aborts on the {@code N/A} values current ffmpeg versions report before the first frame.
+ */
+@Slf4j
+final class FFmpegProgressReader implements Closeable {
+
+    private final ServerSocket server;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    FFmpegProgressReader(ThreadFactory threads, ProgressListener listener) throws IOException {
+        this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.thread = threads.newThread(() -> read(listener));
+        this.thread.start();
+    }
+
+    /**
+     * Runs an ffmpeg command to completion, reporting its progress to the listener. The progress
+     * stream is read on a thread from the given factory.
+     */
+    static void run(ThreadFactory threads, FFmpegExecutor executor, FFmpegBuilder builder,
+            ProgressListener listener) {
+        FFmpegProgressReader progressReader;
+        try {
+            progressReader = new FFmpegProgressReader(threads, listener);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open progress socket", e);
+        }
+        try (progressReader) {
+            builder.addProgress(progressReader.getUri());
+            executor.createJob(builder).run();
+        }
+    }
+
+    URI getUri() {
+        return URI.create("tcp://127.0.0.1:" + server.getLocalPort());
+    }
+
+    private void read(ProgressListener listener) {
+        try (Socket socket = server.accept();
+             BufferedReader reader = new BufferedReader(
+                 new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            Progress progress = new Progress();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('=');
+                if (separator < 0) {
+                    continue;
+                }
+                String key = line.substring(0, separator).trim();
+                String value = line.substring(separator + 1).trim();
+
+                switch (key) {
+                    case "frame" -> progress.frame = parseLong(value);
+                    case "fps" -> progress.fps = Fraction.getFraction(parseDouble(value));
+                    case "total_size" -> progress.total_size = parseLong(value);
+                    // Despite the name, out_time_ms is in microseconds as well
+                    case "out_time_us", "out_time_ms" -> progress.out_time_ns = parseLong(value) * 1000;
+                    case "dup_frames" -> progress.dup_frames = parseLong(value);
+                    case "drop_frames" -> progress.drop_frames = parseLong(value);
+                    case "speed" -> progress.speed = (float) parseDouble(value.replace("x", ""));
+                    case "progress" -> {
+                        // Marks the end of a block
+                        progress.status = Progress.Status.of(value);
+                        listener.progress(progress);
+                        progress = new Progress();
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.debug("Progress stream ended: {}", e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Progress listener failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Call once ffmpeg has exited. Gives the reader a moment to drain the final block, then
+     * releases the socket in case ffmpeg never connected.
+     */
+    @Override
+    public void close() {
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.debug("Failed to close progress socket: {}", e.getMessage());
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+}
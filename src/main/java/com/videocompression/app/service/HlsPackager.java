@@ -0,0 +1,264 @@
+package com.videocompression.app.service;
+
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import net.bramp.ffmpeg.probe.FFmpegStream;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Packages renditions as HLS. Segments are fragmented MP4 (CMAF) by default, optionally all in
+ * one file per rendition that the playlist addresses by byte range, which keeps a long video to a
+ * handful of files instead of thousands. Encoded renditions get keyframes forced on the segment
+ * grid so every rendition cuts at the same times and players can switch between them; a master
+ * playlist ties the renditions of a source together.
+ *
+ * <p>Sizes and bitrates are read back from the media playlists the muxer wrote rather than by
+ * walking the output directory.
+ */
+@Slf4j
+final class HlsPackager {
+
+    static final String MEDIA_PLAYLIST = "stream.m3u8";
+    private static final Set<String> SEGMENT_TYPES = Set.of("fmp4", "mpegts");
+
+    private final FFprobe ffprobe;
+    private final String segmentType;
+    private final boolean singleFile;
+    private final Duration segmentDuration;
+
+    HlsPackager(FFprobe ffprobe, String segmentType, boolean singleFile, Duration segmentDuration) {
+        if (!SEGMENT_TYPES.contains(segmentType)) {
+            throw new IllegalArgumentException("Unknown HLS segment type '" + segmentType + "', expected one of "
+                + SEGMENT_TYPES);
+        }
+        this.ffprobe = ffprobe;
+        this.segmentType = segmentType;
+        this.singleFile = singleFile;
+        this.segmentDuration = segmentDuration;
+    }
+
+    /**
+     * Describes the packaging, for cache keys: outputs packaged differently are different outputs.
+     */
+    String fingerprint() {
+        return "hls=" + segmentType + (singleFile ? "+single" : "") + "@" + segmentDuration.toMillis();
+    }
+
+    FFmpegOutputBuilder addOutput(FFmpegBuilder builder, Path directory) {
+        FFmpegOutputBuilder output = builder.addOutput(directory.resolve(MEDIA_PLAYLIST).toString())
+            .setFormat("hls")
+            .addExtraArgs("-hls_time", seconds(segmentDuration))
+            .addExtraArgs("-hls_list_size", "0") // Keep all segments
+            .addExtraArgs("-hls_playlist_type", "vod")
+            .addExtraArgs("-hls_segment_type", segmentType);
+
+        String extension = "fmp4".equals(segmentType) ? "m4s" : "ts";
+        if ("fmp4".equals(segmentType)) {
+            output.addExtraArgs("-hls_fmp4_init_filename", "init.mp4");
+        }
+        if (singleFile) {
+            // Everything goes to stream.<extension>, addressed by byte range
+            output.addExtraArgs("-hls_flags", "single_file+independent_segments");
+        } else {
+            output.addExtraArgs("-hls_flags", "independent_segments")
+                .addExtraArgs("-hls_segment_filename", directory.resolve("segment%d." + extension).toString());
+        }
+        return output;
+    }
+
+    /**
+     * Output options for an encoded HLS video stream: keyframes on every segment boundary.
+     */
+    FFmpegOutputBuilder alignKeyframes(FFmpegOutputBuilder output) {
+        return output.addExtraArgs("-force_key_frames", "expr:gte(t,n_forced*" + seconds(segmentDuration) + ")");
+    }
+
+    // What a media playlist says about the rendition it describes
+    static final class Measurement {
+        final long size;
+        final double duration;
+        final long peakBitRate;
+        // Init segment, or the first media segment when there is none; null for an empty playlist
+        final String firstUri;
+
+        Measurement(long size, double duration, long peakBitRate, String firstUri) {
+            this.size = size;
+            this.duration = duration;
+            this.peakBitRate = peakBitRate;
+            this.firstUri = firstUri;
+        }
+
+        long averageBitRate() {
+            return duration > 0 ? Math.round(size * 8 / duration) : 0;
+        }
+    }
+
+    /**
+     * Reads the media playlist in the directory: the bytes of every segment and the init section,
+     * taken from byte ranges where the playlist has them and from the segment files otherwise.
+     */
+    Measurement measure(Path directory) throws IOException {
+        List<String> lines = Files.readAllLines(directory.resolve(MEDIA_PLAYLIST));
+        long size = 0;
+        double duration = 0;
+        long peak = 0;
+        String firstUri = null;
+        double segmentSeconds = 0;
+        long segmentBytes = -1;
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.startsWith("#EXT-X-MAP:")) {
+                String uri = attribute(line, "URI");
+                String range = attribute(line, "BYTERANGE");
+                firstUri = uri;
+                size += range != null ? rangeLength(range) : Files.size(directory.resolve(uri));
+            } else if (line.startsWith("#EXTINF:")) {
+                String value = line.substring("#EXTINF:".length());
+                int comma = value.indexOf(',');
+                segmentSeconds = Double.parseDouble(comma >= 0 ? value.substring(0, comma) : value);
+            } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                segmentBytes = rangeLength(line.substring("#EXT-X-BYTERANGE:".length()));
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                if (firstUri == null) {
+                    firstUri = line;
+                }
+                long bytes = segmentBytes >= 0 ? segmentBytes : Files.size(directory.resolve(line));
+                size += bytes;
+                duration += segmentSeconds;
+                if (segmentSeconds > 0) {
+                    peak = Math.max(peak, Math.round(bytes * 8 / segmentSeconds));
+                }
+                segmentSeconds = 0;
+                segmentBytes = -1;
+            }
+        }
+        return new Measurement(size, duration, peak, firstUri);
+    }
+
+    // One variant of a master playlist
+    static final class Variant {
+        final Path directory;
+        final int width;
+        final int height;
+        final double frameRate;
+
+        Variant(Path directory, int width, int height, double frameRate) {
+            this.directory = directory;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+        }
+    }
+
+    /**
+     * Writes a master playlist listing the given renditions, with paths relative to the master.
+     */
+    void writeMaster(Path master, List<Variant> variants) throws IOException {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n")
+            .append("#EXT-X-VERSION:").append("fmp4".equals(segmentType) ? 7 : 4).append('\n')
+            .append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+
+        for (Variant variant : variants) {
+            Measurement measurement = measure(variant.directory);
+            playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(Math.max(measurement.peakBitRate,
+                    measurement.averageBitRate()))
+                .append(",AVERAGE-BANDWIDTH=").append(measurement.averageBitRate())
+                .append(",RESOLUTION=").append(variant.width).append('x').append(variant.height)
+                .append(",FRAME-RATE=").append(String.format(Locale.ROOT, "%.3f", variant.frameRate));
+            String codecs = measurement.firstUri != null ? codecs(variant.directory.resolve(measurement.firstUri))
+                : null;
+            if (codecs != null) {
+                playlist.append(",CODECS=\"").append(codecs).append('"');
+            }
+            playlist.append('\n')
+                .append(master.getParent().relativize(variant.directory.resolve(MEDIA_PLAYLIST)).toString()
+                    .replace('\\', '/'))
+                .append('\n');
+        }
+
+        Path partial = master.resolveSibling(master.getFileName() + ".part");
+        Files.writeString(partial, playlist.toString());
+        Files.move(partial, master, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // RFC 6381 codec strings of the streams in a segment, null when they cannot be told
+    private String codecs(Path segment) {
+        FFmpegProbeResult probe;
+        try {
+            probe = ffprobe.probe(segment.toString());
+        } catch (IOException e) {
+            log.debug("Failed to probe {} for codecs: {}", segment, e.getMessage());
+            return null;
+        }
+
+        StringBuilder codecs = new StringBuilder();
+        for (FFmpegStream stream : probe.getStreams()) {
+            String codec = null;
+            if ("h264".equals(stream.codec_name)) {
+                codec = avc(stream.profile, stream.level);
+            } else if ("aac".equals(stream.codec_name)) {
+                codec = "mp4a.40." + ("HE-AACv2".equals(stream.profile) ? 29 : "HE-AAC".equals(stream.profile) ? 5 : 2);
+            }
+            if (codec == null) {
+                // A stream the master cannot describe; better no CODECS than a wrong one
+                return null;
+            }
+            if (codecs.length() > 0) {
+                codecs.append(',');
+            }
+            codecs.append(codec);
+        }
+        return codecs.length() > 0 ? codecs.toString() : null;
+    }
+
+    private static String avc(String profile, int level) {
+        String profileAndConstraints;
+        if ("Constrained Baseline".equals(profile)) {
+            profileAndConstraints = "42E0";
+        } else if ("Baseline".equals(profile)) {
+            profileAndConstraints = "4200";
+        } else if ("Main".equals(profile)) {
+            profileAndConstraints = "4D40";
+        } else if ("High".equals(profile)) {
+            profileAndConstraints = "6400";
+        } else {
+            return null;
+        }
+        return String.format("avc1.%s%02X", profileAndConstraints, level);
+    }
+
+    private static String attribute(String tag, String name) {
+        int start = tag.indexOf(name + "=");
+        if (start < 0) {
+            return null;
+        }
+        start += name.length() + 1;
+        if (tag.charAt(start) == '"') {
+            return tag.substring(start + 1, tag.indexOf('"', start + 1));
+        }
+        int end = tag.indexOf(',', start);
+        return tag.substring(start, end >= 0 ? end : tag.length());
+    }
+
+    // "length[@offset]"
+    private static long rangeLength(String range) {
+        int at = range.indexOf('@');
+        return Long.parseLong((at >= 0 ? range.substring(0, at) : range).trim());
+    }
+
+    private static String seconds(Duration duration) {
+        return String.format(Locale.ROOT, "%.3f", duration.toMillis() / 1000.0);
+    }
+}
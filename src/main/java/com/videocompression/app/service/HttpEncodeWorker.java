@@ -0,0 +1,162 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.EncodeTask;
+import com.videocompression.app.model.EncodeTaskResult;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.progress.Progress;
+import net.bramp.ffmpeg.progress.ProgressListener;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A worker node reached over HTTP. The task is posted to the worker, which downloads the source
+ * from the coordinator, encodes it and answers once done; the outputs are then fetched one by one
+ * and the task is discarded on the worker. Every request carries the cluster token. A worker that
+ * stops heartbeating while a task is running is given up on, so the task can be retried elsewhere.
+ */
+@Slf4j
+final class HttpEncodeWorker implements EncodeWorker {
+
+    private final String id;
+    private final String baseUrl;
+    private final String token;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final Duration heartbeatTimeout;
+
+    private volatile Instant lastHeartbeat = Instant.now();
+
+    HttpEncodeWorker(String id, String baseUrl, String token, HttpClient httpClient, ObjectMapper objectMapper,
+            Duration heartbeatTimeout) {
+        this.id = id;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.token = token;
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.heartbeatTimeout = heartbeatTimeout;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    String getBaseUrl() {
+        return baseUrl;
+    }
+
+    Instant getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    void heartbeat() {
+        lastHeartbeat = Instant.now();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return lastHeartbeat.plus(heartbeatTimeout).isAfter(Instant.now());
+    }
+
+    @Override
+    public List<Path> run(EncodeTask task, Path source, Path outputDir, ProgressListener progressListener)
+            throws IOException {
+        if (task.getSourceUrl() == null) {
+            throw new IOException("Task " + task.getId() + " has no source URL for remote workers");
+        }
+
+        HttpRequest post = request("/api/v1/worker/tasks")
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(task)))
+            .build();
+        HttpResponse<String> response = awaitWhileAlive(
+            httpClient.sendAsync(post, HttpResponse.BodyHandlers.ofString()));
+        if (response.statusCode() != 200) {
+            throw new IOException("Worker " + id + " rejected task " + task.getId() + " with status "
+                + response.statusCode() + ": " + response.body());
+        }
+        EncodeTaskResult result = objectMapper.readValue(response.body(), EncodeTaskResult.class);
+
+        List<Path> outputFiles = new ArrayList<>();
+        try {
+            for (int i = 0; i < result.getOutputSizes().size(); i++) {
+                Path outputFile = LocalEncodeWorker.outputFile(outputDir, task, i);
+                HttpRequest get = request("/api/v1/worker/tasks/" + task.getId() + "/outputs/" + i)
+                    .GET()
+                    .build();
+                HttpResponse<Path> download = awaitWhileAlive(
+                    httpClient.sendAsync(get, HttpResponse.BodyHandlers.ofFile(outputFile)));
+                if (download.statusCode() != 200 || Files.size(outputFile) != result.getOutputSizes().get(i)) {
+                    throw new IOException("Failed to download output " + i + " of task " + task.getId()
+                        + " from worker " + id + " (status " + download.statusCode() + ")");
+                }
+                outputFiles.add(outputFile);
+            }
+        } finally {
+            discard(task);
+        }
+
+        if (progressListener != null) {
+            // Remote encodes report once, when they are done
+            Progress done = new Progress();
+            done.status = Progress.Status.END;
+            done.out_time_ns = Math.round((task.getEnd() - task.getStart()) * TimeUnit.SECONDS.toNanos(1));
+            progressListener.progress(done);
+        }
+        return outputFiles;
+    }
+
+    private void discard(EncodeTask task) {
+        HttpRequest delete = request("/api/v1/worker/tasks/" + task.getId())
+            .DELETE()
+            .build();
+        httpClient.sendAsync(delete, HttpResponse.BodyHandlers.discarding())
+            .exceptionally(e -> {
+                log.debug("Failed to discard task {} on worker {}: {}", task.getId(), id, e.getMessage());
+                return null;
+            });
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+            .header("Authorization", "Bearer " + token);
+    }
+
+    // Waits for a response for as long as the worker keeps heartbeating
+    private <T> HttpResponse<T> awaitWhileAlive(CompletableFuture<HttpResponse<T>> pending) throws IOException {
+        try {
+            while (true) {
+                try {
+                    return pending.get(heartbeatTimeout.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (!isAlive()) {
+                        pending.cancel(true);
+                        throw new IOException("Worker " + id + " stopped sending heartbeats");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io
+                : new IOException("Request to worker " + id + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            pending.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for worker " + id, e);
+        }
+    }
+}
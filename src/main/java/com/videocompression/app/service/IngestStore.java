@@ -0,0 +1,237 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.IngestedFile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store for uploaded sources. Each distinct upload is written to the upload
+ * directory once, under its SHA-256, and shared by every job that references it. Files are
+ * reference counted and removed when the last reference is released.
+ */
+@Slf4j
+@Service
+public class IngestStore {
+
+    private static final String INCOMING_DIRECTORY = ".incoming";
+
+    private final VideoProcessingService videoProcessingService;
+    private final PipelineMetrics metrics;
+
+    // Guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private Path storeDir;
+    private Path incomingDir;
+
+    public IngestStore(VideoProcessingService videoProcessingService, PipelineMetrics metrics) {
+        this.videoProcessingService = videoProcessingService;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        storeDir = Paths.get(videoProcessingService.getUploadDirectory());
+        incomingDir = storeDir.resolve(INCOMING_DIRECTORY);
+        Files.createDirectories(incomingDir);
+        log.info("Ingest store at {}", storeDir);
+    }
+
+    private static final class Entry {
+        final IngestedFile file;
+        int references;
+
+        Entry(IngestedFile file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Takes ownership of an upload and returns a reference to its stored copy. When the multipart
+     * data already sits in a temp file on the same file system it is renamed into place rather than
+     * copied. If identical content is already stored the upload is discarded and the existing file
+     * is shared. Every call must be paired with {@link #release(IngestedFile)}.
+     */
+    public IngestedFile ingest(MultipartFile file) throws IOException {
+        String originalFilename = file.getOriginalFilename();
+        String extension = originalFilename != null && originalFilename.contains(".")
+            ? originalFilename.substring(originalFilename.lastIndexOf("."))
+            : "";
+
+        Path staged = newStagingPath(extension);
+        try {
+            return metrics.time(PipelineMetrics.SPOOL, () -> {
+                file.transferTo(staged);
+                return commit(staged, extension);
+            });
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    /**
+     * Returns a fresh path in the incoming directory, on the same file system as the store, for
+     * writers that stream content in themselves before calling {@link #commit(Path, String)}.
+     */
+    public Path newStagingPath(String extension) {
+        return incomingDir.resolve(UUID.randomUUID() + extension);
+    }
+
+    /**
+     * Hashes a fully written staging file and moves it into the store, or discards it when the
+     * same content is already stored. Returns a reference that must be released.
+     */
+    public IngestedFile commit(Path staged, String extension) throws IOException {
+        String hash = hash(staged);
+
+        synchronized (this) {
+            Entry entry = entries.get(hash);
+            if (entry == null) {
+                Path target = storeDir.resolve(hash + extension);
+                Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                entry = new Entry(IngestedFile.builder()
+                    .contentHash(hash)
+                    .path(target)
+                    .size(Files.size(target))
+                    .build());
+                entries.put(hash, entry);
+                log.debug("Stored upload {} ({} bytes)", target.getFileName(), entry.file.getSize());
+            } else {
+                Files.deleteIfExists(staged);
+                log.debug("Upload matches stored content {}, reusing it", hash);
+            }
+            entry.references++;
+            return entry.file;
+        }
+    }
+
+    /**
+     * Adds a reference to a file the caller already holds a reference to.
+     */
+    public synchronized IngestedFile retain(IngestedFile file) {
+        Entry entry = entries.get(file.getContentHash());
+        if (entry == null) {
+            throw new IllegalStateException("Ingested file " + file.getContentHash() + " is no longer stored");
+        }
+        entry.references++;
+        return entry.file;
+    }
+
+    public synchronized void release(IngestedFile file) {
+        Entry entry = entries.get(file.getContentHash());
+        if (entry == null || --entry.references > 0) {
+            return;
+        }
+
+        // Deleted under the lock so a concurrent ingest of the same content cannot race the removal
+        entries.remove(file.getContentHash());
+        try {
+            metrics.time(PipelineMetrics.CLEANUP, () -> Files.deleteIfExists(entry.file.getPath()));
+            log.debug("Removed unreferenced upload {}", entry.file.getPath().getFileName());
+        } catch (IOException e) {
+            log.warn("Failed to delete stored upload {}: {}", entry.file.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Takes a reference to a file an earlier run stored, for a journaled job that resumes. Returns
+     * empty when the file is gone.
+     */
+    public synchronized Optional<IngestedFile> adopt(String contentHash, Path path) throws IOException {
+        Entry entry = entries.get(contentHash);
+        if (entry == null) {
+            if (!Files.isRegularFile(path) || !path.toAbsolutePath().getParent().equals(storeDir.toAbsolutePath())) {
+                return Optional.empty();
+            }
+            entry = new Entry(IngestedFile.builder()
+                .contentHash(contentHash)
+                .path(path)
+                .size(Files.size(path))
+                .build());
+            entries.put(contentHash, entry);
+        }
+        entry.references++;
+        return Optional.of(entry.file);
+    }
+
+    /**
+     * Deletes what earlier runs left in the store that nothing refers to any more: uploads that
+     * were being received or spooled when they stopped, and stored sources of jobs that are not
+     * resumed. Call at startup, after resumed jobs have adopted their sources.
+     */
+    public synchronized void reclaim() throws IOException {
+        long bytes = 0;
+        int files = 0;
+        for (Path dir : List.of(incomingDir, storeDir)) {
+            try (Stream<Path> children = Files.list(dir)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    if (!Files.isRegularFile(child) || isStored(child)) {
+                        continue;
+                    }
+                    long size = Files.size(child);
+                    if (Files.deleteIfExists(child)) {
+                        bytes += size;
+                        files++;
+                    }
+                }
+            }
+        }
+        if (files > 0) {
+            log.info("Reclaimed {} orphaned upload(s), {} bytes, in {}", files, bytes, storeDir);
+        }
+    }
+
+    // Caller holds the lock
+    private boolean isStored(Path path) {
+        return entries.values().stream().anyMatch(entry -> entry.file.getPath().equals(path));
+    }
+
+    /**
+     * Looks up stored content by hash without taking a reference. The file is only guaranteed to
+     * exist while someone else holds one.
+     */
+    public synchronized Optional<IngestedFile> find(String contentHash) {
+        Entry entry = entries.get(contentHash);
+        return entry == null ? Optional.empty() : Optional.of(entry.file);
+    }
+
+    public synchronized int getStoredFileCount() {
+        return entries.size();
+    }
+
+    static String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
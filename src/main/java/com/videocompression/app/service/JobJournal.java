@@ -0,0 +1,179 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionResult;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Durable record of the jobs that are queued or running, so that a restart resumes them instead of
+ * losing them. Each job is one JSON file in the journal directory holding its settings, where its
+ * sources are stored and the results of the sources it has finished. The file is rewritten
+ * atomically as the job progresses and deleted once the job is done. Long sources are resumed at
+ * segment granularity from the checkpoints {@link SegmentedEncoder} keeps next to the journal.
+ */
+@Slf4j
+@Service
+public class JobJournal {
+
+    private static final String JOURNAL_DIRECTORY = ".journal";
+    private static final String EXTENSION = ".json";
+
+    @Value("${vcp.journal.enabled:true}")
+    private boolean enabled;
+
+    private final VideoProcessingService videoProcessingService;
+    private final ObjectMapper objectMapper;
+
+    // Jobs not finished yet, guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private Path journalDir;
+
+    public JobJournal(VideoProcessingService videoProcessingService, ObjectMapper objectMapper) {
+        this.videoProcessingService = videoProcessingService;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        journalDir = Paths.get(videoProcessingService.getUploadDirectory(), JOURNAL_DIRECTORY);
+        if (enabled) {
+            Files.createDirectories(journalDir);
+        }
+    }
+
+    // Persisted form of one job
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    public static class Entry {
+        private String id;
+        private Instant submittedAt;
+        private String outputDirectory;
+        private List<CompressionConfig> configs;
+        private List<Input> inputs;
+    }
+
+    // One source of a job; results are set once every rendition of it is done
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    public static class Input {
+        private String contentHash;
+        private String path;
+        private long size;
+        private String originalFilename;
+        private List<CompressionResult> results;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Reads the jobs an earlier run left unfinished, oldest first. Unreadable entries are dropped.
+     */
+    public synchronized List<Entry> load() throws IOException {
+        List<Entry> loaded = new ArrayList<>();
+        if (!enabled) {
+            return loaded;
+        }
+        try (Stream<Path> files = Files.list(journalDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(EXTENSION)) {
+                    // Temp file of a write that never completed
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                try {
+                    Entry entry = objectMapper.readValue(file.toFile(), Entry.class);
+                    entries.put(entry.getId(), entry);
+                    loaded.add(entry);
+                } catch (IOException e) {
+                    log.warn("Discarding unreadable journal entry {}: {}", name, e.getMessage());
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        loaded.sort(Comparator.comparing(Entry::getSubmittedAt, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return loaded;
+    }
+
+    /**
+     * Records a job before it is queued.
+     */
+    public synchronized void begin(String id, Instant submittedAt, Path outputDir, List<CompressionConfig> configs,
+            List<Input> inputs) {
+        if (!enabled) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.setId(id);
+        entry.setSubmittedAt(submittedAt);
+        entry.setOutputDirectory(outputDir.toString());
+        entry.setConfigs(configs);
+        entry.setInputs(inputs);
+        entries.put(id, entry);
+        save(entry);
+    }
+
+    /**
+     * Records that every rendition of one source of a job is done.
+     */
+    public synchronized void complete(String id, int inputIndex, List<CompressionResult> results) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.getInputs().get(inputIndex).setResults(results);
+        save(entry);
+    }
+
+    /**
+     * Forgets a job that completed, failed or could not be queued.
+     */
+    public synchronized void finish(String id) {
+        if (entries.remove(id) == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(journalDir.resolve(id + EXTENSION));
+        } catch (IOException e) {
+            log.warn("Failed to remove journal entry of job {}: {}", id, e.getMessage());
+        }
+    }
+
+    // Caller holds the lock
+    private void save(Entry entry) {
+        Path file = journalDir.resolve(entry.getId() + EXTENSION);
+        Path tempFile = journalDir.resolve(entry.getId() + EXTENSION + ".tmp");
+        try {
+            objectMapper.writeValue(tempFile.toFile(), entry);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The job still runs; it just would not survive a restart
+            log.warn("Failed to write journal entry of job {}: {}", entry.getId(), e.getMessage());
+        }
+    }
+}
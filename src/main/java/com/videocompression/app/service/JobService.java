@@ -0,0 +1,406 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionJob;
+import com.videocompression.app.model.CompressionResult;
+import com.videocompression.app.model.IngestedFile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs compression jobs on a bounded worker pool so that request threads only pay for the upload,
+ * never for the encode. On virtual threads the pool is far larger, since a job waiting for an
+ * encode slot or an ffmpeg process costs next to nothing; the CPU budget still decides how many
+ * of them encode at once.
+ *
+ * <p>Each job writes to the output directory that was current when it was submitted, however it
+ * is changed while the job waits or runs.
+ *
+ * <p>Jobs are recorded in the {@link JobJournal} until they are done. At startup the jobs an
+ * earlier run left unfinished are queued again under their ids with their stored sources, skipping
+ * the sources they had finished, and whatever else that run left in the upload directory is
+ * reclaimed. Only the web server recovers: batch runs and benchmarks share its directories and
+ * must leave its jobs and uploads alone. Resumed jobs the queue has no room for stay journaled and
+ * are queued as running jobs finish, ahead of new submissions, which are rejected until they are.
+ */
+@Slf4j
+@Service
+public class JobService {
+
+    private final VideoProcessingService videoProcessingService;
+    private final IngestStore ingestStore;
+    private final JobJournal jobJournal;
+    private final ApplicationContext applicationContext;
+    private final Map<String, CompressionJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${vcp.processing.threads:2}")
+    private int workerThreads;
+
+    // Jobs that run at once on virtual threads, most of them waiting for the CPU budget
+    @Value("${vcp.processing.virtual-threads:1000}")
+    private int virtualThreads;
+
+    @Value("${vcp.processing.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${vcp.processing.job-retention:PT24H}")
+    private Duration jobRetention;
+
+    private final ExecutionThreads executionThreads;
+    // Source bytes times renditions of the jobs not finished yet
+    private final AtomicLong pendingWork = new AtomicLong();
+    private ThreadPoolExecutor executor;
+    // Resumed jobs waiting for room in the queue, oldest first
+    private final Queue<QueuedJob> deferred = new ArrayDeque<>();
+    // Set once the application stops, so interrupted jobs stay journaled and keep their sources
+    private volatile boolean stopping;
+
+    public JobService(VideoProcessingService videoProcessingService, IngestStore ingestStore, JobJournal jobJournal,
+            ExecutionThreads executionThreads, ApplicationContext applicationContext) {
+        this.videoProcessingService = videoProcessingService;
+        this.ingestStore = ingestStore;
+        this.jobJournal = jobJournal;
+        this.executionThreads = executionThreads;
+        this.applicationContext = applicationContext;
+    }
+
+    @PostConstruct
+    public void init() {
+        boolean virtual = executionThreads.isVirtual();
+        int threads = virtual ? virtualThreads : workerThreads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), executionThreads.factory("vcp-worker"));
+        // Virtual threads are cheap to start; idle ones are not kept around
+        executor.allowCoreThreadTimeOut(virtual);
+        log.info("Started job executor with {} {} worker(s) and queue capacity {}", threads,
+            virtual ? "virtual" : "platform", queueCapacity);
+        if (applicationContext instanceof WebServerApplicationContext) {
+            recover();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopping = true;
+        executor.shutdownNow();
+    }
+
+    // A stored source together with the name it was uploaded under
+    private static final class JobInput {
+        final IngestedFile file;
+        final String originalFilename;
+        // Set when a run before a restart finished this source
+        final List<CompressionResult> results;
+
+        JobInput(IngestedFile file, String originalFilename) {
+            this(file, originalFilename, null);
+        }
+
+        JobInput(IngestedFile file, String originalFilename, List<CompressionResult> results) {
+            this.file = file;
+            this.originalFilename = originalFilename;
+            this.results = results;
+        }
+    }
+
+    // A job with everything it needs to run, from when it is queued until it is done
+    private final class QueuedJob implements Runnable {
+        final CompressionJob job;
+        final Path outputDir;
+        final List<JobInput> inputs;
+        final List<CompressionConfig> configs;
+        // Source bytes times renditions, counted in pendingWork while the job is not done
+        final long work;
+
+        QueuedJob(String id, Path outputDir, List<JobInput> inputs, List<CompressionConfig> configs) {
+            this.job = new CompressionJob(id, inputs.size(), configs.size());
+            this.outputDir = outputDir;
+            this.inputs = inputs;
+            this.configs = configs;
+            this.work = inputs.stream().mapToLong(input -> input.file.getSize()).sum() * configs.size();
+        }
+
+        @Override
+        public void run() {
+            try {
+                JobService.this.run(job, outputDir, inputs, configs);
+            } finally {
+                pendingWork.addAndGet(-work);
+                if (!stopping) {
+                    queueDeferred();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the journaled jobs of an earlier run again, then deletes the uploads and segment
+     * checkpoints of that run that none of them needs.
+     */
+    private void recover() {
+        Set<String> sources = new HashSet<>();
+        try {
+            for (JobJournal.Entry entry : jobJournal.load()) {
+                List<JobInput> inputs = new ArrayList<>();
+                for (JobJournal.Input input : entry.getInputs()) {
+                    Optional<IngestedFile> file = ingestStore.adopt(input.getContentHash(),
+                        Paths.get(input.getPath()));
+                    if (file.isEmpty()) {
+                        break;
+                    }
+                    inputs.add(new JobInput(file.get(), input.getOriginalFilename(), input.getResults()));
+                }
+                if (inputs.size() < entry.getInputs().size()) {
+                    log.warn("Cannot resume job {}: its sources are no longer stored", entry.getId());
+                    releaseInputs(inputs);
+                    jobJournal.finish(entry.getId());
+                    continue;
+                }
+
+                // Entries written before the output directory was journaled go to the current one
+                Path outputDir = Paths.get(entry.getOutputDirectory() != null ? entry.getOutputDirectory()
+                    : videoProcessingService.getOutputDirectory());
+                // Queued or not, the job keeps its sources and its checkpoints
+                QueuedJob queued = new QueuedJob(entry.getId(), outputDir, inputs, entry.getConfigs());
+                track(queued, entry.getSubmittedAt());
+                inputs.forEach(input -> sources.add(input.file.getContentHash()));
+                log.info("Resuming job {} ({} of {} file(s) done before the restart)", entry.getId(),
+                    inputs.stream().filter(input -> input.results != null).count(), inputs.size());
+                synchronized (deferred) {
+                    deferred.add(queued);
+                }
+            }
+            queueDeferred();
+            synchronized (deferred) {
+                if (!deferred.isEmpty()) {
+                    log.warn("{} resumed job(s) wait for room in the job queue", deferred.size());
+                }
+            }
+
+            ingestStore.reclaim();
+            videoProcessingService.reclaimCheckpoints(sources);
+        } catch (IOException e) {
+            log.warn("Failed to recover the jobs of the previous run: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Ingests the given uploads and queues one job that produces every requested rendition of every
+     * file. Returns as soon as the job is queued.
+     *
+     * @throws IllegalArgumentException if a config asks for codecs this node cannot produce
+     * @throws RejectedExecutionException if the job queue is full
+     */
+    public CompressionJob submit(List<MultipartFile> files, List<CompressionConfig> configs) throws IOException {
+        purgeExpiredJobs();
+        // Before anything is stored, so an unsupported codec fails fast
+        videoProcessingService.checkSupported(configs);
+
+        List<JobInput> inputs = new ArrayList<>();
+        try {
+            for (MultipartFile file : files) {
+                inputs.add(new JobInput(ingestStore.ingest(file), file.getOriginalFilename()));
+            }
+        } catch (IOException e) {
+            releaseInputs(inputs);
+            throw e;
+        }
+
+        return enqueue(UUID.randomUUID().toString(), Instant.now(), currentOutputDirectory(), inputs, configs);
+    }
+
+    /**
+     * Queues a job for a file that is already in the ingest store. The job takes over the given
+     * reference and releases it when done, or immediately if the job is rejected.
+     *
+     * @throws RejectedExecutionException if the job queue is full
+     */
+    public CompressionJob submit(IngestedFile file, String originalFilename, List<CompressionConfig> configs) {
+        purgeExpiredJobs();
+        return enqueue(UUID.randomUUID().toString(), Instant.now(), currentOutputDirectory(),
+            List.of(new JobInput(file, originalFilename)), configs);
+    }
+
+    private Path currentOutputDirectory() {
+        return Paths.get(videoProcessingService.getOutputDirectory());
+    }
+
+    private CompressionJob enqueue(String id, Instant submittedAt, Path outputDir, List<JobInput> inputs,
+            List<CompressionConfig> configs) {
+        QueuedJob queued = new QueuedJob(id, outputDir, inputs, configs);
+        track(queued, submittedAt);
+        try {
+            // Resumed jobs still waiting go first; new jobs only get the room they leave
+            synchronized (deferred) {
+                queueDeferred();
+                if (!deferred.isEmpty()) {
+                    throw new RejectedExecutionException("Resumed jobs are waiting for room in the job queue");
+                }
+                executor.execute(queued);
+            }
+        } catch (RejectedExecutionException e) {
+            pendingWork.addAndGet(-queued.work);
+            jobs.remove(id);
+            jobJournal.finish(id);
+            releaseInputs(inputs);
+            throw e;
+        }
+
+        log.debug("Queued job {} ({} file(s) x {} rendition(s))", id, inputs.size(), configs.size());
+        return queued.job;
+    }
+
+    // Makes a job visible, journals it and counts its work, before it is handed to the executor
+    private void track(QueuedJob queued, Instant submittedAt) {
+        jobs.put(queued.job.getId(), queued.job);
+        jobJournal.begin(queued.job.getId(), submittedAt, queued.outputDir, queued.configs,
+            journalInputs(queued.inputs));
+        pendingWork.addAndGet(queued.work);
+    }
+
+    /**
+     * Hands as many deferred jobs to the executor as it takes. Jobs that still find the queue full
+     * wait for the next job to finish.
+     */
+    private void queueDeferred() {
+        synchronized (deferred) {
+            QueuedJob next;
+            while ((next = deferred.peek()) != null) {
+                try {
+                    executor.execute(next);
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+                deferred.remove();
+                log.debug("Queued resumed job {}", next.job.getId());
+            }
+        }
+    }
+
+    private int deferredCount() {
+        synchronized (deferred) {
+            return deferred.size();
+        }
+    }
+
+    public Optional<CompressionJob> getJob(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Jobs waiting to run, resumed jobs the queue has no room for yet included.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size() + deferredCount();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * How many more jobs can be queued before submissions are rejected.
+     */
+    public int getRemainingCapacity() {
+        // Resumed jobs waiting take any room that opens up before new jobs do
+        return Math.max(0, executor.getQueue().remainingCapacity() + executor.getMaximumPoolSize()
+            - executor.getActiveCount() - deferredCount());
+    }
+
+    /**
+     * Source bytes times renditions of the jobs that are queued or running.
+     */
+    public long getPendingWork() {
+        return pendingWork.get();
+    }
+
+    private void run(CompressionJob job, Path outputDir, List<JobInput> inputs, List<CompressionConfig> configs) {
+        job.markRunning();
+        log.debug("Running job {}", job.getId());
+        try {
+            // Each file is decoded once for its whole resolution ladder
+            for (int i = 0; i < inputs.size(); i++) {
+                JobInput input = inputs.get(i);
+                if (input.results != null) {
+                    job.addResults(input.results);
+                    continue;
+                }
+                int fileIndex = i;
+                List<CompressionResult> results = videoProcessingService.processLadder(input.file,
+                    input.originalFilename, configs, outputDir, progress -> job.updateProgress(progress.toBuilder()
+                        .fileIndex(fileIndex)
+                        .fileCount(inputs.size())
+                        .overallPercent((fileIndex * 100.0 + progress.getPercent()) / inputs.size())
+                        .build()));
+                jobJournal.complete(job.getId(), i, results);
+                job.addResults(results);
+            }
+            job.markCompleted();
+            log.debug("Job {} completed with {} result(s)", job.getId(), job.getResults().size());
+        } catch (Exception e) {
+            if (stopping) {
+                log.info("Job {} interrupted, it resumes when the application starts again", job.getId());
+            } else {
+                log.error("Job {} failed: {}", job.getId(), e.getMessage(), e);
+            }
+            job.markFailed(e);
+        } finally {
+            if (!stopping) {
+                jobJournal.finish(job.getId());
+                releaseInputs(inputs);
+            }
+        }
+    }
+
+    private static List<JobJournal.Input> journalInputs(List<JobInput> inputs) {
+        List<JobJournal.Input> journaled = new ArrayList<>();
+        for (JobInput input : inputs) {
+            JobJournal.Input entry = new JobJournal.Input();
+            entry.setContentHash(input.file.getContentHash());
+            entry.setPath(input.file.getPath().toString());
+            entry.setSize(input.file.getSize());
+            entry.setOriginalFilename(input.originalFilename);
+            entry.setResults(input.results);
+            journaled.add(entry);
+        }
+        return journaled;
+    }
+
+    private void releaseInputs(List<JobInput> inputs) {
+        for (JobInput input : inputs) {
+            ingestStore.release(input.file);
+        }
+    }
+
+    private void purgeExpiredJobs() {
+        Instant cutoff = Instant.now().minus(jobRetention);
+        jobs.values().removeIf(job -> job.getStatus().isFinished() && job.getCompletedAt().isBefore(cutoff));
+    }
+}
@@ -0,0 +1,107 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.EncodeTask;
+import net.bramp.ffmpeg.FFmpeg;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import net.bramp.ffmpeg.progress.ProgressListener;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs encode tasks in this process with the local ffmpeg. Every output gets identical rate
+ * control and a fixed GOP, so outputs of adjacent tasks can be joined without re-encoding.
+ */
+final class LocalEncodeWorker implements EncodeWorker {
+
+    static final String ID = "local";
+
+    // Keyframe interval of encoded tasks, so stream-copied HLS can still cut on time
+    private static final int GOP_SECONDS = 2;
+
+    private final FFmpeg ffmpeg;
+    private final FFprobe ffprobe;
+    private final CpuScheduler cpuScheduler;
+    private final ThreadFactory progressThreads;
+
+    LocalEncodeWorker(FFmpeg ffmpeg, FFprobe ffprobe, CpuScheduler cpuScheduler, ThreadFactory progressThreads) {
+        this.ffmpeg = ffmpeg;
+        this.ffprobe = ffprobe;
+        this.cpuScheduler = cpuScheduler;
+        this.progressThreads = progressThreads;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return true;
+    }
+
+    @Override
+    public List<Path> run(EncodeTask task, Path source, Path outputDir, ProgressListener progressListener) {
+        List<Rendition> renditions = new ArrayList<>();
+        for (EncodeTask.Output output : task.getOutputs()) {
+            Rendition rendition = new Rendition(output.getConfig(), output.getWidth(), output.getHeight(), null,
+                null);
+            rendition.ratePlan = output.getRatePlan();
+            renditions.add(rendition);
+        }
+
+        try (CpuScheduler.Lease lease = cpuScheduler.acquire(Rendition.workload(renditions),
+                Rendition.pixelRate(renditions))) {
+            FFmpegBuilder builder = lease.limit(new FFmpegBuilder())
+                // Input seeking lands exactly on the keyframe the task starts with
+                .addExtraArgs("-ss", formatTime(task.getStart()))
+                .setInput(source.toString())
+                .overrideOutputFiles(true)
+                .setComplexFilter(Rendition.splitFilter("0:" + task.getVideoStreamIndex(), renditions));
+
+            List<Path> outputFiles = new ArrayList<>();
+            for (int i = 0; i < renditions.size(); i++) {
+                Rendition rendition = renditions.get(i);
+                Path outputFile = outputFile(outputDir, task, i);
+                outputFiles.add(outputFile);
+
+                int gop = Math.max(1, rendition.config.getFrameRate() * GOP_SECONDS);
+                FFmpegOutputBuilder output = rendition.encodeVideo(builder.addOutput(outputFile.toString()))
+                    .disableAudio()
+                    .addExtraArgs("-map", "[out" + i + "]")
+                    .addExtraArgs("-g", String.valueOf(gop))
+                    .addExtraArgs("-keyint_min", String.valueOf(gop))
+                    .addExtraArgs("-sc_threshold", "0")
+                    .addExtraArgs("-threads", String.valueOf(lease.threadsPerOutput(renditions.size())));
+                if (!task.isOpenEnded()) {
+                    output.addExtraArgs("-t", formatTime(task.getEnd() - task.getStart()));
+                }
+                output.done();
+            }
+
+            FFmpegProgressReader.run(progressThreads, new FFmpegExecutor(ffmpeg, ffprobe), builder, progress -> {
+                lease.report(progress.speed);
+                if (progressListener != null) {
+                    progressListener.progress(progress);
+                }
+            });
+            return outputFiles;
+        }
+    }
+
+    static Path outputFile(Path outputDir, EncodeTask task, int outputIndex) {
+        return outputDir.resolve(task.getId() + "_r" + outputIndex + ".mkv");
+    }
+
+    // ffprobe prints microsecond timestamps; formatting them back the same way keeps cuts exact
+    static String formatTime(double seconds) {
+        return String.format(Locale.ROOT, "%.6f", seconds);
+    }
+}
@@ -0,0 +1,412 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the output directories within a size budget and a time to live. Outputs are tracked as
+ * units: a plain output file, or an HLS ladder, meaning its master playlist and every rendition
+ * directory it lists, which are kept or evicted together. Units are evicted least recently
+ * downloaded first once the budget is exceeded, and once they have not been downloaded for longer
+ * than the time to live.
+ *
+ * <p>Usage is tracked as outputs are written and downloaded, and kept in an index in each output
+ * directory. Only outputs the pipeline registered are tracked, so files that were in a directory
+ * before or that anyone else puts there are never evicted, and no directory is ever walked.
+ * Outputs about to be rewritten are released first so that a
+ * sweep never deletes one while it is being written. Evicted outputs that are also in the
+ * transcode cache are restored from it when requested again.
+ *
+ * <p>Tracking also records which files the pipeline wrote, and only those are served by the
+ * outputs endpoint. Outputs are therefore tracked even when eviction is disabled.
+ */
+@Slf4j
+@Service
+public class OutputLifecycle {
+
+    private static final String INDEX_FILE = ".outputs.json";
+
+    private final ObjectMapper objectMapper;
+
+    // Whether outputs are evicted; they are tracked either way
+    @Value("${vcp.output.lifecycle.enabled:true}")
+    private boolean enabled;
+
+    // 0 for no size budget
+    @Value("${vcp.output.max-size:50GB}")
+    private DataSize maxSize;
+
+    // Evict outputs not downloaded for this long; 0 keeps them until the budget needs the space
+    @Value("${vcp.output.ttl:P7D}")
+    private Duration ttl;
+
+    @Value("${vcp.output.sweep-interval:PT5M}")
+    private Duration sweepInterval;
+
+    // All state below is guarded by this. Units are keyed by identity, in access order
+    private final LinkedHashMap<Unit, Unit> units = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Unit> owners = new HashMap<>();
+    private final Set<Path> directories = new HashSet<>();
+    private final Set<Path> dirty = new HashSet<>();
+    private long totalBytes;
+    private long evictedBytes;
+    private long evictedUnits;
+
+    private ScheduledExecutorService sweeper;
+
+    public OutputLifecycle(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vcp-output-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval.toMillis(), sweepInterval.toMillis(),
+            TimeUnit.MILLISECONDS);
+        if (!enabled) {
+            log.info("Output eviction disabled");
+            return;
+        }
+        log.info("Keeping outputs within {} bytes{}", maxSize.toBytes(),
+            ttl.isZero() ? "" : " and for " + ttl + " after their last download");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        synchronized (this) {
+            saveIndexes();
+        }
+    }
+
+    // Persisted form of one unit; members are entry names in its directory, mapped to their size
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    static class Unit {
+        private Map<String, Long> members = new LinkedHashMap<>();
+        private long lastAccess;
+
+        @JsonIgnore
+        private Path directory;
+
+        long size() {
+            return members.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        Path name() {
+            return directory.resolve(members.keySet().iterator().next());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts tracking an output directory: reads its index and drops entries that have gone.
+     * Directories already tracked are left alone. Only what the index lists is tracked; other
+     * files in the directory are never taken over, whatever they are named. Called for every
+     * directory outputs are written to; the first output registered opens its directory too.
+     */
+    public synchronized void open(Path directory) {
+        Path dir = directory.toAbsolutePath().normalize();
+        if (!directories.add(dir)) {
+            return;
+        }
+
+        boolean changed = false;
+        List<Unit> found = new ArrayList<>();
+        for (Unit unit : loadIndex(dir)) {
+            unit.directory = dir;
+            changed |= unit.members.keySet().removeIf(name -> !Files.exists(dir.resolve(name)));
+            if (!unit.members.isEmpty()) {
+                found.add(unit);
+            }
+        }
+        found.sort(Comparator.comparingLong(Unit::getLastAccess));
+        found.forEach(this::add);
+
+        if (changed) {
+            dirty.add(dir);
+        }
+        // Evicting is left to the next sweep
+        log.info("Tracking output directory {}: {} output(s), {} bytes in all", dir, units.size(), totalBytes);
+    }
+
+    /**
+     * Stops tracking outputs that are about to be written, so that no sweep deletes them halfway.
+     * They are tracked again once {@link #register} is called for them, or {@link #restore} if
+     * they are not rewritten after all. Returns the outputs that were tracked, by unit.
+     */
+    public synchronized List<List<Path>> release(Collection<Path> paths) {
+        Map<Unit, List<Path>> released = new IdentityHashMap<>();
+        for (Path path : paths) {
+            Path member = normalize(path);
+            Unit unit = owners.remove(member);
+            if (unit != null) {
+                totalBytes -= unit.members.remove(member.getFileName().toString());
+                if (unit.members.isEmpty()) {
+                    units.remove(unit);
+                }
+                dirty.add(unit.directory);
+                released.computeIfAbsent(unit, key -> new ArrayList<>()).add(member);
+            }
+        }
+        return new ArrayList<>(released.values());
+    }
+
+    /**
+     * Tracks outputs given up by {@link #release} again, unit by unit, where nothing registered
+     * them since, as when the encode that was to replace them failed. Outputs gone from disk are
+     * left out.
+     */
+    public synchronized void restore(List<List<Path>> released) {
+        for (List<Path> group : released) {
+            List<Path> left = new ArrayList<>();
+            for (Path path : group) {
+                if (!owners.containsKey(path) && Files.exists(path)) {
+                    left.add(path);
+                }
+            }
+            register(left);
+        }
+    }
+
+    /**
+     * Tracks newly written outputs as one unit, measuring each. The paths are entries directly
+     * in an output directory; ones tracked before are moved to the new unit.
+     */
+    public synchronized void register(Collection<Path> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        Unit unit = new Unit();
+        unit.directory = paths.iterator().next().toAbsolutePath().normalize().getParent();
+        unit.lastAccess = System.currentTimeMillis();
+        // Outputs tracked before under these names, also in an index not read yet, join the new unit
+        open(unit.directory);
+        release(paths);
+
+        for (Path path : paths) {
+            Path member = normalize(path);
+            try {
+                unit.members.put(member.getFileName().toString(), measure(member));
+            } catch (IOException e) {
+                log.warn("Failed to measure output {}: {}", member, e.getMessage());
+            }
+        }
+        if (unit.members.isEmpty()) {
+            return;
+        }
+        add(unit);
+        dirty.add(unit.directory);
+        if (enabled) {
+            evict(0, unit);
+        }
+    }
+
+    /**
+     * Records a download of the output at the given path, an entry directly in an output directory
+     * or anything inside one.
+     */
+    public synchronized void touch(Path path) {
+        Unit unit = owners.get(normalize(path));
+        if (unit != null) {
+            // The lookup also moves it to the most-recently-used end
+            units.get(unit);
+            unit.lastAccess = System.currentTimeMillis();
+            dirty.add(unit.directory);
+        }
+    }
+
+    /**
+     * Whether the given path is an output the pipeline registered, or lies inside one.
+     */
+    public synchronized boolean isRegistered(Path path) {
+        return owners.containsKey(normalize(path));
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getUnitCount() {
+        return units.size();
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    public synchronized long getEvictedUnits() {
+        return evictedUnits;
+    }
+
+    // Runs on the sweeper: expires outputs past their time to live and persists the indexes
+    private synchronized void sweep() {
+        try {
+            if (enabled) {
+                evict(ttl.isZero() ? 0 : System.currentTimeMillis() - ttl.toMillis(), null);
+            }
+            saveIndexes();
+        } catch (RuntimeException e) {
+            log.warn("Output sweep failed: {}", e.getMessage(), e);
+        }
+    }
+
+    // Caller holds the lock. Evicts units last accessed before the cutoff, then least-recently-used
+    // ones until the budget is met, never the one given to keep
+    private void evict(long expiredBefore, Unit keep) {
+        if (expiredBefore > 0) {
+            // A directory opened later joins at the most-recently-used end however old its outputs
+            // are, so all units are looked at
+            for (Iterator<Unit> it = units.keySet().iterator(); it.hasNext(); ) {
+                Unit unit = it.next();
+                if (unit != keep && unit.lastAccess < expiredBefore) {
+                    it.remove();
+                    delete(unit, "expired");
+                }
+            }
+        }
+
+        long budget = maxSize.toBytes();
+        for (Iterator<Unit> it = units.keySet().iterator(); budget > 0 && totalBytes > budget && it.hasNext(); ) {
+            Unit unit = it.next();
+            if (unit != keep) {
+                it.remove();
+                delete(unit, "over budget");
+            }
+        }
+    }
+
+    // Caller holds the lock and has taken the unit out of the access order
+    private void delete(Unit unit, String reason) {
+        long size = unit.size();
+        totalBytes -= size;
+        evictedBytes += size;
+        evictedUnits++;
+        dirty.add(unit.directory);
+        for (String name : unit.members.keySet()) {
+            Path member = unit.directory.resolve(name);
+            owners.remove(member);
+            try {
+                TranscodeCache.deleteRecursively(member);
+            } catch (IOException e) {
+                log.warn("Failed to evict output {}: {}", member, e.getMessage());
+            }
+        }
+        log.info("Evicted {} ({} bytes, {})", unit.name(), size, reason);
+    }
+
+    // Caller holds the lock
+    private void add(Unit unit) {
+        units.put(unit, unit);
+        for (Map.Entry<String, Long> member : unit.members.entrySet()) {
+            owners.put(unit.directory.resolve(member.getKey()), unit);
+            totalBytes += member.getValue();
+        }
+    }
+
+    // Bytes in a file or directory tree
+    private static long measure(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return Files.size(path);
+        }
+        long size = 0;
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk::iterator) {
+                if (Files.isRegularFile(p)) {
+                    size += Files.size(p);
+                }
+            }
+        }
+        return size;
+    }
+
+    // Downloads address files inside an HLS directory; the unit is tracked by the top-level entry
+    // of the innermost output directory
+    private Path normalize(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        Path owner = null;
+        for (Path dir : directories) {
+            if (absolute.startsWith(dir) && absolute.getNameCount() > dir.getNameCount()
+                    && (owner == null || dir.getNameCount() > owner.getNameCount())) {
+                owner = dir;
+            }
+        }
+        return owner != null ? owner.resolve(absolute.getName(owner.getNameCount())) : absolute;
+    }
+
+    private List<Unit> loadIndex(Path dir) {
+        Path indexFile = dir.resolve(INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return List.of();
+        }
+        try {
+            // Stored least-recently-used first, so adding them in order restores the LRU order
+            return objectMapper.readValue(indexFile.toFile(), new TypeReference<List<Unit>>() {});
+        } catch (IOException e) {
+            log.warn("Discarding unreadable output index {}: {}", indexFile, e.getMessage());
+            return List.of();
+        }
+    }
+
+    // Caller holds the lock
+    private void saveIndexes() {
+        for (Path dir : dirty) {
+            List<Unit> stored = new ArrayList<>();
+            for (Unit unit : units.keySet()) {
+                if (unit.directory.equals(dir)) {
+                    stored.add(unit);
+                }
+            }
+            Path indexFile = dir.resolve(INDEX_FILE);
+            Path tempFile = dir.resolve(INDEX_FILE + ".tmp");
+            try {
+                objectMapper.writeValue(tempFile.toFile(), stored);
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Failed to write output index {}: {}", indexFile, e.getMessage());
+            }
+        }
+        dirty.clear();
+    }
+}
@@ -0,0 +1,288 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.MediaInfo;
+import com.videocompression.app.model.RatePlan;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFmpeg;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks rate control per title and per rendition instead of handing every encode the preset's
+ * CRF. A fast analysis pass encodes a few short samples of the source at each rendition's size
+ * with a fast x264 preset and a handful of CRFs, and keeps the highest CRF whose SSIM still meets
+ * the preset's quality target. Easy content such as screencasts ends up with far fewer bits than
+ * the preset would give it; hard content stays at the preset's CRF.
+ *
+ * <p>A size budget, set explicitly or by asking to keep the original size, turns into a bitrate
+ * cap. When the analysis expects the chosen CRF to exceed it, or no analysis ran, the encode
+ * averages the budget's bitrate instead.
+ */
+@Slf4j
+final class PerTitleRateControl {
+
+    private static final int CRF_STEP = 2;
+    private static final int MAX_CRF = 51;
+    private static final String ANALYSIS_PRESET = "veryfast";
+    // Share of a size budget left to the video once container overhead is paid for
+    private static final double CONTAINER_EFFICIENCY = 0.95;
+    private static final long MIN_VIDEO_BIT_RATE = 100_000;
+
+    private static final Pattern SSIM = Pattern.compile("SSIM Mean Y:[0-9.]+ \\(([0-9.]+|inf)db\\)");
+    private static final Pattern KBPS = Pattern.compile("kb/s:([0-9.]+)");
+
+    private final FFmpeg ffmpeg;
+    private final CpuScheduler cpuScheduler;
+    private final int samples;
+    private final Duration sampleDuration;
+    private final int maxCrfIncrease;
+
+    PerTitleRateControl(FFmpeg ffmpeg, CpuScheduler cpuScheduler, int samples, Duration sampleDuration,
+            int maxCrfIncrease) {
+        this.ffmpeg = ffmpeg;
+        this.cpuScheduler = cpuScheduler;
+        this.samples = Math.max(1, samples);
+        this.sampleDuration = sampleDuration;
+        this.maxCrfIncrease = Math.max(0, maxCrfIncrease);
+    }
+
+    // What the analysis measured for one rendition at one CRF
+    private static final class Measurement {
+        final int crf;
+        final double ssim;
+        final long bitRate;
+
+        Measurement(int crf, double ssim, long bitRate) {
+            this.crf = crf;
+            this.ssim = ssim;
+            this.bitRate = bitRate;
+        }
+    }
+
+    /**
+     * Sets a rate plan on every rendition that asks for per-title rate control or has a size
+     * budget. Renditions whose video is copied are left alone, and only H.264 renditions are
+     * analysed; other codecs are held to their size budget only.
+     */
+    void plan(String inputPath, long sourceSize, MediaInfo mediaInfo, List<Rendition> renditions) {
+        List<Rendition> analysed = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            if (rendition.copyVideo || rendition.config.getRateControl() != CompressionConfig.RateControl.PER_TITLE) {
+                continue;
+            }
+            if (rendition.config.getEffectiveVideoCodec() == CompressionConfig.VideoCodec.H264) {
+                analysed.add(rendition);
+            } else {
+                log.info("Per-title analysis measures x264 only, {} at {}x{} keeps the preset's CRF",
+                    rendition.config.getEffectiveVideoCodec(), rendition.width, rendition.height);
+            }
+        }
+
+        List<List<Measurement>> measurements = analysed.isEmpty() ? List.of()
+            : analyse(inputPath, mediaInfo, analysed);
+
+        for (Rendition rendition : renditions) {
+            if (rendition.copyVideo) {
+                continue;
+            }
+            int index = analysed.indexOf(rendition);
+            Measurement chosen = index >= 0 ? choose(rendition, measurements.get(index)) : null;
+            long budget = videoBudget(rendition, sourceSize, mediaInfo);
+            if (chosen == null && budget == 0) {
+                continue;
+            }
+
+            RatePlan.RatePlanBuilder plan = RatePlan.builder();
+            if (chosen != null) {
+                plan.ssim(chosen.ssim);
+            }
+            if (budget > 0 && (chosen == null || chosen.bitRate > budget)) {
+                // Constant quality would overshoot the budget, or its rate is unknown
+                plan.bitRate(budget)
+                    .maxRate(budget * 3 / 2)
+                    .bufferSize(budget * 2);
+            } else {
+                plan.crf(chosen.crf)
+                    .bitRate(chosen.bitRate);
+                if (budget > 0) {
+                    plan.maxRate(budget)
+                        .bufferSize(budget * 2);
+                }
+            }
+            rendition.ratePlan = plan.build();
+
+            log.info("Rate control for {}x{}: crf {}, {} kb/s{}", rendition.width, rendition.height,
+                rendition.ratePlan.getCrf() != null ? rendition.ratePlan.getCrf() : "-",
+                rendition.ratePlan.getBitRate() / 1000,
+                budget > 0 ? " within a budget of " + budget / 1000 + " kb/s" : "");
+        }
+    }
+
+    // The highest CRF that still meets the quality target, or the preset's own CRF
+    private static Measurement choose(Rendition rendition, List<Measurement> measurements) {
+        double target = rendition.config.getPreset().getSsimTarget();
+        Measurement chosen = measurements.get(0);
+        for (Measurement measurement : measurements) {
+            if (measurement.ssim >= target && measurement.crf > chosen.crf) {
+                chosen = measurement;
+            }
+        }
+        return chosen;
+    }
+
+    // Video bits per second the size budget allows, 0 without a budget
+    private static long videoBudget(Rendition rendition, long sourceSize, MediaInfo mediaInfo) {
+        CompressionConfig config = rendition.config;
+        long targetSize = config.getTargetSize() != null && config.getTargetSize() > 0 ? config.getTargetSize()
+            : config.isMaintainOriginalSize() ? sourceSize : 0;
+        if (targetSize <= 0 || mediaInfo.getDuration() <= 0) {
+            return 0;
+        }
+
+        long audio = !mediaInfo.hasAudio() ? 0
+            : rendition.copyAudio ? mediaInfo.getAudioBitRate() : rendition.audioBitRate();
+        long video = Math.round(targetSize * 8 * CONTAINER_EFFICIENCY / mediaInfo.getDuration()) - audio;
+        if (video < MIN_VIDEO_BIT_RATE) {
+            log.warn("Size budget of {} bytes leaves too little for video, encoding at {} kb/s", targetSize,
+                MIN_VIDEO_BIT_RATE / 1000);
+            return MIN_VIDEO_BIT_RATE;
+        }
+        return video;
+    }
+
+    /**
+     * Runs the analysis pass: one ffmpeg process that joins the samples, scales them once per
+     * rendition and encodes each scaled copy at every candidate CRF into the null muxer, reading
+     * x264's own SSIM and bitrate for each.
+     */
+    private List<List<Measurement>> analyse(String inputPath, MediaInfo mediaInfo, List<Rendition> renditions) {
+        List<int[]> candidates = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            int base = rendition.config.getPreset().getCrf();
+            List<Integer> crfs = new ArrayList<>();
+            for (int crf = base; crf <= Math.min(MAX_CRF, base + maxCrfIncrease); crf += CRF_STEP) {
+                crfs.add(crf);
+            }
+            candidates.add(crfs.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        double duration = mediaInfo.getDuration();
+        double length = sampleDuration.toMillis() / 1000.0;
+        List<double[]> windows = new ArrayList<>();
+        if (duration <= samples * length * 1.5) {
+            // Short sources are analysed whole
+            windows.add(new double[]{0, duration});
+        } else {
+            for (int i = 0; i < samples; i++) {
+                double center = duration * (i + 0.5) / samples;
+                windows.add(new double[]{Math.max(0, center - length / 2), length});
+            }
+        }
+
+        try (CpuScheduler.Lease lease = cpuScheduler.acquire("analysis", Rendition.pixelRate(renditions))) {
+            String threads = String.valueOf(lease.getThreads());
+            List<String> command = new ArrayList<>(List.of(ffmpeg.getPath(), "-hide_banner", "-nostats",
+                "-threads", threads, "-filter_complex_threads", threads));
+            StringBuilder filter = new StringBuilder();
+            for (int i = 0; i < windows.size(); i++) {
+                command.addAll(List.of("-ss", LocalEncodeWorker.formatTime(windows.get(i)[0]),
+                    "-t", LocalEncodeWorker.formatTime(windows.get(i)[1]), "-i", inputPath));
+                filter.append('[').append(i).append(':').append(mediaInfo.getVideoStreamIndex()).append(']');
+            }
+            filter.append("concat=n=").append(windows.size()).append(":v=1:a=0,split=").append(renditions.size());
+            for (int r = 0; r < renditions.size(); r++) {
+                filter.append("[s").append(r).append(']');
+            }
+            for (int r = 0; r < renditions.size(); r++) {
+                filter.append(";[s").append(r).append(']').append(renditions.get(r).scaleFilter())
+                    .append(",split=").append(candidates.get(r).length);
+                for (int c = 0; c < candidates.get(r).length; c++) {
+                    filter.append("[a").append(r).append('_').append(c).append(']');
+                }
+            }
+            command.addAll(List.of("-filter_complex", filter.toString()));
+
+            String encoderThreads = String.valueOf(lease.threadsPerOutput(
+                candidates.stream().mapToInt(crfs -> crfs.length).sum()));
+            for (int r = 0; r < renditions.size(); r++) {
+                for (int c = 0; c < candidates.get(r).length; c++) {
+                    command.addAll(List.of("-map", "[a" + r + "_" + c + "]",
+                        "-c:v", "libx264", "-preset", ANALYSIS_PRESET,
+                        "-crf", String.valueOf(candidates.get(r)[c]),
+                        "-x264-params", "ssim=1",
+                        "-threads", encoderThreads,
+                        "-f", "null", "-"));
+                }
+            }
+
+            List<Double> ssims = new ArrayList<>();
+            List<Long> bitRates = new ArrayList<>();
+            run(command, ssims, bitRates);
+            int expected = candidates.stream().mapToInt(crfs -> crfs.length).sum();
+            if (ssims.size() != expected || bitRates.size() != expected) {
+                throw new RuntimeException("Rate control analysis reported " + ssims.size() + " SSIM and "
+                    + bitRates.size() + " bitrate readings for " + expected + " encodes");
+            }
+
+            // Encoders report in output order when ffmpeg closes them
+            List<List<Measurement>> measurements = new ArrayList<>();
+            int next = 0;
+            for (int[] crfs : candidates) {
+                List<Measurement> rendition = new ArrayList<>();
+                for (int crf : crfs) {
+                    rendition.add(new Measurement(crf, ssims.get(next), bitRates.get(next)));
+                    next++;
+                }
+                measurements.add(rendition);
+            }
+            return measurements;
+        }
+    }
+
+    private static void run(List<String> command, List<Double> ssims, List<Long> bitRates) {
+        List<String> lines = new ArrayList<>();
+        Process process = null;
+        try {
+            process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.contains("libx264")) {
+                        lines.add(line);
+                        continue;
+                    }
+                    Matcher ssim = SSIM.matcher(line);
+                    Matcher kbps = KBPS.matcher(line);
+                    if (ssim.find()) {
+                        ssims.add("inf".equals(ssim.group(1)) ? Double.POSITIVE_INFINITY
+                            : Double.parseDouble(ssim.group(1)));
+                    } else if (kbps.find()) {
+                        bitRates.add(Math.round(Double.parseDouble(kbps.group(1)) * 1000));
+                    }
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new RuntimeException("Rate control analysis failed: "
+                    + String.join("\n", lines.subList(Math.max(0, lines.size() - 5), lines.size())));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to run rate control analysis", e);
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during rate control analysis", e);
+        }
+    }
+}
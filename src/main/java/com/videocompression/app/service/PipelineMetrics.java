@@ -0,0 +1,163 @@
+package com.videocompression.app.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Meters for the stages of the transcode pipeline, so a slow job can be pinned on disk, probing or
+ * the encode itself. Every stage is a timer named {@code vcp.stage}, tagged with the stage and
+ * whether it succeeded; encodes additionally feed the realtime factor and compression ratio
+ * histograms and the byte counters. The running totals behind them also give the encode cost
+ * per source byte that admission control plans with.
+ */
+@Service
+public class PipelineMetrics {
+
+    public static final String SPOOL = "spool";
+    public static final String PROBE = "probe";
+    public static final String HEADER_PROBE = "header_probe";
+    public static final String ANALYSIS = "analysis";
+    public static final String ENCODE = "encode";
+    public static final String CACHE_RESTORE = "cache_restore";
+    public static final String HLS_SIZING = "hls_sizing";
+    public static final String HLS_PLAYLIST = "hls_playlist";
+    public static final String PREVIEWS = "previews";
+    public static final String CLEANUP = "cleanup";
+
+    /**
+     * A stage of work that may throw one kind of checked exception.
+     */
+    @FunctionalInterface
+    public interface StageCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final DistributionSummary realtimeFactor;
+    private final DistributionSummary compressionRatio;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final Map<String, Counter> rejections = new ConcurrentHashMap<>();
+    // Encode seconds over source bytes times renditions encoded from them
+    private final DoubleAdder encodeSeconds = new DoubleAdder();
+    private final DoubleAdder renditionBytes = new DoubleAdder();
+    // Output bytes over the source bytes of the renditions they were encoded from
+    private final DoubleAdder outputSourceBytes = new DoubleAdder();
+    private final DoubleAdder outputBytes = new DoubleAdder();
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.realtimeFactor = DistributionSummary.builder("vcp.encode.realtime.factor")
+            .description("Encode wall time divided by media duration; below 1 is faster than realtime")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(0.01)
+            .maximumExpectedValue(100.0)
+            .register(registry);
+        this.compressionRatio = DistributionSummary.builder("vcp.encode.compression.ratio")
+            .description("Source size divided by output size, per encoded rendition")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(0.1)
+            .maximumExpectedValue(1000.0)
+            .register(registry);
+        this.bytesIn = Counter.builder("vcp.encode.bytes.in")
+            .description("Bytes of source media encoded")
+            .baseUnit("bytes")
+            .register(registry);
+        this.bytesOut = Counter.builder("vcp.encode.bytes.out")
+            .description("Bytes of encoded output written")
+            .baseUnit("bytes")
+            .register(registry);
+    }
+
+    /**
+     * Runs a stage and records how long it took and whether it threw.
+     */
+    public <T, E extends Exception> T time(String stage, StageCall<T, E> call) throws E {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = call.call();
+            success = true;
+            return result;
+        } finally {
+            record(stage, System.nanoTime() - start, success);
+        }
+    }
+
+    public void record(String stage, long nanos, boolean success) {
+        timers.computeIfAbsent(stage + (success ? "" : "!"), key -> Timer.builder("vcp.stage")
+                .description("Time spent in a stage of the transcode pipeline")
+                .tag("stage", stage)
+                .tag("outcome", success ? "success" : "failure")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofHours(2))
+                .register(registry))
+            .record(Duration.ofNanos(nanos));
+    }
+
+    /**
+     * Records one finished encode of a source into the given number of renditions: how it
+     * compared to realtime and how many bytes went in.
+     */
+    public void recordEncode(long nanos, double mediaDuration, long sourceBytes, int renditions) {
+        if (mediaDuration > 0) {
+            realtimeFactor.record(nanos / 1e9 / mediaDuration);
+        }
+        bytesIn.increment(sourceBytes);
+        if (sourceBytes > 0 && renditions > 0) {
+            encodeSeconds.add(nanos / 1e9);
+            renditionBytes.add((double) sourceBytes * renditions);
+        }
+    }
+
+    /**
+     * Records one encoded rendition.
+     */
+    public void recordOutput(long sourceBytes, long outputBytes) {
+        if (outputBytes > 0) {
+            compressionRatio.record((double) sourceBytes / outputBytes);
+            bytesOut.increment(outputBytes);
+            if (sourceBytes > 0) {
+                this.outputSourceBytes.add(sourceBytes);
+                this.outputBytes.add(outputBytes);
+            }
+        }
+    }
+
+    /**
+     * Records a request turned away by admission control, by what it would have exceeded.
+     */
+    public void recordRejection(String reason) {
+        rejections.computeIfAbsent(reason, key -> Counter.builder("vcp.admission.rejected")
+                .description("Requests turned away before their upload was read")
+                .tag("reason", reason)
+                .register(registry))
+            .increment();
+    }
+
+    /**
+     * Encode seconds per source byte and rendition over every encode so far, NaN before the first.
+     */
+    public double getEncodeSecondsPerByte() {
+        double bytes = renditionBytes.sum();
+        return bytes > 0 ? encodeSeconds.sum() / bytes : Double.NaN;
+    }
+
+    /**
+     * Output bytes per source byte of a rendition over every encode so far, NaN before the first.
+     */
+    public double getOutputRatio() {
+        double bytes = outputSourceBytes.sum();
+        return bytes > 0 ? outputBytes.sum() / bytes : Double.NaN;
+    }
+}
@@ -0,0 +1,362 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.MediaInfo;
+import com.videocompression.app.model.MediaPreviews;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFmpeg;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Makes the previews a player needs of a source: a poster frame, sheets of seek thumbnails with a
+ * WebVTT index, and a short silent clip stitched from samples across the source. They are branches
+ * of the filter graph of the encode, so the frames the encode decodes anyway feed them; if that
+ * run fails, the encode is run again without them and they get a pass of their own. When the
+ * encode does not decode the source here, because its video is copied, it runs in segments or on
+ * other nodes, or it came from the transcode cache, a pass of their own decodes only what they
+ * show: the GOP before the poster position, keyframes for the seek thumbnails and the sampled
+ * seconds for the clip.
+ */
+@Slf4j
+final class PreviewGenerator {
+
+    static final String POSTER = "poster.jpg";
+    static final String SPRITE_SHEETS = "sprites_%03d.jpg";
+    static final String SPRITE_INDEX = "sprites.vtt";
+    static final String CLIP = "preview.mp4";
+
+    // Where in the source the poster is taken, as a share of its duration
+    private static final double POSTER_POSITION = 0.1;
+    private static final int CLIP_FRAME_RATE = 15;
+    private static final int CLIP_CRF = 30;
+
+    private final FFmpeg ffmpeg;
+    private final CpuScheduler cpuScheduler;
+    private final int posterWidth;
+    private final Duration spriteInterval;
+    private final int spriteWidth;
+    private final int spriteGrid;
+    private final int clipSamples;
+    private final Duration clipSampleDuration;
+    private final int clipWidth;
+
+    PreviewGenerator(FFmpeg ffmpeg, CpuScheduler cpuScheduler, int posterWidth, Duration spriteInterval,
+            int spriteWidth, int spriteGrid, int clipSamples, Duration clipSampleDuration, int clipWidth) {
+        this.ffmpeg = ffmpeg;
+        this.cpuScheduler = cpuScheduler;
+        this.posterWidth = posterWidth;
+        this.spriteInterval = spriteInterval;
+        this.spriteWidth = spriteWidth;
+        this.spriteGrid = Math.max(1, spriteGrid);
+        this.clipSamples = Math.max(1, clipSamples);
+        this.clipSampleDuration = clipSampleDuration;
+        this.clipWidth = clipWidth;
+    }
+
+    /**
+     * The previews asked for of one source and where they go.
+     */
+    final class Plan {
+        final Set<CompressionConfig.Preview> previews;
+        final Path directory;
+        final MediaInfo mediaInfo;
+        final int tileWidth;
+        final int tileHeight;
+        // Thumbnails, and how they are laid out on a sheet; short sources get a sheet just their size
+        final int thumbnails;
+        final int columns;
+        final int rows;
+        // Start and length of each sample the clip is stitched from, in seconds
+        final List<double[]> windows = new ArrayList<>();
+
+        private Plan(Set<CompressionConfig.Preview> previews, Path directory, MediaInfo mediaInfo) {
+            this.previews = previews;
+            this.directory = directory;
+            this.mediaInfo = mediaInfo;
+            this.tileWidth = even(spriteWidth);
+            this.tileHeight = even((double) spriteWidth * mediaInfo.getHeight() / Math.max(1, mediaInfo.getWidth()));
+            this.thumbnails = Math.max(1,
+                (int) Math.ceil(mediaInfo.getDuration() * 1000 / spriteInterval.toMillis()));
+            this.columns = Math.min(spriteGrid, thumbnails);
+            this.rows = Math.min(spriteGrid, (thumbnails + columns - 1) / columns);
+
+            double duration = mediaInfo.getDuration();
+            double length = clipSampleDuration.toMillis() / 1000.0;
+            if (duration <= clipSamples * length * 1.5) {
+                // Short sources are previewed from the start
+                windows.add(new double[]{0, Math.min(duration, clipSamples * length)});
+            } else {
+                for (int i = 0; i < clipSamples; i++) {
+                    double center = duration * (i + 0.5) / clipSamples;
+                    windows.add(new double[]{Math.max(0, center - length / 2), length});
+                }
+            }
+        }
+
+        boolean has(CompressionConfig.Preview preview) {
+            return previews.contains(preview);
+        }
+    }
+
+    /**
+     * Plans the previews into the given directory, emptying it of an earlier run's.
+     */
+    Plan plan(Path directory, MediaInfo mediaInfo, Set<CompressionConfig.Preview> previews) throws IOException {
+        TranscodeCache.deleteRecursively(directory);
+        Files.createDirectories(directory);
+        return new Plan(previews, directory, mediaInfo);
+    }
+
+    /**
+     * Builds the filter graph that splits the given video input into the preview branches and one
+     * more, labelled as given, for the encode to continue from.
+     */
+    String graph(String videoInput, Plan plan, String mainLabel) {
+        List<String> branches = branches(plan);
+        StringBuilder graph = new StringBuilder("[").append(videoInput).append("]split=")
+            .append(branches.size() + 1).append('[').append(mainLabel).append(']');
+        for (int i = 0; i < branches.size(); i++) {
+            graph.append("[pv").append(i).append(']');
+        }
+        for (int i = 0; i < branches.size(); i++) {
+            graph.append(";[pv").append(i).append(']').append(branches.get(i));
+        }
+        return graph.toString();
+    }
+
+    /**
+     * Adds an output per preview to the command whose filter graph came from {@link #graph}.
+     */
+    void addOutputs(FFmpegBuilder builder, Plan plan, String threads) {
+        for (List<String> output : outputs(plan, threads)) {
+            builder.addOutput(output.get(output.size() - 1))
+                .addExtraArgs(output.subList(0, output.size() - 1).toArray(new String[0]))
+                .done();
+        }
+    }
+
+    /**
+     * Makes the previews in a pass of their own, for when the encode did not decode the source.
+     */
+    void generate(String inputPath, Plan plan) {
+        double pixelRate = (double) clipWidth * clipWidth * 9 / 16 * CLIP_FRAME_RATE;
+
+        try (CpuScheduler.Lease lease = cpuScheduler.acquire("previews", pixelRate)) {
+            String threads = String.valueOf(lease.getThreads());
+            List<String> command = new ArrayList<>(List.of(ffmpeg.getPath(), "-hide_banner", "-nostats", "-y",
+                "-threads", threads, "-filter_complex_threads", threads));
+            String videoStream = String.valueOf(plan.mediaInfo.getVideoStreamIndex());
+            List<String> graph = new ArrayList<>();
+            int input = 0;
+
+            if (plan.has(CompressionConfig.Preview.POSTER)) {
+                // Seeking decodes from the keyframe before the poster position only
+                command.addAll(List.of("-ss", LocalEncodeWorker.formatTime(posterTime(plan)), "-i", inputPath));
+                graph.add("[" + input++ + ":" + videoStream + "]trim=end_frame=1," + posterChain() + "[poster]");
+            }
+            if (plan.has(CompressionConfig.Preview.SPRITES)) {
+                // Thumbnails only need to be near their time, so keyframes will do
+                command.addAll(List.of("-skip_frame", "nokey", "-i", inputPath));
+                graph.add("[" + input++ + ":" + videoStream + "]" + spriteChain(plan) + "[sprites]");
+            }
+            if (plan.has(CompressionConfig.Preview.CLIP)) {
+                // Only the sampled seconds are decoded
+                StringBuilder concat = new StringBuilder();
+                for (double[] window : plan.windows) {
+                    command.addAll(List.of("-ss", LocalEncodeWorker.formatTime(window[0]),
+                        "-t", LocalEncodeWorker.formatTime(window[1]), "-i", inputPath));
+                    concat.append('[').append(input++).append(':').append(videoStream).append(']');
+                }
+                graph.add(concat + "concat=n=" + plan.windows.size() + ":v=1:a=0," + clipChain() + "[clip]");
+            }
+
+            command.addAll(List.of("-filter_complex", String.join(";", graph)));
+            for (List<String> output : outputs(plan, threads)) {
+                command.addAll(output);
+            }
+            run(command);
+        }
+    }
+
+    /**
+     * Writes the thumbnail index once the sheets are made, and returns the download ids of the
+     * previews.
+     */
+    MediaPreviews finish(Plan plan, Function<Path, String> ids) throws IOException {
+        MediaPreviews.MediaPreviewsBuilder previews = MediaPreviews.builder();
+        Path poster = plan.directory.resolve(POSTER);
+        if (Files.exists(poster)) {
+            previews.posterId(ids.apply(poster));
+        }
+        List<String> sheets = new ArrayList<>();
+        try (Stream<Path> files = Files.list(plan.directory)) {
+            files.filter(file -> file.getFileName().toString().matches("sprites_\\d+\\.jpg"))
+                .sorted()
+                .forEach(file -> sheets.add(ids.apply(file)));
+        }
+        if (!sheets.isEmpty()) {
+            writeIndex(plan);
+            previews.spriteSheetIds(sheets)
+                .spriteIndexId(ids.apply(plan.directory.resolve(SPRITE_INDEX)));
+        }
+        Path clip = plan.directory.resolve(CLIP);
+        if (Files.exists(clip)) {
+            previews.clipId(ids.apply(clip));
+        }
+        return previews.build();
+    }
+
+    // Filter chains from a split of the decoded video to each preview's output label
+    private List<String> branches(Plan plan) {
+        List<String> branches = new ArrayList<>();
+        if (plan.has(CompressionConfig.Preview.POSTER)) {
+            // The first frame from the poster position on, then the branch ends
+            branches.add(String.format(Locale.ROOT, "trim=start=%.3f,trim=end_frame=1,", posterTime(plan))
+                + posterChain() + "[poster]");
+        }
+        if (plan.has(CompressionConfig.Preview.SPRITES)) {
+            branches.add(spriteChain(plan) + "[sprites]");
+        }
+        if (plan.has(CompressionConfig.Preview.CLIP)) {
+            StringBuilder select = new StringBuilder("select='");
+            for (int i = 0; i < plan.windows.size(); i++) {
+                double[] window = plan.windows.get(i);
+                select.append(i > 0 ? "+" : "").append(String.format(Locale.ROOT, "between(t,%.3f,%.3f)",
+                    window[0], window[0] + window[1]));
+            }
+            branches.add(select.append("',").append(rebase(plan)).append(',').append(clipChain())
+                .append("[clip]").toString());
+        }
+        return branches;
+    }
+
+    // Moves each selected frame from its time in the source to its time in the clip: its offset into
+    // its sample plus the length of the samples before. Frame timestamps are kept rather than
+    // counted, which variable frame rate sources need
+    private static String rebase(Plan plan) {
+        StringBuilder expression = new StringBuilder();
+        double offset = 0;
+        int open = 0;
+        for (int i = 0; i < plan.windows.size(); i++) {
+            double[] window = plan.windows.get(i);
+            String shifted = String.format(Locale.ROOT, "T-%.3f+%.3f", window[0], offset);
+            if (i < plan.windows.size() - 1) {
+                expression.append(String.format(Locale.ROOT, "if(lte(T,%.3f),%s,", window[0] + window[1], shifted));
+                open++;
+            } else {
+                expression.append(shifted);
+            }
+            offset += window[1];
+        }
+        return "setpts='(" + expression + ")".repeat(open) + ")/TB'";
+    }
+
+    private static double posterTime(Plan plan) {
+        return plan.mediaInfo.getDuration() * POSTER_POSITION;
+    }
+
+    private String posterChain() {
+        return "scale=w='min(" + posterWidth + ",iw)':h=-2";
+    }
+
+    // One thumbnail per cue of the index, the last one held when frames are sparse; the last sheet
+    // is flushed when the branch ends
+    private String spriteChain(Plan plan) {
+        return String.format(Locale.ROOT, "fps=1/%.3f:eof_action=pass,trim=end_frame=%d,scale=w=%d:h=%d,tile=%dx%d",
+            spriteInterval.toMillis() / 1000.0, plan.thumbnails, plan.tileWidth, plan.tileHeight, plan.columns,
+            plan.rows);
+    }
+
+    private String clipChain() {
+        return "fps=" + CLIP_FRAME_RATE + ",scale=w='min(" + clipWidth + ",iw)':h=-2,format=yuv420p";
+    }
+
+    // Options and file of each preview's output, the file last
+    private List<List<String>> outputs(Plan plan, String threads) {
+        List<List<String>> outputs = new ArrayList<>();
+        if (plan.has(CompressionConfig.Preview.POSTER)) {
+            outputs.add(List.of("-map", "[poster]", "-frames:v", "1", "-q:v", "2", "-update", "1",
+                plan.directory.resolve(POSTER).toString()));
+        }
+        if (plan.has(CompressionConfig.Preview.SPRITES)) {
+            outputs.add(List.of("-map", "[sprites]", "-q:v", "4", "-f", "image2",
+                plan.directory.resolve(SPRITE_SHEETS).toString()));
+        }
+        if (plan.has(CompressionConfig.Preview.CLIP)) {
+            outputs.add(List.of("-map", "[clip]", "-an", "-c:v", "libx264", "-preset", "veryfast",
+                "-crf", String.valueOf(CLIP_CRF), "-threads", threads, "-movflags", "+faststart",
+                plan.directory.resolve(CLIP).toString()));
+        }
+        return outputs;
+    }
+
+    // One cue per thumbnail, pointing at its tile in its sheet
+    private void writeIndex(Plan plan) throws IOException {
+        double interval = spriteInterval.toMillis() / 1000.0;
+        int tiles = plan.columns * plan.rows;
+
+        StringBuilder index = new StringBuilder("WEBVTT\n");
+        for (int i = 0; i < plan.thumbnails; i++) {
+            int tile = i % tiles;
+            index.append('\n')
+                .append(cueTime(i * interval)).append(" --> ")
+                .append(cueTime(Math.min((i + 1) * interval, plan.mediaInfo.getDuration()))).append('\n')
+                .append(String.format(Locale.ROOT, SPRITE_SHEETS, i / tiles + 1))
+                .append("#xywh=").append(tile % plan.columns * plan.tileWidth).append(',')
+                .append(tile / plan.columns * plan.tileHeight).append(',')
+                .append(plan.tileWidth).append(',').append(plan.tileHeight).append('\n');
+        }
+        Files.writeString(plan.directory.resolve(SPRITE_INDEX), index.toString());
+    }
+
+    private static String cueTime(double seconds) {
+        long millis = Math.round(seconds * 1000);
+        return String.format(Locale.ROOT, "%02d:%02d:%02d.%03d", millis / 3_600_000, millis / 60_000 % 60,
+            millis / 1000 % 60, millis % 1000);
+    }
+
+    private static int even(double value) {
+        return Math.max(2, (int) Math.round(value / 2) * 2);
+    }
+
+    private static void run(List<String> command) {
+        List<String> lines = new ArrayList<>();
+        Process process = null;
+        try {
+            process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new RuntimeException("Preview generation failed: "
+                    + String.join("\n", lines.subList(Math.max(0, lines.size() - 5), lines.size())));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to run preview generation", e);
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during preview generation", e);
+        }
+    }
+}
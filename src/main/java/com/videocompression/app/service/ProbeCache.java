@@ -0,0 +1,129 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.MediaInfo;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import net.bramp.ffmpeg.probe.FFmpegStream;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of probe results keyed by content hash, so a source is probed by ffprobe at
+ * most once no matter how many times it is uploaded, inspected or encoded.
+ */
+@Slf4j
+public class ProbeCache {
+
+    private final FFprobe ffprobe;
+    private final int maxEntries;
+    private final PipelineMetrics metrics;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Guarded by itself; access order gives least-recently-used eviction
+    private final LinkedHashMap<String, MediaInfo> entries;
+
+    public ProbeCache(FFprobe ffprobe, int maxEntries, PipelineMetrics metrics) {
+        this.ffprobe = ffprobe;
+        this.maxEntries = maxEntries;
+        this.metrics = metrics;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MediaInfo> eldest) {
+                return size() > ProbeCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns media info for the given file. A null content hash bypasses the cache.
+     */
+    public MediaInfo probe(Path path, String contentHash) throws IOException {
+        if (contentHash != null) {
+            synchronized (entries) {
+                MediaInfo cached = entries.get(contentHash);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    return cached;
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        MediaInfo info = metrics.time(PipelineMetrics.PROBE, () -> toMediaInfo(ffprobe.probe(path.toString()), path));
+
+        if (contentHash != null && maxEntries > 0) {
+            synchronized (entries) {
+                entries.put(contentHash, info);
+            }
+        }
+        return info;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    static MediaInfo toMediaInfo(FFmpegProbeResult probeResult, Path path) throws IOException {
+        if (probeResult.hasError()) {
+            throw new IOException("ffprobe failed for " + path.getFileName() + ": " + probeResult.getError().string);
+        }
+
+        FFmpegStream videoStream = null;
+        FFmpegStream audioStream = null;
+        for (FFmpegStream stream : probeResult.getStreams()) {
+            if (stream.codec_type == FFmpegStream.CodecType.VIDEO && videoStream == null
+                    && (stream.disposition == null || !stream.disposition.attached_pic)) {
+                // Cover art is exposed as a single-frame video stream, skip it
+                videoStream = stream;
+            } else if (stream.codec_type == FFmpegStream.CodecType.AUDIO && audioStream == null) {
+                audioStream = stream;
+            }
+        }
+
+        if (videoStream == null) {
+            throw new IOException("No video stream found in " + path.getFileName());
+        }
+
+        double frameRate = videoStream.avg_frame_rate != null && videoStream.avg_frame_rate.getNumerator() > 0
+            ? videoStream.avg_frame_rate.doubleValue()
+            : videoStream.r_frame_rate != null && videoStream.r_frame_rate.getDenominator() > 0
+                ? videoStream.r_frame_rate.doubleValue()
+                : 0.0;
+
+        MediaInfo.MediaInfoBuilder builder = MediaInfo.builder()
+            .formatName(probeResult.getFormat().format_name)
+            .duration(probeResult.getFormat().duration)
+            .bitRate(probeResult.getFormat().bit_rate)
+            .videoStreamIndex(videoStream.index)
+            .videoCodec(videoStream.codec_name)
+            .width(videoStream.width)
+            .height(videoStream.height)
+            .frameRate(frameRate)
+            .videoBitRate(videoStream.bit_rate)
+            .pixelFormat(videoStream.pix_fmt);
+
+        if (audioStream != null) {
+            builder.audioCodec(audioStream.codec_name)
+                .audioBitRate(audioStream.bit_rate)
+                .audioChannels(audioStream.channels)
+                .audioSampleRate(audioStream.sample_rate);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,221 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.RatePlan;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One output of an encode: what was asked for and where it ends up, along with the ffmpeg output
+ * options that produce it.
+ */
+final class Rendition {
+    static final int AUDIO_CHANNELS = 2;
+    // Output formats in the MP4 family, where HEVC gets the hvc1 tag
+    private static final Set<String> HVC1_FORMATS = Set.of("mp4", "mov", "m3u8");
+
+    final CompressionConfig config;
+    final int width;
+    final int height;
+    final String outputPath;
+    // Packages HLS outputs; null for renditions that only ever write plain files
+    final HlsPackager hls;
+    String cacheKey;
+    // Set by StreamCopyPolicy when the source stream can be used as it is
+    boolean copyVideo;
+    boolean copyAudio;
+    long copiedVideoBitRate;
+    // Set by PerTitleRateControl; null encodes with the preset's CRF
+    RatePlan ratePlan;
+
+    Rendition(CompressionConfig config, int width, int height, String outputPath, HlsPackager hls) {
+        this.config = config;
+        this.width = width;
+        this.height = height;
+        this.outputPath = outputPath;
+        this.hls = hls;
+    }
+
+    boolean isHls() {
+        return "m3u8".equals(config.getOutputFormat());
+    }
+
+    String hlsDirectory() {
+        return outputPath.substring(0, outputPath.lastIndexOf('.')) + "_hls";
+    }
+
+    // The file or directory tree this rendition writes
+    Path artifactPath() {
+        return Paths.get(isHls() ? hlsDirectory() : outputPath);
+    }
+
+    String scaleFilter() {
+        // Calculate scale filter based on aspect ratio preference
+        if (config.isMaintainAspectRatio()) {
+            return String.format("scale=w=%d:h=%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2",
+                width, height, width, height);
+        }
+        return String.format("scale=w=%d:h=%d", width, height);
+    }
+
+    /**
+     * Builds a filter graph that decodes the given video input once and splits the frames into one
+     * scaled branch per rendition, labelled {@code [out0]}, {@code [out1]}, ...
+     */
+    static String splitFilter(String videoInput, List<Rendition> renditions) {
+        StringBuilder filterGraph = new StringBuilder("[").append(videoInput).append("]split=")
+            .append(renditions.size());
+        for (int i = 0; i < renditions.size(); i++) {
+            filterGraph.append("[src").append(i).append(']');
+        }
+        for (int i = 0; i < renditions.size(); i++) {
+            filterGraph.append(';')
+                .append("[src").append(i).append(']')
+                .append(renditions.get(i).scaleFilter())
+                .append("[out").append(i).append(']');
+        }
+        return filterGraph.toString();
+    }
+
+    /**
+     * Output pixels per second of media across the given renditions, a measure of encode work.
+     */
+    static double pixelRate(List<Rendition> renditions) {
+        double rate = 0;
+        for (Rendition rendition : renditions) {
+            rate += (double) rendition.width * rendition.height * rendition.config.getFrameRate();
+        }
+        return rate;
+    }
+
+    /**
+     * What kind of encode the renditions make, for comparing encode speeds like with like.
+     */
+    static String workload(List<Rendition> renditions) {
+        return renditions.get(0).config.getPreset().name();
+    }
+
+    String mediaPlaylist() {
+        return hlsDirectory() + "/" + HlsPackager.MEDIA_PLAYLIST;
+    }
+
+    /**
+     * Adds this rendition's destination to the builder: the HLS playlist and segments, or a
+     * plain file. Whatever an earlier run left there is removed, so the encode always writes new
+     * files. Codec options are left to {@link #encodeVideo} and {@link #encodeAudio}.
+     */
+    FFmpegOutputBuilder addOutput(FFmpegBuilder builder) {
+        FFmpegOutputBuilder output;
+        if (!isHls()) {
+            // Standard video output. An earlier file may be a hard link into the transcode cache,
+            // which ffmpeg would truncate and overwrite in place, so it is unlinked first
+            try {
+                Files.deleteIfExists(Paths.get(outputPath));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to replace output " + outputPath, e);
+            }
+            output = builder.addOutput(outputPath);
+        } else {
+            // For HLS, create a directory for segments; an earlier run's segments would linger
+            Path hlsDir = Paths.get(hlsDirectory());
+            try {
+                TranscodeCache.deleteRecursively(hlsDir);
+                Files.createDirectories(hlsDir);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create HLS directory", e);
+            }
+            output = hls.addOutput(builder, hlsDir);
+        }
+
+        if (config.getEffectiveVideoCodec() == CompressionConfig.VideoCodec.H265
+                && HVC1_FORMATS.contains(config.getOutputFormat())) {
+            // Apple players only take HEVC in MP4 tagged hvc1, not ffmpeg's default hev1
+            output.addExtraArgs("-tag:v", "hvc1");
+        }
+        return output;
+    }
+
+    FFmpegOutputBuilder encodeVideo(FFmpegOutputBuilder output) {
+        if (copyVideo) {
+            return output.setVideoCodec("copy");
+        }
+        if (isHls() && hls != null) {
+            hls.alignKeyframes(output);
+        }
+
+        CompressionConfig.VideoCodec codec = config.getEffectiveVideoCodec();
+        CompressionConfig.CompressionPreset preset = config.getPreset();
+        output.setVideoCodec(codec.getEncoder())
+            .setVideoFrameRate(config.getFrameRate());
+        if (codec == CompressionConfig.VideoCodec.H264 && ratePlan == null) {
+            // The preset's bitrate is only a fallback: x264 encodes at the CRF when both are given
+            output.setVideoBitRate(preset.getBitrate());
+        }
+
+        if (codec == CompressionConfig.VideoCodec.VP9) {
+            output.addExtraArgs("-deadline", "good")
+                .addExtraArgs("-cpu-used", codec.speed(preset))
+                .addExtraArgs("-row-mt", "1");
+        } else {
+            output.addExtraArgs("-preset", codec.speed(preset));
+        }
+
+        if (ratePlan != null) {
+            return encodeRate(output, ratePlan);
+        }
+        if (codec == CompressionConfig.VideoCodec.VP9) {
+            // libvpx only encodes at constant quality without a target bitrate
+            output.addExtraArgs("-b:v", "0");
+        }
+        return output.addExtraArgs("-crf", String.valueOf(codec.crf(preset)));
+    }
+
+    private FFmpegOutputBuilder encodeRate(FFmpegOutputBuilder output, RatePlan plan) {
+        if (plan.getCrf() != null) {
+            output.addExtraArgs("-crf", String.valueOf(plan.getCrf()));
+        } else {
+            output.setVideoBitRate(plan.getBitRate());
+        }
+        if (plan.getMaxRate() > 0) {
+            output.addExtraArgs("-maxrate", String.valueOf(plan.getMaxRate()))
+                .addExtraArgs("-bufsize", String.valueOf(plan.getBufferSize()));
+        }
+        return output;
+    }
+
+    FFmpegOutputBuilder encodeAudio(FFmpegOutputBuilder output) {
+        if (copyAudio) {
+            return output.setAudioCodec("copy");
+        }
+        CompressionConfig.AudioCodec codec = config.getEffectiveAudioCodec();
+        output.setAudioCodec(codec.getEncoder())
+            .setAudioChannels(AUDIO_CHANNELS)
+            .setAudioBitRate(audioBitRate());
+        if (codec == CompressionConfig.AudioCodec.AAC) {
+            output.setStrict(FFmpegBuilder.Strict.EXPERIMENTAL);
+        }
+        return output;
+    }
+
+    long audioBitRate() {
+        return config.getEffectiveAudioCodec().bitRate(config.isPreserveAudioQuality());
+    }
+
+    // Video bitrate of the output, as far as it is known up front
+    int videoBitRate() {
+        if (copyVideo) {
+            return (int) Math.min(Integer.MAX_VALUE, copiedVideoBitRate);
+        }
+        if (ratePlan != null && ratePlan.getBitRate() > 0) {
+            return (int) Math.min(Integer.MAX_VALUE, ratePlan.getBitRate());
+        }
+        return config.getPreset().getBitrate();
+    }
+}
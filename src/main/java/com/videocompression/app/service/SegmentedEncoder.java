@@ -0,0 +1,487 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.EncodeTask;
+import com.videocompression.app.model.IngestedFile;
+import com.videocompression.app.model.MediaInfo;
+import lombok.extern.slf4j.Slf4j;
+import net.bramp.ffmpeg.FFmpeg;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.progress.Progress;
+import net.bramp.ffmpeg.progress.ProgressListener;
+import org.apache.commons.lang3.math.Fraction;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Encodes long sources across several ffmpeg processes at once. The source is cut at keyframes
+ * into segments of roughly equal length, the video of every segment is encoded as an independent
+ * {@link EncodeTask} with identical rate control and a fixed GOP, and the encoded segments are
+ * joined with the concat demuxer without re-encoding. Audio is encoded once over the whole source
+ * while joining, so it has no seams. Tasks go through the {@link EncodeCoordinator}, so segments
+ * run on this node or on worker nodes alike.
+ *
+ * <p>Segments are cut on source keyframes, so seeking to a segment start never decodes frames
+ * that are thrown away, and adjacent segments share their boundary timestamp exactly.
+ *
+ * <p>Finished segments are checkpointed in a directory named after the source and the ladder. When
+ * an encode is interrupted because the application stops, the directory is kept, and the same
+ * encode started again after the restart only encodes the segments that were not finished.
+ */
+@Slf4j
+final class SegmentedEncoder {
+
+    private final FFmpeg ffmpeg;
+    private final FFprobe ffprobe;
+    private final EncodeCoordinator coordinator;
+    private final Path workRoot;
+    private final boolean enabled;
+    private final Duration minDuration;
+    private final Duration segmentDuration;
+    // Checkpoint directories of the encodes running now
+    private final Set<Path> active = ConcurrentHashMap.newKeySet();
+
+    SegmentedEncoder(FFmpeg ffmpeg, FFprobe ffprobe, EncodeCoordinator coordinator, Path workRoot,
+            boolean enabled, Duration minDuration, Duration segmentDuration) {
+        this.ffmpeg = ffmpeg;
+        this.ffprobe = ffprobe;
+        this.coordinator = coordinator;
+        this.workRoot = workRoot;
+        this.enabled = enabled;
+        this.minDuration = minDuration;
+        this.segmentDuration = segmentDuration;
+    }
+
+    // A stretch of the source between two keyframes, in seconds
+    static final class Segment {
+        final int index;
+        final double start;
+        final double end;
+
+        Segment(int index, double start, double end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        double length() {
+            return end - start;
+        }
+    }
+
+    /**
+     * Whether a source is long enough for splitting to pay off.
+     */
+    boolean accepts(MediaInfo mediaInfo) {
+        return enabled
+            && coordinator.getCapacity() > 1
+            && mediaInfo.getDuration() >= minDuration.toMillis() / 1000.0
+            && mediaInfo.getDuration() >= 2 * segmentDuration.toMillis() / 1000.0;
+    }
+
+    /**
+     * Picks the segment boundaries: the keyframe at or before every multiple of the segment
+     * duration. Sources with sparse keyframes can yield fewer segments than asked for, or one.
+     */
+    List<Segment> plan(String inputPath, MediaInfo mediaInfo) throws IOException {
+        if (!accepts(mediaInfo)) {
+            return List.of(whole(mediaInfo));
+        }
+
+        double duration = mediaInfo.getDuration();
+        double step = segmentDuration.toMillis() / 1000.0;
+
+        StringBuilder intervals = new StringBuilder();
+        for (double target = step; target < duration; target += step) {
+            if (intervals.length() > 0) {
+                intervals.append(',');
+            }
+            // Seek to the target and read one packet: the keyframe the seek landed on
+            intervals.append(LocalEncodeWorker.formatTime(target)).append("%+#1");
+        }
+
+        TreeSet<Double> cuts = new TreeSet<>();
+        for (String line : probeKeyframes(inputPath, mediaInfo.getVideoStreamIndex(), intervals.toString())) {
+            String[] fields = line.split(",");
+            if (fields.length < 2 || !fields[1].startsWith("K")) {
+                continue;
+            }
+            try {
+                double time = Double.parseDouble(fields[0]);
+                // Skip cuts that would leave a sliver at either end
+                if (time >= 1.0 && time <= duration - 1.0) {
+                    cuts.add(time);
+                }
+            } catch (NumberFormatException e) {
+                // N/A timestamp, no usable cut
+            }
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        double start = 0;
+        for (double cut : cuts) {
+            segments.add(new Segment(segments.size(), start, cut));
+            start = cut;
+        }
+        segments.add(new Segment(segments.size(), start, duration));
+        return segments;
+    }
+
+    /**
+     * The whole source as one segment, for handing entire files to a worker.
+     */
+    static Segment whole(MediaInfo mediaInfo) {
+        return new Segment(0, 0, mediaInfo.getDuration());
+    }
+
+    private List<String> probeKeyframes(String inputPath, int videoStreamIndex, String intervals) throws IOException {
+        Process process = new ProcessBuilder(ffprobe.getPath(),
+            "-v", "error",
+            "-select_streams", String.valueOf(videoStreamIndex),
+            "-read_intervals", intervals,
+            "-show_entries", "packet=pts_time,flags",
+            "-of", "csv=p=0",
+            inputPath)
+            .redirectErrorStream(true)
+            .start();
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line.trim());
+            }
+        }
+
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("ffprobe failed to list keyframes: " + String.join("\n", lines));
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing keyframes", e);
+        }
+        return lines;
+    }
+
+    /**
+     * Encodes every rendition of the source segment by segment, then joins the segments into each
+     * rendition's output. Fails as a whole if any segment fails.
+     */
+    void encode(IngestedFile source, MediaInfo mediaInfo, List<Segment> segments, List<Rendition> renditions,
+            ProgressListener progressListener) {
+        List<EncodeTask.Output> outputs = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            outputs.add(EncodeTask.Output.builder()
+                .config(rendition.config)
+                .width(rendition.width)
+                .height(rendition.height)
+                .ratePlan(rendition.ratePlan)
+                .build());
+        }
+
+        String jobId = checkpointName(source, segments, outputs);
+        Path workDir = workRoot.resolve(jobId);
+        // An identical encode is running already; this one starts from scratch on its own
+        if (!active.add(workDir)) {
+            jobId = UUID.randomUUID().toString();
+            workDir = workRoot.resolve(jobId);
+            active.add(workDir);
+        }
+        try {
+            Files.createDirectories(workDir);
+        } catch (IOException e) {
+            active.remove(workDir);
+            throw new RuntimeException("Failed to create segment directory", e);
+        }
+        String sourceUrl = coordinator.sourceUrl(source.getContentHash());
+
+        ProgressAggregator aggregator = progressListener == null ? null
+            : new ProgressAggregator(segments.size(), progressListener);
+
+        boolean succeeded = false;
+        try {
+            List<Future<List<Path>>> futures = new ArrayList<>();
+            int resumed = 0;
+            for (Segment segment : segments) {
+                EncodeTask task = EncodeTask.builder()
+                    .id(jobId + "-" + segment.index)
+                    .sourceHash(source.getContentHash())
+                    .sourceUrl(sourceUrl)
+                    .videoStreamIndex(mediaInfo.getVideoStreamIndex())
+                    .start(segment.start)
+                    .end(segment.end)
+                    // The final segment runs to the end of the source
+                    .openEnded(segment.index == segments.size() - 1)
+                    .outputs(outputs)
+                    .build();
+                List<Path> finished = finishedOutputs(workDir, task);
+                if (finished != null) {
+                    futures.add(CompletableFuture.completedFuture(finished));
+                    resumed++;
+                    continue;
+                }
+                Path marker = marker(workDir, task);
+                futures.add(coordinator.submit(task, source.getPath(), workDir,
+                    aggregator == null ? null : progress -> aggregator.update(segment.index, progress),
+                    files -> checkpoint(marker)));
+            }
+            if (resumed > 0) {
+                log.info("Encoding {} in {} segment(s), {} of them finished before", source.getPath(),
+                    segments.size(), resumed);
+            } else {
+                log.info("Encoding {} in {} segment(s)", source.getPath(), segments.size());
+            }
+            List<List<Path>> segmentFiles = awaitAll(futures);
+
+            for (int i = 0; i < renditions.size(); i++) {
+                List<Path> files = new ArrayList<>();
+                for (List<Path> segmentOutputs : segmentFiles) {
+                    files.add(segmentOutputs.get(i));
+                }
+                join(source.getPath().toString(), renditions.get(i), files, workDir.resolve("r" + i + ".txt"));
+            }
+
+            if (aggregator != null) {
+                aggregator.finish();
+            }
+            succeeded = true;
+        } finally {
+            active.remove(workDir);
+            // Interrupted means the application is stopping: the finished segments are kept for
+            // the journaled job to resume from
+            if (succeeded || !Thread.currentThread().isInterrupted()) {
+                try {
+                    TranscodeCache.deleteRecursively(workDir);
+                } catch (IOException e) {
+                    log.warn("Failed to remove segment directory {}: {}", workDir, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoint directories earlier runs left behind, except those of the given
+     * sources, which journaled jobs are about to resume.
+     */
+    void reclaim(Set<String> keepSources) throws IOException {
+        if (!Files.isDirectory(workRoot)) {
+            return;
+        }
+        int reclaimed = 0;
+        try (Stream<Path> dirs = Files.list(workRoot)) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                String name = dir.getFileName().toString();
+                int dash = name.indexOf('-');
+                if (dash > 0 && keepSources.contains(name.substring(0, dash))) {
+                    continue;
+                }
+                TranscodeCache.deleteRecursively(dir);
+                reclaimed++;
+            }
+        }
+        if (reclaimed > 0) {
+            log.info("Reclaimed {} abandoned segment director(ies) in {}", reclaimed, workRoot);
+        }
+    }
+
+    /**
+     * Names the checkpoint directory of an encode after its source and everything that decides
+     * the bytes of its segments, so the same encode finds it again after a restart.
+     */
+    static String checkpointName(IngestedFile source, List<Segment> segments, List<EncodeTask.Output> outputs) {
+        StringBuilder ladder = new StringBuilder();
+        for (Segment segment : segments) {
+            ladder.append(LocalEncodeWorker.formatTime(segment.start)).append(',');
+        }
+        for (EncodeTask.Output output : outputs) {
+            ladder.append('|').append(output.getConfig().fingerprint())
+                .append(';').append(output.getWidth()).append('x').append(output.getHeight());
+            if (output.getRatePlan() != null) {
+                ladder.append(";crf=").append(output.getRatePlan().getCrf())
+                    .append(";rate=").append(output.getRatePlan().getBitRate())
+                    .append(";max=").append(output.getRatePlan().getMaxRate())
+                    .append(";buffer=").append(output.getRatePlan().getBufferSize());
+            }
+        }
+        return sourceId(source) + "-" + sha256(ladder.toString()).substring(0, 16);
+    }
+
+    /**
+     * The content hash of a stored source, or for a file processed in place a hash of its path,
+     * size and modification time.
+     */
+    static String sourceId(IngestedFile source) {
+        if (source.getContentHash() != null) {
+            return source.getContentHash();
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(source.getPath(), BasicFileAttributes.class);
+            return sha256(source.getPath().toAbsolutePath() + "|" + attributes.size() + "|"
+                + attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return sha256(source.getPath().toAbsolutePath().toString());
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                .digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // The outputs of a segment a previous run finished, or null. The marker is only written once
+    // every output is complete, so a segment cut short by a crash is encoded again
+    private static List<Path> finishedOutputs(Path workDir, EncodeTask task) {
+        if (!Files.exists(marker(workDir, task))) {
+            return null;
+        }
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < task.getOutputs().size(); i++) {
+            Path file = LocalEncodeWorker.outputFile(workDir, task, i);
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static Path marker(Path workDir, EncodeTask task) {
+        return workDir.resolve(task.getId() + ".done");
+    }
+
+    private static void checkpoint(Path marker) {
+        try {
+            Files.writeString(marker, "");
+        } catch (IOException e) {
+            // The segment is encoded again should the encode be resumed
+            log.warn("Failed to checkpoint segment {}: {}", marker.getFileName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Stream-copies the encoded segments of one rendition into its output, encoding the audio of
+     * the source alongside.
+     */
+    private void join(String inputPath, Rendition rendition, List<Path> segmentFiles, Path listFile) {
+        StringBuilder list = new StringBuilder();
+        for (Path file : segmentFiles) {
+            list.append("file '").append(file.toAbsolutePath().toString().replace("'", "'\\''")).append("'\n");
+        }
+        try {
+            Files.writeString(listFile, list.toString());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write segment list", e);
+        }
+
+        FFmpegBuilder builder = new FFmpegBuilder()
+            .setFormat("concat")
+            .addExtraArgs("-safe", "0")
+            .addInput(listFile.toString())
+            .addInput(inputPath)
+            .overrideOutputFiles(true);
+
+        rendition.encodeAudio(rendition.addOutput(builder))
+            .setVideoCodec("copy")
+            .addExtraArgs("-map", "0:v:0")
+            .addExtraArgs("-map", "1:a:0?")
+            .done();
+
+        new FFmpegExecutor(ffmpeg, ffprobe).createJob(builder).run();
+    }
+
+    private static <T> List<T> awaitAll(List<Future<T>> futures) {
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException runtime ? runtime
+                : new RuntimeException("Segment encode failed", cause);
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while encoding segments", e);
+        }
+    }
+
+    /**
+     * Folds the progress of concurrently running segments into one stream: output time and frames
+     * are summed across segments and the speed is the combined speed of the running ones.
+     */
+    private static final class ProgressAggregator {
+        private final long[] outTimeNs;
+        private final long[] frames;
+        private final double[] fps;
+        private final float[] speeds;
+        private final ProgressListener listener;
+
+        ProgressAggregator(int segmentCount, ProgressListener listener) {
+            this.outTimeNs = new long[segmentCount];
+            this.frames = new long[segmentCount];
+            this.fps = new double[segmentCount];
+            this.speeds = new float[segmentCount];
+            this.listener = listener;
+        }
+
+        synchronized void update(int segmentIndex, Progress progress) {
+            outTimeNs[segmentIndex] = Math.max(outTimeNs[segmentIndex], progress.out_time_ns);
+            frames[segmentIndex] = progress.frame;
+            fps[segmentIndex] = progress.isEnd() || progress.fps == null ? 0 : progress.fps.doubleValue();
+            speeds[segmentIndex] = progress.isEnd() ? 0 : progress.speed;
+
+            Progress combined = new Progress();
+            combined.status = Progress.Status.CONTINUE;
+            double combinedFps = 0;
+            for (int i = 0; i < outTimeNs.length; i++) {
+                combined.out_time_ns += outTimeNs[i];
+                combined.frame += frames[i];
+                combinedFps += fps[i];
+                combined.speed += speeds[i];
+            }
+            combined.fps = Fraction.getFraction(combinedFps);
+            listener.progress(combined);
+        }
+
+        synchronized void finish() {
+            Progress done = new Progress();
+            done.status = Progress.Status.END;
+            for (int i = 0; i < outTimeNs.length; i++) {
+                done.out_time_ns += outTimeNs[i];
+                done.frame += frames[i];
+            }
+            listener.progress(done);
+        }
+    }
+}
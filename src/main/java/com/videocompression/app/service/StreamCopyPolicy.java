@@ -0,0 +1,77 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.MediaInfo;
+
+import java.util.Set;
+
+/**
+ * Decides, stream by stream, whether a rendition can take the source stream as it is instead of
+ * re-encoding it. A stream is copied when it already has the codec the rendition would encode to,
+ * fits the rendition's resolution, frame rate and bitrate ceiling, and the output container can
+ * carry it. Remuxing takes seconds where re-encoding takes minutes.
+ */
+final class StreamCopyPolicy {
+
+    // Output formats whose codecs are checked by the codec registry; anything else is re-encoded
+    private static final Set<String> COPY_CONTAINERS = Set.of("mp4", "mov", "mkv", "webm", "m3u8", "ts");
+    private static final Set<String> COPY_PIXEL_FORMATS = Set.of("yuv420p", "yuvj420p");
+    private static final double FRAME_RATE_TOLERANCE = 0.01;
+
+    private StreamCopyPolicy() {
+    }
+
+    /**
+     * Marks the streams of the rendition that can be copied from the source.
+     */
+    static void apply(Rendition rendition, MediaInfo source) {
+        if (!COPY_CONTAINERS.contains(rendition.config.getOutputFormat())) {
+            return;
+        }
+        rendition.copyVideo = canCopyVideo(rendition, source);
+        rendition.copyAudio = source.hasAudio() && canCopyAudio(rendition, source);
+        if (rendition.copyVideo) {
+            rendition.copiedVideoBitRate = videoBitRate(source);
+        }
+    }
+
+    static boolean canCopyVideo(Rendition rendition, MediaInfo source) {
+        long bitRate = videoBitRate(source);
+        return rendition.config.getEffectiveVideoCodec().getCodecName().equals(source.getVideoCodec())
+            && COPY_PIXEL_FORMATS.contains(source.getPixelFormat())
+            && source.getWidth() == rendition.width
+            && source.getHeight() == rendition.height
+            // The configured frame rate is a ceiling; a slower source is not padded with duplicates
+            && source.getFrameRate() > 0
+            && source.getFrameRate() <= rendition.config.getFrameRate() + FRAME_RATE_TOLERANCE
+            // An unknown bitrate could be anything, so it is re-encoded
+            && bitRate > 0
+            && bitRate <= rendition.config.getPreset().getBitrate()
+            && withinTargetSize(rendition, source);
+    }
+
+    private static boolean withinTargetSize(Rendition rendition, MediaInfo source) {
+        Long targetSize = rendition.config.getTargetSize();
+        return targetSize == null || targetSize <= 0
+            || (source.getBitRate() > 0 && source.getBitRate() * source.getDuration() / 8 <= targetSize);
+    }
+
+    static boolean canCopyAudio(Rendition rendition, MediaInfo source) {
+        return rendition.config.getEffectiveAudioCodec().getCodecName().equals(source.getAudioCodec())
+            && source.getAudioChannels() > 0
+            && source.getAudioChannels() <= Rendition.AUDIO_CHANNELS
+            && source.getAudioBitRate() > 0
+            && source.getAudioBitRate() <= rendition.audioBitRate();
+    }
+
+    // Containers such as Matroska do not record per-stream bitrates; the overall bitrate less the
+    // audio is close enough then
+    private static long videoBitRate(MediaInfo source) {
+        if (source.getVideoBitRate() > 0) {
+            return source.getVideoBitRate();
+        }
+        if (source.getBitRate() > 0) {
+            return source.getBitRate() - (source.hasAudio() ? Math.max(0, source.getAudioBitRate()) : 0);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,323 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.CompressionResult;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Disk-backed cache of encoded outputs keyed by source content hash and config fingerprint.
+ * Cached artifacts are hard links of the outputs they were created from, so caching costs no
+ * extra space until the original output is deleted. This relies on encodes replacing outputs
+ * rather than rewriting them, which {@link Rendition#addOutput} sees to; a file written in place
+ * would change every entry linked to it. The index survives restarts, and entries
+ * are evicted least-recently-used first once the configured size budget is exceeded.
+ *
+ * <p>Identical requests that arrive while the first one is still encoding receive the pending
+ * future instead of a reservation, and pick up the result when it lands.
+ */
+@Slf4j
+@Service
+public class TranscodeCache {
+
+    private static final String INDEX_FILE = "index.json";
+
+    private final ObjectMapper objectMapper;
+
+    @Value("${vcp.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${vcp.cache.directory:${user.home}/VCP/cache}")
+    private String cacheDirectory;
+
+    @Value("${vcp.cache.max-size:10GB}")
+    private DataSize maxSize;
+
+    private Path cacheDir;
+
+    // All state below is guarded by this
+    private final LinkedHashMap<String, IndexEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<CompressionResult>> inFlight = new HashMap<>();
+    private long totalBytes;
+
+    public TranscodeCache(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            log.info("Transcode cache disabled");
+            return;
+        }
+        cacheDir = Paths.get(cacheDirectory);
+        Files.createDirectories(cacheDir);
+        loadIndex();
+        log.info("Transcode cache at {} holds {} entr(ies), {} of {} bytes used",
+            cacheDir, entries.size(), totalBytes, maxSize.toBytes());
+    }
+
+    // Persisted form of one cache entry
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    static class IndexEntry {
+        private String key;
+        private long size;
+        private CompressionResult result;
+    }
+
+    /**
+     * Outcome of {@link #reserve(String)}: exactly one of the fields is set.
+     */
+    public static final class Reservation {
+        public final CompressionResult cached;
+        public final CompletableFuture<CompressionResult> pending;
+        public final boolean owner;
+
+        private Reservation(CompressionResult cached, CompletableFuture<CompressionResult> pending, boolean owner) {
+            this.cached = cached;
+            this.pending = pending;
+            this.owner = owner;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String key(String contentHash, String configFingerprint) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(contentHash.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '|');
+            digest.update(configFingerprint.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Looks up a key. Returns the cached result on a hit, the in-flight future when another caller
+     * is already producing it, and otherwise makes the caller the owner, who must follow up with
+     * {@link #complete} or {@link #fail}.
+     */
+    public synchronized Reservation reserve(String key) {
+        IndexEntry entry = entries.get(key);
+        if (entry != null) {
+            if (Files.exists(entryPath(key))) {
+                log.debug("Transcode cache hit for {}", key);
+                return new Reservation(entry.getResult(), null, false);
+            }
+            // Removed behind our back
+            removeEntry(key);
+        }
+
+        CompletableFuture<CompressionResult> pending = inFlight.get(key);
+        if (pending != null) {
+            log.debug("Joining in-flight encode for {}", key);
+            return new Reservation(null, pending, false);
+        }
+
+        inFlight.put(key, new CompletableFuture<>());
+        return new Reservation(null, null, true);
+    }
+
+    /**
+     * Stores the artifact (a file or an HLS directory) produced for a reserved key and releases
+     * everyone waiting on it.
+     */
+    public void complete(String key, Path artifact, CompressionResult result) {
+        CompletableFuture<CompressionResult> pending;
+        synchronized (this) {
+            pending = inFlight.remove(key);
+            try {
+                Path target = entryPath(key);
+                deleteRecursively(target);
+                long size = linkRecursively(artifact, target);
+
+                IndexEntry entry = new IndexEntry();
+                entry.setKey(key);
+                entry.setSize(size);
+                entry.setResult(result);
+                entries.put(key, entry);
+                totalBytes += size;
+
+                evictToBudget(key);
+                saveIndex();
+            } catch (IOException e) {
+                log.warn("Failed to cache output {}: {}", artifact, e.getMessage());
+            }
+        }
+        if (pending != null) {
+            pending.complete(result);
+        }
+    }
+
+    public void fail(String key, Throwable cause) {
+        CompletableFuture<CompressionResult> pending;
+        synchronized (this) {
+            pending = inFlight.remove(key);
+        }
+        if (pending != null) {
+            pending.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Recreates a cached artifact at the given location, replacing whatever is there.
+     *
+     * @throws IOException if the entry has been evicted in the meantime, which also forgets it
+     */
+    public synchronized void restore(String key, Path artifact) throws IOException {
+        Path source = entryPath(key);
+        if (!entries.containsKey(key) || !Files.exists(source)) {
+            // Dropped, so that reserving the key again makes the caller its owner
+            removeEntry(key);
+            throw new IOException("Cached output " + key + " is no longer available");
+        }
+        // Touch the entry so it moves to the most-recently-used end
+        entries.get(key);
+        if (!Files.exists(artifact) || !Files.isSameFile(source, artifact)) {
+            deleteRecursively(artifact);
+            linkRecursively(source, artifact);
+        }
+        saveIndex();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private Path entryPath(String key) {
+        return cacheDir.resolve(key);
+    }
+
+    private void evictToBudget(String keep) {
+        Iterator<Map.Entry<String, IndexEntry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxSize.toBytes() && it.hasNext()) {
+            Map.Entry<String, IndexEntry> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                // Never evict what was just stored; waiters still need to restore it
+                continue;
+            }
+            it.remove();
+            totalBytes -= eldest.getValue().getSize();
+            try {
+                deleteRecursively(entryPath(eldest.getKey()));
+            } catch (IOException e) {
+                log.warn("Failed to evict cached output {}: {}", eldest.getKey(), e.getMessage());
+            }
+            log.debug("Evicted cached output {} ({} bytes)", eldest.getKey(), eldest.getValue().getSize());
+        }
+    }
+
+    private void removeEntry(String key) {
+        IndexEntry removed = entries.remove(key);
+        if (removed != null) {
+            totalBytes -= removed.getSize();
+            saveIndex();
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        Path indexFile = cacheDir.resolve(INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+
+        List<IndexEntry> stored;
+        try {
+            stored = objectMapper.readValue(indexFile.toFile(), new TypeReference<List<IndexEntry>>() {});
+        } catch (IOException e) {
+            log.warn("Discarding unreadable transcode cache index: {}", e.getMessage());
+            return;
+        }
+
+        // Stored least-recently-used first, so inserting in order restores the LRU order
+        for (IndexEntry entry : stored) {
+            if (Files.exists(entryPath(entry.getKey()))) {
+                entries.put(entry.getKey(), entry);
+                totalBytes += entry.getSize();
+            }
+        }
+    }
+
+    private void saveIndex() {
+        Path indexFile = cacheDir.resolve(INDEX_FILE);
+        Path tempFile = cacheDir.resolve(INDEX_FILE + ".tmp");
+        try {
+            objectMapper.writeValue(tempFile.toFile(), new ArrayList<>(entries.values()));
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to write transcode cache index: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Mirrors a file or directory tree with hard links, falling back to copies across file
+     * systems. Returns the number of bytes in the tree.
+     */
+    static long linkRecursively(Path source, Path target) throws IOException {
+        if (!Files.isDirectory(source)) {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            try {
+                Files.createLink(target, source);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return Files.size(target);
+        }
+
+        long size = 0;
+        Files.createDirectories(target);
+        try (Stream<Path> children = Files.list(source)) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                size += linkRecursively(child, target.resolve(child.getFileName().toString()));
+            }
+        }
+        return size;
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
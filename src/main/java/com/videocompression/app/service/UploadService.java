@@ -0,0 +1,238 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import com.videocompression.app.model.CompressionJob;
+import com.videocompression.app.model.IngestedFile;
+import com.videocompression.app.model.UploadSession;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable uploads in the style of the tus protocol. Chunks are streamed from the request body
+ * straight into a staging file of the ingest store at the client-supplied offset, so an upload
+ * touches the disk once and an interrupted transfer resumes where it stopped. When the last byte
+ * arrives the file is committed to the store and a job is queued for it.
+ */
+@Slf4j
+@Service
+public class UploadService {
+
+    private final IngestStore ingestStore;
+    private final JobService jobService;
+    private final VideoProcessingService videoProcessingService;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    @Value("${vcp.uploads.expiration:PT24H}")
+    private Duration expiration;
+
+    public UploadService(IngestStore ingestStore, JobService jobService,
+            VideoProcessingService videoProcessingService) {
+        this.ingestStore = ingestStore;
+        this.jobService = jobService;
+        this.videoProcessingService = videoProcessingService;
+    }
+
+    public UploadSession create(String fileName, long length, List<CompressionConfig> configs) throws IOException {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Upload length must be positive");
+        }
+        if (fileName == null || !fileName.contains(".")) {
+            throw new IllegalArgumentException("File name with extension is required");
+        }
+        videoProcessingService.checkSupported(configs);
+        purgeExpiredSessions();
+
+        String extension = fileName.substring(fileName.lastIndexOf("."));
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), fileName, length,
+            ingestStore.newStagingPath(extension), configs);
+        Files.createFile(session.getStagingPath());
+        sessions.put(session.getId(), session);
+
+        log.debug("Created upload {} for {} ({} bytes)", session.getId(), fileName, length);
+        return session;
+    }
+
+    public Optional<UploadSession> get(String id) {
+        return Optional.ofNullable(sessions.get(id));
+    }
+
+    /**
+     * Writes a chunk at the given offset and returns the new offset. A chunk may end early if the
+     * client disconnects; whatever arrived is kept. A failure to write the file is thrown instead.
+     * Completing the upload queues its job.
+     *
+     * @throws IllegalStateException if the offset does not match or another chunk is being written
+     * @throws java.util.concurrent.RejectedExecutionException if the upload is complete but the job
+     *         queue is full; the client may retry with an empty chunk at the final offset
+     */
+    public long append(UploadSession session, long offset, InputStream body) throws IOException {
+        if (!session.getWriting().compareAndSet(false, true)) {
+            throw new IllegalStateException("Another chunk is being written to upload " + session.getId());
+        }
+        try {
+            if (offset != session.getOffset()) {
+                throw new IllegalStateException(
+                    "Offset " + offset + " does not match upload offset " + session.getOffset());
+            }
+
+            if (!session.isComplete()) {
+                session.setOffset(writeChunk(session, offset, body));
+            }
+            if (session.isComplete() && session.getJobId() == null) {
+                submit(session);
+            }
+            return session.getOffset();
+        } finally {
+            session.getWriting().set(false);
+        }
+    }
+
+    /**
+     * Bytes still to arrive for open uploads, which the disk has to keep room for.
+     */
+    public long getPendingBytes() {
+        return sessions.values().stream()
+            .filter(session -> !session.isComplete())
+            .mapToLong(session -> session.getLength() - session.getOffset())
+            .sum();
+    }
+
+    /**
+     * Source bytes times renditions of uploads whose job has not been queued yet.
+     */
+    public long getPendingWork() {
+        return sessions.values().stream()
+            .filter(session -> session.getJobId() == null)
+            .mapToLong(session -> session.getLength() * session.getConfigs().size())
+            .sum();
+    }
+
+    public void cancel(String id) throws IOException {
+        UploadSession session = sessions.remove(id);
+        if (session != null) {
+            discard(session);
+        }
+    }
+
+    private long writeChunk(UploadSession session, long offset, InputStream body) throws IOException {
+        long position = offset;
+        try (FileChannel channel = FileChannel.open(session.getStagingPath(), StandardOpenOption.WRITE);
+             RequestBody source = new RequestBody(Channels.newChannel(body))) {
+            long remaining = session.getLength() - offset;
+            while (remaining > 0) {
+                long written;
+                try {
+                    written = channel.transferFrom(source, position, remaining);
+                } catch (IOException e) {
+                    if (source.failure == null) {
+                        // Writing failed, a full disk say; the client must not take it for a short chunk
+                        throw e;
+                    }
+                    // Client went away mid-chunk; keep what was written so it can resume from there
+                    log.debug("Upload {} interrupted at offset {}: {}", session.getId(), position, e.getMessage());
+                    break;
+                }
+                if (written == 0) {
+                    break;
+                }
+                position += written;
+                remaining -= written;
+            }
+        }
+        return position;
+    }
+
+    // The request body, remembering whether reading it failed, which tells a client that went away
+    // from a file that could not be written
+    private static final class RequestBody implements ReadableByteChannel {
+        private final ReadableByteChannel body;
+        private IOException failure;
+
+        RequestBody(ReadableByteChannel body) {
+            this.body = body;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            try {
+                return body.read(target);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return body.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    private void submit(UploadSession session) throws IOException {
+        String fileName = session.getFileName();
+        if (session.getIngestedFile() == null) {
+            session.setIngestedFile(ingestStore.commit(session.getStagingPath(),
+                fileName.substring(fileName.lastIndexOf("."))));
+        }
+
+        // The job gets its own reference; ours is only dropped once the job has been accepted
+        CompressionJob job = jobService.submit(ingestStore.retain(session.getIngestedFile()), fileName,
+            session.getConfigs());
+        session.setJobId(job.getId());
+        ingestStore.release(session.getIngestedFile());
+        session.setIngestedFile(null);
+        log.debug("Upload {} complete, queued job {}", session.getId(), job.getId());
+    }
+
+    private void discard(UploadSession session) throws IOException {
+        if (session.getIngestedFile() != null) {
+            ingestStore.release(session.getIngestedFile());
+            session.setIngestedFile(null);
+        } else if (session.getJobId() == null) {
+            Files.deleteIfExists(session.getStagingPath());
+        }
+    }
+
+    // Uploads idle for the expiration period; one with a chunk streaming in is never idle
+    private void purgeExpiredSessions() {
+        Instant cutoff = Instant.now().minus(expiration);
+        sessions.values().removeIf(session -> {
+            // Holding the writing flag, and keeping it once expired, turns away a chunk that arrives
+            if (!session.getWriting().compareAndSet(false, true)) {
+                return false;
+            }
+            if (session.getLastActivityAt().isAfter(cutoff)) {
+                session.getWriting().set(false);
+                return false;
+            }
+            try {
+                discard(session);
+            } catch (IOException e) {
+                log.warn("Failed to delete expired upload {}: {}", session.getStagingPath(), e.getMessage());
+            }
+            return true;
+        });
+    }
+}
@@ -2,16 +2,20 @@ package com.videocompression.app.service;
 
 import com.videocompression.app.model.CompressionConfig;
 import com.videocompression.app.model.CompressionResult;
+import com.videocompression.app.model.EncodeProgress;
+import com.videocompression.app.model.IngestedFile;
+import com.videocompression.app.model.MediaInfo;
+import com.videocompression.app.model.MediaPreviews;
 import lombok.extern.slf4j.Slf4j;
 import net.bramp.ffmpeg.FFmpeg;
 import net.bramp.ffmpeg.FFmpegExecutor;
 import net.bramp.ffmpeg.FFprobe;
 import net.bramp.ffmpeg.builder.FFmpegBuilder;
-import net.bramp.ffmpeg.probe.FFmpegProbeResult;
-import net.bramp.ffmpeg.probe.FFmpegStream;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import net.bramp.ffmpeg.progress.Progress;
+import net.bramp.ffmpeg.progress.ProgressListener;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
 import jakarta.annotation.PostConstruct;
 import java.io.File;
@@ -19,30 +23,135 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
 @Service
 public class VideoProcessingService {
 
-    @Value("${vcp.output.directory:processed}")
-    private String processedDir;
+    // Where jobs submitted from now on write; a job keeps the directory it was submitted with
+    @Value("${vcp.output.directory:${user.home}/VCP/processed}")
+    private volatile String processedDir;
 
-    @Value("${vcp.upload.directory:uploads}")
+    @Value("${vcp.upload.directory:${user.home}/VCP/uploads}")
     private String uploadDir;
 
+    @Value("${vcp.probe.cache-size:1000}")
+    private int probeCacheSize;
+
+    @Value("${vcp.processing.segmented.enabled:true}")
+    private boolean segmentedEnabled;
+
+    @Value("${vcp.processing.segmented.min-duration:PT2M}")
+    private Duration segmentedMinDuration;
+
+    @Value("${vcp.processing.segmented.segment-duration:PT30S}")
+    private Duration segmentDuration;
+
+    // 0 runs as many as the CPU budget allows processes
+    @Value("${vcp.processing.segmented.parallelism:0}")
+    private int segmentParallelism;
+
+    // Copy source streams that already match the target instead of re-encoding them
+    @Value("${vcp.processing.stream-copy.enabled:true}")
+    private boolean streamCopyEnabled;
+
+    // Samples the per-title analysis encodes, spread over the source
+    @Value("${vcp.processing.per-title.samples:3}")
+    private int perTitleSamples;
+
+    @Value("${vcp.processing.per-title.sample-duration:PT4S}")
+    private Duration perTitleSampleDuration;
+
+    // How far above the preset's CRF per-title rate control may go
+    @Value("${vcp.processing.per-title.max-crf-increase:6}")
+    private int perTitleMaxCrfIncrease;
+
+    // HLS segments as fmp4 (CMAF) or mpegts
+    @Value("${vcp.hls.segment-type:fmp4}")
+    private String hlsSegmentType;
+
+    // Write each HLS rendition as one file addressed by byte ranges
+    @Value("${vcp.hls.single-file:true}")
+    private boolean hlsSingleFile;
+
+    @Value("${vcp.hls.segment-duration:PT6S}")
+    private Duration hlsSegmentDuration;
+
+    // Largest poster width; smaller sources keep theirs
+    @Value("${vcp.previews.poster-width:1280}")
+    private int previewPosterWidth;
+
+    // One seek thumbnail per interval, tiled into square sheets of grid x grid thumbnails
+    @Value("${vcp.previews.sprite-interval:PT10S}")
+    private Duration previewSpriteInterval;
+
+    @Value("${vcp.previews.sprite-width:160}")
+    private int previewSpriteWidth;
+
+    @Value("${vcp.previews.sprite-grid:10}")
+    private int previewSpriteGrid;
+
+    // Samples the preview clip is stitched from, spread over the source
+    @Value("${vcp.previews.clip-samples:4}")
+    private int previewClipSamples;
+
+    @Value("${vcp.previews.clip-sample-duration:PT2S}")
+    private Duration previewClipSampleDuration;
+
+    @Value("${vcp.previews.clip-width:320}")
+    private int previewClipWidth;
+
+    private final TranscodeCache transcodeCache;
+    private final EncodeCoordinator encodeCoordinator;
+    private final CpuScheduler cpuScheduler;
+    private final PipelineMetrics metrics;
+    private final OutputLifecycle outputLifecycle;
+    private final ThreadFactory progressThreads;
+
     private FFmpeg ffmpeg;
     private FFprobe ffprobe;
+    private ProbeCache probeCache;
+    private LocalEncodeWorker localWorker;
+    private SegmentedEncoder segmentedEncoder;
+    private PerTitleRateControl rateControl;
+    private HlsPackager hlsPackager;
+    private PreviewGenerator previewGenerator;
+    private CodecRegistry codecRegistry;
+    // The output directory at startup; output ids are paths relative to it
+    private Path outputRoot;
+
+    public VideoProcessingService(TranscodeCache transcodeCache, EncodeCoordinator encodeCoordinator,
+            CpuScheduler cpuScheduler, PipelineMetrics metrics, OutputLifecycle outputLifecycle,
+            ExecutionThreads executionThreads) {
+        this.transcodeCache = transcodeCache;
+        this.encodeCoordinator = encodeCoordinator;
+        this.cpuScheduler = cpuScheduler;
+        this.metrics = metrics;
+        this.outputLifecycle = outputLifecycle;
+        this.progressThreads = executionThreads.factory("ffmpeg-progress");
+    }
 
     @PostConstruct
     public void init() throws IOException {
         try {
             // Create directories first
             createDirectories();
+            outputLifecycle.open(Paths.get(processedDir));
 
             // Then initialize FFmpeg
             String ffmpegPath = detectFFmpegPath();
@@ -53,6 +162,26 @@ public class VideoProcessingService {
             
             this.ffmpeg = new FFmpeg(ffmpegPath);
             this.ffprobe = new FFprobe(ffprobePath);
+            this.probeCache = new ProbeCache(ffprobe, probeCacheSize, metrics);
+            this.codecRegistry = new CodecRegistry(ffmpegPath);
+
+            // Segments, and tasks from other nodes when this one is a worker, run in this many
+            // ffmpeg processes at once
+            int parallelism = segmentParallelism > 0 ? segmentParallelism : cpuScheduler.getMaxProcesses();
+            this.localWorker = new LocalEncodeWorker(ffmpeg, ffprobe, cpuScheduler, progressThreads);
+            encodeCoordinator.registerLocal(localWorker, parallelism);
+            this.segmentedEncoder = new SegmentedEncoder(ffmpeg, ffprobe, encodeCoordinator,
+                Paths.get(uploadDir, ".segments"), segmentedEnabled, segmentedMinDuration, segmentDuration);
+            this.hlsPackager = new HlsPackager(ffprobe, hlsSegmentType, hlsSingleFile, hlsSegmentDuration);
+            this.rateControl = new PerTitleRateControl(ffmpeg, cpuScheduler, perTitleSamples,
+                perTitleSampleDuration, perTitleMaxCrfIncrease);
+            this.previewGenerator = new PreviewGenerator(ffmpeg, cpuScheduler, previewPosterWidth,
+                previewSpriteInterval, previewSpriteWidth, previewSpriteGrid, previewClipSamples,
+                previewClipSampleDuration, previewClipWidth);
+            if (segmentedEnabled) {
+                log.info("Segmented encoding enabled for sources of {}s or more, {} segments at a time",
+                    segmentedMinDuration.getSeconds(), parallelism);
+            }
         } catch (Exception e) {
             log.error("Failed to initialize FFmpeg/FFprobe: {}", e.getMessage(), e);
             throw new RuntimeException("Failed to initialize video processing service. Please ensure FFmpeg is properly installed.", e);
@@ -60,10 +189,9 @@ public class VideoProcessingService {
     }
 
     private void createDirectories() throws IOException {
-        // Create paths in user's home directory
-        Path userHome = Paths.get(System.getProperty("user.home"));
-        Path processedPath = userHome.resolve("VCP").resolve("processed");
-        Path uploadPath = userHome.resolve("VCP").resolve("uploads");
+        // Under the user's home directory unless configured otherwise
+        Path processedPath = Paths.get(processedDir).toAbsolutePath().normalize();
+        Path uploadPath = Paths.get(uploadDir).toAbsolutePath().normalize();
 
         // Create directories if they don't exist
         Files.createDirectories(processedPath);
@@ -72,6 +200,7 @@ public class VideoProcessingService {
         // Update paths to absolute paths
         processedDir = processedPath.toString();
         uploadDir = uploadPath.toString();
+        outputRoot = processedPath;
 
         log.info("Created directory: {}", processedPath);
         log.info("Created directory: {}", uploadPath);
@@ -167,223 +296,652 @@ public class VideoProcessingService {
         throw new RuntimeException("FFprobe not found. Please install FFmpeg and ensure it's in one of the expected locations.");
     }
 
-    public List<CompressionResult> processVideos(List<MultipartFile> files, CompressionConfig config) throws IOException {
-        List<CompressionResult> allResults = new ArrayList<>();
-        for (MultipartFile file : files) {
-            allResults.addAll(processVideo(file, config));
-        }
-        return allResults;
+    /**
+     * Processes a video that is already on local disk. The input file is left in place.
+     */
+    public List<CompressionResult> processVideo(Path inputPath, String originalFilename, long originalSize,
+            CompressionConfig config) throws IOException {
+        IngestedFile source = IngestedFile.builder()
+            .path(inputPath)
+            .size(originalSize)
+            .build();
+        return processLadder(source, originalFilename, List.of(config));
     }
 
-    public List<CompressionResult> processVideo(MultipartFile file) throws IOException {
-        return processVideo(file, CompressionConfig.builder().build());
+    /**
+     * Produces every requested rendition of a local video with a single ffmpeg run. The source is
+     * probed and decoded once; a split filter fans the decoded frames out to one scaler and encoder
+     * per rendition. Long sources are encoded as keyframe-aligned segments in parallel when
+     * segmented encoding is enabled. The input file is left in place.
+     */
+    public List<CompressionResult> processLadder(IngestedFile source, String originalFilename,
+            List<CompressionConfig> configs) throws IOException {
+        return processLadder(source, originalFilename, configs, Paths.get(processedDir), null);
     }
 
-    public List<CompressionResult> processVideo(MultipartFile file, CompressionConfig config) throws IOException {
-        List<CompressionResult> results = new ArrayList<>();
-        
-        // Save uploaded file
-        String originalFilename = file.getOriginalFilename();
-        String fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
-        String uniqueFilename = UUID.randomUUID().toString() + fileExtension;
-        Path uploadPath = Paths.get(uploadDir, uniqueFilename);
-        Files.copy(file.getInputStream(), uploadPath);
+    /**
+     * Same as {@link #processLadder(IngestedFile, String, List)}, writing the outputs to the given
+     * directory and reporting encoder progress to the given listener while ffmpeg runs.
+     */
+    public List<CompressionResult> processLadder(IngestedFile source, String originalFilename,
+            List<CompressionConfig> configs, Path outputDir, Consumer<EncodeProgress> progressListener)
+            throws IOException {
+        checkSupported(configs);
+
+        // Probe video information
+        MediaInfo mediaInfo = probe(source);
+        int originalWidth = mediaInfo.getWidth();
+        int originalHeight = mediaInfo.getHeight();
+        long duration = Math.round(mediaInfo.getDuration());
+        long originalSize = source.getSize();
+        String originalResolution = mediaInfo.getResolution();
+
+        List<Rendition> renditions = new ArrayList<>();
+        for (CompressionConfig config : configs) {
+            Rendition rendition = resolveRendition(config, outputDir, originalFilename, originalWidth,
+                originalHeight);
+            if (streamCopyEnabled) {
+                StreamCopyPolicy.apply(rendition, mediaInfo);
+            }
+            renditions.add(rendition);
+        }
 
+        // Outputs about to be rewritten must not be evicted halfway
+        List<Path> written = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            written.add(rendition.artifactPath());
+        }
+        if (renditions.stream().anyMatch(Rendition::isHls)) {
+            written.add(masterPlaylistPath(outputDir, originalFilename));
+        }
+        Set<CompressionConfig.Preview> previews = EnumSet.noneOf(CompressionConfig.Preview.class);
+        configs.forEach(config -> previews.addAll(config.getPreviews()));
+        Path previewDir = outputDir.resolve(baseName(originalFilename) + "_previews");
+        if (!previews.isEmpty()) {
+            written.add(previewDir);
+        }
+        List<List<Path>> released = outputLifecycle.release(written);
+        // Whatever goes wrong, the outputs that were not rewritten are tracked again
         try {
-            // Probe video information
-            FFmpegProbeResult probeResult = ffprobe.probe(uploadPath.toString());
-            FFmpegStream videoStream = probeResult.getStreams().get(0);
-            int originalWidth = videoStream.width;
-            int originalHeight = videoStream.height;
-            long duration = Math.round(probeResult.getFormat().duration);
-            long originalSize = file.getSize();
-            String originalResolution = originalWidth + "x" + originalHeight;
-
-            // Process based on configuration
-            int targetWidth, targetHeight;
-            String suffix;
-
-            if (config.getTargetResolution() == CompressionConfig.Resolution.ORIGINAL) {
-                targetWidth = originalWidth;
-                targetHeight = originalHeight;
-                suffix = config.getOutputFileSuffix();
-            } else if (config.getTargetResolution() == CompressionConfig.Resolution.CUSTOM) {
-                targetWidth = config.getCustomWidth();
-                targetHeight = config.getCustomHeight();
-                suffix = String.format("_%dx%d", targetWidth, targetHeight);
-            } else {
-                targetWidth = config.getTargetResolution().getWidth();
-                targetHeight = config.getTargetResolution().getHeight();
-                suffix = "_" + config.getTargetResolution().getLabel();
+            PreviewGenerator.Plan previewPlan = previews.isEmpty() ? null
+                : previewGenerator.plan(previewDir, mediaInfo, previews);
+
+            // Serve what we can from the transcode cache, join identical encodes that are already
+            // running, and encode only the rest
+            CompressionResult[] results = new CompressionResult[renditions.size()];
+            Map<Integer, CompressionResult> hits = new LinkedHashMap<>();
+            Map<Integer, CompletableFuture<CompressionResult>> joined = new LinkedHashMap<>();
+            List<Rendition> toEncode = new ArrayList<>();
+            List<Integer> toEncodeIndexes = new ArrayList<>();
+
+            boolean previewed = false;
+            // Every key reserved here is owned until completed; whatever goes wrong first must fail it,
+            // or identical requests wait on it forever
+            try {
+                for (int i = 0; i < renditions.size(); i++) {
+                    Rendition rendition = renditions.get(i);
+                    if (source.getContentHash() != null && transcodeCache.isEnabled()) {
+                        rendition.cacheKey = transcodeCache.key(source.getContentHash(),
+                            rendition.width + "x" + rendition.height + ";" + rendition.config.fingerprint()
+                                + (rendition.isHls() ? ";" + hlsPackager.fingerprint() : ""));
+                        TranscodeCache.Reservation reservation = transcodeCache.reserve(rendition.cacheKey);
+                        if (reservation.cached != null) {
+                            hits.put(i, reservation.cached);
+                            continue;
+                        } else if (reservation.pending != null) {
+                            joined.put(i, reservation.pending);
+                            continue;
+                        }
+                    }
+                    toEncode.add(rendition);
+                    toEncodeIndexes.add(i);
+                }
+
+                for (Map.Entry<Integer, CompressionResult> hit : hits.entrySet()) {
+                    Rendition rendition = renditions.get(hit.getKey());
+                    try {
+                        results[hit.getKey()] = restoreFromCache(rendition, hit.getValue());
+                    } catch (IOException e) {
+                        // Evicted since the lookup: encode it like a miss, caching it only if no one
+                        // else has taken the key over meanwhile
+                        log.debug("Cached output {} vanished, encoding it again: {}", rendition.cacheKey,
+                            e.getMessage());
+                        if (!transcodeCache.reserve(rendition.cacheKey).owner) {
+                            rendition.cacheKey = null;
+                        }
+                        toEncode.add(rendition);
+                        toEncodeIndexes.add(hit.getKey());
+                    }
+                }
+
+                if (!toEncode.isEmpty()) {
+                    metrics.time(PipelineMetrics.ANALYSIS, () -> {
+                        rateControl.plan(source.getPath().toString(), originalSize, mediaInfo, toEncode);
+                        return null;
+                    });
+                    long start = System.nanoTime();
+                    previewed = metrics.time(PipelineMetrics.ENCODE, () -> encode(source, mediaInfo, toEncode,
+                        previewPlan, progressListener == null ? null : progress -> progressListener.accept(
+                            toEncodeProgress(progress, originalFilename, mediaInfo.getDuration()))));
+                    metrics.recordEncode(System.nanoTime() - start, mediaInfo.getDuration(), originalSize,
+                        toEncode.size());
+
+                    for (int i = 0; i < toEncode.size(); i++) {
+                        Rendition rendition = toEncode.get(i);
+                        CompressionResult result = buildResult(rendition, originalSize, originalResolution, duration);
+                        metrics.recordOutput(originalSize, result.getCompressedSize());
+                        if (rendition.cacheKey != null) {
+                            transcodeCache.complete(rendition.cacheKey, rendition.artifactPath(), result);
+                        }
+                        results[toEncodeIndexes.get(i)] = result;
+                    }
+                }
+            } catch (Throwable e) {
+                // Failing a key that was completed already does nothing
+                for (Rendition rendition : toEncode) {
+                    if (rendition.cacheKey != null) {
+                        transcodeCache.fail(rendition.cacheKey, e);
+                    }
+                }
+                throw e;
+            }
+
+            for (Map.Entry<Integer, CompletableFuture<CompressionResult>> entry : joined.entrySet()) {
+                CompressionResult cached;
+                try {
+                    cached = entry.getValue().join();
+                } catch (CompletionException e) {
+                    throw new IOException("Identical in-flight encode failed: " + e.getCause().getMessage(),
+                        e.getCause());
+                }
+                results[entry.getKey()] = restoreFromCache(renditions.get(entry.getKey()), cached);
             }
 
-            String outputPath = generateOutputPath(originalFilename, suffix, config.getOutputFormat());
-            results.add(compressVideo(uploadPath.toString(), outputPath, targetWidth, targetHeight, 
-                config, originalSize, originalResolution, duration));
+            // Plain files are kept or evicted one by one, an HLS ladder together with its master playlist
+            for (Rendition rendition : renditions) {
+                if (!rendition.isHls()) {
+                    outputLifecycle.register(List.of(rendition.artifactPath()));
+                }
+            }
+            List<CompressionResult> withMaster = writeMasterPlaylist(outputDir, originalFilename, mediaInfo,
+                renditions, Arrays.asList(results));
+            if (previewPlan == null) {
+                return withMaster;
+            }
 
+            MediaPreviews mediaPreviews = finishPreviews(source, previewPlan, previewed);
+            List<CompressionResult> withPreviews = new ArrayList<>();
+            for (CompressionResult result : withMaster) {
+                withPreviews.add(result.toBuilder().previews(mediaPreviews).build());
+            }
+            return withPreviews;
         } finally {
-            // Clean up uploaded file
-            Files.deleteIfExists(uploadPath);
+            outputLifecycle.restore(released);
+        }
+    }
+
+    /**
+     * Makes the previews in a pass of their own unless the encode already made them, and indexes
+     * them. Previews that fail leave the encoded outputs alone and are reported as missing.
+     */
+    private MediaPreviews finishPreviews(IngestedFile source, PreviewGenerator.Plan plan, boolean previewed) {
+        try {
+            if (!previewed) {
+                metrics.time(PipelineMetrics.PREVIEWS, () -> {
+                    previewGenerator.generate(source.getPath().toString(), plan);
+                    return null;
+                });
+            }
+            MediaPreviews previews = previewGenerator.finish(plan, this::outputId);
+            outputLifecycle.register(List.of(plan.directory));
+            return previews;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to make previews in {}: {}", plan.directory, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Ties the HLS renditions of a ladder together in a master playlist next to their
+     * directories, and points their results at it.
+     */
+    private List<CompressionResult> writeMasterPlaylist(Path outputDir, String originalFilename,
+            MediaInfo mediaInfo, List<Rendition> renditions, List<CompressionResult> results) {
+        List<HlsPackager.Variant> variants = new ArrayList<>();
+        List<Path> ladder = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            if (rendition.isHls()) {
+                ladder.add(rendition.artifactPath());
+                variants.add(new HlsPackager.Variant(Paths.get(rendition.hlsDirectory()), rendition.width,
+                    rendition.height, rendition.copyVideo ? mediaInfo.getFrameRate() : rendition.config.getFrameRate()));
+            }
+        }
+        if (variants.isEmpty()) {
+            return results;
+        }
+
+        Path master = masterPlaylistPath(outputDir, originalFilename);
+        try {
+            metrics.time(PipelineMetrics.HLS_PLAYLIST, () -> {
+                hlsPackager.writeMaster(master, variants);
+                return null;
+            });
+        } catch (IOException e) {
+            log.warn("Failed to write master playlist {}: {}", master, e.getMessage());
+            outputLifecycle.register(ladder);
+            return results;
         }
+        ladder.add(0, master);
+        outputLifecycle.register(ladder);
+
+        List<CompressionResult> withMaster = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            withMaster.add(renditions.get(i).isHls()
+                ? results.get(i).toBuilder().masterPlaylistPath(master.toString()).build()
+                : results.get(i));
+        }
+        return withMaster;
+    }
 
-        return results;
+    private static Path masterPlaylistPath(Path outputDir, String originalFilename) {
+        return outputDir.resolve(baseName(originalFilename) + "_master.m3u8");
     }
 
-    private String generateOutputPath(String originalFilename, String suffix, String format) {
-        String baseName = originalFilename.substring(0, originalFilename.lastIndexOf("."));
-        return Paths.get(processedDir, baseName + suffix + "." + format).toString();
+    // Names without an extension are used whole
+    private static String baseName(String originalFilename) {
+        int dot = originalFilename.lastIndexOf('.');
+        return dot > originalFilename.lastIndexOf('/') ? originalFilename.substring(0, dot) : originalFilename;
     }
 
-    private CompressionResult compressVideo(String inputPath, String outputPath, 
-            int targetWidth, int targetHeight, CompressionConfig config,
-            long originalSize, String originalResolution, long duration) {
-        
-        // Calculate scale filter based on aspect ratio preference
-        String scaleFilter;
-        if (config.isMaintainAspectRatio()) {
-            scaleFilter = String.format("scale=w=%d:h=%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2",
-                targetWidth, targetHeight, targetWidth, targetHeight);
+    private CompressionResult restoreFromCache(Rendition rendition, CompressionResult cached) throws IOException {
+        metrics.time(PipelineMetrics.CACHE_RESTORE, () -> {
+            transcodeCache.restore(rendition.cacheKey, rendition.artifactPath());
+            return null;
+        });
+        return cached.toBuilder()
+            .fileName(new File(rendition.outputPath).getName())
+            .outputPath(rendition.isHls() ? rendition.mediaPlaylist() : rendition.outputPath)
+            .outputId(outputId(rendition))
+            .build();
+    }
+
+    private Rendition resolveRendition(CompressionConfig config, Path outputDir, String originalFilename,
+            int originalWidth, int originalHeight) {
+        // Process based on configuration
+        int targetWidth, targetHeight;
+        String suffix;
+
+        if (config.getTargetResolution() == CompressionConfig.Resolution.ORIGINAL) {
+            targetWidth = originalWidth;
+            targetHeight = originalHeight;
+            suffix = config.getOutputFileSuffix();
+        } else if (config.getTargetResolution() == CompressionConfig.Resolution.CUSTOM) {
+            targetWidth = config.getCustomWidth();
+            targetHeight = config.getCustomHeight();
+            suffix = String.format("_%dx%d", targetWidth, targetHeight);
         } else {
-            scaleFilter = String.format("scale=w=%d:h=%d", targetWidth, targetHeight);
+            targetWidth = config.getTargetResolution().getWidth();
+            targetHeight = config.getTargetResolution().getHeight();
+            suffix = "_" + config.getTargetResolution().getLabel();
         }
 
-        FFmpegBuilder builder = new FFmpegBuilder()
-            .setInput(inputPath)
-            .overrideOutputFiles(true);
+        String outputPath = generateOutputPath(outputDir, originalFilename, suffix, config.getOutputFormat());
+        return new Rendition(config, targetWidth, targetHeight, outputPath, hlsPackager);
+    }
 
-        if ("m3u8".equals(config.getOutputFormat())) {
-            // For HLS, create a directory for segments
-            String hlsDir = outputPath.substring(0, outputPath.lastIndexOf('.')) + "_hls";
+    private static String generateOutputPath(Path outputDir, String originalFilename, String suffix, String format) {
+        return outputDir.resolve(baseName(originalFilename) + suffix + "." + format).toString();
+    }
+
+    /**
+     * Encodes the renditions, making the planned previews from the same decode when this node
+     * decodes the whole source in one run. Returns whether it made them. Should that run fail, the
+     * renditions are encoded again on their own, so a failing preview cannot fail the encode.
+     */
+    private boolean encode(IngestedFile source, MediaInfo mediaInfo, List<Rendition> renditions,
+            PreviewGenerator.Plan previews, ProgressListener progressListener) {
+        String inputPath = source.getPath().toString();
+
+        // Renditions whose video can be copied are only remuxed, which takes a fraction of the time
+        // of an encode; the rest are encoded afterwards
+        List<Rendition> remuxes = renditions.stream().filter(r -> r.copyVideo).collect(Collectors.toList());
+        if (!remuxes.isEmpty()) {
+            List<Rendition> encodes = renditions.stream().filter(r -> !r.copyVideo).collect(Collectors.toList());
+            remux(inputPath, mediaInfo, remuxes, encodes.isEmpty() ? progressListener : null);
+            if (encodes.isEmpty()) {
+                return false;
+            }
+            renditions = encodes;
+        }
+
+        // Long sources are split across processes; with worker nodes around, even whole files go
+        // through the coordinator so they can run elsewhere
+        boolean remoteWorkers = encodeCoordinator.hasRemoteWorkers(source.getContentHash());
+        if (remoteWorkers || segmentedEncoder.accepts(mediaInfo)) {
+            List<SegmentedEncoder.Segment> segments;
             try {
-                Files.createDirectories(Paths.get(hlsDir));
+                segments = segmentedEncoder.plan(inputPath, mediaInfo);
             } catch (IOException e) {
-                throw new RuntimeException("Failed to create HLS directory", e);
+                throw new RuntimeException("Failed to plan segments", e);
             }
-            
-            // Configure HLS output
-            builder.addOutput(Paths.get(hlsDir, "stream.m3u8").toString())
-                .setFormat("hls")
-                .setVideoCodec("libx264")
-                .setVideoFilter(scaleFilter)
-                .setVideoFrameRate(config.getFrameRate())
-                .setVideoBitRate(config.getPreset().getBitrate())
-                .setAudioCodec("aac")
-                .setAudioChannels(2)
-                .setAudioBitRate(config.isPreserveAudioQuality() ? 192_000 : 128_000)
-                .setStrict(FFmpegBuilder.Strict.EXPERIMENTAL)
-                .addExtraArgs("-hls_time", "10") // 10 second segments
-                .addExtraArgs("-hls_list_size", "0") // Keep all segments
-                .addExtraArgs("-hls_segment_filename", Paths.get(hlsDir, "segment%d.ts").toString())
-                .addExtraArgs("-preset", config.getPreset().getSpeed())
-                .addExtraArgs("-crf", String.valueOf(config.getPreset().getCrf()))
+            if (remoteWorkers || segments.size() > 1) {
+                segmentedEncoder.encode(source, mediaInfo, segments, renditions, progressListener);
+                return false;
+            }
+        }
+
+        String videoInput = "0:" + mediaInfo.getVideoStreamIndex();
+        if (previews != null) {
+            try {
+                encodeLadder(inputPath, videoInput, renditions, previews, progressListener);
+                return true;
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.warn("Encoding {} together with its previews failed, encoding it without them: {}",
+                    inputPath, e.getMessage());
+            }
+        }
+        encodeLadder(inputPath, videoInput, renditions, null, progressListener);
+        return false;
+    }
+
+    // One ffmpeg run that decodes the source once for every rendition and, when planned, the previews
+    private void encodeLadder(String inputPath, String videoInput, List<Rendition> renditions,
+            PreviewGenerator.Plan previews, ProgressListener progressListener) {
+        try (CpuScheduler.Lease lease = cpuScheduler.acquire(Rendition.workload(renditions),
+                Rendition.pixelRate(renditions))) {
+            String encoderThreads = String.valueOf(lease.threadsPerOutput(renditions.size()));
+            FFmpegBuilder builder = lease.limit(new FFmpegBuilder())
+                .setInput(inputPath)
+                .overrideOutputFiles(true);
+            if (previews == null) {
+                addLadder(builder, videoInput, renditions, encoderThreads);
+            } else {
+                // The previews branch off the decoded frames ahead of the renditions' scalers
+                builder.setComplexFilter(previewGenerator.graph(videoInput, previews, "main") + ";"
+                    + Rendition.splitFilter("main", renditions));
+                addSplitOutputs(builder, renditions, encoderThreads);
+                previewGenerator.addOutputs(builder, previews, encoderThreads);
+            }
+
+            FFmpegProgressReader.run(progressThreads, new FFmpegExecutor(ffmpeg, ffprobe), builder, progress -> {
+                lease.report(progress.speed);
+                if (progressListener != null) {
+                    progressListener.progress(progress);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds an output per rendition to an ffmpeg command, fed from the given video input through
+     * its scaler; with several renditions the input is decoded once and split between them.
+     */
+    static FFmpegBuilder addLadder(FFmpegBuilder builder, String videoInput, List<Rendition> renditions,
+            String encoderThreads) {
+        if (renditions.size() == 1) {
+            addOutput(builder, renditions.get(0))
+                .setVideoFilter(renditions.get(0).scaleFilter())
+                .addExtraArgs("-map", videoInput)
+                .addExtraArgs("-map", "0:a:0?")
+                .addExtraArgs("-threads", encoderThreads)
                 .done();
         } else {
-            // Standard video output
-            builder.addOutput(outputPath)
-                .setVideoCodec("libx264")
-                .setVideoFilter(scaleFilter)
-                .setVideoFrameRate(config.getFrameRate())
-                .setVideoBitRate(config.getPreset().getBitrate())
-                .setAudioCodec("aac")
-                .setAudioChannels(2)
-                .setAudioBitRate(config.isPreserveAudioQuality() ? 192_000 : 128_000)
-                .setStrict(FFmpegBuilder.Strict.EXPERIMENTAL)
-                .addExtraArgs("-preset", config.getPreset().getSpeed())
-                .addExtraArgs("-crf", String.valueOf(config.getPreset().getCrf()))
+            // Decode once and split the frames into one scaled branch per rendition
+            builder.setComplexFilter(Rendition.splitFilter(videoInput, renditions));
+            addSplitOutputs(builder, renditions, encoderThreads);
+        }
+        return builder;
+    }
+
+    // Outputs fed from the branches of Rendition.splitFilter
+    private static void addSplitOutputs(FFmpegBuilder builder, List<Rendition> renditions, String encoderThreads) {
+        for (int i = 0; i < renditions.size(); i++) {
+            addOutput(builder, renditions.get(i))
+                .addExtraArgs("-map", "[out" + i + "]")
+                .addExtraArgs("-map", "0:a:0?")
+                .addExtraArgs("-threads", encoderThreads)
+                .done();
+        }
+    }
+
+    // Stream copies are bound by disk rather than CPU, so they run without a CPU lease
+    private void remux(String inputPath, MediaInfo mediaInfo, List<Rendition> renditions,
+            ProgressListener progressListener) {
+        log.info("Remuxing {} into {} rendition(s) without re-encoding video", inputPath, renditions.size());
+        FFmpegBuilder builder = new FFmpegBuilder()
+            .setInput(inputPath)
+            .overrideOutputFiles(true);
+        for (Rendition rendition : renditions) {
+            addOutput(builder, rendition)
+                .addExtraArgs("-map", "0:" + mediaInfo.getVideoStreamIndex())
+                .addExtraArgs("-map", "0:a:0?")
                 .done();
         }
 
         FFmpegExecutor executor = new FFmpegExecutor(ffmpeg, ffprobe);
-        executor.createJob(builder).run();
+        if (progressListener != null) {
+            FFmpegProgressReader.run(progressThreads, executor, builder, progressListener);
+        } else {
+            executor.createJob(builder).run();
+        }
+    }
+
+    static EncodeProgress toEncodeProgress(Progress progress, String fileName, double duration) {
+        double outTime = Math.max(0, progress.out_time_ns) / (double) TimeUnit.SECONDS.toNanos(1);
+        double percent = progress.isEnd() ? 100.0
+            : duration > 0 ? Math.min(100.0, outTime * 100.0 / duration) : 0.0;
+        long eta = progress.isEnd() ? 0
+            : progress.speed > 0 && duration > 0 ? Math.round(Math.max(0, duration - outTime) / progress.speed) : -1;
+
+        return EncodeProgress.builder()
+            .fileName(fileName)
+            .fileIndex(0)
+            .fileCount(1)
+            .outTime(outTime)
+            .duration(duration)
+            .frame(progress.frame)
+            .fps(progress.fps != null ? progress.fps.doubleValue() : 0.0)
+            .speed(Math.round(progress.speed * 100) / 100.0)
+            .percent(percent)
+            .overallPercent(percent)
+            .eta(eta)
+            .build();
+    }
 
-        if ("m3u8".equals(config.getOutputFormat())) {
-            // For HLS, calculate total size of all segments
-            String hlsDir = outputPath.substring(0, outputPath.lastIndexOf('.')) + "_hls";
+    private static FFmpegOutputBuilder addOutput(FFmpegBuilder builder, Rendition rendition) {
+        return rendition.encodeAudio(rendition.encodeVideo(rendition.addOutput(builder)));
+    }
+
+    private CompressionResult buildResult(Rendition rendition, long originalSize, String originalResolution,
+            long duration) {
+        if (rendition.isHls()) {
+            // For HLS, the media playlist accounts for every byte the muxer wrote
             long totalSize = 0;
             try {
-                totalSize = Files.walk(Paths.get(hlsDir))
-                    .filter(p -> p.toString().endsWith(".ts"))
-                    .mapToLong(p -> {
-                        try {
-                            return Files.size(p);
-                        } catch (IOException e) {
-                            return 0L;
-                        }
-                    })
-                    .sum();
+                totalSize = metrics.time(PipelineMetrics.HLS_SIZING,
+                    () -> hlsPackager.measure(Paths.get(rendition.hlsDirectory()))).size;
             } catch (IOException e) {
-                log.error("Error calculating HLS segments size", e);
+                log.error("Error reading HLS playlist", e);
             }
 
             return CompressionResult.builder()
-                .fileName(new File(outputPath).getName())
-                .resolution(targetWidth + "x" + targetHeight)
+                .fileName(new File(rendition.outputPath).getName())
+                .resolution(rendition.width + "x" + rendition.height)
                 .originalSize(originalSize)
                 .compressedSize(totalSize)
                 .compressionRatio(totalSize > 0 ? (double) originalSize / totalSize : 0.0)
                 .originalResolution(originalResolution)
-                .bitrate(config.getPreset().getBitrate())
+                .bitrate(rendition.videoBitRate())
                 .duration(duration)
-                .outputPath(outputPath.substring(0, outputPath.lastIndexOf('.')) + "_hls/stream.m3u8")
+                .outputPath(rendition.mediaPlaylist())
+                .outputId(outputId(rendition))
+                .ratePlan(rendition.ratePlan)
                 .build();
         } else {
-            File outputFile = new File(outputPath);
+            File outputFile = new File(rendition.outputPath);
             return CompressionResult.builder()
-                .fileName(new File(outputPath).getName())
-                .resolution(targetWidth + "x" + targetHeight)
+                .fileName(outputFile.getName())
+                .resolution(rendition.width + "x" + rendition.height)
                 .originalSize(originalSize)
                 .compressedSize(outputFile.length())
                 .compressionRatio((double) originalSize / outputFile.length())
                 .originalResolution(originalResolution)
-                .bitrate(config.getPreset().getBitrate())
+                .bitrate(rendition.videoBitRate())
                 .duration(duration)
-                .outputPath(outputPath)
+                .outputPath(rendition.outputPath)
+                .outputId(outputId(rendition))
+                .ratePlan(rendition.ratePlan)
                 .build();
         }
     }
 
-    public List<CompressionConfig.Resolution> getAvailableResolutions(MultipartFile file) throws IOException {
-        // Save uploaded file temporarily
-        String originalFilename = file.getOriginalFilename();
-        String fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
-        String uniqueFilename = UUID.randomUUID().toString() + fileExtension;
-        Path uploadPath = Paths.get(uploadDir, uniqueFilename);
-        
+    public List<CompressionConfig.Resolution> getAvailableResolutions(IngestedFile source) throws IOException {
+        // The container header gives the size in milliseconds; ffprobe only for what it cannot read
+        Optional<MediaInfo> header = readHeader(source.getPath());
+        return getAvailableResolutions(header.isPresent() ? header.get() : probe(source));
+    }
+
+    public List<CompressionConfig.Resolution> getAvailableResolutions(MediaInfo mediaInfo) {
+        int width = mediaInfo.getWidth();
+        int height = mediaInfo.getHeight();
+
+        // Always include ORIGINAL resolution
+        List<CompressionConfig.Resolution> availableResolutions = new ArrayList<>();
+        availableResolutions.add(CompressionConfig.Resolution.ORIGINAL);
+
+        // Add all resolutions that are smaller than or equal to the original video
+        availableResolutions.addAll(
+            Arrays.stream(CompressionConfig.Resolution.values())
+                .filter(res -> res != CompressionConfig.Resolution.ORIGINAL)
+                .filter(res -> res.getWidth() <= width && res.getHeight() <= height)
+                .collect(Collectors.toList())
+        );
+
+        return availableResolutions;
+    }
+
+    /**
+     * Reads what the container header of a file states, empty when it takes ffprobe to find out.
+     */
+    public Optional<MediaInfo> readHeader(Path path) throws IOException {
+        return metrics.time(PipelineMetrics.HEADER_PROBE, () -> ContainerHeaders.read(path));
+    }
+
+    /**
+     * Reads the container header of a file from its first and last bytes, empty when it is not
+     * within them or takes ffprobe to read.
+     */
+    public Optional<MediaInfo> readHeader(byte[] head, byte[] tail, long size) throws IOException {
+        return metrics.time(PipelineMetrics.HEADER_PROBE, () -> ContainerHeaders.read(head, tail, size));
+    }
+
+    /**
+     * Probes a source, served from the probe cache when its content has been seen before.
+     */
+    public MediaInfo probe(IngestedFile source) throws IOException {
+        return probeCache.probe(source.getPath(), source.getContentHash());
+    }
+
+    /**
+     * Checks that this node can produce every config: its output format carries the codecs and
+     * ffmpeg has the encoders and muxer for them.
+     *
+     * @throws IllegalArgumentException naming the first unsupported setting
+     */
+    public void checkSupported(List<CompressionConfig> configs) {
+        for (CompressionConfig config : configs) {
+            codecRegistry.check(config);
+        }
+    }
+
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    EncodeWorker getLocalWorker() {
+        return localWorker;
+    }
+
+    public ProbeCache getProbeCache() {
+        return probeCache;
+    }
+
+    // What the outputs endpoint serves the rendition's file or media playlist as
+    private String outputId(Rendition rendition) {
+        return outputId(Paths.get(rendition.isHls() ? rendition.mediaPlaylist() : rendition.outputPath));
+    }
+
+    // Outputs written outside the startup output directory have no id
+    private String outputId(Path output) {
+        Path absolute = output.toAbsolutePath().normalize();
+        if (!absolute.startsWith(outputRoot)) {
+            return null;
+        }
+        return outputRoot.relativize(absolute).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Resolves an output id, a path relative to the output directory the application started with,
+     * to a file the pipeline wrote there. Ids of anything else in the directory, or that lead outside
+     * it or into hidden entries, resolve to nothing.
+     */
+    public Optional<Path> findOutput(String id) {
+        if (id == null || id.isEmpty()) {
+            return Optional.empty();
+        }
+        for (String part : id.split("/")) {
+            if (part.isEmpty() || part.startsWith(".") || part.contains("\\")) {
+                return Optional.empty();
+            }
+        }
         try {
-            Files.copy(file.getInputStream(), uploadPath);
-            
-            // Probe video information
-            FFmpegProbeResult probeResult = ffprobe.probe(uploadPath.toString());
-            FFmpegStream videoStream = probeResult.getStreams().get(0);
-            int width = videoStream.width;
-            int height = videoStream.height;
-
-            // Always include ORIGINAL resolution
-            List<CompressionConfig.Resolution> availableResolutions = new ArrayList<>();
-            availableResolutions.add(CompressionConfig.Resolution.ORIGINAL);
-
-            // Add all resolutions that are smaller than or equal to the original video
-            availableResolutions.addAll(
-                Arrays.stream(CompressionConfig.Resolution.values())
-                    .filter(res -> res != CompressionConfig.Resolution.ORIGINAL)
-                    .filter(res -> res.getWidth() <= width && res.getHeight() <= height)
-                    .collect(Collectors.toList())
-            );
-
-            return availableResolutions;
-        } finally {
-            Files.deleteIfExists(uploadPath);
+            Path root = outputRoot.toRealPath();
+            Path file = root.resolve(id).normalize();
+            if (!file.startsWith(root) || !Files.isRegularFile(file)
+                    || !outputLifecycle.isRegistered(outputRoot.resolve(id))) {
+                return Optional.empty();
+            }
+            // Symbolic links must not lead out either
+            Path real = file.toRealPath();
+            if (!real.startsWith(root)) {
+                return Optional.empty();
+            }
+            outputLifecycle.touch(outputRoot.resolve(id));
+            return Optional.of(real);
+        } catch (IOException e) {
+            return Optional.empty();
         }
     }
 
+    /**
+     * Makes jobs submitted from now on write to the given directory. Jobs already queued or running
+     * keep the directory they were submitted with.
+     */
     public void setCustomOutputDirectory(String outputDir) throws IOException {
         if (outputDir != null && !outputDir.isEmpty()) {
-            this.processedDir = outputDir;
-            Files.createDirectories(Paths.get(outputDir));
+            Path dir = Paths.get(outputDir).toAbsolutePath().normalize();
+            Files.createDirectories(dir);
+            outputLifecycle.open(dir);
+            this.processedDir = dir.toString();
         }
     }
 
+    /**
+     * Deletes the segment checkpoints of earlier runs that none of the given sources, identified by
+     * content hash, will resume from.
+     */
+    public void reclaimCheckpoints(Set<String> keepSources) throws IOException {
+        segmentedEncoder.reclaim(keepSources);
+    }
+
     public String getOutputDirectory() {
         return processedDir;
     }
+
+    public String getUploadDirectory() {
+        return uploadDir;
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,363 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.EncodeTask;
+import com.videocompression.app.model.EncodeTaskResult;
+import com.videocompression.app.model.WorkerRegistration;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The worker side of distributed encoding. When enabled, this node registers with its coordinator,
+ * keeps sending it heartbeats and runs the encode tasks it posts, downloading each source once
+ * from that coordinator and keeping it for later tasks on the same source. Sources come from the
+ * configured coordinator only, whatever a task says, and every call carries the cluster token.
+ * A task that arrives while every slot is busy is rejected so the coordinator can place it
+ * elsewhere. Sources and task outputs no running task uses are deleted once they have gone
+ * unused for the retention period.
+ */
+@Slf4j
+@Service
+public class WorkerService {
+
+    private static final Pattern TASK_ID = Pattern.compile("[A-Za-z0-9-]{1,128}");
+    private static final Pattern CONTENT_HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final VideoProcessingService videoProcessingService;
+    private final ObjectMapper objectMapper;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+
+    @Value("${vcp.cluster.worker.enabled:false}")
+    private boolean enabled;
+
+    @Value("${vcp.cluster.worker.id:}")
+    private String workerId;
+
+    @Value("${vcp.cluster.worker.slots:2}")
+    private int slots;
+
+    // Base URL the coordinator reaches this node at
+    @Value("${vcp.cluster.worker.advertised-url:}")
+    private String advertisedUrl;
+
+    // Downloaded sources and finished task outputs are kept this long after last use
+    @Value("${vcp.cluster.worker.retention:PT1H}")
+    private Duration retention;
+
+    @Value("${vcp.cluster.coordinator-url:}")
+    private String coordinatorUrl;
+
+    // Shared secret every call between nodes carries
+    @Value("${vcp.cluster.token:}")
+    private String token;
+
+    @Value("${vcp.cluster.heartbeat-interval:PT10S}")
+    private Duration heartbeatInterval;
+
+    private final ExecutionThreads executionThreads;
+    // Not monitors: a download holds its lock for minutes, which would pin a virtual thread
+    private final ConcurrentHashMap<String, ReentrantLock> sourceLocks = new ConcurrentHashMap<>();
+    // Source hash of each running task, by task id; the purge leaves both alone
+    private final ConcurrentHashMap<String, String> running = new ConcurrentHashMap<>();
+    private Path sourcesDir;
+    private Path tasksDir;
+    private ThreadPoolExecutor executor;
+    // Heartbeats and the purge of expired files
+    private ScheduledExecutorService scheduler;
+
+    public WorkerService(VideoProcessingService videoProcessingService, ObjectMapper objectMapper,
+            ExecutionThreads executionThreads) {
+        this.videoProcessingService = videoProcessingService;
+        this.objectMapper = objectMapper;
+        this.executionThreads = executionThreads;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (coordinatorUrl == null || coordinatorUrl.isBlank()) {
+            throw new IllegalStateException("vcp.cluster.coordinator-url is required for a worker");
+        }
+        if (advertisedUrl == null || advertisedUrl.isBlank()) {
+            throw new IllegalStateException("vcp.cluster.worker.advertised-url is required to register with "
+                + coordinatorUrl);
+        }
+        if (token == null || token.isBlank()) {
+            throw new IllegalStateException("vcp.cluster.token is required for a worker");
+        }
+        if (workerId == null || workerId.isBlank()) {
+            workerId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+
+        Path workerDir = Paths.get(videoProcessingService.getUploadDirectory(), ".worker");
+        sourcesDir = workerDir.resolve("sources");
+        tasksDir = workerDir.resolve("tasks");
+        Files.createDirectories(sourcesDir);
+        Files.createDirectories(tasksDir);
+        reclaim();
+
+        // No queue: a task either gets a slot right away or is turned down
+        executor = new ThreadPoolExecutor(slots, slots, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+            executionThreads.factory("vcp-task"));
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vcp-worker-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::heartbeat, 0, heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+        long purgeInterval = Math.max(1000, retention.toMillis() / 4);
+        scheduler.scheduleWithFixedDelay(this::purgeExpired, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+        log.info("Worker {} accepting tasks with {} slot(s)", workerId, slots);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                httpClient.send(coordinatorRequest(registrationPath()).DELETE().build(),
+                    HttpResponse.BodyHandlers.discarding());
+            } catch (IOException e) {
+                log.debug("Failed to deregister from {}: {}", coordinatorUrl, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Starts a task on a free slot.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException when every slot is busy
+     * @throws IllegalArgumentException when the task is malformed
+     */
+    public CompletableFuture<EncodeTaskResult> run(EncodeTask task) {
+        if (task.getId() == null || !TASK_ID.matcher(task.getId()).matches()
+                || task.getSourceHash() == null || !CONTENT_HASH.matcher(task.getSourceHash()).matches()
+                || task.getOutputs() == null || task.getOutputs().isEmpty()) {
+            throw new IllegalArgumentException("Malformed encode task");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return execute(task);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private EncodeTaskResult execute(EncodeTask task) throws IOException {
+        Path taskDir = tasksDir.resolve(task.getId());
+        running.put(task.getId(), task.getSourceHash());
+        try {
+            Path source = fetchSource(task);
+            Files.createDirectories(taskDir);
+
+            log.info("Running task {} on source {}", task.getId(), task.getSourceHash());
+            List<Long> sizes = new ArrayList<>();
+            for (Path output : videoProcessingService.getLocalWorker().run(task, source, taskDir, null)) {
+                sizes.add(Files.size(output));
+            }
+            return EncodeTaskResult.builder()
+                .id(task.getId())
+                .outputSizes(sizes)
+                .build();
+        } finally {
+            running.remove(task.getId());
+            // Retention counts from the end of the task, for the source and the outputs alike
+            Instant now = Instant.now();
+            for (Path path : List.of(taskDir, sourcesDir.resolve(task.getSourceHash()))) {
+                if (Files.exists(path)) {
+                    Files.setLastModifiedTime(path, FileTime.from(now));
+                }
+            }
+        }
+    }
+
+    public Optional<Path> getOutput(String taskId, int index) {
+        if (!enabled || !TASK_ID.matcher(taskId).matches() || index < 0) {
+            return Optional.empty();
+        }
+        Path output = tasksDir.resolve(taskId).resolve(taskId + "_r" + index + ".mkv");
+        return Files.exists(output) ? Optional.of(output) : Optional.empty();
+    }
+
+    public void discard(String taskId) throws IOException {
+        if (enabled && TASK_ID.matcher(taskId).matches()) {
+            TranscodeCache.deleteRecursively(tasksDir.resolve(taskId));
+        }
+    }
+
+    // Downloads a source from the coordinator unless an earlier task already did, verifying it
+    // against its hash
+    private Path fetchSource(EncodeTask task) throws IOException {
+        String hash = task.getSourceHash();
+        Path source = sourcesDir.resolve(hash);
+        ReentrantLock lock = sourceLocks.computeIfAbsent(hash, key -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (Files.exists(source)) {
+                Files.setLastModifiedTime(source, FileTime.from(Instant.now()));
+                return source;
+            }
+
+            Path partial = sourcesDir.resolve(hash + ".part");
+            try {
+                HttpResponse<Path> response = httpClient.send(
+                    coordinatorRequest("/api/v1/cluster/sources/" + hash).GET().build(),
+                    HttpResponse.BodyHandlers.ofFile(partial));
+                if (response.statusCode() != 200) {
+                    throw new IOException("Source download from " + coordinatorUrl + " failed with status "
+                        + response.statusCode());
+                }
+                if (!hash.equals(IngestStore.hash(partial))) {
+                    throw new IOException("Downloaded source does not match hash " + hash);
+                }
+                Files.move(partial, source, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return source;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading source", e);
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Tasks and downloads an earlier run left unfinished are not coming back: their coordinator
+    // has given them to another worker by now
+    private void reclaim() throws IOException {
+        try (Stream<Path> children = Stream.concat(Files.list(tasksDir), Files.list(sourcesDir)
+                .filter(path -> path.getFileName().toString().endsWith(".part")))) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                TranscodeCache.deleteRecursively(child);
+                log.debug("Removed abandoned worker file {}", child.getFileName());
+            }
+        }
+    }
+
+    // Deletes what has gone unused for the retention period, except what running tasks use:
+    // their directories and sources, and the downloads in progress for them
+    private void purgeExpired() {
+        Instant cutoff = Instant.now().minus(retention);
+        try (Stream<Path> children = Files.list(tasksDir)) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                if (!running.containsKey(child.getFileName().toString())) {
+                    purgeIfExpired(child, cutoff);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to purge {}: {}", tasksDir, e.getMessage());
+        }
+
+        try (Stream<Path> children = Files.list(sourcesDir)) {
+            for (Path child : (Iterable<Path>) children::iterator) {
+                String hash = child.getFileName().toString().replaceFirst("\\.part$", "");
+                // Under the download lock, so a task cannot pick up the source while it is deleted
+                ReentrantLock lock = sourceLocks.computeIfAbsent(hash, key -> new ReentrantLock());
+                if (!lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    if (!running.containsValue(hash)) {
+                        purgeIfExpired(child, cutoff);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to purge {}: {}", sourcesDir, e.getMessage());
+        }
+    }
+
+    private void purgeIfExpired(Path path, Instant cutoff) throws IOException {
+        if (Files.exists(path) && Files.getLastModifiedTime(path).toInstant().isBefore(cutoff)) {
+            TranscodeCache.deleteRecursively(path);
+            log.debug("Removed expired worker file {}", path.getFileName());
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            WorkerRegistration registration = WorkerRegistration.builder()
+                .url(advertisedUrl)
+                .slots(slots)
+                .build();
+            HttpResponse<String> response = httpClient.send(coordinatorRequest(registrationPath())
+                    .header("Content-Type", "application/json")
+                    .PUT(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(registration)))
+                    .build(),
+                HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                log.warn("Coordinator {} refused heartbeat with status {}: {}", coordinatorUrl,
+                    response.statusCode(), response.body());
+            }
+        } catch (IOException e) {
+            log.warn("Heartbeat to {} failed: {}", coordinatorUrl, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String registrationPath() {
+        return "/api/v1/cluster/workers/" + workerId;
+    }
+
+    private HttpRequest.Builder coordinatorRequest(String path) {
+        String base = coordinatorUrl.endsWith("/") ? coordinatorUrl.substring(0, coordinatorUrl.length() - 1)
+            : coordinatorUrl;
+        return HttpRequest.newBuilder(URI.create(base + path))
+            .header("Authorization", "Bearer " + token);
+    }
+}
@@ -0,0 +1,143 @@
+package com.videocompression.app.batch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.CompressionResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Results manifests written by one run and read back by the next, which skips the sources they
+ * record as done. Lines are written here the way the runner records them, plus the partial last
+ * line a killed run leaves behind.
+ */
+class BatchRunnerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void csvValuesRoundTrip() throws IOException {
+        BatchRunner runner = runner(true);
+        CompressionResult output = output("clip, \"final\".mp4", "/out/clip, \"final\"_720p.mp4");
+
+        List<String> values = BatchRunner.parseCsv(
+            runner.line(dir.resolve("a, b.mp4"), new BatchRunner.Stamp(100, 200), null, output));
+
+        assertThat(values).hasSize(15);
+        assertThat(values.subList(0, 6)).containsExactly(dir.resolve("a, b.mp4").toString(), "100", "200", "",
+            "clip, \"final\".mp4", "720p");
+        assertThat(values.get(12)).isEqualTo("/out/clip, \"final\"_720p.mp4");
+        assertThat(values.get(14)).isEmpty();
+    }
+
+    @Test
+    void csvValuesStayOnOneLine() {
+        assertThat(BatchRunner.csvValue("plain")).isEqualTo("plain");
+        assertThat(BatchRunner.csvValue("a,b")).isEqualTo("\"a,b\"");
+        assertThat(BatchRunner.csvValue("say \"hi\"")).isEqualTo("\"say \"\"hi\"\"\"");
+        assertThat(BatchRunner.csvValue("two\r\nlines")).isEqualTo("two  lines");
+        assertThat(BatchRunner.parseCsv("\"say \"\"hi\"\"\",,x")).containsExactly("say \"hi\"", "", "x");
+    }
+
+    @Test
+    void csvManifestRecordsDoneSources() throws IOException {
+        BatchRunner writer = runner(true);
+        Path results = dir.resolve("results.csv");
+        writer.openResults(results);
+        close(writer);
+        Path done = dir.resolve("done, really.mp4");
+        Path failed = dir.resolve("failed.mp4");
+        String error = writer.line(failed, new BatchRunner.Stamp(300, 400), "Encode failed, exit code 1", null);
+        append(results,
+            writer.line(done, new BatchRunner.Stamp(100, 200), null, output("done.mp4", "/out/done_720p.mp4")) + "\n",
+            error + "\n",
+            // Killed while writing the error of a second failure
+            error.substring(0, error.indexOf("\"Encode")));
+
+        BatchRunner reader = runner(true);
+        reader.openResults(results);
+        close(reader);
+
+        assertThat(done(reader)).containsOnlyKeys(done.toString());
+        assertThat(done(reader).get(done.toString())).isEqualTo(new BatchRunner.Stamp(100, 200));
+        // The partial line is ended, so the next record starts a line of its own
+        assertThat(Files.readString(results)).endsWith("\"Encode failed, exit code 1\"\n" + failed + ",300,400,\n");
+    }
+
+    @Test
+    void jsonlManifestRecordsDoneSources() throws IOException {
+        BatchRunner writer = runner(false);
+        Path results = dir.resolve("results.jsonl");
+        Path done = dir.resolve("done.mp4");
+        Path failed = dir.resolve("failed.mp4");
+        String success = writer.line(done, new BatchRunner.Stamp(100, 200), null, output("done.mp4", "/out/done.mp4"));
+        append(results,
+            success + "\n",
+            writer.line(failed, new BatchRunner.Stamp(300, 400), "Encode failed", null) + "\n",
+            success.replace(done.toString(), dir.resolve("partial.mp4").toString()).substring(0, success.length() / 2));
+
+        BatchRunner reader = runner(false);
+        reader.openResults(results);
+        close(reader);
+
+        assertThat(done(reader)).containsOnlyKeys(done.toString());
+        assertThat(Files.readString(results)).endsWith("\n");
+    }
+
+    @Test
+    void newCsvManifestStartsWithItsHeader() throws IOException {
+        BatchRunner runner = runner(true);
+        Path results = dir.resolve("nested/results.csv");
+
+        runner.openResults(results);
+        close(runner);
+
+        assertThat(Files.readAllLines(results)).singleElement().asString().startsWith("source,sourceSize,");
+        runner.loadRecord(Files.readAllLines(results).get(0));
+        assertThat(done(runner)).isEmpty();
+    }
+
+    // Helpers
+
+    private static BatchRunner runner(boolean csv) {
+        BatchRunner runner = new BatchRunner(null, null, null, new ObjectMapper());
+        ReflectionTestUtils.setField(runner, "csv", csv);
+        return runner;
+    }
+
+    private static CompressionResult output(String fileName, String outputPath) {
+        return CompressionResult.builder()
+            .fileName(fileName)
+            .resolution("720p")
+            .originalSize(1000)
+            .compressedSize(400)
+            .compressionRatio(60.0)
+            .outputPath(outputPath)
+            .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, BatchRunner.Stamp> done(BatchRunner runner) {
+        return (Map<String, BatchRunner.Stamp>) ReflectionTestUtils.getField(runner, "done");
+    }
+
+    private static void close(BatchRunner runner) throws IOException {
+        ((Writer) ReflectionTestUtils.getField(runner, "results")).close();
+    }
+
+    private static void append(Path file, String... parts) throws IOException {
+        Files.writeString(file, Files.exists(file) ? Files.readString(file) + String.join("", parts)
+            : String.join("", parts), StandardCharsets.UTF_8);
+    }
+}
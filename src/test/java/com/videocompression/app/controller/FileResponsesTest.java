@@ -0,0 +1,54 @@
+package com.videocompression.app.controller;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Range headers against a 1000-byte file. A range comes back as its start and exclusive end, an
+ * empty array means nothing in the file can be served, and null means the whole file is sent.
+ */
+class FileResponsesTest {
+
+    private static final long LENGTH = 1000;
+
+    @Test
+    void closedRange() {
+        assertThat(FileResponses.parseRange("bytes=0-99", LENGTH)).containsExactly(0, 100);
+        assertThat(FileResponses.parseRange("bytes=999-999", LENGTH)).containsExactly(999, 1000);
+    }
+
+    @Test
+    void suffixRangeCountsFromTheEnd() {
+        assertThat(FileResponses.parseRange("bytes=-100", LENGTH)).containsExactly(900, 1000);
+        // Longer than the file: all of it
+        assertThat(FileResponses.parseRange("bytes=-5000", LENGTH)).containsExactly(0, 1000);
+        assertThat(FileResponses.parseRange("bytes=-0", LENGTH)).isEmpty();
+    }
+
+    @Test
+    void openEndedRangeRunsToTheEnd() {
+        assertThat(FileResponses.parseRange("bytes=500-", LENGTH)).containsExactly(500, 1000);
+        assertThat(FileResponses.parseRange("bytes=0-", LENGTH)).containsExactly(0, 1000);
+    }
+
+    @Test
+    void rangePastTheEnd() {
+        // An end beyond the file is cut to it; a start beyond it cannot be satisfied
+        assertThat(FileResponses.parseRange("bytes=900-5000", LENGTH)).containsExactly(900, 1000);
+        assertThat(FileResponses.parseRange("bytes=1000-", LENGTH)).isEmpty();
+        assertThat(FileResponses.parseRange("bytes=2000-3000", LENGTH)).isEmpty();
+    }
+
+    @Test
+    void multipleRangesGetTheWholeFile() {
+        assertThat(FileResponses.parseRange("bytes=0-1,5-6", LENGTH)).isNull();
+    }
+
+    @Test
+    void malformedRangesGetTheWholeFile() {
+        assertThat(FileResponses.parseRange("items=0-1", LENGTH)).isNull();
+        assertThat(FileResponses.parseRange("bytes=abc", LENGTH)).isNull();
+        assertThat(FileResponses.parseRange("bytes=5-2", LENGTH)).isNull();
+    }
+}
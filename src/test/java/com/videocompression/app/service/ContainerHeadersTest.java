@@ -0,0 +1,363 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.MediaInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Reads headers from files built here byte by byte, so each layout the reader relies on is spelled
+ * out next to what it should give.
+ */
+class ContainerHeadersTest {
+
+    @TempDir
+    Path dir;
+
+    // MP4: a 1920x1080 H.264 track at 30 fps and an AAC track, 10 seconds long
+
+    @Test
+    void readsMp4FromDisk() throws IOException {
+        Path file = dir.resolve("video.mp4");
+        Files.write(file, concat(box("ftyp", ascii("isom"), new byte[4]), mp4Moov(), box("mdat", new byte[64])));
+
+        MediaInfo info = ContainerHeaders.read(file).orElseThrow();
+
+        assertThat(info.getFormatName()).isEqualTo(ContainerHeaders.MP4_FORMAT);
+        assertThat(info.getDuration()).isCloseTo(10.0, within(1e-9));
+        assertThat(info.getVideoCodec()).isEqualTo("h264");
+        assertThat(info.getVideoStreamIndex()).isZero();
+        assertThat(info.getWidth()).isEqualTo(1920);
+        assertThat(info.getHeight()).isEqualTo(1080);
+        assertThat(info.getFrameRate()).isCloseTo(30.0, within(1e-9));
+        assertThat(info.getAudioCodec()).isEqualTo("aac");
+        assertThat(info.getAudioChannels()).isEqualTo(2);
+        assertThat(info.getAudioSampleRate()).isEqualTo(48000);
+    }
+
+    @Test
+    void readsMp4MoovFromTheTailRange() throws IOException {
+        // The mdat between the ranges is never sent; only its declared size is stepped over
+        byte[] ftyp = box("ftyp", ascii("isom"), new byte[4]);
+        int mdatSize = 10 * 1024 * 1024;
+        byte[] mdatHeader = ByteBuffer.allocate(8).putInt(mdatSize).put(ascii("mdat")).array();
+        byte[] moov = mp4Moov();
+        long size = ftyp.length + mdatSize + moov.length;
+
+        Optional<MediaInfo> info = ContainerHeaders.read(concat(ftyp, mdatHeader, new byte[4096]), moov, size);
+
+        assertThat(info).isPresent();
+        assertThat(info.get().getWidth()).isEqualTo(1920);
+        assertThat(info.get().getHeight()).isEqualTo(1080);
+    }
+
+    @Test
+    void mp4WithoutMoovInTheRangesIsUnreadable() throws IOException {
+        byte[] ftyp = box("ftyp", ascii("isom"), new byte[4]);
+        byte[] mdatHeader = ByteBuffer.allocate(8).putInt(10 * 1024 * 1024).put(ascii("mdat")).array();
+        byte[] moov = mp4Moov();
+        long size = ftyp.length + 10 * 1024 * 1024 + moov.length;
+
+        assertThat(ContainerHeaders.read(concat(ftyp, mdatHeader, new byte[4096]), new byte[16], size)).isEmpty();
+    }
+
+    private static byte[] mp4Moov() {
+        ByteBuffer mvhd = ByteBuffer.allocate(100).putInt(12, 1000).putInt(16, 10_000);
+
+        ByteBuffer videoEntry = ByteBuffer.allocate(78).putShort(6, (short) 1)
+            .putShort(24, (short) 1920).putShort(26, (short) 1080);
+        byte[] video = box("trak", box("mdia",
+            box("mdhd", ByteBuffer.allocate(24).putInt(12, 30).putInt(16, 300).array()),
+            box("hdlr", ByteBuffer.allocate(24).put(8, ascii("vide")).array()),
+            box("minf", box("stbl",
+                box("stsd", ByteBuffer.allocate(8).putInt(4, 1).array(), box("avc1", videoEntry.array())),
+                box("stts", ByteBuffer.allocate(16).putInt(4, 1).putInt(8, 300).putInt(12, 1).array())))));
+
+        ByteBuffer audioEntry = ByteBuffer.allocate(28).putShort(6, (short) 1)
+            .putShort(16, (short) 2).putShort(18, (short) 16).putInt(24, 48000 << 16);
+        byte[] audio = box("trak", box("mdia",
+            box("hdlr", ByteBuffer.allocate(24).put(8, ascii("soun")).array()),
+            box("minf", box("stbl",
+                box("stsd", ByteBuffer.allocate(8).putInt(4, 1).array(), box("mp4a", audioEntry.array()))))));
+
+        return box("moov", box("mvhd", mvhd.array()), video, audio);
+    }
+
+    private static byte[] box(String type, byte[]... contents) {
+        byte[] content = concat(contents);
+        return ByteBuffer.allocate(8 + content.length).putInt(8 + content.length).put(ascii(type)).put(content)
+            .array();
+    }
+
+    // Matroska: a 1280x720 VP9 track at 30 fps and an Opus track, 10 seconds long
+
+    private static final long SEGMENT = 0x18538067L;
+    private static final long SEEK_HEAD = 0x114D9B74L;
+    private static final long INFO = 0x1549A966L;
+    private static final long TRACKS = 0x1654AE6BL;
+    private static final long CLUSTER = 0x1F43B675L;
+
+    @Test
+    void readsMatroskaWithHeadersBeforeTheClusters() throws IOException {
+        byte[] file = concat(ebmlHeader(), element(SEGMENT, matroskaInfo(), matroskaTracks(),
+            element(CLUSTER, uint(0xE7, 0))));
+
+        MediaInfo info = ContainerHeaders.read(file, new byte[0], file.length).orElseThrow();
+
+        assertMatroska(info);
+    }
+
+    @Test
+    void followsTheSeekHeadToHeadersAfterTheClusters() throws IOException {
+        byte[] cluster = element(CLUSTER, uint(0xE7, 0), element(0xA3, new byte[32]));
+        byte[] info = matroskaInfo();
+        int seekHeadSize = seekHead(0, 0).length;
+        byte[] seekHead = seekHead(seekHeadSize + cluster.length, seekHeadSize + cluster.length + info.length);
+        byte[] file = concat(ebmlHeader(), element(SEGMENT, seekHead, cluster, info, matroskaTracks()));
+
+        MediaInfo read = ContainerHeaders.read(file, new byte[0], file.length).orElseThrow();
+
+        assertMatroska(read);
+    }
+
+    private static void assertMatroska(MediaInfo info) {
+        assertThat(info.getFormatName()).isEqualTo(ContainerHeaders.MATROSKA_FORMAT);
+        assertThat(info.getDuration()).isCloseTo(10.0, within(1e-9));
+        assertThat(info.getVideoCodec()).isEqualTo("vp9");
+        assertThat(info.getWidth()).isEqualTo(1280);
+        assertThat(info.getHeight()).isEqualTo(720);
+        assertThat(info.getFrameRate()).isCloseTo(30.0, within(1e-3));
+        assertThat(info.getAudioCodec()).isEqualTo("opus");
+        assertThat(info.getAudioChannels()).isEqualTo(2);
+        assertThat(info.getAudioSampleRate()).isEqualTo(48000);
+    }
+
+    private static byte[] ebmlHeader() {
+        return element(0x1A45DFA3L, element(0x4282, ascii("webm")));
+    }
+
+    private static byte[] matroskaInfo() {
+        // Timestamps in milliseconds, the duration as a 4-byte float of them
+        return element(INFO, uint(0x2AD7B1, 1_000_000), element(0x4489,
+            ByteBuffer.allocate(4).putFloat(10_000f).array()));
+    }
+
+    private static byte[] matroskaTracks() {
+        byte[] video = element(0xAE, uint(0x83, 1), element(0x86, ascii("V_VP9")), uint(0x23E383, 33_333_333),
+            element(0xE0, uint(0xB0, 1280), uint(0xBA, 720)));
+        byte[] audio = element(0xAE, uint(0x83, 2), element(0x86, ascii("A_OPUS")),
+            element(0xE1, element(0xB5, ByteBuffer.allocate(8).putDouble(48000).array()), uint(0x9F, 2)));
+        return element(TRACKS, video, audio);
+    }
+
+    // Positions are relative to the start of the segment's data
+    private static byte[] seekHead(long infoPosition, long tracksPosition) {
+        return element(SEEK_HEAD,
+            element(0x4DBB, element(0x53AB, id(INFO)), uint(0x53AC, infoPosition)),
+            element(0x4DBB, element(0x53AB, id(TRACKS)), uint(0x53AC, tracksPosition)));
+    }
+
+    // Every size is written as an 8-byte variable-size integer, so sizes never change an offset
+    private static byte[] element(long id, byte[]... contents) {
+        byte[] content = concat(contents);
+        ByteBuffer size = ByteBuffer.allocate(8).putLong(content.length);
+        size.put(0, (byte) 0x01);
+        return concat(id(id), size.array(), content);
+    }
+
+    private static byte[] uint(long id, long value) {
+        return element(id, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    private static byte[] id(long id) {
+        int length = (64 - Long.numberOfLeadingZeros(id) + 7) / 8;
+        return Arrays.copyOfRange(ByteBuffer.allocate(8).putLong(id).array(), 8 - length, 8);
+    }
+
+    // MPEG-TS: a program with a 1920x1080 H.264 stream and an AAC stream, 10 seconds long
+
+    private static final int PMT_PID = 0x100;
+    private static final int VIDEO_PID = 0x101;
+
+    @Test
+    void readsTransportStream() throws IOException {
+        byte[] file = concat(pat(), pmt(), videoPacket(90_000, 5), nullPacket(), nullPacket(),
+            videoPacket(90_000 + 10 * 90_000, 5));
+
+        MediaInfo info = ContainerHeaders.read(file, new byte[0], file.length).orElseThrow();
+
+        assertThat(info.getFormatName()).isEqualTo(ContainerHeaders.MPEGTS_FORMAT);
+        assertThat(info.getVideoCodec()).isEqualTo("h264");
+        assertThat(info.getWidth()).isEqualTo(1920);
+        assertThat(info.getHeight()).isEqualTo(1080);
+        assertThat(info.getAudioCodec()).isEqualTo("aac");
+        assertThat(info.getDuration()).isCloseTo(10.0, within(1e-9));
+    }
+
+    @Test
+    void readsM2tsWithTimestampedPackets() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (byte[] packet : new byte[][] {pat(), pmt(), videoPacket(90_000, 5), nullPacket()}) {
+            file.writeBytes(new byte[4]);
+            file.writeBytes(packet);
+        }
+        byte[] bytes = file.toByteArray();
+
+        MediaInfo info = ContainerHeaders.read(bytes, new byte[0], bytes.length).orElseThrow();
+
+        assertThat(info.getWidth()).isEqualTo(1920);
+        assertThat(info.getHeight()).isEqualTo(1080);
+    }
+
+    @Test
+    void pesHeaderLongerThanItsPacketIsUnreadable() throws IOException {
+        // A header length of 255 points past the end of the 188-byte packet
+        byte[] file = concat(pat(), pmt(), videoPacket(90_000, 255), nullPacket());
+
+        assertThat(ContainerHeaders.read(file, new byte[0], file.length)).isEmpty();
+    }
+
+    private static byte[] pat() {
+        ByteBuffer packet = packet(0);
+        // Pointer field, then table 0 with program 1 on the PMT PID; the CRC is not checked
+        packet.put((byte) 0).put((byte) 0x00).putShort((short) (0xB000 | 13)).putShort((short) 1)
+            .put((byte) 0xC1).put((byte) 0).put((byte) 0)
+            .putShort((short) 1).putShort((short) (0xE000 | PMT_PID)).putInt(0);
+        return packet.array();
+    }
+
+    private static byte[] pmt() {
+        ByteBuffer packet = packet(PMT_PID);
+        packet.put((byte) 0).put((byte) 0x02).putShort((short) (0xB000 | 23)).putShort((short) 1)
+            .put((byte) 0xC1).put((byte) 0).put((byte) 0)
+            .putShort((short) (0xE000 | VIDEO_PID)).putShort((short) 0xF000)
+            .put((byte) 0x1B).putShort((short) (0xE000 | VIDEO_PID)).putShort((short) 0xF000)
+            .put((byte) 0x0F).putShort((short) (0xE000 | 0x102)).putShort((short) 0xF000)
+            .putInt(0);
+        return packet.array();
+    }
+
+    // The start of a PES packet holding a parameter set and the picture parameter set after it
+    private static byte[] videoPacket(long pts, int headerLength) {
+        ByteBuffer packet = packet(VIDEO_PID);
+        packet.put(new byte[] {0, 0, 1, (byte) 0xE0, 0, 0, (byte) 0x80, (byte) 0x80, (byte) headerLength})
+            .put((byte) (0x21 | ((pts >> 29) & 0x0E)))
+            .put((byte) (pts >> 22))
+            .put((byte) (((pts >> 14) & 0xFE) | 1))
+            .put((byte) (pts >> 7))
+            .put((byte) (((pts << 1) & 0xFE) | 1));
+        if (headerLength == 5) {
+            packet.put(new byte[] {0, 0, 0, 1}).put(h264Sps())
+                .put(new byte[] {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x38, (byte) 0x80});
+        }
+        return packet.array();
+    }
+
+    private static byte[] nullPacket() {
+        return packet(0x1FFF).array();
+    }
+
+    // A 188-byte packet starting a unit on the PID, payload only, padded with 0xFF
+    private static ByteBuffer packet(int pid) {
+        byte[] bytes = new byte[188];
+        Arrays.fill(bytes, (byte) 0xFF);
+        return ByteBuffer.wrap(bytes).put((byte) 0x47).putShort((short) (0x4000 | pid)).put((byte) 0x10);
+    }
+
+    // Baseline profile, 120x68 macroblocks cropped by 8 lines at the bottom to 1920x1080
+    private static byte[] h264Sps() {
+        BitWriter writer = new BitWriter();
+        writer.bits(0x67, 8);
+        writer.bits(66, 8);
+        writer.bits(0, 8);
+        writer.bits(40, 8);
+        writer.exp(0);
+        writer.exp(0);
+        writer.exp(0);
+        writer.exp(0);
+        writer.exp(1);
+        writer.bits(0, 1);
+        writer.exp(119);
+        writer.exp(67);
+        writer.bits(1, 1);
+        writer.bits(1, 1);
+        writer.bits(1, 1);
+        writer.exp(0);
+        writer.exp(0);
+        writer.exp(0);
+        writer.exp(4);
+        writer.bits(0, 1);
+        return escape(writer.finish());
+    }
+
+    // Inserts the emulation prevention bytes a NAL unit needs
+    private static byte[] escape(byte[] unit) {
+        ByteArrayOutputStream escaped = new ByteArrayOutputStream();
+        int zeros = 0;
+        for (byte b : unit) {
+            if (zeros >= 2 && (b & 0xFF) <= 3) {
+                escaped.write(3);
+                zeros = 0;
+            }
+            escaped.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return escaped.toByteArray();
+    }
+
+    private static final class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        void bits(long value, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >> i) & 1);
+                if (++count == 8) {
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void exp(int value) {
+            long code = value + 1L;
+            int length = 64 - Long.numberOfLeadingZeros(code);
+            bits(0, length - 1);
+            bits(code, length);
+        }
+
+        // Adds the stop bit and pads to a whole byte
+        byte[] finish() {
+            bits(1, 1);
+            while (count != 0) {
+                bits(0, 1);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+package com.videocompression.app.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * How the configured cores are split between encode processes. The load limit is set out of
+ * reach and adaptation off, so the machine running the tests does not change the arithmetic.
+ */
+class CpuSchedulerTest {
+
+    @Test
+    void allowsOneProcessPerFourCores() {
+        CpuScheduler scheduler = create(8, 0);
+
+        assertThat(scheduler.getCores()).isEqualTo(8);
+        assertThat(scheduler.getMaxProcesses()).isEqualTo(2);
+        assertThat(scheduler.getProcessCap()).isEqualTo(2);
+    }
+
+    @Test
+    void allowsAtLeastOneProcess() {
+        assertThat(create(2, 0).getMaxProcesses()).isEqualTo(1);
+        assertThat(create(1, 0).getMaxProcesses()).isEqualTo(1);
+    }
+
+    @Test
+    void configuredProcessCountWins() {
+        assertThat(create(8, 3).getMaxProcesses()).isEqualTo(3);
+    }
+
+    @Test
+    void leasesSplitTheCores() {
+        try (CpuScheduler.Lease lease = create(8, 0).acquire("x264", 1)) {
+            assertThat(lease.getThreads()).isEqualTo(4);
+        }
+        // Left over cores are not handed out
+        try (CpuScheduler.Lease lease = create(8, 3).acquire("x264", 1)) {
+            assertThat(lease.getThreads()).isEqualTo(2);
+        }
+        // Never fewer than one thread
+        try (CpuScheduler.Lease lease = create(2, 4).acquire("x264", 1)) {
+            assertThat(lease.getThreads()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void outputsSplitTheThreadsOfTheirProcess() {
+        try (CpuScheduler.Lease lease = create(8, 1).acquire("ladder", 1)) {
+            assertThat(lease.getThreads()).isEqualTo(8);
+            assertThat(lease.threadsPerOutput(1)).isEqualTo(8);
+            assertThat(lease.threadsPerOutput(3)).isEqualTo(2);
+            assertThat(lease.threadsPerOutput(16)).isEqualTo(1);
+            assertThat(lease.threadsPerOutput(0)).isEqualTo(8);
+        }
+    }
+
+    @Test
+    void acquireWaitsForARelease() throws Exception {
+        CpuScheduler scheduler = create(4, 1);
+        CpuScheduler.Lease first = scheduler.acquire("x264", 1);
+
+        CompletableFuture<CpuScheduler.Lease> second = CompletableFuture.supplyAsync(() -> scheduler.acquire("x264", 1));
+        while (scheduler.getWaitingProcesses() == 0) {
+            Thread.sleep(10);
+        }
+        assertThat(second).isNotDone();
+        assertThat(scheduler.getRunningProcesses()).isEqualTo(1);
+
+        first.close();
+
+        try (CpuScheduler.Lease lease = second.get(5, TimeUnit.SECONDS)) {
+            assertThat(lease.getThreads()).isEqualTo(4);
+            assertThat(scheduler.getRunningProcesses()).isEqualTo(1);
+            assertThat(scheduler.getWaitingProcesses()).isZero();
+        }
+        assertThat(scheduler.getRunningProcesses()).isZero();
+    }
+
+    @Test
+    void closingTwiceReleasesOnce() {
+        CpuScheduler scheduler = create(8, 2);
+        CpuScheduler.Lease first = scheduler.acquire("x264", 1);
+        CpuScheduler.Lease second = scheduler.acquire("x264", 1);
+
+        first.close();
+        first.close();
+
+        assertThat(scheduler.getRunningProcesses()).isEqualTo(1);
+        second.close();
+        assertThat(scheduler.getRunningProcesses()).isZero();
+    }
+
+    // Helpers
+
+    private static CpuScheduler create(int cores, int maxProcesses) {
+        CpuScheduler scheduler = new CpuScheduler();
+        ReflectionTestUtils.setField(scheduler, "configuredCores", cores);
+        ReflectionTestUtils.setField(scheduler, "configuredMaxProcesses", maxProcesses);
+        ReflectionTestUtils.setField(scheduler, "maxLoadPerCore", Double.MAX_VALUE);
+        ReflectionTestUtils.setField(scheduler, "adaptive", false);
+        scheduler.init();
+        return scheduler;
+    }
+}
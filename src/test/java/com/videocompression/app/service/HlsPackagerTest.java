@@ -0,0 +1,147 @@
+package com.videocompression.app.service;
+
+import net.bramp.ffmpeg.FFprobe;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Media playlists written here the way the muxer lays them out, one rendition per directory, and
+ * what is read back from them.
+ */
+class HlsPackagerTest {
+
+    @TempDir
+    Path dir;
+
+    private final HlsPackager packager = new HlsPackager(null, "fmp4", true, Duration.ofSeconds(4));
+
+    @Test
+    void measuresByteRangePlaylistsFromTheRanges() throws IOException {
+        // The media file itself is not there; byte ranges alone give the sizes
+        playlist(dir,
+            "#EXTM3U",
+            "#EXT-X-VERSION:7",
+            "#EXT-X-TARGETDURATION:4",
+            "#EXT-X-MAP:URI=\"stream.m4s\",BYTERANGE=\"800@0\"",
+            "#EXTINF:4.000000,",
+            "#EXT-X-BYTERANGE:400000@800",
+            "stream.m4s",
+            "#EXTINF:2.000000,",
+            "#EXT-X-BYTERANGE:100000@400800",
+            "stream.m4s",
+            "#EXT-X-ENDLIST");
+
+        HlsPackager.Measurement measurement = packager.measure(dir);
+
+        assertThat(measurement.size).isEqualTo(500800);
+        assertThat(measurement.duration).isCloseTo(6.0, within(1e-9));
+        assertThat(measurement.peakBitRate).isEqualTo(800000);
+        assertThat(measurement.averageBitRate()).isEqualTo(667733);
+        assertThat(measurement.firstUri).isEqualTo("stream.m4s");
+    }
+
+    @Test
+    void measuresPerFilePlaylistsFromTheSegments() throws IOException {
+        write(dir.resolve("segment0.ts"), 1000);
+        write(dir.resolve("segment1.ts"), 1500);
+        playlist(dir,
+            "#EXTM3U",
+            "#EXT-X-VERSION:4",
+            "#EXT-X-TARGETDURATION:4",
+            "#EXTINF:4.000000,",
+            "segment0.ts",
+            "#EXTINF:2.000000,",
+            "segment1.ts",
+            "#EXT-X-ENDLIST");
+
+        HlsPackager.Measurement measurement = packager.measure(dir);
+
+        assertThat(measurement.size).isEqualTo(2500);
+        assertThat(measurement.duration).isCloseTo(6.0, within(1e-9));
+        // The shorter segment has the higher rate
+        assertThat(measurement.peakBitRate).isEqualTo(6000);
+        assertThat(measurement.averageBitRate()).isEqualTo(3333);
+        assertThat(measurement.firstUri).isEqualTo("segment0.ts");
+    }
+
+    @Test
+    void countsTheInitSectionOfPerFilePlaylists() throws IOException {
+        write(dir.resolve("init.mp4"), 700);
+        write(dir.resolve("segment0.m4s"), 1000);
+        playlist(dir,
+            "#EXTM3U",
+            "#EXT-X-MAP:URI=\"init.mp4\"",
+            "#EXTINF:4.0,",
+            "segment0.m4s",
+            "#EXT-X-ENDLIST");
+
+        HlsPackager.Measurement measurement = packager.measure(dir);
+
+        assertThat(measurement.size).isEqualTo(1700);
+        assertThat(measurement.peakBitRate).isEqualTo(2000);
+        assertThat(measurement.firstUri).isEqualTo("init.mp4");
+    }
+
+    @Test
+    void measuresEmptyPlaylists() throws IOException {
+        playlist(dir, "#EXTM3U", "#EXT-X-ENDLIST");
+
+        HlsPackager.Measurement measurement = packager.measure(dir);
+
+        assertThat(measurement.size).isZero();
+        assertThat(measurement.averageBitRate()).isZero();
+        assertThat(measurement.firstUri).isNull();
+    }
+
+    @Test
+    void writesMasterFromTheMeasurements() throws IOException {
+        FFprobe ffprobe = mock(FFprobe.class);
+        when(ffprobe.probe(anyString())).thenThrow(new IOException("not a media file"));
+        HlsPackager mpegts = new HlsPackager(ffprobe, "mpegts", false, Duration.ofSeconds(4));
+        Path rendition = dir.resolve("video_720p");
+        write(rendition.resolve("segment0.ts"), 1000);
+        playlist(rendition, "#EXTM3U", "#EXTINF:4.0,", "segment0.ts", "#EXT-X-ENDLIST");
+        Path master = dir.resolve("video_master.m3u8");
+
+        mpegts.writeMaster(master, List.of(new HlsPackager.Variant(rendition, 1280, 720, 30)));
+
+        // Codecs that cannot be told are left out rather than guessed
+        assertThat(Files.readAllLines(master)).containsExactly(
+            "#EXTM3U",
+            "#EXT-X-VERSION:4",
+            "#EXT-X-INDEPENDENT-SEGMENTS",
+            "#EXT-X-STREAM-INF:BANDWIDTH=2000,AVERAGE-BANDWIDTH=2000,RESOLUTION=1280x720,FRAME-RATE=30.000",
+            "video_720p/stream.m3u8");
+    }
+
+    @Test
+    void rejectsUnknownSegmentTypes() {
+        assertThatThrownBy(() -> new HlsPackager(null, "webm", false, Duration.ofSeconds(4)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    // Helpers
+
+    private static void playlist(Path directory, String... lines) throws IOException {
+        Files.createDirectories(directory);
+        Files.write(directory.resolve(HlsPackager.MEDIA_PLAYLIST), List.of(lines));
+    }
+
+    private static void write(Path file, int size) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+    }
+}
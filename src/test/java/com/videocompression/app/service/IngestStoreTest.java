@@ -0,0 +1,147 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.IngestedFile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reference counting of stored uploads, committed from staging files written here.
+ */
+class IngestStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private IngestStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = open();
+    }
+
+    @Test
+    void storesContentUnderItsHash() throws IOException {
+        IngestedFile file = commit("video");
+
+        assertThat(file.getPath()).isEqualTo(dir.resolve(IngestStore.hash(file.getPath()) + ".mp4"));
+        assertThat(file.getPath()).hasContent("video");
+        assertThat(file.getSize()).isEqualTo(5);
+        assertThat(store.find(file.getContentHash())).contains(file);
+    }
+
+    @Test
+    void sharesIdenticalContent() throws IOException {
+        Path staged = stage("video");
+        IngestedFile first = store.commit(staged, ".mp4");
+        Path again = stage("video");
+        IngestedFile second = store.commit(again, ".mp4");
+
+        assertThat(second).isSameAs(first);
+        assertThat(again).doesNotExist();
+        assertThat(store.getStoredFileCount()).isEqualTo(1);
+    }
+
+    @Test
+    void deletesTheFileWithTheLastReference() throws IOException {
+        IngestedFile file = commit("video");
+        commit("video");
+        store.retain(file);
+
+        store.release(file);
+        store.release(file);
+        assertThat(file.getPath()).exists();
+        assertThat(store.getStoredFileCount()).isEqualTo(1);
+
+        store.release(file);
+        assertThat(file.getPath()).doesNotExist();
+        assertThat(store.find(file.getContentHash())).isEmpty();
+        assertThat(store.getStoredFileCount()).isZero();
+    }
+
+    @Test
+    void releasingMoreThanRetainedDoesNothing() throws IOException {
+        IngestedFile file = commit("video");
+        store.release(file);
+
+        store.release(file);
+
+        assertThat(store.getStoredFileCount()).isZero();
+    }
+
+    @Test
+    void retainNeedsAReferenceStillHeld() throws IOException {
+        IngestedFile file = commit("video");
+        store.release(file);
+
+        assertThatThrownBy(() -> store.retain(file)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void storesContentAgainAfterItWasDeleted() throws IOException {
+        IngestedFile file = commit("video");
+        store.release(file);
+
+        IngestedFile again = commit("video");
+
+        assertThat(again).isNotSameAs(file);
+        assertThat(again.getPath()).hasContent("video");
+    }
+
+    @Test
+    void adoptedFilesSurviveReclaim() throws IOException {
+        IngestedFile file = commit("kept");
+        Path resumed = Files.writeString(dir.resolve("resumed.mp4"), "resumed");
+        Path orphan = Files.writeString(dir.resolve("orphan.mp4"), "orphan");
+        Path partial = stage("partial");
+
+        IngestedFile adopted = store.adopt(IngestStore.hash(resumed), resumed).orElseThrow();
+        store.reclaim();
+
+        assertThat(file.getPath()).exists();
+        assertThat(adopted.getPath()).exists();
+        assertThat(orphan).doesNotExist();
+        assertThat(partial).doesNotExist();
+
+        store.release(adopted);
+        assertThat(resumed).doesNotExist();
+    }
+
+    @Test
+    void adoptsOnlyFilesInTheStore() throws IOException {
+        Path outside = Files.writeString(Files.createDirectories(dir.resolve("elsewhere")).resolve("video.mp4"),
+            "video");
+
+        assertThat(store.adopt(IngestStore.hash(outside), outside)).isEmpty();
+        assertThat(store.adopt("missing", dir.resolve("missing.mp4"))).isEmpty();
+    }
+
+    // Helpers
+
+    private IngestStore open() throws IOException {
+        VideoProcessingService videoProcessingService = mock(VideoProcessingService.class);
+        when(videoProcessingService.getUploadDirectory()).thenReturn(dir.toString());
+        IngestStore opened = new IngestStore(videoProcessingService, new PipelineMetrics(new SimpleMeterRegistry()));
+        opened.init();
+        return opened;
+    }
+
+    private IngestedFile commit(String content) throws IOException {
+        return store.commit(stage(content), ".mp4");
+    }
+
+    private Path stage(String content) throws IOException {
+        return Files.writeString(store.newStagingPath(".mp4"), content, StandardCharsets.UTF_8);
+    }
+}
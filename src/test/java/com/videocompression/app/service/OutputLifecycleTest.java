@@ -0,0 +1,200 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tracking and eviction of outputs written here as plain files and directories. Sweeps are run
+ * by hand rather than on the sweeper's schedule.
+ */
+class OutputLifecycleTest {
+
+    @TempDir
+    Path dir;
+
+    private OutputLifecycle lifecycle;
+
+    @BeforeEach
+    void setUp() {
+        lifecycle = create(DataSize.ofMegabytes(1), Duration.ZERO);
+    }
+
+    @Test
+    void registersOutputsAsOneUnit() throws IOException {
+        Path file = write(dir.resolve("video_720p.mp4"), 100);
+        Path hls = dir.resolve("video_hls");
+        Path playlist = write(hls.resolve("720p.m3u8"), 10);
+        write(hls.resolve("720p_000.ts"), 90);
+
+        lifecycle.register(List.of(file, hls));
+
+        assertThat(lifecycle.getUnitCount()).isEqualTo(1);
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(200);
+        assertThat(lifecycle.isRegistered(file)).isTrue();
+        assertThat(lifecycle.isRegistered(playlist)).isTrue();
+        assertThat(lifecycle.isRegistered(dir.resolve("other.mp4"))).isFalse();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedUnitOverBudget() throws IOException {
+        lifecycle = create(DataSize.ofBytes(250), Duration.ZERO);
+        Path a = register("a.mp4", 100);
+        Path b = register("b.mp4", 100);
+        // A download of a makes b the least recently used
+        lifecycle.touch(a);
+
+        Path c = register("c.mp4", 100);
+
+        assertThat(b).doesNotExist();
+        assertThat(lifecycle.isRegistered(b)).isFalse();
+        assertThat(a).exists();
+        assertThat(c).exists();
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(200);
+        assertThat(lifecycle.getEvictedUnits()).isEqualTo(1);
+        assertThat(lifecycle.getEvictedBytes()).isEqualTo(100);
+    }
+
+    @Test
+    void keepsWhatWasJustRegisteredEvenOverBudget() throws IOException {
+        lifecycle = create(DataSize.ofBytes(50), Duration.ZERO);
+
+        Path a = register("a.mp4", 100);
+
+        assertThat(a).exists();
+        assertThat(lifecycle.isRegistered(a)).isTrue();
+    }
+
+    @Test
+    void sweepExpiresOutputsPastTheirTimeToLive() throws IOException {
+        Path old = write(dir.resolve("old.mp4"), 100);
+        Files.writeString(dir.resolve(".outputs.json"),
+            "[{\"members\":{\"old.mp4\":100},\"lastAccess\":1000}]", StandardCharsets.UTF_8);
+        lifecycle = create(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        lifecycle.open(dir);
+        Path fresh = register("fresh.mp4", 100);
+
+        ReflectionTestUtils.invokeMethod(lifecycle, "sweep");
+
+        assertThat(old).doesNotExist();
+        assertThat(fresh).exists();
+        assertThat(lifecycle.getUnitCount()).isEqualTo(1);
+        assertThat(lifecycle.getEvictedUnits()).isEqualTo(1);
+    }
+
+    @Test
+    void nothingIsEvictedWhenDisabled() throws IOException {
+        lifecycle = create(DataSize.ofBytes(50), Duration.ZERO);
+        ReflectionTestUtils.setField(lifecycle, "enabled", false);
+        Path a = register("a.mp4", 100);
+        Path b = register("b.mp4", 100);
+
+        ReflectionTestUtils.invokeMethod(lifecycle, "sweep");
+
+        assertThat(a).exists();
+        assertThat(b).exists();
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(200);
+    }
+
+    @Test
+    void releasedOutputsAreRestoredWhenNotRewritten() throws IOException {
+        Path a = write(dir.resolve("a.mp4"), 100);
+        Path b = write(dir.resolve("b.mp4"), 50);
+        lifecycle.register(List.of(a, b));
+
+        List<List<Path>> released = lifecycle.release(List.of(a));
+
+        assertThat(released).containsExactly(List.of(a));
+        assertThat(lifecycle.isRegistered(a)).isFalse();
+        assertThat(lifecycle.isRegistered(b)).isTrue();
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(50);
+
+        lifecycle.restore(released);
+
+        assertThat(lifecycle.isRegistered(a)).isTrue();
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(150);
+    }
+
+    @Test
+    void restoreLeavesRewrittenAndDeletedOutputsAlone() throws IOException {
+        Path a = register("a.mp4", 100);
+        Path b = register("b.mp4", 50);
+        List<List<Path>> released = lifecycle.release(List.of(a, b));
+        assertThat(released).hasSize(2);
+
+        // a is written anew and registered by its encode, b is gone
+        write(a, 120);
+        lifecycle.register(List.of(a));
+        Files.delete(b);
+        lifecycle.restore(released);
+
+        assertThat(lifecycle.isRegistered(a)).isTrue();
+        assertThat(lifecycle.isRegistered(b)).isFalse();
+        assertThat(lifecycle.getUnitCount()).isEqualTo(1);
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(120);
+    }
+
+    @Test
+    void registeringAgainMovesOutputsToTheNewUnit() throws IOException {
+        Path a = write(dir.resolve("a.mp4"), 100);
+        Path b = write(dir.resolve("b.mp4"), 50);
+        lifecycle.register(List.of(a, b));
+
+        write(a, 80);
+        lifecycle.register(List.of(a));
+
+        assertThat(lifecycle.getUnitCount()).isEqualTo(2);
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(130);
+    }
+
+    @Test
+    void indexSurvivesARestart() throws IOException {
+        Path a = register("a.mp4", 100);
+        register("b.mp4", 50);
+        write(dir.resolve("stray.mp4"), 10);
+        Files.delete(dir.resolve("b.mp4"));
+        lifecycle.shutdown();
+
+        lifecycle = create(DataSize.ofMegabytes(1), Duration.ZERO);
+        lifecycle.open(dir);
+
+        assertThat(lifecycle.getUnitCount()).isEqualTo(1);
+        assertThat(lifecycle.getTotalBytes()).isEqualTo(100);
+        assertThat(lifecycle.isRegistered(a)).isTrue();
+        // Files the index does not list are never taken over
+        assertThat(lifecycle.isRegistered(dir.resolve("stray.mp4"))).isFalse();
+    }
+
+    // Helpers
+
+    private static OutputLifecycle create(DataSize maxSize, Duration ttl) {
+        OutputLifecycle created = new OutputLifecycle(new ObjectMapper());
+        ReflectionTestUtils.setField(created, "enabled", true);
+        ReflectionTestUtils.setField(created, "maxSize", maxSize);
+        ReflectionTestUtils.setField(created, "ttl", ttl);
+        return created;
+    }
+
+    private Path register(String name, int size) throws IOException {
+        Path file = write(dir.resolve(name), size);
+        lifecycle.register(List.of(file));
+        return file;
+    }
+
+    private static Path write(Path file, int size) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, new byte[size]);
+    }
+}
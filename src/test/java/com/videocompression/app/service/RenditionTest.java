@@ -0,0 +1,77 @@
+package com.videocompression.app.service;
+
+import com.videocompression.app.model.CompressionConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * The filter graph a ladder is encoded with, and the per-output measures taken from it.
+ */
+class RenditionTest {
+
+    @Test
+    void scalesIntoTheFrameKeepingTheAspectRatio() {
+        Rendition rendition = rendition(config(true), 1280, 720);
+
+        assertThat(rendition.scaleFilter())
+            .isEqualTo("scale=w=1280:h=720:force_original_aspect_ratio=decrease,pad=1280:720:(ow-iw)/2:(oh-ih)/2");
+    }
+
+    @Test
+    void stretchesToTheFrameOtherwise() {
+        assertThat(rendition(config(false), 640, 360).scaleFilter()).isEqualTo("scale=w=640:h=360");
+    }
+
+    @Test
+    void splitsOneDecodeIntoABranchPerRendition() {
+        List<Rendition> ladder = List.of(
+            rendition(config(false), 1920, 1080),
+            rendition(config(false), 1280, 720),
+            rendition(config(true), 640, 360));
+
+        assertThat(Rendition.splitFilter("0:v:0", ladder)).isEqualTo(
+            "[0:v:0]split=3[src0][src1][src2]"
+                + ";[src0]scale=w=1920:h=1080[out0]"
+                + ";[src1]scale=w=1280:h=720[out1]"
+                + ";[src2]scale=w=640:h=360:force_original_aspect_ratio=decrease,pad=640:360:(ow-iw)/2:(oh-ih)/2[out2]");
+    }
+
+    @Test
+    void splitsASingleRenditionToo() {
+        assertThat(Rendition.splitFilter("0:1", List.of(rendition(config(false), 854, 480))))
+            .isEqualTo("[0:1]split=1[src0];[src0]scale=w=854:h=480[out0]");
+    }
+
+    @Test
+    void sumsThePixelRateOfTheLadder() {
+        CompressionConfig config = CompressionConfig.builder().frameRate(25).build();
+        List<Rendition> ladder = List.of(rendition(config, 1920, 1080), rendition(config, 1280, 720));
+
+        assertThat(Rendition.pixelRate(ladder)).isCloseTo((1920 * 1080 + 1280 * 720) * 25.0, within(1e-6));
+        assertThat(Rendition.workload(ladder)).isEqualTo("MEDIUM");
+    }
+
+    @Test
+    void hlsRenditionsWriteADirectoryNextToTheFile() {
+        CompressionConfig config = CompressionConfig.builder().outputFormat("m3u8").build();
+        Rendition rendition = new Rendition(config, 1280, 720, "/out/video_720p.m3u8", null);
+
+        assertThat(rendition.isHls()).isTrue();
+        assertThat(rendition.hlsDirectory()).isEqualTo("/out/video_720p_hls");
+        assertThat(rendition.mediaPlaylist()).isEqualTo("/out/video_720p_hls/" + HlsPackager.MEDIA_PLAYLIST);
+    }
+
+    // Helpers
+
+    private static CompressionConfig config(boolean maintainAspectRatio) {
+        return CompressionConfig.builder().maintainAspectRatio(maintainAspectRatio).build();
+    }
+
+    private static Rendition rendition(CompressionConfig config, int width, int height) {
+        return new Rendition(config, width, height, "/out/video_" + height + "p.mp4", null);
+    }
+}
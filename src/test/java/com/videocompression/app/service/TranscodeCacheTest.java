@@ -0,0 +1,179 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.videocompression.app.model.CompressionResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Reservations, waiters and eviction against a cache directory of its own, with outputs written
+ * here as plain files and directories.
+ */
+class TranscodeCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private TranscodeCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cache = open(DataSize.ofMegabytes(1));
+    }
+
+    @Test
+    void firstReservationOwnsTheKey() {
+        TranscodeCache.Reservation reservation = cache.reserve("a");
+
+        assertThat(reservation.owner).isTrue();
+        assertThat(reservation.cached).isNull();
+        assertThat(reservation.pending).isNull();
+    }
+
+    @Test
+    void completedKeyIsAHit() throws IOException {
+        cache.reserve("a");
+        CompressionResult result = result("a.mp4");
+        cache.complete("a", write(dir.resolve("out/a.mp4"), 100), result);
+
+        TranscodeCache.Reservation hit = cache.reserve("a");
+
+        assertThat(hit.owner).isFalse();
+        assertThat(hit.cached).isSameAs(result);
+        assertThat(cache.getEntryCount()).isEqualTo(1);
+        assertThat(cache.getTotalBytes()).isEqualTo(100);
+    }
+
+    @Test
+    void waiterGetsTheResultOfTheOwner() throws IOException {
+        cache.reserve("a");
+        TranscodeCache.Reservation waiter = cache.reserve("a");
+        assertThat(waiter.owner).isFalse();
+        assertThat(waiter.pending).isNotDone();
+
+        CompressionResult result = result("a.mp4");
+        cache.complete("a", write(dir.resolve("out/a.mp4"), 100), result);
+
+        assertThat(waiter.pending).isCompletedWithValue(result);
+    }
+
+    @Test
+    void waiterFailsWithTheOwnerAndTheKeyIsFreeAgain() {
+        cache.reserve("a");
+        CompletableFuture<CompressionResult> pending = cache.reserve("a").pending;
+
+        cache.fail("a", new IOException("encode failed"));
+
+        assertThat(pending).isCompletedExceptionally();
+        assertThatThrownBy(pending::join).isInstanceOf(CompletionException.class)
+            .hasCauseInstanceOf(IOException.class);
+        assertThat(cache.reserve("a").owner).isTrue();
+        assertThat(cache.getEntryCount()).isZero();
+    }
+
+    @Test
+    void restoreLinksTheArtifactBack() throws IOException {
+        cache.reserve("a");
+        Path hls = dir.resolve("out/a_hls");
+        write(hls.resolve("720p.m3u8"), 10);
+        write(hls.resolve("720p_000.ts"), 90);
+        cache.complete("a", hls, result("a_hls"));
+        TranscodeCache.deleteRecursively(hls);
+
+        Path restored = dir.resolve("elsewhere/a_hls");
+        cache.restore("a", restored);
+
+        assertThat(Files.size(restored.resolve("720p.m3u8"))).isEqualTo(10);
+        assertThat(Files.size(restored.resolve("720p_000.ts"))).isEqualTo(90);
+        assertThat(cache.getTotalBytes()).isEqualTo(100);
+    }
+
+    @Test
+    void restoreOfAVanishedEntryDropsIt() throws IOException {
+        cache.reserve("a");
+        cache.complete("a", write(dir.resolve("out/a.mp4"), 100), result("a.mp4"));
+        TranscodeCache.deleteRecursively(dir.resolve("cache/a"));
+
+        assertThatThrownBy(() -> cache.restore("a", dir.resolve("out/b.mp4"))).isInstanceOf(IOException.class);
+
+        assertThat(cache.getEntryCount()).isZero();
+        assertThat(cache.getTotalBytes()).isZero();
+        assertThat(cache.reserve("a").owner).isTrue();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedOverBudget() throws IOException {
+        cache = open(DataSize.ofBytes(250));
+        store("a", 100);
+        store("b", 100);
+        // Using a makes b the least recently used
+        assertThat(cache.reserve("a").cached).isNotNull();
+
+        store("c", 100);
+
+        assertThat(cache.getEntryCount()).isEqualTo(2);
+        assertThat(cache.getTotalBytes()).isEqualTo(200);
+        assertThat(cache.reserve("a").cached).isNotNull();
+        assertThat(cache.reserve("c").cached).isNotNull();
+        assertThat(cache.reserve("b").owner).isTrue();
+        assertThat(dir.resolve("cache/b")).doesNotExist();
+    }
+
+    @Test
+    void keepsWhatWasJustStoredEvenOverBudget() throws IOException {
+        cache = open(DataSize.ofBytes(50));
+        store("a", 100);
+
+        assertThat(cache.getEntryCount()).isEqualTo(1);
+        assertThat(cache.reserve("a").cached).isNotNull();
+    }
+
+    @Test
+    void indexSurvivesARestart() throws IOException {
+        store("a", 100);
+        store("b", 100);
+        TranscodeCache.deleteRecursively(dir.resolve("cache/b"));
+
+        cache = open(DataSize.ofMegabytes(1));
+
+        assertThat(cache.getEntryCount()).isEqualTo(1);
+        assertThat(cache.reserve("a").cached.getFileName()).isEqualTo("a.mp4");
+    }
+
+    // Helpers
+
+    private TranscodeCache open(DataSize maxSize) throws IOException {
+        TranscodeCache opened = new TranscodeCache(new ObjectMapper());
+        ReflectionTestUtils.setField(opened, "enabled", true);
+        ReflectionTestUtils.setField(opened, "cacheDirectory", dir.resolve("cache").toString());
+        ReflectionTestUtils.setField(opened, "maxSize", maxSize);
+        opened.init();
+        return opened;
+    }
+
+    private void store(String key, int size) throws IOException {
+        assertThat(cache.reserve(key).owner).isTrue();
+        cache.complete(key, write(dir.resolve("out/" + key + ".mp4"), size), result(key + ".mp4"));
+    }
+
+    private static CompressionResult result(String fileName) {
+        return CompressionResult.builder().fileName(fileName).build();
+    }
+
+    private static Path write(Path file, int size) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, new byte[size]);
+    }
+}
@@ -0,0 +1,111 @@
+package com.videocompression.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Output ids as the outputs endpoint passes them in. Only what the pipeline registered in the
+ * output directory resolves; everything else, however it is spelled, resolves to nothing.
+ */
+class VideoProcessingServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private Path outputs;
+    private OutputLifecycle outputLifecycle;
+    private VideoProcessingService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        outputs = dir.resolve("processed");
+        outputLifecycle = new OutputLifecycle(new ObjectMapper());
+        service = new VideoProcessingService(null, null, null, null, outputLifecycle,
+            new ExecutionThreads(new MockEnvironment()));
+        ReflectionTestUtils.setField(service, "processedDir", outputs.toString());
+        ReflectionTestUtils.setField(service, "uploadDir", dir.resolve("uploads").toString());
+        ReflectionTestUtils.invokeMethod(service, "createDirectories");
+        outputLifecycle.open(outputs);
+    }
+
+    @Test
+    void resolvesRegisteredOutputs() throws IOException {
+        Path file = write(outputs.resolve("video_720p.mp4"));
+        Path hls = outputs.resolve("video_hls");
+        Path playlist = write(hls.resolve("720p.m3u8"));
+        outputLifecycle.register(List.of(file, hls));
+
+        assertThat(service.findOutput("video_720p.mp4")).contains(file.toRealPath());
+        // Files inside a registered directory belong to it
+        assertThat(service.findOutput("video_hls/720p.m3u8")).contains(playlist.toRealPath());
+    }
+
+    @Test
+    void rejectsUnregisteredFiles() throws IOException {
+        write(outputs.resolve("stray.mp4"));
+
+        assertThat(service.findOutput("stray.mp4")).isEmpty();
+        assertThat(service.findOutput("missing.mp4")).isEmpty();
+    }
+
+    @Test
+    void rejectsDirectories() throws IOException {
+        Path hls = outputs.resolve("video_hls");
+        write(hls.resolve("720p.m3u8"));
+        outputLifecycle.register(List.of(hls));
+
+        assertThat(service.findOutput("video_hls")).isEmpty();
+    }
+
+    @Test
+    void rejectsIdsLeavingTheOutputDirectory() throws IOException {
+        write(dir.resolve("secret.txt"));
+        Path hls = outputs.resolve("video_hls");
+        write(hls.resolve("720p.m3u8"));
+        outputLifecycle.register(List.of(hls));
+
+        assertThat(service.findOutput("../secret.txt")).isEmpty();
+        assertThat(service.findOutput("video_hls/../../secret.txt")).isEmpty();
+        assertThat(service.findOutput("video_hls/./720p.m3u8")).isEmpty();
+        assertThat(service.findOutput(dir.resolve("secret.txt").toString())).isEmpty();
+        assertThat(service.findOutput("..\\secret.txt")).isEmpty();
+    }
+
+    @Test
+    void rejectsHiddenAndEmptyParts() throws IOException {
+        write(outputs.resolve(".outputs.json"));
+
+        assertThat(service.findOutput(".outputs.json")).isEmpty();
+        assertThat(service.findOutput("video_hls//720p.m3u8")).isEmpty();
+        assertThat(service.findOutput("")).isEmpty();
+        assertThat(service.findOutput(null)).isEmpty();
+    }
+
+    @Test
+    void rejectsLinksLeadingOut() throws IOException {
+        Path secret = write(dir.resolve("secret.txt"));
+        Path link = Files.createSymbolicLink(outputs.resolve("video_720p.mp4"), secret);
+        outputLifecycle.register(List.of(link));
+
+        assertThat(outputLifecycle.isRegistered(link)).isTrue();
+        assertThat(service.findOutput("video_720p.mp4")).isEmpty();
+    }
+
+    // Helpers
+
+    private static Path write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, new byte[16]);
+    }
+}